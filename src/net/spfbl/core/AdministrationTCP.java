@@ -16,7 +16,10 @@
  */
 package net.spfbl.core;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -25,10 +28,15 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import net.spfbl.core.Client.Permission;
 import net.spfbl.core.Peer.Receive;
 import net.spfbl.data.Block;
@@ -40,6 +48,7 @@ import net.spfbl.data.Trap;
 import net.spfbl.data.White;
 import net.spfbl.dns.QueryDNS;
 import net.spfbl.dns.Zone;
+import net.spfbl.dns.ZoneExport;
 import net.spfbl.spf.SPF;
 import net.spfbl.spf.SPF.Binomial;
 import net.spfbl.spf.SPF.Distribution;
@@ -53,7 +62,9 @@ import net.spfbl.whois.SubnetIPv6;
 /**
  * Servidor de commandos em TCP.
  * 
- * Este serviço responde o commando e finaliza a conexão logo em seguida.
+ * Este serviço responde o commando e finaliza a conexão logo em seguida,
+ * exceto quando a conexão inicia com SESSION, que mantém a conexão
+ * aberta para vários comandos até o QUIT numa thread própria.
  * 
  * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
  */
@@ -87,6 +98,7 @@ public final class AdministrationTCP extends Server {
         } catch (IOException ex) {
             Server.logError(ex);
         }
+        closeSessions();
     }
     
     public synchronized Socket getSocket() throws IOException {
@@ -97,6 +109,135 @@ public final class AdministrationTCP extends Server {
         SOCKET = null;
     }
     
+    /**
+     * Tempo máximo de ociosidade de uma sessão em milisegundos.
+     */
+    private static final int SESSION_TIMEOUT = 60000;
+    
+    /**
+     * Quantidade máxima de sessões simultâneas.
+     */
+    private static final int SESSION_MAX = 16;
+    
+    /**
+     * Vagas para sessões simultâneas.
+     */
+    private final Semaphore SESSION_SEMAPHORE = new Semaphore(SESSION_MAX);
+    
+    /**
+     * Conexões das sessões abertas, fechadas no encerramento do serviço.
+     */
+    private final HashSet<Socket> SESSION_SET = new HashSet<Socket>();
+    
+    /**
+     * Trava que executa um comando por vez, como na conexão única
+     * anterior às sessões, pois os comandos alteram o estado estático
+     * de Core e Server sem sincronização própria. As sessões ociosas
+     * não detêm a trava e continuam independentes entre si.
+     */
+    private static final Object COMMAND_LOCK = new Object();
+    
+    /**
+     * Finalização pedida pelo comando SHUTDOWN, executada somente depois
+     * do envio da resposta, pois encerra as conexões abertas.
+     */
+    private static final AtomicBoolean SHUTDOWN = new AtomicBoolean(false);
+    
+    /**
+     * Executa a finalização pedida pelo comando SHUTDOWN, se houver.
+     */
+    private static void shutdownRequested() {
+        if (SHUTDOWN.compareAndSet(true, false) && !shutdown()) {
+            // Houve falha no fechamento dos processos.
+            // Fechar forçadamente o programa.
+            Server.logDebug("system killed.");
+            System.exit(1);
+        }
+    }
+    
+    private synchronized void addSession(Socket socket) {
+        SESSION_SET.add(socket);
+    }
+    
+    private synchronized void removeSession(Socket socket) {
+        SESSION_SET.remove(socket);
+    }
+    
+    private synchronized void closeSessions() {
+        for (Socket socket : SESSION_SET) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                Server.logError(ex);
+            }
+        }
+        SESSION_SET.clear();
+    }
+    
+    /**
+     * Sessão persistente atendida fora da thread de aceitação,
+     * para que as demais conexões não esperem o fim da sessão.
+     */
+    private final class Session extends Thread {
+        
+        private final InetAddress ipAddress;
+        private final Socket socket;
+        private final BufferedReader bufferedReader;
+        
+        private Session(InetAddress ipAddress, Socket socket, BufferedReader bufferedReader) {
+            super("ADMSESSION");
+            this.ipAddress = ipAddress;
+            this.socket = socket;
+            this.bufferedReader = bufferedReader;
+            setPriority(Thread.MIN_PRIORITY);
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            long time = System.currentTimeMillis();
+            String result = null;
+            try {
+                result = processSession(ipAddress, socket, bufferedReader);
+            } catch (SocketException ex) {
+                // Conexão interrompida.
+                result = "INTERRUPTED\n";
+            } catch (Exception ex) {
+                Server.logError(ex);
+                result = "ERROR: SESSION\n";
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    Server.logError(ex);
+                }
+                removeSession(socket);
+                SESSION_SEMAPHORE.release();
+                Server.logAdministration(time, ipAddress, "SESSION", result);
+                shutdownRequested();
+            }
+        }
+    }
+    
+    /**
+     * Entrega a sessão para uma thread própria.
+     * @return verdadeiro se a sessão foi iniciada ou
+     * falso se o limite de sessões simultâneas foi atingido.
+     */
+    private boolean startSession(
+            InetAddress ipAddress,
+            Socket socket,
+            BufferedReader bufferedReader
+    ) {
+        if (SESSION_SEMAPHORE.tryAcquire()) {
+            addSession(socket);
+            new Session(ipAddress, socket, bufferedReader).start();
+            return true;
+        } else {
+            return false;
+        }
+    }
+    
     /**
      * Inicialização do serviço.
      */
@@ -111,6 +252,7 @@ public final class AdministrationTCP extends Server {
                 try {
                     time = System.currentTimeMillis();
                     InetAddress ipAddress = socket.getInetAddress();
+                    boolean session = false;
                     try {
                         InputStream inputStream = socket.getInputStream();
                         InputStreamReader inputStreamReader = new InputStreamReader(inputStream, "ISO-8859-1");
@@ -119,38 +261,28 @@ public final class AdministrationTCP extends Server {
                         result = null;
                         if (command == null) {
                             command = "DISCONNECTED";
-                        } else {
-                            Client client = Client.get(ipAddress);
-                            User user = client == null ? null : client.getUser();
-                            StringTokenizer tokenizer = new StringTokenizer(command, " ");
-                            String token = tokenizer.nextToken();
-                            Integer otpCode = Core.getInteger(token);
-                            if (otpCode != null) {
-                                int index = command.indexOf(token) + token.length() + 1;
-                                command = command.substring(index).trim();
-                                if (user == null) {
-                                    result = "TOTP UNDEFINED USER\n";
-                                } else if (!user.isValidOTP(otpCode)) {
-                                    result = "TOTP INVALID CODE\n";
-                                }
-                            }
-                            if (result == null) {
-                                OutputStream outputStream = socket.getOutputStream();
-                                result = processCommand(ipAddress, client, command, outputStream);
-                                if (result == null) {
-                                    result = "SENT\n";
-                                } else {
-                                    outputStream.write(result.getBytes("ISO-8859-1"));
-                                }
+                        } else if (command.equals("SESSION")) {
+                            // Sessão persistente com vários comandos
+                            // por conexão, processados em sequência.
+                            if (session = startSession(ipAddress, socket, bufferedReader)) {
+                                result = "STARTED\n";
+                            } else {
+                                result = "TOO MANY SESSIONS\n";
+                                socket.getOutputStream().write(result.getBytes("ISO-8859-1"));
                             }
+                        } else {
+                            OutputStream outputStream = socket.getOutputStream();
+                            result = processLine(ipAddress, command, bufferedReader, outputStream);
                         }
                     } catch (SocketException ex) {
                         // Conexão interrompida.
                         Server.logDebug("interrupted " + getName() + " connection.");
                         result = "INTERRUPTED\n";
                     } finally {
-                        // Fecha conexão logo após resposta.
-                        socket.close();
+                        if (!session) {
+                            // Fecha conexão logo após resposta.
+                            socket.close();
+                        }
                         InetAddress address = ipAddress;
                         clearSocket();
                         // Log da consulta com o respectivo resultado.
@@ -161,12 +293,7 @@ public final class AdministrationTCP extends Server {
                                 result
                                 );
                         time = 0;
-                        // Verificar se houve falha no fechamento dos processos.
-                        if (result != null && result.equals("ERROR: SHUTDOWN\n")) {
-                            // Fechar forçadamente o programa.
-                            Server.logDebug("system killed.");
-                            System.exit(1);
-                        }
+                        shutdownRequested();
                     }
                 } catch (SocketException ex) {
                     // Conexão fechada externamente pelo método close().
@@ -181,6 +308,330 @@ public final class AdministrationTCP extends Server {
         }
     }
     
+    /**
+     * Processa uma sessão persistente.
+     * 
+     * Cada linha recebida é um comando independente. As respostas
+     * são terminadas por uma linha vazia e só são descarregadas
+     * quando não há mais comandos pendentes na entrada, permitindo
+     * que o cliente envie vários comandos sem aguardar as respostas.
+     * A sessão termina com o comando QUIT, com o fechamento da
+     * conexão pelo cliente ou por ociosidade.
+     * 
+     * A saída em GZIP é recusada na sessão, pois os dados comprimidos
+     * podem conter a linha vazia que delimita as respostas.
+     * 
+     * @param ipAddress o IP de origem da conexão.
+     * @param socket a conexão da sessão.
+     * @param bufferedReader o leitor da entrada da conexão.
+     * @return o resultado da sessão para registro.
+     * @throws IOException se houver falha de comunicação.
+     */
+    private String processSession(
+            InetAddress ipAddress,
+            Socket socket,
+            BufferedReader bufferedReader
+    ) throws IOException {
+        socket.setSoTimeout(SESSION_TIMEOUT);
+        OutputStream outputStream = new BufferedOutputStream(socket.getOutputStream());
+        outputStream.write("OK\n\n".getBytes("ISO-8859-1"));
+        outputStream.flush();
+        int count = 0;
+        try {
+            String command;
+            while ((command = bufferedReader.readLine()) != null) {
+                if (command.equals("QUIT")) {
+                    outputStream.write("BYE\n\n".getBytes("ISO-8859-1"));
+                    break;
+                } else if (hasToken(command, "GZIP")) {
+                    String result = "GZIP NOT SUPPORTED IN SESSION\n";
+                    outputStream.write(result.getBytes("ISO-8859-1"));
+                    outputStream.write('\n');
+                    if (!bufferedReader.ready()) {
+                        outputStream.flush();
+                    }
+                    Server.logAdministration(System.currentTimeMillis(), ipAddress, command, result);
+                    count++;
+                } else {
+                    long timeCommand = System.currentTimeMillis();
+                    String result = processLine(ipAddress, command, bufferedReader, outputStream);
+                    outputStream.write('\n');
+                    if (!bufferedReader.ready()) {
+                        outputStream.flush();
+                    }
+                    Server.logAdministration(timeCommand, ipAddress, command, result);
+                    count++;
+                    if (SHUTDOWN.get()) {
+                        // A finalização é executada após o envio da resposta.
+                        outputStream.flush();
+                        return "SHUTDOWN AFTER " + count + " COMMANDS\n";
+                    }
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            return "TIMEOUT AFTER " + count + " COMMANDS\n";
+        } finally {
+            try {
+                outputStream.flush();
+            } catch (IOException ex) {
+                // A conexão já foi fechada.
+            }
+        }
+        return "CLOSED AFTER " + count + " COMMANDS\n";
+    }
+    
+    private static boolean hasToken(String command, String value) {
+        StringTokenizer tokenizer = new StringTokenizer(command, " ");
+        while (tokenizer.hasMoreTokens()) {
+            if (tokenizer.nextToken().equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Processa uma linha de comando, com o código TOTP opcional,
+     * e escreve o resultado na saída.
+     * @param ipAddress o IP de origem da conexão.
+     * @param command a linha do comando.
+     * @param bufferedReader o leitor da entrada para comandos de importação.
+     * @param outputStream a saída da conexão.
+     * @return o resultado do processamento para registro.
+     * @throws IOException se houver falha de comunicação.
+     */
+    private static String processLine(
+            InetAddress ipAddress,
+            String command,
+            BufferedReader bufferedReader,
+            OutputStream outputStream
+    ) throws IOException {
+        String result = null;
+        Client client = Client.get(ipAddress);
+        User user = client == null ? null : client.getUser();
+        StringTokenizer tokenizer = new StringTokenizer(command, " ");
+        if (tokenizer.hasMoreTokens()) {
+            String token = tokenizer.nextToken();
+            Integer otpCode = Core.getInteger(token);
+            if (otpCode != null) {
+                int index = command.indexOf(token) + token.length() + 1;
+                command = command.substring(Math.min(index, command.length())).trim();
+                if (user == null) {
+                    result = "TOTP UNDEFINED USER\n";
+                } else if (!user.isValidOTP(otpCode)) {
+                    result = "TOTP INVALID CODE\n";
+                }
+            }
+        }
+        if (result == null) {
+            synchronized (COMMAND_LOCK) {
+                result = processCommand(ipAddress, client, command, bufferedReader, outputStream);
+            }
+            if (result == null) {
+                return "SENT\n";
+            }
+        }
+        outputStream.write(result.getBytes("ISO-8859-1"));
+        return result;
+    }
+    
+    /**
+     * Importa em lote uma lista de bloqueios ou liberações.
+     * 
+     * Os tokens são lidos um por linha, do arquivo informado ou da própria
+     * conexão até uma linha contendo apenas um ponto. As propagações de
+     * bloqueio para os peers são enviadas somente ao final da importação.
+     * As linhas rejeitadas são informadas pelo número e pelo motivo,
+     * nunca pelo conteúdo.
+     * 
+     * @param block verdadeiro para bloqueios ou falso para liberações.
+     * @param reader o leitor dos tokens.
+     * @param outputStream a saída para as linhas rejeitadas.
+     * @return o resumo da importação.
+     * @throws IOException se houver falha de leitura.
+     */
+    private static String importTokens(
+            boolean block,
+            BufferedReader reader,
+            OutputStream outputStream
+    ) throws IOException {
+        int added = 0;
+        int exists = 0;
+        int invalid = 0;
+        ArrayList<String> peerList = new ArrayList<String>();
+        int number = 0;
+        String line;
+        while ((line = reader.readLine()) != null && !line.equals(".")) {
+            number++;
+            String token = line.trim();
+            if (token.length() > 0 && !token.startsWith("#")) {
+                try {
+                    int index = token.indexOf(':');
+                    String clientLocal = null;
+                    if (index != -1) {
+                        String prefix = token.substring(0, index);
+                        if (Domain.isEmail(prefix)) {
+                            clientLocal = prefix;
+                            token = token.substring(index+1);
+                        }
+                    }
+                    boolean result;
+                    if (!block) {
+                        result = clientLocal == null ? White.add(token) : White.add(clientLocal, token);
+                    } else if (clientLocal == null) {
+                        String blockedToken = Block.add(token);
+                        if (result = blockedToken != null) {
+                            peerList.add(blockedToken);
+                        }
+                    } else {
+                        result = Block.add(clientLocal, token);
+                    }
+                    if (result) {
+                        added++;
+                    } else {
+                        exists++;
+                    }
+                } catch (ProcessException ex) {
+                    outputStream.write(("LINE " + number + " " + ex.getErrorMessage() + "\n").getBytes("ISO-8859-1"));
+                    invalid++;
+                }
+            }
+        }
+        for (String blockedToken : peerList) {
+            Peer.sendBlockToAll(blockedToken);
+        }
+        return "ADDED " + added + "\nALREADY EXISTS " + exists + "\nINVALID " + invalid + "\n";
+    }
+    
+    /**
+     * Importa em lote uma lista de spamtraps e inexistentes.
+     * 
+     * Cada linha segue o formato do comando TRAP ADD, com o usuário
+     * opcional e o tempo opcional. Todos os registros válidos são
+     * incluídos de uma só vez ao final da leitura.
+     * 
+     * @param reader o leitor dos registros.
+     * @param outputStream a saída para o número das linhas rejeitadas.
+     * @return o resumo da importação.
+     * @throws IOException se houver falha de leitura.
+     */
+    private static String importTraps(
+            BufferedReader reader,
+            OutputStream outputStream
+    ) throws IOException {
+        int invalid = 0;
+        HashMap<String,Long> trapMap = new HashMap<String,Long>();
+        int number = 0;
+        String line;
+        while ((line = reader.readLine()) != null && !line.equals(".")) {
+            number++;
+            StringTokenizer tokenizer = new StringTokenizer(line, " \t");
+            if (tokenizer.hasMoreTokens()) {
+                String token = tokenizer.nextToken();
+                if (!token.startsWith("#")) {
+                    String error = null;
+                    int index = token.indexOf(':');
+                    if (index == -1 ? !Trap.isValid(token) : !Domain.isValidEmail(token.substring(0, index))
+                            || !Trap.isValid(token.substring(index + 1))) {
+                        error = "INVALID TRAP";
+                    } else if (!tokenizer.hasMoreTokens()) {
+                        trapMap.put(token, 0L);
+                    } else {
+                        try {
+                            trapMap.put(token, Long.parseLong(tokenizer.nextToken()));
+                        } catch (NumberFormatException ex) {
+                            error = "INVALID TIME";
+                        }
+                    }
+                    if (error != null) {
+                        outputStream.write(("LINE " + number + " " + error + "\n").getBytes("ISO-8859-1"));
+                        invalid++;
+                    }
+                }
+            }
+        }
+        int added = Trap.putAll(trapMap);
+        int exists = trapMap.size() - added;
+        return "ADDED " + added + "\nALREADY EXISTS " + exists + "\nINVALID " + invalid + "\n";
+    }
+    
+    private static String importTokens(
+            String list,
+            BufferedReader reader,
+            OutputStream outputStream
+    ) throws IOException {
+        if (list.equals("TRAP")) {
+            return importTraps(reader, outputStream);
+        } else {
+            return importTokens(list.equals("BLOCK"), reader, outputStream);
+        }
+    }
+    
+    /**
+     * Diretório de dados, o único de onde arquivos podem ser importados.
+     */
+    private static final File DATA_DIRECTORY = new File("./data");
+    
+    /**
+     * Resolve o arquivo de importação e verifica se está no diretório
+     * de dados depois de resolver os caminhos relativos e os links.
+     * @param path o caminho informado no comando.
+     * @return o arquivo canônico ou nulo se estiver fora do diretório de dados.
+     * @throws IOException se o caminho não puder ser resolvido.
+     */
+    private static File getImportFile(String path) throws IOException {
+        File directory = DATA_DIRECTORY.getCanonicalFile();
+        File file = new File(path);
+        if (!file.isAbsolute() && !file.exists()) {
+            file = new File(directory, path);
+        }
+        file = file.getCanonicalFile();
+        if (file.getPath().startsWith(directory.getPath() + File.separator)) {
+            return file;
+        } else {
+            return null;
+        }
+    }
+    
+    /**
+     * Importa em lote a partir da conexão ou de um arquivo local,
+     * que deve estar no diretório de dados.
+     * @param list o nome da lista: BLOCK, WHITE ou TRAP.
+     * @param tokenizer os parâmetros restantes do comando.
+     * @param bufferedReader o leitor da conexão.
+     * @param outputStream a saída da conexão.
+     * @return o resumo da importação.
+     * @throws IOException se houver falha de leitura.
+     */
+    private static String importTokens(
+            String list,
+            StringTokenizer tokenizer,
+            BufferedReader bufferedReader,
+            OutputStream outputStream
+    ) throws IOException {
+        if (!tokenizer.hasMoreTokens()) {
+            return importTokens(list, bufferedReader, outputStream);
+        } else {
+            File file = getImportFile(tokenizer.nextToken());
+            if (tokenizer.hasMoreTokens()) {
+                return "INVALID COMMAND\n";
+            } else if (file == null) {
+                return "FILE NOT ALLOWED\n";
+            } else if (!file.isFile()) {
+                return "FILE NOT FOUND\n";
+            } else {
+                BufferedReader fileReader = new BufferedReader(
+                        new InputStreamReader(new FileInputStream(file), "UTF-8")
+                );
+                try {
+                    return importTokens(list, fileReader, outputStream);
+                } finally {
+                    fileReader.close();
+                }
+            }
+        }
+    }
+    
     /**
      * Processa o comando e retorna o resultado.
      * @param client o cliente do processo.
@@ -191,6 +642,7 @@ public final class AdministrationTCP extends Server {
             InetAddress ipAddress,
             Client client,
             String command,
+            BufferedReader bufferedReader,
             OutputStream outputStream
     ) {
         try {
@@ -220,6 +672,18 @@ public final class AdministrationTCP extends Server {
                             }
                             result = builder.toString();
                         }
+                    } else if (token.equals("PROGRESS") && !tokenizer.hasMoreTokens()) {
+                        TreeSet<Analise> queue = Analise.getAnaliseSet();
+                        if (queue.isEmpty()) {
+                            result = "EMPTY\n";
+                        } else {
+                            StringBuilder builder = new StringBuilder();
+                            for (Analise analise : queue) {
+                                builder.append(analise.getProgress());
+                                builder.append('\n');
+                            }
+                            result = builder.toString();
+                        }
                     } else if (token.equals("DUMP") && tokenizer.countTokens() == 1) {
                         token = tokenizer.nextToken();
                         StringBuilder builder = new StringBuilder();
@@ -348,17 +812,16 @@ public final class AdministrationTCP extends Server {
                                 name = cidr.replace(':', '.');
                                 name = name.replace('/', '-');
                             }
-                            String last = SubnetIPv4.getLastIPv4(cidr);
-                            String ip = SubnetIPv4.getFirstIPv4(cidr);
                             Analise analise = Analise.get(name, true);
-                            analise.add(ip);
-                            if (!ip.equals(last)) {
-                                while (!last.equals(ip = SubnetIPv4.getNextIPv4(ip))) {
-                                    analise.add(ip);
+                            try {
+                                if (analise.addCIDR(cidr) > 0) {
+                                    result = "QUEUED\n";
+                                } else {
+                                    result = "EMPTY\n";
                                 }
-                                analise.add(last);
+                            } catch (InterruptedException ex) {
+                                result = "INTERRUPTED\n";
                             }
-                            result = "QUEUED\n";
                         }
                     } else if (SubnetIPv6.isValidCIDRv6(token)) {
                         String cidr = SubnetIPv6.normalizeCIDRv6(token);
@@ -373,17 +836,16 @@ public final class AdministrationTCP extends Server {
                                 name = cidr.replace(':', '.');
                                 name = name.replace('/', '-');
                             }
-                            String last = SubnetIPv6.getLastIPv6(cidr);
-                            String ip = SubnetIPv6.getFirstIPv6(cidr);
                             Analise analise = Analise.get(name, true);
-                            analise.add(ip);
-                            if (!ip.equals(last)) {
-                                while (!last.equals(ip = SubnetIPv6.getNextIPv6(ip))) {
-                                    analise.add(ip);
+                            try {
+                                if (analise.addCIDR(cidr) > 0) {
+                                    result = "QUEUED\n";
+                                } else {
+                                    result = "EMPTY\n";
                                 }
-                                analise.add(last);
+                            } catch (InterruptedException ex) {
+                                result = "INTERRUPTED\n";
                             }
-                            result = "QUEUED\n";
                         }
                     } else if (Domain.isHostname(token)) {
                         String hostname =  Domain.normalizeHostname(token, false);
@@ -848,14 +1310,11 @@ public final class AdministrationTCP extends Server {
                         result = "INVALID COMMAND\n";
                     }
                 } else if (token.equals("SHUTDOWN") && !tokenizer.hasMoreTokens()) {
-                    // Comando para finalizar o serviço.
-                    if (shutdown()) {
-                        // Fechamento de processos realizado com sucesso.
-                        result = "OK\n";
-                    } else {
-                        // Houve falha no fechamento dos processos.
-                        result = "ERROR: SHUTDOWN\n";
-                    }
+                    // Comando para finalizar o serviço, executado
+                    // depois do envio da resposta, pois o fechamento
+                    // dos processos encerra as conexões abertas.
+                    SHUTDOWN.set(true);
+                    result = "OK\n";
                 } else if (token.equals("STORE") && !tokenizer.hasMoreTokens()) {
                     // Comando para gravar o cache em disco.
                     if (tryStoreCache()) {
@@ -863,6 +1322,14 @@ public final class AdministrationTCP extends Server {
                     } else {
                         result = "ALREADY STORING\n";
                     }
+                } else if (token.equals("REVERSE") && tokenizer.hasMoreTokens()) {
+                    token = tokenizer.nextToken();
+                    if (token.equals("STATUS") && !tokenizer.hasMoreTokens()) {
+                        // Situação do cache de reverso: registros, limite e acertos.
+                        result = Reverse.getStatus() + "\n";
+                    } else {
+                        result = "INVALID COMMAND\n";
+                    }
                 } else if (token.equals("TLD") && tokenizer.hasMoreTokens()) {
                     token = tokenizer.nextToken();
                     if (token.equals("ADD") && tokenizer.hasMoreTokens()) {
@@ -913,7 +1380,19 @@ public final class AdministrationTCP extends Server {
                     }
                 } else if (token.equals("DNSBL") && tokenizer.hasMoreTokens()) {
                     token = tokenizer.nextToken();
-                    if (token.equals("ADD") && tokenizer.countTokens() >= 2) {
+                    if (token.equals("STATUS") && !tokenizer.hasMoreTokens()) {
+                        // Situação das threads de recepção DNS e da fila do kernel.
+                        result = Core.getDNSBLStatus();
+                    } else if (token.equals("EXPORT") && !tokenizer.hasMoreTokens()) {
+                        // Exportação das zonas para o rbldnsd.
+                        if (!ZoneExport.isEnabled()) {
+                            result = "DISABLED\n";
+                        } else if (ZoneExport.export(true)) {
+                            result = "EXPORTED\n";
+                        } else {
+                            result = "ERROR: EXPORT\n";
+                        }
+                    } else if (token.equals("ADD") && tokenizer.countTokens() >= 2) {
                         String hostname = tokenizer.nextToken();
                         String message = tokenizer.nextToken();
                         while (tokenizer.hasMoreTokens()) {
@@ -1162,7 +1641,10 @@ public final class AdministrationTCP extends Server {
                     }
                 } else if (token.equals("BLOCK") && tokenizer.hasMoreTokens()) {
                     token = tokenizer.nextToken();
-                    if (token.equals("ADD") && tokenizer.hasMoreTokens()) {
+                    if (token.equals("IMPORT")) {
+                        // Importação em lote de bloqueios.
+                        result = importTokens("BLOCK", tokenizer, bufferedReader, outputStream);
+                    } else if (token.equals("ADD") && tokenizer.hasMoreTokens()) {
                         while (tokenizer.hasMoreElements()) {
                             try {
                                 String blockedToken = tokenizer.nextToken();
@@ -1286,29 +1768,24 @@ public final class AdministrationTCP extends Server {
                             result = (block == null ? "NONE" : block) + "\n";
                         }
                     } else if (token.equals("SHOW")) {
-                        if (!tokenizer.hasMoreTokens()) {
-                            // Mecanismo de visualização 
-                            // de bloqueios de remetentes.
-                            int count = Block.get(outputStream);
-                            if (count == 0) {
-                                return "EMPTY\n";
+                        // Mecanismo de visualização de bloqueios
+                        // de remetentes, com compressão e filtro
+                        // por prefixo opcionais.
+                        token = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
+                        boolean all = "ALL".equals(token);
+                        if (all) {
+                            token = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
+                        }
+                        DumpWriter writer = DumpWriter.newInstance(outputStream, token, tokenizer);
+                        if (writer == null) {
+                            result = "INVALID COMMAND\n";
+                        } else {
+                            int count = all ? Block.getAll(writer) : Block.get(writer);
+                            if (count == 0 && !writer.isGZIP()) {
+                                result = "EMPTY\n";
                             } else {
                                 return null;
                             }
-                        } else if (tokenizer.countTokens() == 1) {
-                            token = tokenizer.nextToken();
-                            if (token.equals("ALL")) {
-                                // Mecanismo de visualização de 
-                                // todos os bloqueios de remetentes.
-                                int count = Block.getAll(outputStream);
-                                if (count == 0) {
-                                    return "EMPTY\n";
-                                } else {
-                                    return null;
-                                }
-                            } else {
-                                return "INVALID COMMAND\n";
-                            }
                         }
                     } else {
                         result = "INVALID COMMAND\n";
@@ -1441,7 +1918,10 @@ public final class AdministrationTCP extends Server {
                     }
                 } else if (token.equals("WHITE") && tokenizer.hasMoreTokens()) {
                     token = tokenizer.nextToken();
-                    if (token.equals("ADD") && tokenizer.hasMoreTokens()) {
+                    if (token.equals("IMPORT")) {
+                        // Importação em lote de liberações.
+                        result = importTokens("WHITE", tokenizer, bufferedReader, outputStream);
+                    } else if (token.equals("ADD") && tokenizer.hasMoreTokens()) {
                         while (tokenizer.hasMoreElements()) {
                             try {
                                 String whiteToken = tokenizer.nextToken();
@@ -1542,32 +2022,23 @@ public final class AdministrationTCP extends Server {
                             result = "INVALID COMMAND\n";
                         }
                     } else if (token.equals("SHOW")) {
-                        if (!tokenizer.hasMoreTokens()) {
-                            // Mecanismo de visualização 
-                            // de liberação de remetentes.
-                            StringBuilder builder = new StringBuilder();
-                            for (String sender : White.get()) {
-                                builder.append(sender);
-                                builder.append('\n');
-                            }
-                            result = builder.toString();
-                            if (result.length() == 0) {
+                        // Mecanismo de visualização de liberação
+                        // de remetentes, com compressão e filtro
+                        // por prefixo opcionais.
+                        token = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
+                        boolean all = "ALL".equals(token);
+                        if (all) {
+                            token = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
+                        }
+                        DumpWriter writer = DumpWriter.newInstance(outputStream, token, tokenizer);
+                        if (writer == null) {
+                            result = "INVALID COMMAND\n";
+                        } else {
+                            int count = all ? White.getAll(writer) : White.get(writer);
+                            if (count == 0 && !writer.isGZIP()) {
                                 result = "EMPTY\n";
-                            }
-                        } else if (tokenizer.countTokens() == 1) {
-                            token = tokenizer.nextToken();
-                            if (token.equals("ALL")) {
-                                // Mecanismo de visualização de 
-                                // todos os liberação de remetentes.
-                                StringBuilder builder = new StringBuilder();
-                                for (String sender : White.getAll()) {
-                                    builder.append(sender);
-                                    builder.append('\n');
-                                }
-                                result = builder.toString();
-                                if (result.length() == 0) {
-                                    result = "EMPTY\n";
-                                }
+                            } else {
+                                return null;
                             }
                         }
                     } else {
@@ -1575,7 +2046,10 @@ public final class AdministrationTCP extends Server {
                     }
                 } else if (token.equals("TRAP") && tokenizer.hasMoreTokens()) {
                     token = tokenizer.nextToken();
-                    if (token.equals("ADD") && tokenizer.hasMoreTokens()) {
+                    if (token.equals("IMPORT")) {
+                        // Importação em lote de spamtraps.
+                        result = importTokens("TRAP", tokenizer, bufferedReader, outputStream);
+                    } else if (token.equals("ADD") && tokenizer.hasMoreTokens()) {
                         try {
                             String trapToken = tokenizer.nextToken();
                             String timeString = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
@@ -2122,7 +2596,10 @@ public final class AdministrationTCP extends Server {
                     }
                 } else if (token.equals("PEER") && tokenizer.hasMoreTokens()) {
                     token = tokenizer.nextToken();
-                    if (token.equals("ADD") &&  tokenizer.hasMoreTokens()) {
+                    if (token.equals("STATUS") && !tokenizer.hasMoreTokens()) {
+                        // Situação das threads de recepção P2P e da fila do kernel.
+                        result = Core.getPeerStatus();
+                    } else if (token.equals("ADD") &&  tokenizer.hasMoreTokens()) {
                         String service = tokenizer.nextToken();
                         String email = null;
                         if (tokenizer.hasMoreElements()) {
@@ -2483,5 +2960,6 @@ public final class AdministrationTCP extends Server {
     protected void close() throws Exception {
         Server.logDebug("unbinding administration TCP socket on port " + PORT + "...");
         SERVER_SOCKET.close();
+        closeSessions();
     }
 }
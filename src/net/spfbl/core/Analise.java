@@ -16,12 +16,8 @@
  */
 package net.spfbl.core;
 
-import com.sun.mail.smtp.SMTPTransport;
-import com.sun.mail.util.MailConnectException;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -33,12 +29,18 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Properties;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
-import javax.mail.MessagingException;
-import javax.mail.Session;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.naming.CommunicationException;
 import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
@@ -121,6 +123,12 @@ public class Analise implements Serializable, Comparable<Analise> {
     
     private long last = System.currentTimeMillis();
     
+    private transient long processCount = 0; // Quantidade de tokens processados.
+    private transient int processTasks = 0; // Quantidade de tarefas em andamento.
+    private transient long processStart = 0; // Início do período contínuo de processamento.
+    private transient long processEnd = 0; // Fim da última tarefa do período.
+    private transient long periodCount = 0; // Quantidade de tokens processados no período.
+    
     private Analise(String name) {
         this.name = name;
     }
@@ -218,10 +226,7 @@ public class Analise implements Serializable, Comparable<Analise> {
             return false;
         } else if (ipSet.add(token)) {
             semaphoreSet.release();
-            if (SEMAPHORE.tryAcquire()) {
-                Process process = new Process();
-                process.start();
-            }
+            startDispatcher();
             last = System.currentTimeMillis();
             return CHANGED = true;
         } else {
@@ -229,11 +234,90 @@ public class Analise implements Serializable, Comparable<Analise> {
         }
     }
     
+    /**
+     * Adiciona todos os IPs de um bloco CIDR de uma só vez.
+     * @param cidr o bloco CIDR a ser expandido.
+     * @return a quantidade de IPs adicionados.
+     * @throws InterruptedException se a espera pelo semáforo for interrompida.
+     */
+    public int addCIDR(String cidr) throws InterruptedException {
+        ArrayList<String> list = expandCIDR(cidr);
+        if (list == null || !run) {
+            return 0;
+        } else {
+            int count = 0;
+            semaphoreSet.acquire();
+            try {
+                for (String ip : list) {
+                    if (processSet.contains(ip)) {
+                        continue;
+                    } else if (resultSet.contains(ip)) {
+                        continue;
+                    } else if (ipSet.add(ip)) {
+                        count++;
+                    }
+                }
+            } finally {
+                semaphoreSet.release();
+            }
+            if (count > 0) {
+                startDispatcher();
+                last = System.currentTimeMillis();
+                CHANGED = true;
+            }
+            return count;
+        }
+    }
+    
+    /**
+     * Expande um bloco CIDR em lista de IPs por iteração numérica.
+     * @param cidr o bloco CIDR a ser expandido.
+     * @return a lista de IPs normalizados ou nulo se o bloco for inválido.
+     */
+    private static ArrayList<String> expandCIDR(String cidr) {
+        if (SubnetIPv4.isValidCIDRv4(cidr)) {
+            cidr = SubnetIPv4.normalizeCIDRv4(cidr);
+            short mask = SubnetIPv4.getMask(cidr);
+            int address = SubnetIPv4.getAddressNet(cidr);
+            int count = 1 << (32 - mask);
+            ArrayList<String> list = new ArrayList<String>(count);
+            for (int index = 0; index < count; index++) {
+                list.add(SubnetIPv4.getIPv4(address + index));
+            }
+            return list;
+        } else if (SubnetIPv6.isValidCIDRv6(cidr)) {
+            cidr = SubnetIPv6.normalizeCIDRv6(cidr);
+            short mask = SubnetIPv6.getMask(cidr);
+            if (mask < 114) {
+                return null;
+            } else {
+                short[] first = SubnetIPv6.split(SubnetIPv6.getFirstIPv6(cidr));
+                StringBuilder builder = new StringBuilder();
+                for (int index = 0; index < 6; index++) {
+                    builder.append(Integer.toHexString(first[index] & 0xFFFF));
+                    builder.append(':');
+                }
+                String prefix = builder.toString();
+                int address = ((first[6] & 0xFFFF) << 16) | (first[7] & 0xFFFF);
+                int count = 1 << (128 - mask);
+                ArrayList<String> list = new ArrayList<String>(count);
+                for (int index = 0; index < count; index++) {
+                    int value = address + index;
+                    String ip = prefix
+                            + Integer.toHexString(value >>> 16 & 0xFFFF) + ":"
+                            + Integer.toHexString(value & 0xFFFF);
+                    list.add(SubnetIPv6.normalizeIPv6(ip));
+                }
+                return list;
+            }
+        } else {
+            return null;
+        }
+    }
+    
     public static void initProcess() {
-        int count = 0;
-        while (count++ < 256 && getProcessTotal() > 0 && SEMAPHORE.tryAcquire()) {
-            Process process = new Process();
-            process.start();
+        if (getWaitTotal() > 0) {
+            startDispatcher();
         }
     }
     
@@ -311,23 +395,32 @@ public class Analise implements Serializable, Comparable<Analise> {
         }
     }
     
-    private String pollFirst() {
+    /**
+     * Retira um lote de tokens da fila de espera
+     * e os transfere para o conjunto em processamento.
+     * @param max o tamanho máximo do lote.
+     * @return o lote de tokens retirados.
+     */
+    private ArrayList<String> pollBatch(int max) {
+        ArrayList<String> list = new ArrayList<String>();
         try {
             semaphoreSet.acquire();
-            String ip = ipSet.pollFirst();
-            if (ip == null) {
-                semaphoreSet.release();
-                return null;
-            } else {
-                processSet.add(ip);
+            try {
+                String token;
+                while (list.size() < max && (token = ipSet.pollFirst()) != null) {
+                    processSet.add(token);
+                    list.add(token);
+                }
+            } finally {
                 semaphoreSet.release();
+            }
+            if (!list.isEmpty()) {
                 CHANGED = true;
-                return ip;
             }
         } catch (InterruptedException ex) {
             Server.logError(ex);
-            return null;
         }
+        return list;
     }
     
     private boolean dropProcess(String token) {
@@ -343,6 +436,7 @@ public class Analise implements Serializable, Comparable<Analise> {
     }
     
     public static void dropExpired() {
+        ProbeSMTP.dropExpired();
         for (String name : getNameSet()) {
             Analise analise = get(name, false);
             if (analise != null && analise.isExpired() && drop(name) != null) {
@@ -360,10 +454,6 @@ public class Analise implements Serializable, Comparable<Analise> {
         return time >= ANALISE_EXPIRES;
     }
     
-    private boolean isWait() {
-        return !ipSet.isEmpty();
-    }
-    
     private boolean addResult(String token, String result) {
         try {
             semaphoreSet.acquire();
@@ -495,9 +585,8 @@ public class Analise implements Serializable, Comparable<Analise> {
         return ipv6Set;
     }
     
-    private boolean process() {
+    private boolean process(String token) {
         if (run) {
-            String token = pollFirst();
             if (token == null) {
                 return false;
             } else if (Subnet.isReservedIP(token)) {
@@ -515,7 +604,13 @@ public class Analise implements Serializable, Comparable<Analise> {
                 return false;
             } else if (Domain.isHostname(token)) {
                 String hostname = Domain.normalizeHostname(token, true);
-                TreeSet<String> ipLocalSet = Analise.getIPSet(hostname.substring(1));
+                TreeSet<String> ipLocalSet;
+                acquireDNS();
+                try {
+                    ipLocalSet = Analise.getIPSet(hostname.substring(1));
+                } finally {
+                    releaseDNS();
+                }
                 if (ipLocalSet == null) {
                     if (!Generic.containsGeneric(hostname) && Block.tryAdd(hostname)) {
                         Server.logDebug("new BLOCK '" + hostname + "' added by 'NXDOMAIN'.");
@@ -532,7 +627,12 @@ public class Analise implements Serializable, Comparable<Analise> {
                 return false;
             } else {
                 StringBuilder builder = new StringBuilder();
-                Analise.process(token, builder, 20000);
+                acquireDNS();
+                try {
+                    Analise.process(token, builder, 20000);
+                } finally {
+                    releaseDNS();
+                }
                 String result = builder.toString();
                 if (addResult(token, result)) {
 //                    Server.logTrace(token + ' ' + result);
@@ -579,8 +679,53 @@ public class Analise implements Serializable, Comparable<Analise> {
         }
     }
     
-    private int getProcessSetSize() {
-        return processSet.size();
+    private int getWaitSize() {
+        return ipSet.size();
+    }
+    
+    /**
+     * Registra o início de uma tarefa. A primeira tarefa
+     * depois de uma pausa inicia um novo período de medição.
+     */
+    private synchronized void startTask() {
+        if (processTasks++ == 0) {
+            processStart = System.currentTimeMillis();
+            processEnd = processStart;
+            periodCount = 0;
+        }
+    }
+    
+    private synchronized void finishTask(int count) {
+        processTasks--;
+        processCount += count;
+        periodCount += count;
+        processEnd = System.currentTimeMillis();
+    }
+    
+    /**
+     * Retorna o progresso desta análise.
+     * @return nome, quantidades em espera, em processamento e
+     * com resultado, total processado e vazão em tokens por segundo
+     * no tempo decorrido desde o início do período de processamento.
+     */
+    public synchronized String getProgress() {
+        long end = processTasks > 0 ? System.currentTimeMillis() : processEnd;
+        long elapsed = end - processStart;
+        float rate = elapsed <= 0 ? 0.0f : periodCount * 1000.0f / elapsed;
+        if (semaphoreSet.tryAcquire()) {
+            String result = getName() + " "
+                    + ipSet.size() + " "
+                    + processSet.size() + " "
+                    + resultSet.size() + " "
+                    + processCount + " "
+                    + Core.DECIMAL_FORMAT.format(rate) + "/s";
+            semaphoreSet.release();
+            return result;
+        } else {
+            return getName() + " BUSY "
+                    + processCount + " "
+                    + Core.DECIMAL_FORMAT.format(rate) + "/s";
+        }
     }
     
     /**
@@ -592,10 +737,10 @@ public class Analise implements Serializable, Comparable<Analise> {
      */
     private static final HashMap<String,Analise> MAP = new HashMap<String,Analise>();
     
-    private static synchronized int getProcessTotal() {
+    private static synchronized int getWaitTotal() {
         int total = 0;
         for (Analise analise : MAP.values()) {
-            total += analise.getProcessSetSize();
+            total += analise.getWaitSize();
         }
         return total;
     }
@@ -706,22 +851,6 @@ public class Analise implements Serializable, Comparable<Analise> {
         return analise;
     }
     
-    private static synchronized Analise getNextWait() {
-        // Rotaciona para distribuir os processos.
-        Analise analise = QUEUE.poll();
-        if (analise == null) {
-            return null;
-        } else {
-            QUEUE.offer(analise);
-            for (Analise analise2 : QUEUE) {
-                if (analise2.isWait()) {
-                    return analise2;
-                }
-            }
-            return null;
-        }
-    }
-    
     public static boolean processToday(String token) {
         if (ANALISE_EXPIRES > 0) {
             if (token == null) {
@@ -742,16 +871,7 @@ public class Analise implements Serializable, Comparable<Analise> {
                 if (mask < 18) {
                     return false;
                 } else {
-                    String last = SubnetIPv4.getLastIPv4(cidr);
-                    String ip = SubnetIPv4.getFirstIPv4(cidr);
-                    processToday(ip);
-                    if (!ip.equals(last)) {
-                        while (!last.equals(ip = SubnetIPv4.getNextIPv4(ip))) {
-                            processToday(ip);
-                        }
-                        processToday(last);
-                    }
-                    return false;
+                    return processToday(expandCIDR(cidr));
                 }
             } else if (ANALISE_IP && SubnetIPv6.isValidCIDRv6(token)) {
                 String cidr = SubnetIPv6.normalizeCIDRv6(token);
@@ -759,16 +879,7 @@ public class Analise implements Serializable, Comparable<Analise> {
                 if (mask < 114) {
                     return false;
                 } else {
-                    String last = SubnetIPv6.getLastIPv6(cidr);
-                    String ip = SubnetIPv6.getFirstIPv6(cidr);
-                    processToday(ip);
-                    if (!ip.equals(last)) {
-                        while (!last.equals(ip = SubnetIPv6.getNextIPv6(ip))) {
-                            processToday(ip);
-                        }
-                        processToday(last);
-                    }
-                    return false;
+                    return processToday(expandCIDR(cidr));
                 }
             } else {
                 return false;
@@ -787,6 +898,35 @@ public class Analise implements Serializable, Comparable<Analise> {
         }
     }
     
+    /**
+     * Enfileira uma lista de IPs já normalizados na análise do dia,
+     * consultando as análises existentes uma única vez.
+     */
+    private static boolean processToday(ArrayList<String> ipList) {
+        if (ipList == null) {
+            return false;
+        } else {
+            Date today = new Date();
+            String name = Core.SQL_FORMAT.format(today);
+            Analise analiseToday = Analise.get(name, true);
+            TreeSet<Analise> analiseSet = Analise.getAnaliseSet();
+            boolean added = false;
+            for (String ip : ipList) {
+                boolean contains = false;
+                for (Analise analise : analiseSet) {
+                    if (analise.containsFullSet(ip)) {
+                        contains = true;
+                        break;
+                    }
+                }
+                if (!contains && analiseToday.addNew(ip)) {
+                    added = true;
+                }
+            }
+            return added;
+        }
+    }
+    
     /**
      * Enumeração do status da analise.
      */
@@ -901,53 +1041,24 @@ public class Analise implements Serializable, Comparable<Analise> {
     }
     
     private static Object getResponseSMTP(String host, int port, int timeout) {
+        boolean dns = DNS_PERMIT.get();
+        if (dns) {
+            // Libera a etapa DNS enquanto aguarda a etapa SMTP.
+            releaseDNS();
+        }
         try {
-            Properties props = new Properties();
-            props.put("mail.smtp.starttls.enable", "false");
-            props.put("mail.smtp.auth", "false");
-            props.put("mail.smtp.timeout", Integer.toString(timeout));
-            props.put("mail.smtp.connectiontimeout", "3000");
-            Session session = Session.getInstance(props, null);
-            SMTPTransport transport = (SMTPTransport) session.getTransport("smtp");
+            SEMAPHORE_SMTP.acquire();
             try {
-                transport.setLocalHost(Core.getHostname());
-                transport.connect(host, port, null, null);
-                String response = transport.getLastServerResponse();
-                int beginIndex = 4;
-                int endIndex;
-                for (endIndex = beginIndex; endIndex < response.length(); endIndex++) {
-                    if (response.charAt(endIndex) == ' ') {
-                        break;
-                    } else if (response.charAt(endIndex) == '\n') {
-                        break;
-                    }
-                }
-                String helo = response.substring(beginIndex, endIndex);
-                if (helo.contains(".") && Domain.isHostname(helo)) {
-                    return Domain.normalizeHostname(helo, true);
-                } else {
-                    return null;
-                }
+                return ProbeSMTP.getResponse(host, port, timeout);
             } finally {
-                if (transport.isConnected()) {
-                    transport.close();
-                }
+                SEMAPHORE_SMTP.release();
             }
-        } catch (MailConnectException ex) {
-            if (ex.getMessage().contains("timeout -1")) {
-                return Status.CLOSED;
-            } else {
-                return Status.TIMEOUT;
+        } catch (InterruptedException ex) {
+            return Status.ERROR;
+        } finally {
+            if (dns) {
+                acquireDNS();
             }
-        } catch (MessagingException ex) {
-//            if (ex.getMessage().containsExact("TLS")) {
-//                return Status.NOTLS;
-//            } else {
-                return Status.UNAVAILABLE;
-//            }
-        } catch (Exception ex) {
-            Server.logError(ex);
-            return null;
         }
     }
     
@@ -1527,14 +1638,69 @@ public class Analise implements Serializable, Comparable<Analise> {
         }
     }
     
-    private static final TreeMap<String,Short[]> clusterMap = new TreeMap<String,Short[]>(); // Mapa dos agrupamentos.
+    /**
+     * Mapa dos agrupamentos.
+     * 
+     * Cada valor guarda os contadores HAM e SPAM empacotados
+     * num único inteiro, sendo HAM nos 16 bits superiores e
+     * SPAM nos 16 bits inferiores, atualizados por CAS sem
+     * bloqueio global. O mapa ordenado concorrente permite
+     * percorrer os agrupamentos sem copiar o mapa inteiro.
+     */
+    private static final ConcurrentSkipListMap<String,AtomicInteger> CLUSTER_MAP =
+            new ConcurrentSkipListMap<String,AtomicInteger>();
     private static final float CLUSTER_YELLOW = 0.75f;
     
-    protected static synchronized boolean dropCluster(String token) {
-        return clusterMap.remove(token) != null;
+    private static int getClusterHAM(int dist) {
+        return dist >>> 16;
+    }
+    
+    private static int getClusterSPAM(int dist) {
+        return dist & 0xFFFF;
+    }
+    
+    private static int packCluster(int ham, int spam) {
+        while (ham + spam > Short.MAX_VALUE) {
+            ham /= 2;
+            spam /= 2;
+        }
+        return (ham << 16) | spam;
+    }
+    
+    private static boolean isClusterYELLOW(int dist) {
+        int spam = getClusterSPAM(dist);
+        if (spam > 512) {
+            int ham = getClusterHAM(dist);
+            float total = ham + spam;
+            float reputation = spam / total;
+            return reputation > CLUSTER_YELLOW;
+        } else {
+            return false;
+        }
+    }
+    
+    private static void appendCluster(StringBuilder builder, String token, int dist) {
+        builder.append(token);
+        builder.append(' ');
+        builder.append(getClusterHAM(dist));
+        builder.append(' ');
+        builder.append(getClusterSPAM(dist));
+        builder.append('\n');
     }
     
-    private static synchronized boolean addCluster(String token, Status status, Distribution dist) {
+    private static void putCluster(String token, Short[] value) {
+        if (token != null && value != null && value.length == 2) {
+            int ham = value[0] == null ? 0 : Math.max(0, (int) value[0]);
+            int spam = value[1] == null ? 0 : Math.max(0, (int) value[1]);
+            CLUSTER_MAP.put(token, new AtomicInteger(packCluster(ham, spam)));
+        }
+    }
+    
+    protected static boolean dropCluster(String token) {
+        return CLUSTER_MAP.remove(token) != null;
+    }
+    
+    private static boolean addCluster(String token, Status status, Distribution dist) {
         try {
             if (token == null) {
                 return false;
@@ -1549,33 +1715,36 @@ public class Analise implements Serializable, Comparable<Analise> {
             } else if (Ignore.contains(token)) {
                 return false;
             } else {
-                Short[] clusterDist = clusterMap.get(token);
-                if (clusterDist == null) {
-                    clusterDist = new Short[2];
-                    clusterDist[0] = 0;
-                    clusterDist[1] = 0;
-                    clusterMap.put(token, clusterDist);
-                }
-                int ham = clusterDist[0];
-                int spam = clusterDist[1];
+                int hamDelta = 0;
+                int spamDelta = 0;
                 if (dist != null) {
-                    ham += dist.getHAM();
-                    spam += dist.getSPAM();
+                    hamDelta += dist.getHAM();
+                    spamDelta += dist.getSPAM();
                 }
                 switch (status) {
                     case WHITE: case GREEN:
-                        ham++;
+                        hamDelta++;
                         break;
                     case BLOCK: case RED: case DNSBL: case NXDOMAIN:
-                        spam++;
+                        spamDelta++;
                         break;
                 }
-                while (ham + spam > Short.MAX_VALUE) {
-                    ham /= 2;
-                    spam /= 2;
+                AtomicInteger clusterDist = CLUSTER_MAP.get(token);
+                if (clusterDist == null) {
+                    AtomicInteger newDist = new AtomicInteger(0);
+                    clusterDist = CLUSTER_MAP.putIfAbsent(token, newDist);
+                    if (clusterDist == null) {
+                        clusterDist = newDist;
+                    }
                 }
-                clusterDist[0] = (short) ham;
-                clusterDist[1] = (short) spam;
+                int current;
+                int updated;
+                do {
+                    current = clusterDist.get();
+                    int ham = getClusterHAM(current) + hamDelta;
+                    int spam = getClusterSPAM(current) + spamDelta;
+                    updated = packCluster(ham, spam);
+                } while (!clusterDist.compareAndSet(current, updated));
                 return true;
             }
         } catch (Exception ex) {
@@ -1584,31 +1753,29 @@ public class Analise implements Serializable, Comparable<Analise> {
         }
     }
     
-    protected static synchronized TreeMap<String,Short[]> getClusterMap() {
+    /**
+     * Gera a cópia do mapa no formato legado de gravação em disco.
+     */
+    private static TreeMap<String,Short[]> getClusterMap() {
         TreeMap<String,Short[]> cloneMap = new TreeMap<String,Short[]>();
-        cloneMap.putAll(clusterMap);
+        for (Map.Entry<String,AtomicInteger> entry : CLUSTER_MAP.entrySet()) {
+            int dist = entry.getValue().get();
+            Short[] value = new Short[2];
+            value[0] = (short) getClusterHAM(dist);
+            value[1] = (short) getClusterSPAM(dist);
+            cloneMap.put(entry.getKey(), value);
+        }
         return cloneMap;
     }
     
     protected static void dumpClusterTLD(StringBuilder builder) {
-        TreeMap<String,Short[]> map = getClusterMap();
-        for (String token : map.keySet()) {
-            Short[] dist = map.get(token);
-            int spam = dist[1];
-            if (spam > 512) {
-                int ham = dist[0];
-                float total = ham + spam;
-                float reputation = spam / total;
-                if (reputation > CLUSTER_YELLOW) {
-                    if (Domain.isOfficialTLD(token)) {
-                        if (!Block.contains(token)) {
-                            builder.append(token);
-                            builder.append(' ');
-                            builder.append(ham);
-                            builder.append(' ');
-                            builder.append(spam);
-                            builder.append('\n');
-                        }
+        for (Map.Entry<String,AtomicInteger> entry : CLUSTER_MAP.entrySet()) {
+            String token = entry.getKey();
+            int dist = entry.getValue().get();
+            if (isClusterYELLOW(dist)) {
+                if (Domain.isOfficialTLD(token)) {
+                    if (!Block.contains(token)) {
+                        appendCluster(builder, token, dist);
                     }
                 }
             }
@@ -1616,24 +1783,13 @@ public class Analise implements Serializable, Comparable<Analise> {
     }
     
     protected static void dumpClusterCPF(StringBuilder builder) {
-        TreeMap<String,Short[]> map = getClusterMap();
-        for (String token : map.keySet()) {
-            Short[] dist = map.get(token);
-            int spam = dist[1];
-            if (spam > 512) {
-                int ham = dist[0];
-                float total = ham + spam;
-                float reputation = spam / total;
-                if (reputation > CLUSTER_YELLOW) {
-                    if (Owner.isOwnerCPF(token)) {
-                        if (!Block.contains(token)) {
-                            builder.append(token);
-                            builder.append(' ');
-                            builder.append(ham);
-                            builder.append(' ');
-                            builder.append(spam);
-                            builder.append('\n');
-                        }
+        for (Map.Entry<String,AtomicInteger> entry : CLUSTER_MAP.entrySet()) {
+            String token = entry.getKey();
+            int dist = entry.getValue().get();
+            if (isClusterYELLOW(dist)) {
+                if (Owner.isOwnerCPF(token)) {
+                    if (!Block.contains(token)) {
+                        appendCluster(builder, token, dist);
                     }
                 }
             }
@@ -1641,24 +1797,13 @@ public class Analise implements Serializable, Comparable<Analise> {
     }
     
     protected static void dumpClusterCNPJ(StringBuilder builder) {
-        TreeMap<String,Short[]> map = getClusterMap();
-        for (String token : map.keySet()) {
-            Short[] dist = map.get(token);
-            int spam = dist[1];
-            if (spam > 512) {
-                int ham = dist[0];
-                float total = ham + spam;
-                float reputation = spam / total;
-                if (reputation > CLUSTER_YELLOW) {
-                    if (Owner.isOwnerCNPJ(token)) {
-                        if (!Block.contains(token)) {
-                            builder.append(token);
-                            builder.append(' ');
-                            builder.append(ham);
-                            builder.append(' ');
-                            builder.append(spam);
-                            builder.append('\n');
-                        }
+        for (Map.Entry<String,AtomicInteger> entry : CLUSTER_MAP.entrySet()) {
+            String token = entry.getKey();
+            int dist = entry.getValue().get();
+            if (isClusterYELLOW(dist)) {
+                if (Owner.isOwnerCNPJ(token)) {
+                    if (!Block.contains(token)) {
+                        appendCluster(builder, token, dist);
                     }
                 }
             }
@@ -1666,24 +1811,13 @@ public class Analise implements Serializable, Comparable<Analise> {
     }
     
     protected static void dumpClusterCIDR(StringBuilder builder) {
-        TreeMap<String,Short[]> map = getClusterMap();
-        for (String token : map.keySet()) {
-            Short[] dist = map.get(token);
-            int spam = dist[1];
-            if (spam > 512) {
-                int ham = dist[0];
-                float total = ham + spam;
-                float reputation = spam / total;
-                if (reputation > CLUSTER_YELLOW) {
-                    if (Subnet.isValidCIDR(token)) {
-                        if (!Block.contains(token)) {
-                            builder.append(token);
-                            builder.append(' ');
-                            builder.append(ham);
-                            builder.append(' ');
-                            builder.append(spam);
-                            builder.append('\n');
-                        }
+        for (Map.Entry<String,AtomicInteger> entry : CLUSTER_MAP.entrySet()) {
+            String token = entry.getKey();
+            int dist = entry.getValue().get();
+            if (isClusterYELLOW(dist)) {
+                if (Subnet.isValidCIDR(token)) {
+                    if (!Block.contains(token)) {
+                        appendCluster(builder, token, dist);
                     }
                 }
             }
@@ -1691,27 +1825,16 @@ public class Analise implements Serializable, Comparable<Analise> {
     }
     
     protected static void dumpClusterMask(StringBuilder builder) {
-        TreeMap<String,Short[]> map = getClusterMap();
-        for (String token : map.keySet()) {
+        for (Map.Entry<String,AtomicInteger> entry : CLUSTER_MAP.entrySet()) {
+            String token = entry.getKey();
             if (token.contains("#") || token.contains(".H.")) {
-                Short[] dist = map.get(token);
-                int spam = dist[1];
-                if (spam > 512) {
-                    int ham = dist[0];
-                    float total = ham + spam;
-                    float reputation = spam / total;
-                    if (reputation > CLUSTER_YELLOW) {
-                        if (!Generic.containsGenericExact(token)) {
-                            String hostname = token.replace("#", "0");
-                            hostname = hostname.replace(".H.", ".0a.");
-                            if (!Block.contains(hostname)) {
-                                builder.append(token);
-                                builder.append(' ');
-                                builder.append(ham);
-                                builder.append(' ');
-                                builder.append(spam);
-                                builder.append('\n');
-                            }
+                int dist = entry.getValue().get();
+                if (isClusterYELLOW(dist)) {
+                    if (!Generic.containsGenericExact(token)) {
+                        String hostname = token.replace("#", "0");
+                        hostname = hostname.replace(".H.", ".0a.");
+                        if (!Block.contains(hostname)) {
+                            appendCluster(builder, token, dist);
                         }
                     }
                 }
@@ -1719,23 +1842,15 @@ public class Analise implements Serializable, Comparable<Analise> {
         }
     }
     
-    public static synchronized boolean isCusterYELLOW(String token) {
+    public static boolean isCusterYELLOW(String token) {
         if (token == null) {
             return false;
         } else {
-            Short[] dist = clusterMap.get(token);
+            AtomicInteger dist = CLUSTER_MAP.get(token);
             if (dist == null) {
                 return false;
             } else {
-                int spam = dist[1];
-                if (spam > 512) {
-                    int ham = dist[0];
-                    float total = ham + spam;
-                    float reputation = spam / total;
-                    return reputation > CLUSTER_YELLOW;
-                } else {
-                    return false;
-                }
+                return isClusterYELLOW(dist.get());
             }
         }
     }
@@ -1758,25 +1873,130 @@ public class Analise implements Serializable, Comparable<Analise> {
         }
     }
     
+    /**
+     * Quantidade de threads do processamento, que passam a maior parte
+     * do tempo bloqueadas em consultas DNS, SMTP e WHOIS.
+     */
     private static final int MAX = 256;
-    private static final Semaphore SEMAPHORE = new Semaphore(MAX);
+    /**
+     * Quantidade de tokens de cada tarefa do executor.
+     */
+    private static final int THRESHOLD = 4;
+    /**
+     * Vagas de tarefas no executor, uma por thread, de modo que uma nova
+     * tarefa é entregue assim que outra termina, sem esperar as demais.
+     */
+    private static final Semaphore SEMAPHORE_TASK = new Semaphore(MAX);
+    /**
+     * Limite de processos simultâneos na etapa DNS.
+     */
+    private static final Semaphore SEMAPHORE_DNS = new Semaphore(128);
+    /**
+     * Limite de processos simultâneos na etapa SMTP.
+     */
+    private static final Semaphore SEMAPHORE_SMTP = new Semaphore(192);
+    /**
+     * Indica se a thread atual detém uma permissão da etapa DNS.
+     */
+    private static final ThreadLocal<Boolean> DNS_PERMIT = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+    /**
+     * Executor de tamanho fixo, pois as tarefas bloqueiam em rede
+     * e não se beneficiam da divisão de trabalho do fork/join.
+     */
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            MAX, MAX, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ANALISEP");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            }
+    );
+    
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+    private static final Semaphore SEMAPHORE = new Semaphore(1);
     private static boolean run = true;
     
+    private static void acquireDNS() {
+        SEMAPHORE_DNS.acquireUninterruptibly();
+        DNS_PERMIT.set(true);
+    }
+    
+    private static void releaseDNS() {
+        DNS_PERMIT.set(false);
+        SEMAPHORE_DNS.release();
+    }
+    
+    private static void startDispatcher() {
+        if (run && SEMAPHORE.tryAcquire()) {
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.start();
+        }
+    }
+    
     public static void interrupt() {
         run = false;
-        int count = MAX;
-        while (count > 0) {
+        ProbeSMTP.interruptAll();
+        try {
+            SEMAPHORE.acquire();
+        } catch (InterruptedException ex) {
+            Server.logError(ex);
+        }
+        EXECUTOR.shutdown();
+    }
+    
+    /**
+     * Tarefa com uma parte da fila de uma análise, que libera
+     * sua vaga no executor ao terminar.
+     */
+    private static class Batch implements Runnable {
+        
+        private final Analise analise;
+        private final List<String> tokenList;
+        
+        private Batch(Analise analise, List<String> tokenList) {
+            this.analise = analise;
+            this.tokenList = tokenList;
+            analise.startTask();
+        }
+        
+        @Override
+        public void run() {
+            int count = 0;
             try {
-                SEMAPHORE.acquire();
-                count--;
-            } catch (InterruptedException ex) {
+                for (String token : tokenList) {
+                    if (run) {
+                        analise.process(token);
+                        count++;
+                    }
+                }
+            } catch (Exception ex) {
                 Server.logError(ex);
+            } finally {
+                analise.finishTask(count);
+                SEMAPHORE_TASK.release();
             }
         }
     }
 
-    private static class Process extends Thread {
-        private Process() {
+    /**
+     * Alimenta o pool continuamente, alternando entre as análises,
+     * com uma nova tarefa a cada vaga liberada, de modo que uma
+     * sonda lenta ocupa somente a própria thread.
+     */
+    private static class Dispatcher extends Thread {
+        private Dispatcher() {
             super("ANALISEPS");
             super.setPriority(MIN_PRIORITY);
             Server.logTrace(getName() + " thread allocation.");
@@ -1784,13 +2004,42 @@ public class Analise implements Serializable, Comparable<Analise> {
         @Override
         public void run() {
             try {
-                Analise analise;
-                while (run && (analise = getNextWait()) != null) {
-                    analise.process();
+                HashMap<Analise,Integer> countMap = new HashMap<Analise,Integer>();
+                boolean dispatched = true;
+                while (run && dispatched) {
+                    dispatched = false;
+                    for (Analise analise : getAnaliseSet()) {
+                        SEMAPHORE_TASK.acquire();
+                        ArrayList<String> tokenList = analise.pollBatch(THRESHOLD);
+                        if (!run || tokenList.isEmpty()) {
+                            SEMAPHORE_TASK.release();
+                        } else {
+                            try {
+                                EXECUTOR.execute(new Batch(analise, tokenList));
+                            } catch (RejectedExecutionException ex) {
+                                analise.finishTask(0);
+                                SEMAPHORE_TASK.release();
+                                throw ex;
+                            }
+                            Integer count = countMap.get(analise);
+                            countMap.put(analise, (count == null ? 0 : count) + tokenList.size());
+                            dispatched = true;
+                        }
+                    }
+                }
+                for (Analise analise : countMap.keySet()) {
+                    Server.logTrace("analise '" + analise.getName() + "' dispatched "
+                            + countMap.get(analise) + " tokens; "
+                            + analise.getProgress() + ".");
                 }
+            } catch (Exception ex) {
+                Server.logError(ex);
             } finally {
                 SEMAPHORE.release();
                 Server.logTrace(getName() + " thread released.");
+                if (run && getWaitTotal() > 0) {
+                    startDispatcher();
+                }
             }
         }
     }
@@ -1802,13 +2051,14 @@ public class Analise implements Serializable, Comparable<Analise> {
                 long time = System.currentTimeMillis();
                 TreeSet<Analise> set = getAnaliseCloneSet();
                 File file = new File("./data/analise.set");
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(set, outputStream);
+                    SerializationUtils.serialize(set, storeFile.getOutputStream());
+                    storeFile.commit();
                     // Atualiza flag de atualização.
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
                 Server.logStore(time, file);
             } catch (Exception ex) {
@@ -1819,11 +2069,12 @@ public class Analise implements Serializable, Comparable<Analise> {
                 long time = System.currentTimeMillis();
                 TreeMap<String,Short[]> map = getClusterMap();
                 File file = new File("./data/cluster.map");
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    SerializationUtils.serialize(map, storeFile.getOutputStream());
+                    storeFile.commit();
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
                 Server.logStore(time, file);
             } catch (Exception ex) {
@@ -1835,15 +2086,9 @@ public class Analise implements Serializable, Comparable<Analise> {
     public static void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/analise.set");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                TreeSet<Analise> set;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    set = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                TreeSet<Analise> set = StoreFile.deserialize(file);
                 for (Analise analise : set) {
                     try {
                         if (analise.semaphoreSet == null) {
@@ -1863,15 +2108,10 @@ public class Analise implements Serializable, Comparable<Analise> {
         }
         time = System.currentTimeMillis();
         file = new File("./data/cluster.map");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
                 TreeMap<String,Short[]> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    map = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                map = StoreFile.deserialize(file);
                 for (String token : map.keySet()) {
                     Short[] value = map.get(token);
                     if (token.contains("#") || token.contains(".H.")) {
@@ -1879,22 +2119,22 @@ public class Analise implements Serializable, Comparable<Analise> {
                         if (Domain.isHostname(hostname)) {
                             if (!Provider.containsDomain(hostname)) {
                                 if (!Ignore.containsHost(hostname)) {
-                                    clusterMap.put(token, value);
+                                    putCluster(token, value);
                                 }
                             }
                         }
                     } else if (Owner.isOwnerCPF(token.substring(1))) {
                         String ownerID = Owner.normalizeID(token.substring(1));
-                        clusterMap.put(ownerID, value);
+                        putCluster(ownerID, value);
                     } else if (Owner.isOwnerID(token)) {
                         String ownerID = Owner.normalizeID(token);
-                        clusterMap.put(ownerID, value);
+                        putCluster(ownerID, value);
                     } else if (Subnet.isValidCIDR(token)) {
-                        clusterMap.put(token, value);
+                        putCluster(token, value);
                     } else if (Domain.isHostname(token)) {
                         String hostname = Domain.normalizeHostname(token, true);
                         if (Domain.isOfficialTLD(hostname) && !hostname.endsWith(".br")) {
-                            clusterMap.put(hostname, value);
+                            putCluster(hostname, value);
                         }
                     }
                 }
@@ -0,0 +1,350 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Date;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Arquivo binário de cache com esquema versionado.
+ *
+ * Substitui a serialização Java nos caches em disco. Cada classe escreve
+ * e lê os próprios campos, na ordem definida pela versão do esquema,
+ * de modo que nenhuma classe arbitrária é instanciada no carregamento
+ * e a alteração interna de uma classe não invalida o arquivo gravado.
+ *
+ * <h2>Formato</h2>
+ * O arquivo começa pelo número mágico, o nome do esquema e a versão.
+ * Cada registro é precedido por um byte de continuação e o arquivo
+ * termina com um byte de fim seguido do CRC32 de todo o conteúdo anterior.
+ * Inteiros de tamanho e contagem são gravados em formato variável
+ * e textos em UTF-8, com o tamanho acrescido de um para que o zero
+ * represente o valor nulo.
+ *
+ * Os registros lidos só devem ser incluídos no cache depois que
+ * {@link Reader#verify()} confirmar o CRC32 do arquivo.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class BinaryFile {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Número mágico "SPFB" que identifica o formato.
+     */
+    private static final int MAGIC = 0x53504642;
+
+    private static final int RECORD = 1;
+    private static final int END = 0;
+
+    private BinaryFile() {
+    }
+
+    /**
+     * Gravação sequencial de um arquivo binário de cache.
+     */
+    public static final class Writer implements Closeable {
+
+        private final StoreFile store;
+        private final CRC32 crc = new CRC32();
+        private final DataOutputStream outputStream;
+
+        /**
+         * Inicia a gravação atômica do arquivo e grava o cabeçalho.
+         * @param file o arquivo a ser gravado.
+         * @param schema o nome do esquema dos registros.
+         * @param version a versão do esquema dos registros.
+         * @throws IOException se houver falha na gravação.
+         */
+        public Writer(File file, String schema, int version) throws IOException {
+            this.store = new StoreFile(file);
+            this.outputStream = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new CheckedOutputStream(
+                                    store.getOutputStream(), crc
+                            ), 65536
+                    )
+            );
+            outputStream.writeInt(MAGIC);
+            writeString(schema);
+            writeInt(version);
+        }
+
+        /**
+         * Inicia a gravação de um novo registro.
+         * @throws IOException se houver falha na gravação.
+         */
+        public void next() throws IOException {
+            outputStream.writeByte(RECORD);
+        }
+
+        public void writeBoolean(boolean value) throws IOException {
+            outputStream.writeBoolean(value);
+        }
+
+        /**
+         * Grava um inteiro não negativo em formato variável.
+         * @param value o valor não negativo.
+         * @throws IOException se houver falha na gravação.
+         */
+        public void writeInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                outputStream.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            outputStream.writeByte(value);
+        }
+
+        public void writeLong(long value) throws IOException {
+            outputStream.writeLong(value);
+        }
+
+        public void writeString(String value) throws IOException {
+            if (value == null) {
+                outputStream.writeByte(0);
+            } else {
+                byte[] data = value.getBytes(UTF8);
+                writeInt(data.length + 1);
+                outputStream.write(data);
+            }
+        }
+
+        public void writeBytes(byte[] value) throws IOException {
+            if (value == null) {
+                outputStream.writeByte(0);
+            } else {
+                writeInt(value.length + 1);
+                outputStream.write(value);
+            }
+        }
+
+        public void writeDate(Date value) throws IOException {
+            if (value == null) {
+                outputStream.writeBoolean(false);
+            } else {
+                outputStream.writeBoolean(true);
+                outputStream.writeLong(value.getTime());
+            }
+        }
+
+        public void writeStrings(Collection<String> collection) throws IOException {
+            if (collection == null) {
+                writeInt(0);
+            } else {
+                writeInt(collection.size() + 1);
+                for (String value : collection) {
+                    writeString(value);
+                }
+            }
+        }
+
+        /**
+         * Grava o fim do arquivo com o CRC32 e substitui atomicamente
+         * o arquivo anterior. Um arquivo fechado sem este fim é descartado.
+         * @throws IOException se houver falha na gravação.
+         */
+        public void finish() throws IOException {
+            outputStream.writeByte(END);
+            outputStream.flush();
+            // O CRC32 não faz parte do próprio cálculo.
+            int value = (int) crc.getValue();
+            DataOutputStream trailerStream = new DataOutputStream(
+                    store.getOutputStream()
+            );
+            trailerStream.writeInt(value);
+            store.commit();
+        }
+
+        @Override
+        public void close() {
+            store.close();
+        }
+    }
+
+    /**
+     * Leitura sequencial de um arquivo binário de cache.
+     */
+    public static final class Reader implements Closeable {
+
+        private final FileChannel channel;
+        private final CRC32 crc = new CRC32();
+        private final DataInputStream inputStream;
+        private final int version;
+        private boolean finished = false;
+
+        /**
+         * Abre o arquivo e verifica o cabeçalho.
+         * @param file o arquivo a ser lido.
+         * @param schema o nome esperado do esquema dos registros.
+         * @param maxVersion a versão mais recente do esquema conhecida.
+         * @throws IOException se o arquivo não corresponder ao esquema.
+         */
+        public Reader(File file, String schema, int maxVersion) throws IOException {
+            this.channel = new FileInputStream(file).getChannel();
+            // O CRC32 é calculado acima do buffer para considerar
+            // apenas os bytes efetivamente lidos.
+            this.inputStream = new DataInputStream(
+                    new CheckedInputStream(
+                            new BufferedInputStream(
+                                    Channels.newInputStream(channel), 65536
+                            ), crc
+                    )
+            );
+            try {
+                if (inputStream.readInt() != MAGIC) {
+                    throw new IOException("invalid binary file " + file.getName());
+                } else if (!schema.equals(readString())) {
+                    throw new IOException("invalid schema in " + file.getName());
+                } else if ((version = readInt()) < 1 || version > maxVersion) {
+                    throw new IOException("unsupported version " + version + " in " + file.getName());
+                }
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * @return a versão do esquema usada na gravação do arquivo.
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * Verifica se há um próximo registro.
+         * @return verdadeiro se há um próximo registro a ser lido.
+         * @throws IOException se houver falha na leitura.
+         */
+        public boolean next() throws IOException {
+            if (finished) {
+                return false;
+            } else {
+                int marker = inputStream.readUnsignedByte();
+                if (marker == RECORD) {
+                    return true;
+                } else if (marker == END) {
+                    finished = true;
+                    return false;
+                } else {
+                    throw new IOException("invalid record marker " + marker);
+                }
+            }
+        }
+
+        public boolean readBoolean() throws IOException {
+            return inputStream.readBoolean();
+        }
+
+        public int readInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int data = inputStream.readUnsignedByte();
+                value |= (data & 0x7F) << shift;
+                if ((data & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("invalid variable integer");
+        }
+
+        public long readLong() throws IOException {
+            return inputStream.readLong();
+        }
+
+        public String readString() throws IOException {
+            int length = readInt() - 1;
+            if (length < 0) {
+                return null;
+            } else {
+                byte[] data = new byte[length];
+                inputStream.readFully(data);
+                return new String(data, UTF8);
+            }
+        }
+
+        public byte[] readBytes() throws IOException {
+            int length = readInt() - 1;
+            if (length < 0) {
+                return null;
+            } else {
+                byte[] data = new byte[length];
+                inputStream.readFully(data);
+                return data;
+            }
+        }
+
+        public Date readDate() throws IOException {
+            if (inputStream.readBoolean()) {
+                return new Date(inputStream.readLong());
+            } else {
+                return null;
+            }
+        }
+
+        /**
+         * Lê uma coleção de textos gravada por {@link Writer#writeStrings}.
+         * @param collection a coleção onde os textos serão incluídos.
+         * @return falso se a coleção gravada era nula.
+         * @throws IOException se houver falha na leitura.
+         */
+        public boolean readStrings(Collection<String> collection) throws IOException {
+            int size = readInt() - 1;
+            for (int index = 0; index < size; index++) {
+                collection.add(readString());
+            }
+            return size >= 0;
+        }
+
+        /**
+         * Verifica o fim do arquivo e o CRC32 após o último registro.
+         * @throws IOException se o arquivo estiver incompleto ou corrompido.
+         */
+        public void verify() throws IOException {
+            if (!finished) {
+                throw new EOFException("binary file verified before end");
+            } else {
+                int expected = (int) crc.getValue();
+                // O CRC32 não faz parte do próprio cálculo.
+                if (inputStream.readInt() != expected) {
+                    throw new IOException("binary file checksum mismatch");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import net.spfbl.data.Block;
+import net.spfbl.data.Generic;
+import net.spfbl.data.Ignore;
+import net.spfbl.data.NoReply;
+import net.spfbl.data.Provider;
+import net.spfbl.data.Trap;
+import net.spfbl.data.White;
+import net.spfbl.dns.QueryDNS;
+import net.spfbl.spf.SPF;
+import net.spfbl.whois.AutonomousSystem;
+import net.spfbl.whois.Domain;
+import net.spfbl.whois.Handle;
+import net.spfbl.whois.NameServer;
+import net.spfbl.whois.Owner;
+import net.spfbl.whois.SubnetIPv4;
+import net.spfbl.whois.SubnetIPv6;
+
+/**
+ * Carregamento paralelo do cache em disco na inicialização.
+ *
+ * Os arquivos independentes são carregados simultaneamente por um número
+ * limitado de threads. As listas de política, necessárias para responder
+ * as consultas, são carregadas primeiro e sinalizadas separadamente,
+ * para que as portas de consulta sejam abertas enquanto os caches
+ * de DNS e WHOIS ainda estão sendo carregados.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class CacheLoader {
+
+    /**
+     * Quantidade máxima de carregamentos simultâneos.
+     */
+    private static final int MAX = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Carregamento de um arquivo de cache.
+     */
+    private static abstract class Load implements Runnable {
+
+        private final String name;
+        private final Load[] dependencies;
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private Load(String name, Load... dependencies) {
+            this.name = name;
+            this.dependencies = dependencies;
+        }
+
+        protected abstract void load();
+
+        @Override
+        public void run() {
+            try {
+                for (Load dependency : dependencies) {
+                    dependency.await();
+                }
+                long time = System.currentTimeMillis();
+                try {
+                    load();
+                } catch (Exception ex) {
+                    Server.logError(ex);
+                }
+                Server.log(time, Core.Level.INFO, "LOADC", name, "READY");
+            } catch (InterruptedException ex) {
+                Server.logError(ex);
+            } finally {
+                latch.countDown();
+            }
+        }
+
+        private void await() throws InterruptedException {
+            latch.await();
+        }
+    }
+
+    /**
+     * Carregamentos das listas de política.
+     */
+    private static final ArrayList<Load> LISTS = new ArrayList<Load>();
+
+    /**
+     * Todos os carregamentos.
+     */
+    private static final ArrayList<Load> ALL = new ArrayList<Load>();
+
+    private static long START = 0;
+
+    private CacheLoader() {
+    }
+
+    /**
+     * Inicia o carregamento paralelo do cache em disco.
+     */
+    public static synchronized void start() {
+        if (START == 0) {
+            START = System.currentTimeMillis();
+            // Os TLDs são usados na normalização dos elementos das listas.
+            Load tld = new Load("tld") {
+                @Override
+                protected void load() {
+                    Domain.loadTLD();
+                }
+            };
+            ALL.add(tld);
+            LISTS.add(new Load("client", tld) {
+                @Override
+                protected void load() {
+                    Client.load();
+                }
+            });
+            LISTS.add(new Load("user", tld) {
+                @Override
+                protected void load() {
+                    User.load();
+                }
+            });
+            LISTS.add(new Load("peer", tld) {
+                @Override
+                protected void load() {
+                    Peer.load();
+                }
+            });
+            LISTS.add(new Load("noreply", tld) {
+                @Override
+                protected void load() {
+                    NoReply.load();
+                }
+            });
+            Load provider = new Load("provider", tld) {
+                @Override
+                protected void load() {
+                    Provider.load();
+                }
+            };
+            LISTS.add(provider);
+            Load ignore = new Load("ignore", tld) {
+                @Override
+                protected void load() {
+                    Ignore.load();
+                }
+            };
+            LISTS.add(ignore);
+            LISTS.add(new Load("generic", tld) {
+                @Override
+                protected void load() {
+                    Generic.load();
+                }
+            });
+            LISTS.add(new Load("block", tld) {
+                @Override
+                protected void load() {
+                    Block.load();
+                }
+            });
+            LISTS.add(new Load("white", tld) {
+                @Override
+                protected void load() {
+                    White.load();
+                }
+            });
+            LISTS.add(new Load("trap", tld) {
+                @Override
+                protected void load() {
+                    Trap.load();
+                }
+            });
+            LISTS.add(new Load("defer", tld) {
+                @Override
+                protected void load() {
+                    Defer.load();
+                }
+            });
+            LISTS.add(new Load("zone", tld) {
+                @Override
+                protected void load() {
+                    QueryDNS.load();
+                }
+            });
+            ALL.addAll(LISTS);
+            // Caches de DNS e WHOIS, dos maiores para os menores.
+            ALL.add(new Load("spf", tld) {
+                @Override
+                protected void load() {
+                    SPF.load();
+                }
+            });
+            ALL.add(new Load("reverse", tld) {
+                @Override
+                protected void load() {
+                    Reverse.load();
+                }
+            });
+            ALL.add(new Load("domain", tld) {
+                @Override
+                protected void load() {
+                    Domain.load();
+                }
+            });
+            ALL.add(new Load("subnet4", tld) {
+                @Override
+                protected void load() {
+                    SubnetIPv4.load();
+                }
+            });
+            ALL.add(new Load("subnet6", tld) {
+                @Override
+                protected void load() {
+                    SubnetIPv6.load();
+                }
+            });
+            ALL.add(new Load("owner", tld) {
+                @Override
+                protected void load() {
+                    Owner.load();
+                }
+            });
+            ALL.add(new Load("as", tld) {
+                @Override
+                protected void load() {
+                    AutonomousSystem.load();
+                }
+            });
+            ALL.add(new Load("handle", tld) {
+                @Override
+                protected void load() {
+                    Handle.load();
+                }
+            });
+            ALL.add(new Load("ns", tld) {
+                @Override
+                protected void load() {
+                    NameServer.load();
+                }
+            });
+            // A análise consulta as listas de provedores e de ignorados.
+            ALL.add(new Load("analise", tld, provider, ignore) {
+                @Override
+                protected void load() {
+                    Analise.load();
+                }
+            });
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    MAX, MAX, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "LOADCACH");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }
+            );
+            executor.allowCoreThreadTimeOut(true);
+            // As dependências sempre estão à frente na fila.
+            for (Load load : ALL) {
+                executor.execute(load);
+            }
+            executor.shutdown();
+        }
+    }
+
+    private static synchronized ArrayList<Load> getList(boolean all) {
+        return all ? ALL : LISTS;
+    }
+
+    /**
+     * Aguarda o carregamento das listas de política.
+     * @throws InterruptedException se a espera for interrompida.
+     */
+    public static void awaitLists() throws InterruptedException {
+        for (Load load : getList(false)) {
+            load.await();
+        }
+    }
+
+    /**
+     * Aguarda o carregamento de todo o cache.
+     * @throws InterruptedException se a espera for interrompida.
+     */
+    public static void awaitAll() throws InterruptedException {
+        for (Load load : getList(true)) {
+            load.await();
+        }
+    }
+
+    /**
+     * @return verdadeiro se o carregamento foi iniciado e todo o cache já foi carregado.
+     */
+    public static synchronized boolean isLoaded() {
+        if (START == 0) {
+            return false;
+        } else {
+            for (Load load : ALL) {
+                if (load.latch.getCount() > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Carrega todo o cache e aguarda a conclusão.
+     */
+    public static void load() {
+        start();
+        try {
+            awaitAll();
+            Server.log(START, Core.Level.INFO, "LOADC", "cache", "READY");
+        } catch (InterruptedException ex) {
+            Server.logError(ex);
+        }
+    }
+}
@@ -17,8 +17,7 @@
 package net.spfbl.core;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
@@ -32,7 +31,6 @@ import net.spfbl.whois.Domain;
 import net.spfbl.whois.Subnet;
 import net.spfbl.whois.SubnetIPv4;
 import net.spfbl.whois.SubnetIPv6;
-import org.apache.commons.lang3.SerializationUtils;
 
 /**
  * Representa um bloco cliente do serviço.
@@ -87,6 +85,70 @@ public class Client implements Serializable, Comparable<Client> {
         this.actionGRACE = other.actionGRACE;
     }
     
+    /**
+     * Lê um cliente de um arquivo binário de cache.
+     * @param reader o leitor posicionado no registro.
+     * @throws IOException se houver falha na leitura.
+     */
+    private Client(BinaryFile.Reader reader) throws IOException {
+        this.cidr = reader.readString();
+        this.domain = reader.readString();
+        this.email = reader.readString();
+        this.permission = valueOf(Permission.class, reader.readString());
+        this.personality = valueOf(Personality.class, reader.readString());
+        this.administrator = reader.readBoolean();
+        this.limit = reader.readInt();
+        if (reader.readBoolean()) {
+            this.frequency = new NormalDistribution(reader);
+        }
+        this.last = reader.readLong();
+        this.actionBLOCK = valueOf(Action.class, reader.readString());
+        this.actionRED = valueOf(Action.class, reader.readString());
+        this.actionYELLOW = valueOf(Action.class, reader.readString());
+        this.actionGRACE = valueOf(Action.class, reader.readString());
+    }
+    
+    /**
+     * Grava o cliente em um arquivo binário de cache.
+     * @param writer o escritor do arquivo.
+     * @throws IOException se houver falha na gravação.
+     */
+    private void write(BinaryFile.Writer writer) throws IOException {
+        writer.writeString(cidr);
+        writer.writeString(domain);
+        writer.writeString(email);
+        writer.writeString(permission == null ? null : permission.name());
+        writer.writeString(personality == null ? null : personality.name());
+        writer.writeBoolean(administrator);
+        writer.writeInt(limit);
+        writer.writeBoolean(frequency != null);
+        if (frequency != null) {
+            frequency.write(writer);
+        }
+        writer.writeLong(last);
+        writer.writeString(actionBLOCK == null ? null : actionBLOCK.name());
+        writer.writeString(actionRED == null ? null : actionRED.name());
+        writer.writeString(actionYELLOW == null ? null : actionYELLOW.name());
+        writer.writeString(actionGRACE == null ? null : actionGRACE.name());
+    }
+    
+    /**
+     * @return a constante do nome gravado ou nulo se
+     * o nome for nulo ou não existir mais, para que
+     * o carregamento aplique o valor padrão.
+     */
+    private static <E extends Enum<E>> E valueOf(Class<E> type, String name) {
+        if (name == null) {
+            return null;
+        } else {
+            try {
+                return Enum.valueOf(type, name);
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+    }
+    
     private Client(String cidr, String domain, String email) throws ProcessException {
         if (Subnet.isValidCIDR(cidr) && (domain == null || Domain.isHostname(domain))) {
             this.cidr = Subnet.normalizeCIDR(cidr);
@@ -845,10 +907,15 @@ public class Client implements Serializable, Comparable<Client> {
         return map;
     }
     
+    /**
+     * Versão do esquema do cache binário.
+     */
+    private static final int VERSION = 1;
+    
     public static void store() {
         if (CHANGED) {
             try {
-//                Server.logTrace("storing client.map");
+//                Server.logTrace("storing client.bin");
                 long time = System.currentTimeMillis();
                 HashMap<String,Client> map = getCloneMap();
                 for (String key : map.keySet()) {
@@ -858,15 +925,22 @@ public class Client implements Serializable, Comparable<Client> {
                         value.permission = Permission.ALL;
                     }
                 }
-                File file = new File("./data/client.map");
-                FileOutputStream outputStream = new FileOutputStream(file);
+                File file = new File("./data/client.bin");
+                BinaryFile.Writer writer = new BinaryFile.Writer(file, "client", VERSION);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    for (String key : map.keySet()) {
+                        writer.next();
+                        writer.writeString(key);
+                        map.get(key).write(writer);
+                    }
+                    writer.finish();
                     // Atualiza flag de atualização.
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    writer.close();
                 }
+                // Conclui a migração do formato antigo.
+                new File("./data/client.map").delete();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -876,16 +950,43 @@ public class Client implements Serializable, Comparable<Client> {
     
     public static synchronized void load() {
         long time = System.currentTimeMillis();
-        File file = new File("./data/client.map");
-        if (file.exists()) {
-            try {
-                HashMap<String,Object> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
+        File file = new File("./data/client.bin");
+        File legacy = new File("./data/client.map");
+        HashMap<String,Object> map = null;
+        if (StoreFile.exists(file)) {
+            // Recorre à geração anterior se a atual estiver danificada.
+            for (File generation : StoreFile.getGenerations(file)) {
                 try {
-                    map = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
+                    HashMap<String,Object> clientMap = new HashMap<String,Object>();
+                    BinaryFile.Reader reader = new BinaryFile.Reader(generation, "client", VERSION);
+                    try {
+                        while (reader.next()) {
+                            String key = reader.readString();
+                            clientMap.put(key, new Client(reader));
+                        }
+                        reader.verify();
+                    } finally {
+                        reader.close();
+                    }
+                    map = clientMap;
+                    file = generation;
+                    break;
+                } catch (Exception ex) {
+                    Server.logError(ex);
                 }
+            }
+        } else if (StoreFile.exists(legacy)) {
+            try {
+                map = StoreFile.deserialize(legacy);
+                file = legacy;
+                // Força a gravação no formato binário.
+                CHANGED = true;
+            } catch (Exception ex) {
+                Server.logError(ex);
+            }
+        }
+        if (map != null) {
+            try {
                 for (String key : map.keySet()) {
                     Object value = map.get(key);
                     if (value instanceof Client) {
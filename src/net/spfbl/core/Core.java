@@ -80,6 +80,7 @@ import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import net.spfbl.data.Block;
 import net.spfbl.dns.QueryDNS;
+import net.spfbl.dns.ZoneExport;
 import net.spfbl.http.ServerHTTP;
 import net.spfbl.spf.SPF;
 import net.spfbl.whois.Domain;
@@ -134,6 +135,17 @@ public class Core {
         }
     }
     
+    public static String sendCommandToPeer(
+            String command,
+            Peer peer
+            ) {
+        if (peerUDP == null) {
+            return "DISABLED";
+        } else {
+            return peerUDP.send(command, peer);
+        }
+    }
+    
     public static boolean hasPeerConnection() {
         if (peerUDP == null) {
             return false;
@@ -150,6 +162,22 @@ public class Core {
         }
     }
     
+    public static String getPeerStatus() {
+        if (peerUDP == null) {
+            return "NOT LISTENING\n";
+        } else {
+            return peerUDP.getStatus();
+        }
+    }
+    
+    public static String getDNSBLStatus() {
+        if (queryDNSBL == null) {
+            return "NOT LISTENING\n";
+        } else {
+            return queryDNSBL.getStatus();
+        }
+    }
+    
     private static ServerHTTP complainHTTP = null;
     
     public static final Huffman HUFFMAN = Huffman.load();
@@ -651,6 +679,9 @@ public class Core {
                     Core.setRecaptchaKeySite(properties.getProperty("recaptcha_key_site"));
                     Core.setRecaptchaKeySecret(properties.getProperty("recaptcha_key_secret"));
                     Core.setCacheTimeStore(properties.getProperty("cache_time_store"));
+                    Core.setRefreshBudget(properties.getProperty("refresh_budget"));
+                    Reverse.setLimit(properties.getProperty("reverse_limit"));
+                    ZoneExport.setFolder(properties.getProperty("rbldnsd_folder"));
                     Core.setHostnameMySQL(properties.getProperty("mysql_hostname"));
                     Core.setPortMySQL(properties.getProperty("mysql_port"));
                     Core.setSchemaMySQL(properties.getProperty("mysql_schema"));
@@ -1866,7 +1897,9 @@ public class Core {
             } else {
                 loadConfiguration();
                 Server.logInfo("starting server...");
-                Server.loadCache();
+                // As portas de consulta só dependem das listas de política.
+                CacheLoader.start();
+                CacheLoader.awaitLists();
                 try {
                     administrationTCP = new AdministrationTCP(PORT_ADMIN);
                     administrationTCP.start();
@@ -1874,13 +1907,6 @@ public class Core {
                     Server.logError("system could not start because TCP port " + PORT_ADMIN + " is already in use.");
                     System.exit(1);
                 }
-                if (PORT_WHOIS > 0) {
-                    try {
-                        new QueryTCP(PORT_WHOIS).start();
-                    } catch (BindException ex) {
-                        Server.logError("WHOIS socket was not binded because TCP port " + PORT_WHOIS + " is already in use.");
-                    }
-                }
                 if (PORT_SPFBL > 0) {
                     try {
                         querySPF = new QuerySPF(PORT_SPFBL);
@@ -1926,6 +1952,16 @@ public class Core {
                         }
                     }
                 }
+                // O WHOIS e os processos periódicos dependem do cache completo.
+                CacheLoader.load();
+                if (PORT_WHOIS > 0) {
+                    try {
+                        new QueryTCP(PORT_WHOIS).start();
+                    } catch (BindException ex) {
+                        Server.logError("WHOIS socket was not binded because TCP port " + PORT_WHOIS + " is already in use.");
+                    }
+                }
+                Peer.refreshIndex();
                 Peer.sendHeloToAll();
                 Core.startTimer();
                 Analise.initProcess();
@@ -2068,6 +2104,7 @@ public class Core {
                 // Remoção de registros de reputação expirados. 
                 Peer.sendHeloToAll();
                 Peer.dropExpired();
+                Peer.refreshIndex();
             } catch (Exception ex) {
                 Server.logError(ex);
             }
@@ -2128,6 +2165,19 @@ public class Core {
         }
     }
     
+    private static class TimerSyncJournal extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+                // Grava fisicamente os diários das listas.
+                Journal.syncAll();
+            } catch (Exception ex) {
+                Server.logError(ex);
+            }
+        }
+    }
+    
     private static class TimerStoreCache extends TimerTask {
         @Override
         public void run() {
@@ -2141,6 +2191,19 @@ public class Core {
         }
     }
     
+    private static class TimerExportZone extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+                // Exporta as zonas para o rbldnsd se as listas mudaram.
+                ZoneExport.export(false);
+            } catch (Exception ex) {
+                Server.logError(ex);
+            }
+        }
+    }
+    
     private static class TimerDeleteLogExpired extends TimerTask {
         @Override
         public void run() {
@@ -2176,12 +2239,41 @@ public class Core {
         }
     }
     
+    /**
+     * Quantidade máxima de registros atualizados por ciclo de atualização.
+     */
+    private static int REFRESH_BUDGET = 4;
+    
+    public static void setRefreshBudget(String budget) {
+        if (budget != null && budget.length() > 0) {
+            try {
+                setRefreshBudget(Integer.parseInt(budget));
+            } catch (Exception ex) {
+                Server.logError("invalid refresh budget '" + budget + "'.");
+            }
+        }
+    }
+    
+    public static synchronized void setRefreshBudget(int budget) {
+        if (budget < 1 || budget > 1024) {
+            Server.logError("invalid refresh budget '" + budget + "'.");
+        } else {
+            Core.REFRESH_BUDGET = budget;
+        }
+    }
+    
+    public static int getRefreshBudget() {
+        return REFRESH_BUDGET;
+    }
+    
     public static void startTimer() {
         TIMER.schedule(new TimerInterruptTimeout(), 10000, 10000); // Frequência de 10 segundos.
+        TIMER.schedule(new TimerSyncJournal(), 10000, 10000); // Frequência de 10 segundos.
         TIMER.schedule(new TimerRefreshSPF(), 30000, 60000); // Frequência de 1 minuto.
         TIMER.schedule(new TimerRefreshHELO(), 60000, 60000); // Frequência de 1 minuto.
         TIMER.schedule(new TimerRefreshReverse(), 60000, 60000); // Frequência de 1 minuto.
         TIMER.schedule(new TimerRefreshWHOIS(), 600000, 600000); // Frequência de 10 minutos.
+        TIMER.schedule(new TimerExportZone(), 300000, 300000); // Frequência de 5 minutos.
         TIMER.schedule(new TimerSendHoldingWarningMessages(), 300000, 600000); // Frequência de 10 minutos.
         TIMER.schedule(new TimerDropExpiredPeer(), 900000, 1800000); // Frequência de 30 minutos.
         TIMER.schedule(new TimerDropExpiredSPF(), 600000, 3600000); // Frequência de 1 hora.
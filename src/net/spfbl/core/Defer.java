@@ -18,8 +18,6 @@
 package net.spfbl.core;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.HashMap;
@@ -260,12 +258,13 @@ public class Defer implements Serializable, Comparable<Defer> {
                 long time = System.currentTimeMillis();
                 File file = new File("./data/defer.map");
                 HashMap<String,Defer> map = getMap();
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    SerializationUtils.serialize(map, storeFile.getOutputStream());
+                    storeFile.commit();
                     setStored();
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
                 Server.logStore(time, file);
             } catch (Exception ex) {
@@ -277,15 +276,9 @@ public class Defer implements Serializable, Comparable<Defer> {
     public static void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/defer.map");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                HashMap<String,Object> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    map = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                HashMap<String,Object> map = StoreFile.deserialize(file);
                 for (String key : map.keySet()) {
                     Object value = map.get(key);
                     if (value instanceof Long) {
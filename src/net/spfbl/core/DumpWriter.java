@@ -0,0 +1,197 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.StringTokenizer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Escritor de listagens em fluxo contínuo.
+ *
+ * Os registros são escritos diretamente no fluxo de saída
+ * à medida que a estrutura é percorrida, sem a montagem
+ * de uma cópia da coleção em memória, com filtro opcional
+ * por prefixo e compressão GZIP opcional.
+ *
+ * Nenhuma trava deve ser mantida durante a escrita, pois o destino
+ * costuma ser uma conexão que pode estar lenta. A estrutura percorrida
+ * deve ser uma cópia publicada que nunca é alterada ou um conjunto
+ * concorrente, obtidos sob a trava quando houver.
+ *
+ * O percurso de um conjunto concorrente é fracamente consistente:
+ * um registro incluído ou removido durante a escrita pode aparecer
+ * ou não, e a listagem não corresponde a um único instante da lista.
+ * A ordem também não é garantida, pois os conjuntos com hash são
+ * percorridos na ordem interna. Quem compara listagens deve
+ * ordená-las antes.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class DumpWriter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Tamanho do buffer de escrita.
+     */
+    private static final int BUFFER_SIZE = 65536;
+
+    private final OutputStream outputStream;
+    private final GZIPOutputStream gzipStream;
+    private final String filter;
+    private int count = 0;
+
+    /**
+     * Cria um escritor de listagem.
+     * @param outputStream o fluxo de saída do destino.
+     * @param filter o prefixo que os registros devem ter ou nulo para todos.
+     * @param gzip se a saída deve ser comprimida em GZIP.
+     * @throws IOException se houver falha na abertura do fluxo.
+     */
+    public DumpWriter(
+            OutputStream outputStream,
+            String filter,
+            boolean gzip
+    ) throws IOException {
+        OutputStream bufferedStream = new BufferedOutputStream(outputStream, BUFFER_SIZE);
+        if (gzip) {
+            this.gzipStream = new GZIPOutputStream(bufferedStream, BUFFER_SIZE);
+            this.outputStream = gzipStream;
+        } else {
+            this.gzipStream = null;
+            this.outputStream = bufferedStream;
+        }
+        if (filter == null || filter.length() == 0) {
+            this.filter = null;
+        } else {
+            this.filter = filter;
+        }
+    }
+
+    /**
+     * Cria um escritor a partir dos parâmetros restantes de um comando.
+     *
+     * O parâmetro GZIP ativa a compressão e o parâmetro
+     * seguinte, se houver, é considerado o prefixo de filtro.
+     *
+     * @param outputStream o fluxo de saída do destino.
+     * @param token o primeiro parâmetro já lido ou nulo se não houver.
+     * @param tokenizer os parâmetros restantes do comando.
+     * @return o novo escritor de listagem ou nulo se os parâmetros forem inválidos.
+     * @throws IOException se houver falha na abertura do fluxo.
+     */
+    public static DumpWriter newInstance(
+            OutputStream outputStream,
+            String token,
+            StringTokenizer tokenizer
+    ) throws IOException {
+        boolean gzip = false;
+        String filter = null;
+        while (token != null) {
+            if (token.equals("GZIP") && !gzip && filter == null) {
+                gzip = true;
+            } else if (filter == null) {
+                filter = token;
+            } else {
+                return null;
+            }
+            token = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
+        }
+        return new DumpWriter(outputStream, filter, gzip);
+    }
+
+    /**
+     * @return verdadeiro se a saída está comprimida em GZIP.
+     */
+    public boolean isGZIP() {
+        return gzipStream != null;
+    }
+
+    /**
+     * Escreve um registro completo.
+     * @param token o registro.
+     * @return verdadeiro se o registro passou pelo filtro e foi escrito.
+     * @throws IOException se houver falha na escrita.
+     */
+    public boolean write(String token) throws IOException {
+        if (token == null) {
+            return false;
+        } else if (filter == null || token.startsWith(filter)) {
+            outputStream.write(token.getBytes(UTF8));
+            outputStream.write('\n');
+            count++;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Escreve um registro no formato cliente:tipovalor,
+     * ou tipovalor quando o cliente é nulo, sem concatenação
+     * quando não há filtro.
+     * @param client o cliente dono do registro ou nulo se global.
+     * @param type o prefixo do tipo, como "CIDR=".
+     * @param value o valor do registro.
+     * @return verdadeiro se o registro passou pelo filtro e foi escrito.
+     * @throws IOException se houver falha na escrita.
+     */
+    public boolean write(String client, String type, String value) throws IOException {
+        if (value == null) {
+            return false;
+        } else if (filter != null) {
+            if (client == null) {
+                return write(type + value);
+            } else {
+                return write(client + ':' + type + value);
+            }
+        } else {
+            if (client != null) {
+                outputStream.write(client.getBytes(UTF8));
+                outputStream.write(':');
+            }
+            outputStream.write(type.getBytes(UTF8));
+            outputStream.write(value.getBytes(UTF8));
+            outputStream.write('\n');
+            count++;
+            return true;
+        }
+    }
+
+    /**
+     * @return a quantidade de registros escritos.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Descarrega o buffer e finaliza a compressão, se houver,
+     * sem fechar o fluxo de destino.
+     * @throws IOException se houver falha na escrita.
+     */
+    public void finish() throws IOException {
+        if (gzipStream != null) {
+            gzipStream.finish();
+        }
+        outputStream.flush();
+    }
+}
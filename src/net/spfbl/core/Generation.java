@@ -0,0 +1,52 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contador de geração das listas de política.
+ *
+ * É incrementado a cada alteração que pode mudar uma resposta já
+ * calculada, como a inclusão ou remoção de elementos nas listas,
+ * a alteração das zonas DNS ou a mudança de status de uma distribuição.
+ * Os caches de respostas guardam a geração do cálculo e descartam
+ * as respostas de gerações anteriores sem precisar percorrê-las.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Generation {
+
+    private static final AtomicLong VALUE = new AtomicLong(0);
+
+    private Generation() {
+    }
+
+    /**
+     * @return a geração atual das listas.
+     */
+    public static long get() {
+        return VALUE.get();
+    }
+
+    /**
+     * Invalida as respostas calculadas nas gerações anteriores.
+     */
+    public static void increment() {
+        VALUE.incrementAndGet();
+    }
+}
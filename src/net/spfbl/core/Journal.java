@@ -0,0 +1,422 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Diário de alterações de uma lista persistida em disco.
+ *
+ * Cada inclusão ou remoção de elemento é acrescentada ao final do arquivo
+ * de diário como um registro de uma linha, de modo que o armazenamento
+ * periódico não precisa reescrever a lista inteira. A lista completa só é
+ * gravada na compactação, quando o diário fica grande ou antigo demais,
+ * e o carregamento aplica o diário sobre a última lista completa gravada.
+ *
+ * <h2>Compactação</h2>
+ * A compactação começa por {@link #rotate()}, que move o diário atual para
+ * o arquivo de diário anterior. Em seguida a lista completa é copiada e
+ * gravada, e {@link #commit()} guarda o diário anterior como cópia de
+ * segurança, no lugar da cópia da compactação precedente. Os registros são
+ * idempotentes, então uma alteração presente tanto na lista gravada
+ * quanto no novo diário é aplicada novamente sem efeito no carregamento.
+ * Se a gravação falhar, o diário anterior é preservado e incorporado
+ * na próxima compactação.
+ *
+ * A cópia de segurança contém as alterações entre a geração anterior
+ * da lista e a atual. Quando o carregamento recorre à geração anterior
+ * porque a atual está danificada, a cópia é aplicada antes dos demais
+ * diários para que essas alterações não se percam.
+ *
+ * <h2>Ordem e durabilidade</h2>
+ * As listas registram cada alteração sob a trava do próprio diário,
+ * junto com a alteração em memória, para que alterações concorrentes
+ * do mesmo elemento sejam gravadas na ordem em que foram aplicadas.
+ *
+ * Cada registro é entregue ao sistema operacional numa única escrita,
+ * de modo que a queda do processo não perde registros. A gravação
+ * física é forçada por {@link #syncAll()} a cada dez segundos, então
+ * uma queda do sistema operacional ou de energia perde no máximo os
+ * registros desse intervalo.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Journal {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Quantidade de registros que força a compactação.
+     */
+    private static final int MAX_RECORDS = 65536;
+
+    /**
+     * Tempo máximo entre compactações de uma lista alterada.
+     */
+    private static final long MAX_AGE = Server.DAY_TIME;
+
+    private static final char ADD = '+';
+    private static final char PUT = '=';
+    private static final char DROP = '-';
+    private static final char CLEAR = '*';
+
+    /**
+     * Diários criados, para a gravação física periódica.
+     */
+    private static final ArrayList<Journal> JOURNAL_LIST = new ArrayList<Journal>();
+
+    private final File file;
+    private final File previous;
+    private final File backup;
+    private FileOutputStream outputStream = null;
+    private int count = 0;
+    private long snapshot = System.currentTimeMillis();
+    private boolean replaying = false;
+    private boolean broken = false;
+    private boolean dirty = false;
+
+    /**
+     * Cria o diário de uma lista.
+     * @param name o nome da lista, usado no nome do arquivo de diário.
+     */
+    public Journal(String name) {
+        this.file = new File("./data/" + name + ".journal");
+        this.previous = new File("./data/" + name + ".journal.old");
+        this.backup = new File("./data/" + name + ".journal.bak");
+        synchronized (JOURNAL_LIST) {
+            JOURNAL_LIST.add(this);
+        }
+    }
+
+    /**
+     * Aplicação dos registros do diário no carregamento.
+     *
+     * Os métodos que a lista não utiliza podem ser mantidos vazios.
+     */
+    public static abstract class Replay {
+
+        public void add(String token) throws ProcessException {
+        }
+
+        public void put(String token, String value) throws ProcessException {
+        }
+
+        public void drop(String token) throws ProcessException {
+        }
+
+        public void clear() {
+        }
+    }
+
+    /**
+     * Registra a inclusão de um elemento.
+     * @param token o elemento incluído.
+     */
+    public synchronized void add(String token) {
+        append(ADD, token, null);
+    }
+
+    /**
+     * Registra a inclusão ou alteração de um elemento com valor.
+     * @param token o elemento incluído ou alterado.
+     * @param value o novo valor do elemento.
+     */
+    public synchronized void put(String token, String value) {
+        append(PUT, token, value);
+    }
+
+    /**
+     * Registra a remoção de um elemento.
+     * @param token o elemento removido.
+     */
+    public synchronized void drop(String token) {
+        append(DROP, token, null);
+    }
+
+    /**
+     * Registra a remoção de todos os elementos.
+     */
+    public synchronized void clear() {
+        append(CLEAR, "", null);
+    }
+
+    private void append(char operation, String token, String value) {
+        if (!replaying) {
+            // A alteração pode mudar as respostas já calculadas.
+            Generation.increment();
+        }
+        if (replaying || token == null) {
+            // Registro aplicado a partir do próprio diário.
+        } else if (token.indexOf('\n') >= 0 || (value != null && value.indexOf('\n') >= 0)) {
+            // Registro não representável em uma linha.
+            broken = true;
+        } else {
+            StringBuilder builder = new StringBuilder(token.length() + 24);
+            builder.append(operation);
+            builder.append(token);
+            if (value != null) {
+                builder.append('\t');
+                builder.append(value);
+            }
+            builder.append('\n');
+            try {
+                if (outputStream == null) {
+                    outputStream = new FileOutputStream(file, true);
+                }
+                // Uma única escrita por registro.
+                outputStream.write(builder.toString().getBytes(UTF8));
+                dirty = true;
+                count++;
+            } catch (IOException ex) {
+                broken = true;
+                Server.logError(ex);
+            }
+        }
+    }
+
+    /**
+     * Registra uma alteração que não pode ser representada no diário,
+     * como a divisão ou a junção de blocos, forçando a gravação completa
+     * da lista no próximo armazenamento.
+     */
+    public synchronized void invalidate() {
+        if (!replaying) {
+            Generation.increment();
+            broken = true;
+        }
+    }
+
+    /**
+     * Verifica se a lista completa deve ser gravada.
+     * @param changed se a lista foi alterada desde a última gravação completa.
+     * @return verdadeiro se o diário está grande ou antigo demais
+     * ou se houve falha na escrita de algum registro.
+     */
+    public synchronized boolean isCompactable(boolean changed) {
+        if (broken) {
+            return true;
+        } else if (count >= MAX_RECORDS) {
+            return true;
+        } else if (changed) {
+            return System.currentTimeMillis() - snapshot > MAX_AGE;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * @return a quantidade de registros desde a última compactação.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Força a gravação física dos registros ainda não sincronizados.
+     */
+    public synchronized void sync() {
+        if (dirty && outputStream != null) {
+            try {
+                outputStream.getFD().sync();
+            } catch (IOException ex) {
+                broken = true;
+                Server.logError(ex);
+            }
+        }
+        dirty = false;
+    }
+
+    /**
+     * Força a gravação física de todos os diários.
+     */
+    public static void syncAll() {
+        Journal[] journalArray;
+        synchronized (JOURNAL_LIST) {
+            journalArray = JOURNAL_LIST.toArray(new Journal[JOURNAL_LIST.size()]);
+        }
+        for (Journal journal : journalArray) {
+            journal.sync();
+        }
+    }
+
+    private void close() {
+        sync();
+        if (outputStream != null) {
+            try {
+                outputStream.close();
+            } catch (IOException ex) {
+                Server.logError(ex);
+            } finally {
+                outputStream = null;
+            }
+        }
+    }
+
+    /**
+     * Inicia a compactação antes da cópia da lista completa.
+     */
+    public synchronized void rotate() {
+        close();
+        if (!file.exists()) {
+            // Nenhum registro novo.
+        } else if (!previous.exists()) {
+            if (!file.renameTo(previous)) {
+                Server.logError("cannot rotate journal " + file.getName());
+            }
+        } else {
+            // Compactação anterior não concluída.
+            try {
+                byte[] data = read(file);
+                FileOutputStream previousStream = new FileOutputStream(previous, true);
+                try {
+                    previousStream.write(data);
+                } finally {
+                    previousStream.close();
+                }
+                file.delete();
+            } catch (IOException ex) {
+                Server.logError(ex);
+            }
+        }
+        count = 0;
+        broken = false;
+    }
+
+    /**
+     * Conclui a compactação após a gravação da lista completa.
+     */
+    public synchronized void commit() {
+        if (backup.exists() && !backup.delete()) {
+            Server.logError("cannot delete journal " + backup.getName());
+        } else if (previous.exists() && !previous.renameTo(backup)) {
+            Server.logError("cannot keep journal " + previous.getName());
+            previous.delete();
+        }
+        snapshot = System.currentTimeMillis();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            int length;
+            while (offset < data.length && (length = inputStream.read(data, offset, data.length - offset)) > 0) {
+                offset += length;
+            }
+            if (offset < data.length) {
+                byte[] result = new byte[offset];
+                System.arraycopy(data, 0, result, 0, offset);
+                return result;
+            } else {
+                return data;
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private int apply(File file, Replay replay) throws IOException {
+        int records = 0;
+        if (file.exists()) {
+            long time = System.currentTimeMillis();
+            byte[] data = read(file);
+            int begin = 0;
+            int end;
+            while ((end = indexOf(data, begin)) >= 0) {
+                if (end > begin) {
+                    String line = new String(data, begin, end - begin, UTF8);
+                    char operation = line.charAt(0);
+                    String token = line.substring(1);
+                    try {
+                        if (operation == ADD) {
+                            replay.add(token);
+                        } else if (operation == PUT) {
+                            int index = token.indexOf('\t');
+                            if (index > 0) {
+                                replay.put(token.substring(0, index), token.substring(index + 1));
+                            }
+                        } else if (operation == DROP) {
+                            replay.drop(token);
+                        } else if (operation == CLEAR) {
+                            replay.clear();
+                        }
+                    } catch (ProcessException ex) {
+                        Server.logDebug("JOURNAL " + file.getName() + " " + line + " " + ex.getErrorMessage());
+                    }
+                    records++;
+                }
+                begin = end + 1;
+            }
+            if (begin < data.length) {
+                // Descarta o registro incompleto para que
+                // os próximos registros iniciem em nova linha.
+                RandomAccessFile randomFile = new RandomAccessFile(file, "rw");
+                try {
+                    randomFile.setLength(begin);
+                } finally {
+                    randomFile.close();
+                }
+            }
+            Server.logLoad(time, file);
+        }
+        return records;
+    }
+
+    private static int indexOf(byte[] data, int begin) {
+        for (int index = begin; index < data.length; index++) {
+            if (data[index] == '\n') {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Aplica o diário sobre a lista completa recém carregada.
+     * @param list o arquivo da lista carregada, usado para saber se o
+     * carregamento recorreu à geração anterior da lista.
+     * @param replay a aplicação de cada registro na lista.
+     * @return a quantidade de registros aplicados.
+     */
+    public synchronized int replay(File list, Replay replay) {
+        replaying = true;
+        try {
+            int records = 0;
+            if (StoreFile.isFallback(list)) {
+                // Alterações entre a geração anterior e a atual.
+                records += apply(backup, replay);
+            }
+            records += apply(previous, replay);
+            records += apply(file, replay);
+            count += records;
+            return records;
+        } catch (IOException ex) {
+            broken = true;
+            Server.logError(ex);
+            return 0;
+        } finally {
+            replaying = false;
+        }
+    }
+}
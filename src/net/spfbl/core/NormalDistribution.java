@@ -16,6 +16,7 @@
  */
 package net.spfbl.core;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -47,6 +48,26 @@ public class NormalDistribution implements Serializable {
         xi2Sum = 0.0f;
     }
     
+    /**
+     * Lê a distribuição de um arquivo binário de cache.
+     * @param reader o leitor posicionado na distribuição.
+     * @throws IOException se houver falha na leitura.
+     */
+    NormalDistribution(BinaryFile.Reader reader) throws IOException {
+        xiSum = Float.intBitsToFloat(reader.readInt());
+        xi2Sum = Float.intBitsToFloat(reader.readInt());
+    }
+    
+    /**
+     * Grava a distribuição em um arquivo binário de cache.
+     * @param writer o escritor do arquivo.
+     * @throws IOException se houver falha na gravação.
+     */
+    synchronized void write(BinaryFile.Writer writer) throws IOException {
+        writer.writeInt(Float.floatToIntBits(xiSum));
+        writer.writeInt(Float.floatToIntBits(xi2Sum));
+    }
+    
     public NormalDistribution replicate() {
         NormalDistribution clone = new NormalDistribution();
         clone.xiSum = this.xiSum;
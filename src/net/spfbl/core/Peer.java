@@ -19,12 +19,12 @@ package net.spfbl.core;
 import net.spfbl.data.Block;
 import net.spfbl.data.Ignore;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.NavigableMap;
 import java.util.Set;
@@ -57,6 +57,7 @@ public final class Peer implements Serializable, Comparable<Peer> {
     private NormalDistribution frequency = null;
     private long last = 0; // Último recebimento.
     private long create = System.currentTimeMillis(); // Data de criação.
+    private transient volatile InetSocketAddress socketAddress = null; // Endereço resolvido para envio.
     
     /**
      * Tabela de reputação do peer.
@@ -123,6 +124,10 @@ public final class Peer implements Serializable, Comparable<Peer> {
             throw new ProcessException("INVALID PORT");
         } else if (this.port != port) {
             this.port = (short) port;
+            InetSocketAddress resolved = this.socketAddress;
+            if (resolved != null) {
+                this.socketAddress = new InetSocketAddress(resolved.getAddress(), port);
+            }
             CHANGED = true;
             return true;
         } else {
@@ -184,7 +189,23 @@ public final class Peer implements Serializable, Comparable<Peer> {
     }
     
     public InetAddress getInetAddress() throws UnknownHostException {
-        return InetAddress.getByName(address);
+        return getSocketAddress().getAddress();
+    }
+    
+    /**
+     * Retorna o endereço de envio resolvido na última atualização
+     * do índice, resolvendo somente se ainda não houver.
+     * @return o endereço de envio do peer.
+     * @throws UnknownHostException se o endereço não puder ser resolvido.
+     */
+    public InetSocketAddress getSocketAddress() throws UnknownHostException {
+        InetSocketAddress resolved = socketAddress;
+        if (resolved == null) {
+            InetAddress inetAddress = InetAddress.getByName(address);
+            resolved = new InetSocketAddress(inetAddress, port);
+            socketAddress = resolved;
+        }
+        return resolved;
     }
     
     public String getIP() throws UnknownHostException {
@@ -423,6 +444,21 @@ public final class Peer implements Serializable, Comparable<Peer> {
      */
     private static final HashMap<String,Peer> MAP = new HashMap<String,Peer>();
     
+    /**
+     * Índice dos IPs resolvidos dos peers com busca de hash O(1).
+     */
+    private static HashMap<String,Peer> IP_MAP = new HashMap<String,Peer>();
+    
+    /**
+     * Momento da última atualização do índice de IPs.
+     */
+    private static long IP_TIME = 0;
+    
+    /**
+     * Tempo de validade do índice de IPs.
+     */
+    private static final long IP_TTL = 3600000;
+    
     /**
      * Flag que indica se o cache foi modificado.
      */
@@ -465,6 +501,7 @@ public final class Peer implements Serializable, Comparable<Peer> {
             Peer peer = new Peer(hostname, port);
             MAP.put(hostname, peer);
             CHANGED = true;
+            submitIndex();
             return peer;
         }
     }
@@ -556,9 +593,11 @@ public final class Peer implements Serializable, Comparable<Peer> {
         return peerSet;
     }
     
-    public static Peer drop(String address) {
+    public synchronized static Peer drop(String address) {
         Peer peer = MAP.remove(address);
         if (peer != null) {
+            // Remove todos os IPs associados ao par, não somente o primeiro.
+            IP_MAP.values().removeAll(Collections.singleton(peer));
             CHANGED = true;
         }
         return peer;
@@ -572,22 +611,86 @@ public final class Peer implements Serializable, Comparable<Peer> {
         }
     }
     
+    /**
+     * Identifica o peer de origem de um pacote pelo índice de IPs,
+     * sem consulta DNS. O índice vencido é atualizado em segundo plano.
+     * @param inetAddress o IP de origem do pacote.
+     * @return o peer do IP ou nulo se o IP não pertence a nenhum peer.
+     */
     public static Peer get(InetAddress inetAddress) {
         String ip = inetAddress.getHostAddress();
         ip = Subnet.normalizeIP(ip);
+        return getIndexed(ip);
+    }
+    
+    private synchronized static Peer getIndexed(String ip) {
+        if (System.currentTimeMillis() - IP_TIME > IP_TTL) {
+            submitIndex();
+        }
+        return IP_MAP.get(ip);
+    }
+    
+    /**
+     * Inclui no índice um IP confirmado do peer pelo HELO,
+     * sem aguardar a próxima atualização do índice.
+     * @param inetAddress o IP confirmado do peer.
+     * @param peer o peer do IP.
+     */
+    public synchronized static void index(InetAddress inetAddress, Peer peer) {
+        if (inetAddress != null && peer != null && MAP.get(peer.address) == peer) {
+            String ip = Subnet.normalizeIP(inetAddress.getHostAddress());
+            IP_MAP.put(ip, peer);
+            if (peer.socketAddress == null) {
+                peer.socketAddress = new InetSocketAddress(inetAddress, peer.port);
+            }
+        }
+    }
+    
+    private static void submitIndex() {
+        Revalidator.submit("PEER INDEX", new Runnable() {
+            @Override
+            public void run() {
+                refreshIndex();
+            }
+        });
+    }
+    
+    /**
+     * Resolve os endereços de todos os peers e substitui o índice de IPs
+     * e os endereços de envio. Os IPs de um peer que não pode ser
+     * resolvido são mantidos até a próxima atualização.
+     */
+    public static void refreshIndex() {
+        HashMap<String,Peer> previousMap = getIndexMap();
+        HashMap<String,Peer> indexMap = new HashMap<String,Peer>();
         for (Peer peer : getSet()) {
-//            try {
-//                if (ip.equals(peer.getIP())) {
-//                    return peer;
-//                }
-//            } catch (UnknownHostException ex) {
-//                Server.logDebug("peer '" + peer.getAddress() + "' has unknown host.");
-//            }
-            if (SPF.matchHELO(ip, peer.getAddress())) {
-                return peer;
+            try {
+                InetAddress[] addressArray = InetAddress.getAllByName(peer.address);
+                for (InetAddress inetAddress : addressArray) {
+                    String ip = Subnet.normalizeIP(inetAddress.getHostAddress());
+                    indexMap.put(ip, peer);
+                }
+                peer.socketAddress = new InetSocketAddress(addressArray[0], peer.port);
+            } catch (UnknownHostException ex) {
+                for (String ip : previousMap.keySet()) {
+                    if (previousMap.get(ip) == peer) {
+                        indexMap.put(ip, peer);
+                    }
+                }
             }
         }
-        return null;
+        setIndexMap(indexMap);
+    }
+    
+    private synchronized static HashMap<String,Peer> getIndexMap() {
+        return new HashMap<String,Peer>(IP_MAP);
+    }
+    
+    private synchronized static void setIndexMap(HashMap<String,Peer> indexMap) {
+        // Descarta os peers removidos durante a resolução.
+        indexMap.values().retainAll(MAP.values());
+        IP_MAP = indexMap;
+        IP_TIME = System.currentTimeMillis();
     }
     
     public static HashMap<String,Peer> getMap() {
@@ -620,9 +723,7 @@ public final class Peer implements Serializable, Comparable<Peer> {
         if (Core.hasPeerConnection()) {
             long time = System.currentTimeMillis();
             String origin = null;
-            String address = getAddress();
-            int port = getPort();
-            String result = Core.sendCommandToPeer(token, address, port);
+            String result = Core.sendCommandToPeer(token, this);
             Server.logPeerSend(time, origin, token, result);
         }
     }
@@ -634,9 +735,7 @@ public final class Peer implements Serializable, Comparable<Peer> {
             String result = "SENT";
             try {
                 for (Peer peer : getSendSet()) {
-                    String address = peer.getAddress();
-                    int port = peer.getPort();
-                    Core.sendCommandToPeer(token, address, port);
+                    Core.sendCommandToPeer(token, peer);
                 }
             } catch (Exception ex) {
                 result = ex.getMessage();
@@ -652,9 +751,7 @@ public final class Peer implements Serializable, Comparable<Peer> {
             String result = "SENT";
             try {
                 for (Peer peer : getSendAllSet()) {
-                    String address = peer.getAddress();
-                    int port = peer.getPort();
-                    Core.sendCommandToPeer(token, address, port);
+                    Core.sendCommandToPeer(token, peer);
                 }
             } catch (Exception ex) {
                 result = ex.getMessage();
@@ -672,9 +769,7 @@ public final class Peer implements Serializable, Comparable<Peer> {
                 String command = "BLOCK " + token;
                 try {
                     for (Peer peer : getSendAllSet()) {
-                        String address = peer.getAddress();
-                        int port = peer.getPort();
-                        Core.sendCommandToPeer(command, address, port);
+                        Core.sendCommandToPeer(command, peer);
                     }
                 } catch (Exception ex) {
                     result = ex.getMessage();
@@ -713,9 +808,7 @@ public final class Peer implements Serializable, Comparable<Peer> {
 //                    }
                     try {
                         for (Peer peer : getReputationSet()) {
-                            String address = peer.getAddress();
-                            int port = peer.getPort();
-                            Core.sendCommandToPeer(command, address, port);
+                            Core.sendCommandToPeer(command, peer);
                         }
                     } catch (Exception ex) {
                         result = ex.getMessage();
@@ -735,9 +828,7 @@ public final class Peer implements Serializable, Comparable<Peer> {
             String email = Core.getAdminEmail();
             String helo = "HELO " + connection + (email == null ? "" : " " + email);
             long time = System.currentTimeMillis();
-            String address = getAddress();
-            int port = getPort();
-            String result = Core.sendCommandToPeer(helo, address, port);
+            String result = Core.sendCommandToPeer(helo, this);
             Server.log(time, Core.Level.DEBUG, "PEERP", origin, helo, result);
             return true;
         }
@@ -753,9 +844,7 @@ public final class Peer implements Serializable, Comparable<Peer> {
             String helo = "HELO " + connection + (email == null ? "" : " " + email);
             try {
                 for (Peer peer : getSendAllSet()) {
-                    String address = peer.getAddress();
-                    int port = peer.getPort();
-                    Core.sendCommandToPeer(helo, address, port);
+                    Core.sendCommandToPeer(helo, peer);
                 }
             } catch (Exception ex) {
                 result = ex.getMessage();
@@ -771,9 +860,7 @@ public final class Peer implements Serializable, Comparable<Peer> {
             String result = "SENT";
             try {
                 for (Peer peer : getRepassSet()) {
-                    String address = peer.getAddress();
-                    int port = peer.getPort();
-                    Core.sendCommandToPeer(token, address, port);
+                    Core.sendCommandToPeer(token, peer);
                 }
             } catch (Exception ex) {
                 result = ex.getMessage();
@@ -823,9 +910,7 @@ public final class Peer implements Serializable, Comparable<Peer> {
             String result = "SENT";
             try {
                 for (Peer mirror : getMirrorSet()) {
-                    String address = mirror.getAddress();
-                    int port = mirror.getPort();
-                    Core.sendCommandToPeer(command, address, port);
+                    Core.sendCommandToPeer(command, mirror);
                 }
             } catch (Exception ex) {
                 result = ex.getMessage();
@@ -938,13 +1023,14 @@ public final class Peer implements Serializable, Comparable<Peer> {
                 long time = System.currentTimeMillis();
                 HashMap<String,Peer> map = getMap();
                 File file = new File("./data/peer.map");
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    SerializationUtils.serialize(map, storeFile.getOutputStream());
+                    storeFile.commit();
                     // Atualiza flag de atualização.
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
                 Server.logStore(time, file);
             } catch (Exception ex) {
@@ -956,15 +1042,9 @@ public final class Peer implements Serializable, Comparable<Peer> {
     public static synchronized void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/peer.map");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                HashMap<Object,Object> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    map = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                HashMap<Object,Object> map = StoreFile.deserialize(file);
                 for (Object key : map.keySet()) {
                     Object value = map.get(key);
                     if (key instanceof InetAddress) {
@@ -24,8 +24,6 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.LinkedList;
 import java.util.StringTokenizer;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 import net.spfbl.spf.SPF;
 import net.spfbl.whois.Domain;
 
@@ -86,71 +84,57 @@ public final class PeerUDP extends Server {
     private int CONNECTION_ID = 1;
     
     /**
-     * Representa uma conexão ativa.
-     * Serve para processar todas as requisições.
+     * Representa uma thread de recepção.
+     * Cada thread recebe diretamente do socket
+     * e processa o pacote sem passá-lo para outra thread.
      */
     private class Connection extends Thread {
         
         /**
-         * O poll de pacotes de consulta a serem processados.
+         * Pacote e buffer reutilizados na recepção.
          */
-        private DatagramPacket PACKET = null;
+        private final byte[] RECEIVE = new byte[1024];
+        private final DatagramPacket PACKET = new DatagramPacket(RECEIVE, RECEIVE.length);
         
-        private final Semaphore SEMAPHORE = new Semaphore(0);
+        private final ReceiveCounter COUNTER;
         
         private long time = 0;
+        private long begin = 0;
         
         public Connection() {
             super("P2PUDP" + Core.CENTENA_FORMAT.format(CONNECTION_ID++));
             // Toda connexão recebe prioridade mínima.
             setPriority(Thread.MIN_PRIORITY);
+            COUNTER = new ReceiveCounter(getName());
             Server.logTrace(getName() + " thread allocation.");
         }
         
         /**
-         * Processa um pacote de consulta.
-         * @param packet o pacote de consulta a ser processado.
+         * Aguarda o próximo pacote diretamente no socket.
+         * @return o pacote recebido ou nulo se o socket foi fechado.
          */
-        private void process(DatagramPacket packet, long time) {
-            this.PACKET = packet;
-            this.time = time;
-            SEMAPHORE.release();
-        }
-        
-        private boolean isTimeout() {
-            if (time == 0) {
-                return false;
-            } else {
-                int interval = (int) (System.currentTimeMillis() - time) / 1000;
-                return interval > 20;
-            }
-        }
-        
-        /**
-         * Fecha esta conexão liberando a thread.
-         */
-        private void close() {
-            Server.logDebug("closing " + getName() + "...");
-            PACKET = null;
-            SEMAPHORE.release();
-        }
-        
         public DatagramPacket getPacket() {
-            if (PeerUDP.this.continueListenning()) {
+            while (PeerUDP.this.continueListenning()) {
                 try {
-                    SEMAPHORE.acquire();
+                    PACKET.setData(RECEIVE);
+                    SERVER_SOCKET.receive(PACKET);
+                    time = System.currentTimeMillis();
+                    begin = System.nanoTime();
                     return PACKET;
-                } catch (InterruptedException ex) {
+                } catch (SocketException ex) {
+                    // Conexão fechada externamente pelo método close().
                     return null;
+                } catch (IOException ex) {
+                    Server.logError(ex);
                 }
-            } else {
-                return null;
             }
+            return null;
         }
         
         public void clearPacket() {
+            COUNTER.add(System.nanoTime() - begin);
             time = 0;
-            PACKET = null;
+            begin = 0;
         }
         
         /**
@@ -167,7 +151,8 @@ public final class PeerUDP extends Server {
                     String type;
                     InetAddress ipAddress = packet.getAddress();
                     byte[] data = packet.getData();
-                    String token = new String(data, "ISO-8859-1").trim();
+                    int length = packet.getLength();
+                    String token = new String(data, 0, length, "ISO-8859-1").trim();
                     if (token.startsWith("HELO ")) {
                         address = ipAddress.getHostAddress();
                         try {
@@ -194,6 +179,10 @@ public final class PeerUDP extends Server {
                                 String port = connection.substring(index + 1);
                                 if (hasAddress(hostname, ipAddress)) {
                                     Peer peer = Peer.get(ipAddress);
+                                    if (peer == null) {
+                                        // IP ainda não indexado do peer.
+                                        peer = Peer.get(hostname);
+                                    }
                                     if (peer == null) {
                                         peer = Peer.create(hostname, port);
                                         if (peer == null) {
@@ -214,6 +203,8 @@ public final class PeerUDP extends Server {
                                         peer.addNotification();
                                         result = "UPDATED";
                                     }
+                                    // O IP foi confirmado pela resolução do HELO.
+                                    Peer.index(ipAddress, peer);
                                 } else {
                                     result = "NOT MATCH";
                                 }
@@ -289,12 +280,9 @@ public final class PeerUDP extends Server {
                     Server.logError(ex);
                 } finally {
                     clearPacket();
-                    // Oferece a conexão ociosa na última posição da lista.
-                    offer(this);
-                    CONNECION_SEMAPHORE.release();
                 }
             }
-            CONNECTION_COUNT--;
+            Server.logTrace(getName() + " thread closed.");
         }
     }
     
@@ -325,20 +313,33 @@ public final class PeerUDP extends Server {
     }
     
     /**
-     * Pool de conexões ativas.
-     */
-    private final LinkedList<Connection> CONNECTION_POLL = new LinkedList<Connection>();
-    private final LinkedList<Connection> CONNECTION_USE = new LinkedList<Connection>();
-    
-    /**
-     * Semáforo que controla o pool de conexões.
+     * Envia um pacote em UDP para um peer pelo endereço já resolvido.
+     * @param token o comando que deve ser enviado.
+     * @param peer o peer de destino.
+     * @return o endereço do peer ou o motivo da falha no envio.
      */
-    private final Semaphore CONNECION_SEMAPHORE = new Semaphore(0);
+    public String send(String token, Peer peer) {
+        try {
+            byte[] sendData = token.getBytes("ISO-8859-1");
+            if (sendData.length > SIZE) {
+                return "TOO BIG";
+            } else {
+                DatagramPacket sendPacket = new DatagramPacket(
+                        sendData, sendData.length, peer.getSocketAddress());
+                SERVER_SOCKET.send(sendPacket);
+                return peer.getAddress();
+            }
+        } catch (UnknownHostException ex) {
+            return "UNKNOWN";
+        } catch (IOException ex) {
+            return "UNREACHABLE";
+        }
+    }
     
     /**
-     * Quantidade total de conexões intanciadas.
+     * Threads de recepção ativas.
      */
-    private int CONNECTION_COUNT = 0;
+    private final LinkedList<Connection> CONNECTION_LIST = new LinkedList<Connection>();
     
     private static byte CONNECTION_LIMIT = 16;
     
@@ -360,95 +361,46 @@ public final class PeerUDP extends Server {
         }
     }
     
-    private synchronized Connection poll() {
-        return CONNECTION_POLL.poll();
-    }
-    
-    private synchronized void use(Connection connection) {
-        CONNECTION_USE.offer(connection);
-    }
-    
-    private synchronized void offer(Connection connection) {
-        CONNECTION_USE.remove(connection);
-        CONNECTION_POLL.offer(connection);
-    }
-    
     /**
-     * Coleta uma conexão ociosa ou inicia uma nova.
-     * @return uma conexão ociosa ou nova se não houver ociosa.
+     * @return a situação de cada thread de recepção e da fila do kernel.
      */
-    private Connection pollConnection() {
-        try {
-            if (CONNECION_SEMAPHORE.tryAcquire(1, TimeUnit.SECONDS)) {
-                Connection connection = poll();
-                if (connection == null) {
-                    CONNECION_SEMAPHORE.release();
-                } else {
-                    use(connection);
-                }
-                return connection;
-//            } else if (Core.hasLowMemory()) {
-//                return null;
-            } else if (CONNECTION_COUNT < CONNECTION_LIMIT) {
-                // Cria uma nova conexão se não houver conecxões ociosas.
-                // O servidor aumenta a capacidade conforme a demanda.
-                Server.logDebug("creating P2PUDP" + Core.CENTENA_FORMAT.format(CONNECTION_ID) + "...");
-                Connection connection = new Connection();
-                connection.start();
-                use(connection);
-                CONNECTION_COUNT++;
-                return connection;
-            } else {
-                CONNECION_SEMAPHORE.acquire();
-                return CONNECTION_POLL.poll();
-            }
-        } catch (Exception ex) {
-            Server.logError(ex);
-            return null;
+    public synchronized String getStatus() {
+        StringBuilder builder = new StringBuilder();
+        for (Connection connection : CONNECTION_LIST) {
+            builder.append(connection.COUNTER.getStatus());
+            builder.append('\n');
+        }
+        String kernel = ReceiveCounter.getSocketStatus(PORT);
+        if (kernel != null) {
+            builder.append(kernel);
+            builder.append('\n');
         }
+        return builder.toString();
+    }
+    
+    private synchronized LinkedList<Connection> getConnections() {
+        return new LinkedList<Connection>(CONNECTION_LIST);
     }
     
     /**
      * Inicialização do serviço.
+     * Inicia as threads de recepção que compartilham o socket.
      */
     @Override
     public void run() {
         try {
             Server.logInfo("listening P2P port " + PORT + ".");
-            while (continueListenning()) {
-                try {
-                    byte[] receiveData = new byte[1024];
-                    DatagramPacket packet = new DatagramPacket(
-                            receiveData, receiveData.length);
-                    SERVER_SOCKET.receive(packet);
-                    if (continueListenning()) {
-                        long time = System.currentTimeMillis();
-                        Connection connection = pollConnection();
-                        if (connection == null) {
-                            Server.logQuery(
-                                    time,
-                                    "PEERB",
-                                    packet.getAddress(),
-                                    null,
-                                    "TOO MANY CONNECTIONS"
-                                    );
-                        } else {
-                            try {
-                                connection.process(packet, time);
-                            } catch (IllegalThreadStateException ex) {
-                                // Houve problema na liberação do processo.
-                                InetAddress ipAddress = packet.getAddress();
-                                String result = "ERROR: FATAL\n";
-                                Server.logError(ex);
-                                Server.logQueryP2PUDP(time, ipAddress, null, result);
-                                offer(connection);
-                            }
-                        }
-                    }
-                } catch (SocketException ex) {
-                    // Conexão fechada externamente pelo método close().
+            synchronized (this) {
+                while (CONNECTION_LIST.size() < CONNECTION_LIMIT) {
+                    Server.logDebug("creating P2PUDP" + Core.CENTENA_FORMAT.format(CONNECTION_ID) + "...");
+                    Connection connection = new Connection();
+                    connection.start();
+                    CONNECTION_LIST.offer(connection);
                 }
             }
+            for (Connection connection : getConnections()) {
+                connection.join();
+            }
         } catch (Exception ex) {
             Server.logError(ex);
         } finally {
@@ -462,19 +414,16 @@ public final class PeerUDP extends Server {
      */
     @Override
     protected void close() {
-        while (CONNECTION_COUNT > 0) {
+        Server.logDebug("unbinding P2P socket on port " + PORT + "...");
+        // O fechamento do socket libera as threads em recepção.
+        SERVER_SOCKET.close();
+        for (Connection connection : getConnections()) {
             try {
-                Connection connection = poll();
-                if (connection == null) {
-                    CONNECION_SEMAPHORE.tryAcquire(500, TimeUnit.MILLISECONDS);
-                } else {
-                    connection.close();
-                }
+                Server.logDebug("closing " + connection.getName() + "...");
+                connection.join(5000);
             } catch (Exception ex) {
                 Server.logError(ex);
             }
         }
-        Server.logDebug("unbinding P2P socket on port " + PORT + "...");
-        SERVER_SOCKET.close();
     }
 }
@@ -0,0 +1,629 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import net.spfbl.core.Analise.Status;
+import net.spfbl.whois.Domain;
+
+/**
+ * Sonda não bloqueante de banner SMTP.
+ *
+ * Mantém diversas conexões simultâneas num único seletor,
+ * lê apenas a saudação 220 do servidor remoto e extrai
+ * o hostname anunciado, respeitando um limite global de
+ * conexões e um limite por bloco /24 (ou /64 no IPv6).
+ *
+ * Os resultados ficam em cache para que a mesma porta
+ * não seja consultada repetidamente durante a varredura.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class ProbeSMTP extends Thread {
+
+    /**
+     * Limite global de sondas simultâneas.
+     */
+    private static final int GLOBAL_LIMIT = 512;
+
+    /**
+     * Limite de sondas simultâneas no mesmo bloco de rede.
+     */
+    private static final int BLOCK_LIMIT = 4;
+
+    /**
+     * Tempo máximo para o estabelecimento da conexão.
+     */
+    private static final int CONNECT_TIMEOUT = 3000;
+
+    /**
+     * Tolerância de espera de uma sonda na fila de concorrência.
+     */
+    private static final int QUEUE_TIMEOUT = 3000;
+
+    /**
+     * Tempo de cache para respostas com banner válido.
+     */
+    private static final long CACHE_TIME_BANNER = Server.HOUR_TIME;
+
+    /**
+     * Tempo de cache para as respostas de falha.
+     */
+    private static final long CACHE_TIME_FAIL = 10 * 60000;
+
+    /**
+     * Tamanho máximo lido da saudação do servidor.
+     */
+    private static final int BANNER_SIZE = 512;
+
+    private static final byte[] QUIT = {'Q', 'U', 'I', 'T', '\r', '\n'};
+
+    /**
+     * Representa uma sonda em andamento ou já concluída.
+     */
+    public static final class Probe {
+
+        private final String key;
+        private final String host;
+        private final int port;
+        private final int timeout;
+        private InetSocketAddress address = null;
+        private String block = null;
+        private SocketChannel channel = null;
+        private long deadline = 0;
+        private ByteBuffer buffer = null;
+        private boolean done = false;
+        private Object result = Status.ERROR;
+
+        private Probe(String key, String host, int port, int timeout) {
+            this.key = key;
+            this.host = host;
+            this.port = port;
+            this.timeout = timeout;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Aguarda a conclusão da sonda.
+         *
+         * A espera é limitada pelos prazos de conexão e de leitura
+         * somados à tolerância da fila. Se a sonda não terminar no prazo,
+         * é concluída como TIMEOUT e liberada para novas sondas.
+         * @return o hostname anunciado no banner, um
+         * Status em caso de falha ou nulo se o banner
+         * não contém um hostname válido.
+         * @throws InterruptedException se a espera for interrompida.
+         */
+        public Object get() throws InterruptedException {
+            long limit = System.currentTimeMillis()
+                    + CONNECT_TIMEOUT + timeout + QUEUE_TIMEOUT;
+            synchronized (this) {
+                long wait;
+                while (!done && (wait = limit - System.currentTimeMillis()) > 0) {
+                    wait(wait);
+                }
+                if (done) {
+                    return result;
+                }
+            }
+            expire(this);
+            return get();
+        }
+
+        private synchronized boolean finish(Object result) {
+            if (done) {
+                return false;
+            } else {
+                this.result = result;
+                this.done = true;
+                notifyAll();
+                return true;
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final Object result;
+        private final long expires;
+
+        private Entry(Object result, long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+
+        private boolean isExpired(long time) {
+            return time > expires;
+        }
+    }
+
+    /**
+     * Cache dos resultados por host e porta.
+     */
+    private static final HashMap<String,Entry> CACHE = new HashMap<String,Entry>();
+
+    /**
+     * Sondas em andamento por host e porta.
+     */
+    private static final HashMap<String,Probe> FLIGHT = new HashMap<String,Probe>();
+
+    /**
+     * Fila de sondas aguardando registro no seletor.
+     */
+    private static final LinkedList<Probe> PENDING = new LinkedList<Probe>();
+
+    private static long HIT_COUNT = 0;
+    private static long PROBE_COUNT = 0;
+
+    private static ProbeSMTP INSTANCE = null;
+
+    private static synchronized ProbeSMTP getInstance() throws IOException {
+        if (INSTANCE == null || !INSTANCE.isAlive()) {
+            INSTANCE = new ProbeSMTP();
+            INSTANCE.start();
+        }
+        return INSTANCE;
+    }
+
+    private static String getKey(String host, int port) {
+        return host + ':' + port;
+    }
+
+    private static synchronized Entry getCache(String key) {
+        Entry entry = CACHE.get(key);
+        if (entry == null) {
+            return null;
+        } else if (entry.isExpired(System.currentTimeMillis())) {
+            CACHE.remove(key);
+            return null;
+        } else {
+            HIT_COUNT++;
+            return entry;
+        }
+    }
+
+    private static synchronized Probe getFlight(String key, String host, int port, int timeout) {
+        Probe probe = FLIGHT.get(key);
+        if (probe == null) {
+            probe = new Probe(key, host, port, timeout);
+            FLIGHT.put(key, probe);
+            PROBE_COUNT++;
+            return probe;
+        } else {
+            HIT_COUNT++;
+            return probe;
+        }
+    }
+
+    private static synchronized void putResult(Probe probe, Object result) {
+        long time = System.currentTimeMillis();
+        if (result == Status.ERROR) {
+            // Falha local, como o seletor encerrado, não vai para o cache.
+        } else if (result instanceof Status) {
+            CACHE.put(probe.key, new Entry(result, time + CACHE_TIME_FAIL));
+        } else {
+            CACHE.put(probe.key, new Entry(result, time + CACHE_TIME_BANNER));
+        }
+        dropFlight(probe);
+    }
+
+    private static synchronized void dropFlight(Probe probe) {
+        if (FLIGHT.get(probe.key) == probe) {
+            FLIGHT.remove(probe.key);
+        }
+    }
+
+    /**
+     * Conclui sem cache a sonda que excedeu o prazo de espera,
+     * para que as próximas consultas iniciem uma nova sonda.
+     *
+     * A sonda sai da fila de registro e, se já estiver na lista
+     * de espera do seletor, é descartada por ele antes da conexão.
+     * Se já estiver conectando, o resultado posterior é ignorado.
+     */
+    private static void expire(Probe probe) {
+        dropFlight(probe);
+        probe.finish(Status.TIMEOUT);
+        synchronized (PENDING) {
+            PENDING.remove(probe);
+        }
+    }
+
+    /**
+     * Conclui a sonda e guarda o resultado somente
+     * se ela não tiver sido concluída antes.
+     */
+    private static void finish(Probe probe, Object result) {
+        if (probe.finish(result)) {
+            putResult(probe, result);
+        } else {
+            dropFlight(probe);
+        }
+    }
+
+    /**
+     * Agenda uma sonda de banner SMTP.
+     *
+     * Se houver resultado em cache, a sonda retornada já está concluída.
+     * Se a mesma porta já estiver sendo sondada, a sonda em andamento
+     * é compartilhada.
+     *
+     * @param host o IP ou hostname do servidor.
+     * @param port a porta SMTP.
+     * @param timeout tempo máximo de espera pelo banner em milisegundos.
+     * @return a sonda agendada.
+     */
+    public static Probe submit(String host, int port, int timeout) {
+        String key = getKey(host, port);
+        Entry entry = getCache(key);
+        if (entry == null) {
+            Probe probe = getFlight(key, host, port, timeout);
+            synchronized (probe) {
+                if (probe.address != null || probe.done) {
+                    return probe;
+                } else {
+                    probe.address = new InetSocketAddress(host, port);
+                }
+            }
+            if (probe.address.isUnresolved()) {
+                finish(probe, Status.TIMEOUT);
+            } else {
+                probe.block = getBlock(probe.address.getAddress());
+                try {
+                    ProbeSMTP instance = getInstance();
+                    synchronized (PENDING) {
+                        PENDING.offer(probe);
+                    }
+                    if (instance.run) {
+                        // O seletor ainda não esvaziou a fila de encerramento.
+                        instance.selector.wakeup();
+                    } else {
+                        boolean removed;
+                        synchronized (PENDING) {
+                            removed = PENDING.remove(probe);
+                        }
+                        if (removed) {
+                            finish(probe, Status.ERROR);
+                        }
+                    }
+                } catch (IOException ex) {
+                    Server.logError(ex);
+                    finish(probe, Status.ERROR);
+                }
+            }
+            return probe;
+        } else {
+            Probe probe = new Probe(key, host, port, timeout);
+            probe.finish(entry.result);
+            return probe;
+        }
+    }
+
+    /**
+     * Consulta o banner SMTP aguardando o resultado.
+     * @param host o IP ou hostname do servidor.
+     * @param port a porta SMTP.
+     * @param timeout tempo máximo de espera pelo banner em milisegundos.
+     * @return o hostname anunciado no banner, um Status em caso
+     * de falha ou nulo se o banner não contém um hostname válido.
+     */
+    public static Object getResponse(String host, int port, int timeout) {
+        try {
+            return submit(host, port, timeout).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return Status.ERROR;
+        }
+    }
+
+    /**
+     * Remove os resultados expirados do cache.
+     */
+    public static synchronized void dropExpired() {
+        long time = System.currentTimeMillis();
+        Iterator<Entry> iterator = CACHE.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(time)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public static synchronized String getStatistics() {
+        return "PROBE " + PROBE_COUNT + " HIT " + HIT_COUNT + " CACHE " + CACHE.size();
+    }
+
+    public static synchronized void interruptAll() {
+        if (INSTANCE != null) {
+            INSTANCE.run = false;
+            INSTANCE.selector.wakeup();
+        }
+    }
+
+    /**
+     * Identifica o bloco /24 do IPv4 ou /64 do IPv6.
+     */
+    private static String getBlock(InetAddress address) {
+        byte[] byteArray = address.getAddress();
+        int length = byteArray.length == 4 ? 3 : 8;
+        StringBuilder builder = new StringBuilder(length * 3);
+        for (int index = 0; index < length; index++) {
+            builder.append(Integer.toHexString(byteArray[index] & 0xFF));
+            builder.append('.');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Extrai o hostname da primeira linha do banner.
+     */
+    private static Object parseBanner(String line) {
+        if (line.length() < 4 || !line.startsWith("220")) {
+            return Status.UNAVAILABLE;
+        } else {
+            int beginIndex = 4;
+            int endIndex;
+            for (endIndex = beginIndex; endIndex < line.length(); endIndex++) {
+                char character = line.charAt(endIndex);
+                if (character == ' ' || character == '\r' || character == '\n') {
+                    break;
+                }
+            }
+            String helo = line.substring(beginIndex, endIndex);
+            if (helo.contains(".") && Domain.isHostname(helo)) {
+                return Domain.normalizeHostname(helo, true);
+            } else {
+                return null;
+            }
+        }
+    }
+
+    private final Selector selector;
+    private final HashMap<String,Integer> blockMap = new HashMap<String,Integer>();
+    private final LinkedList<Probe> waitList = new LinkedList<Probe>();
+    private int active = 0;
+    private volatile boolean run = true;
+
+    private ProbeSMTP() throws IOException {
+        super("PROBESMTP");
+        setDaemon(true);
+        setPriority(MIN_PRIORITY);
+        selector = Selector.open();
+        Server.logTrace(getName() + " thread allocation.");
+    }
+
+    private boolean acquireBlock(String block) {
+        Integer count = blockMap.get(block);
+        if (count == null) {
+            blockMap.put(block, 1);
+            return true;
+        } else if (count < BLOCK_LIMIT) {
+            blockMap.put(block, count + 1);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private void releaseBlock(String block) {
+        Integer count = blockMap.get(block);
+        if (count == null || count <= 1) {
+            blockMap.remove(block);
+        } else {
+            blockMap.put(block, count - 1);
+        }
+    }
+
+    /**
+     * Inicia as sondas pendentes dentro dos limites de concorrência.
+     */
+    private void startPending() {
+        synchronized (PENDING) {
+            waitList.addAll(PENDING);
+            PENDING.clear();
+        }
+        Iterator<Probe> iterator = waitList.iterator();
+        while (active < GLOBAL_LIMIT && iterator.hasNext()) {
+            Probe probe = iterator.next();
+            if (probe.isDone()) {
+                // Expirada enquanto aguardava o limite do bloco.
+                iterator.remove();
+            } else if (acquireBlock(probe.block)) {
+                iterator.remove();
+                active++;
+                try {
+                    probe.channel = SocketChannel.open();
+                    probe.channel.configureBlocking(false);
+                    probe.deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+                    if (probe.channel.connect(probe.address)) {
+                        probe.deadline = System.currentTimeMillis() + probe.timeout;
+                        probe.channel.register(selector, SelectionKey.OP_READ, probe);
+                    } else {
+                        probe.channel.register(selector, SelectionKey.OP_CONNECT, probe);
+                    }
+                } catch (ConnectException ex) {
+                    close(probe, Status.CLOSED);
+                } catch (IOException ex) {
+                    close(probe, Status.TIMEOUT);
+                }
+            }
+        }
+    }
+
+    private void close(Probe probe, Object result) {
+        try {
+            if (probe.channel != null) {
+                probe.channel.close();
+            }
+        } catch (IOException ex) {
+            // Fazer nada.
+        } finally {
+            probe.channel = null;
+            probe.buffer = null;
+            releaseBlock(probe.block);
+            active--;
+            finish(probe, result);
+        }
+    }
+
+    private void connect(SelectionKey key, Probe probe) {
+        try {
+            if (probe.channel.finishConnect()) {
+                probe.deadline = System.currentTimeMillis() + probe.timeout;
+                probe.buffer = ByteBuffer.allocate(BANNER_SIZE);
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (ConnectException ex) {
+            key.cancel();
+            close(probe, Status.CLOSED);
+        } catch (IOException ex) {
+            key.cancel();
+            close(probe, Status.TIMEOUT);
+        }
+    }
+
+    private void read(SelectionKey key, Probe probe) {
+        try {
+            if (probe.buffer == null) {
+                probe.buffer = ByteBuffer.allocate(BANNER_SIZE);
+            }
+            int count = probe.channel.read(probe.buffer);
+            int length = probe.buffer.position();
+            byte[] array = probe.buffer.array();
+            int end = -1;
+            for (int index = 0; index < length; index++) {
+                if (array[index] == '\n') {
+                    end = index;
+                    break;
+                }
+            }
+            if (end < 0 && length == BANNER_SIZE) {
+                end = length;
+            }
+            if (end >= 0) {
+                String line = new String(array, 0, end, "ISO-8859-1");
+                Object result = parseBanner(line);
+                try {
+                    probe.channel.write(ByteBuffer.wrap(QUIT));
+                } catch (IOException ex) {
+                    // Fazer nada.
+                }
+                key.cancel();
+                close(probe, result);
+            } else if (count < 0) {
+                key.cancel();
+                close(probe, Status.UNAVAILABLE);
+            }
+        } catch (IOException ex) {
+            key.cancel();
+            close(probe, Status.UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Encerra as sondas que ultrapassaram o prazo.
+     * @return o prazo mais próximo entre as sondas restantes.
+     */
+    private long expire() {
+        long time = System.currentTimeMillis();
+        long next = time + 1000;
+        for (SelectionKey key : selector.keys()) {
+            Probe probe = (Probe) key.attachment();
+            if (key.isValid() && probe != null) {
+                if (probe.deadline <= time) {
+                    key.cancel();
+                    if ((key.interestOps() & SelectionKey.OP_CONNECT) != 0) {
+                        close(probe, Status.TIMEOUT);
+                    } else {
+                        close(probe, Status.UNAVAILABLE);
+                    }
+                } else if (probe.deadline < next) {
+                    next = probe.deadline;
+                }
+            }
+        }
+        return next;
+    }
+
+    @Override
+    public void run() {
+        try {
+            long next = System.currentTimeMillis();
+            while (run) {
+                startPending();
+                long wait = next - System.currentTimeMillis();
+                selector.select(Math.max(10, wait));
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Probe probe = (Probe) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isConnectable()) {
+                        connect(key, probe);
+                    } else if (key.isReadable()) {
+                        read(key, probe);
+                    }
+                }
+                next = expire();
+            }
+        } catch (Exception ex) {
+            Server.logError(ex);
+        } finally {
+            // As sondas oferecidas depois daqui são recusadas em submit.
+            run = false;
+            for (SelectionKey key : selector.keys()) {
+                Probe probe = (Probe) key.attachment();
+                if (key.isValid() && probe != null) {
+                    close(probe, Status.ERROR);
+                }
+            }
+            synchronized (PENDING) {
+                waitList.addAll(PENDING);
+                PENDING.clear();
+            }
+            for (Probe probe : waitList) {
+                finish(probe, Status.ERROR);
+            }
+            waitList.clear();
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                // Fazer nada.
+            }
+            Server.logTrace(getName() + " thread closed.");
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.Locale;
+import java.util.StringTokenizer;
+
+/**
+ * Contadores de recepção de uma thread de socket UDP.
+ *
+ * Cada thread de recepção tem o seu próprio contador e é a única
+ * que o incrementa, de modo que não há disputa entre as threads.
+ * A taxa é calculada no intervalo desde a consulta anterior da situação.
+ *
+ * A fila e o descarte de pacotes no kernel são lidos da tabela
+ * de sockets UDP do Linux pela porta local do servidor.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class ReceiveCounter {
+
+    private final String name;
+
+    private volatile long packets = 0;
+    private volatile long busy = 0;
+
+    private long lastTime = System.nanoTime();
+    private long lastPackets = 0;
+    private long lastBusy = 0;
+
+    public ReceiveCounter(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Registra o processamento de um pacote pela própria thread de recepção.
+     * @param nanos o tempo de processamento em nanossegundos.
+     */
+    public void add(long nanos) {
+        packets++;
+        busy += nanos;
+    }
+
+    /**
+     * @return a situação da thread no intervalo desde a consulta anterior:
+     * pacotes recebidos, taxa por segundo e percentual de ocupação.
+     */
+    public synchronized String getStatus() {
+        long time = System.nanoTime();
+        long currentPackets = packets;
+        long currentBusy = busy;
+        long interval = Math.max(1, time - lastTime);
+        float rate = (currentPackets - lastPackets) * 1000000000.0f / interval;
+        float usage = (currentBusy - lastBusy) * 100.0f / interval;
+        lastTime = time;
+        lastPackets = currentPackets;
+        lastBusy = currentBusy;
+        return String.format(
+                Locale.US, "%s packets=%d rate=%.1f/s busy=%.1f%%",
+                name, currentPackets, rate, Math.min(100.0f, usage)
+        );
+    }
+
+    /**
+     * Lê a fila e o descarte de pacotes no kernel dos sockets UDP da porta.
+     * @param port a porta local do servidor.
+     * @return a situação dos sockets da porta ou nulo se não estiver disponível.
+     */
+    public static String getSocketStatus(int port) {
+        long queue = 0;
+        long drops = 0;
+        boolean found = false;
+        String local = String.format(":%04X", port);
+        for (String path : new String[]{"/proc/net/udp", "/proc/net/udp6"}) {
+            File file = new File(path);
+            if (file.canRead()) {
+                try {
+                    BufferedReader reader = new BufferedReader(new FileReader(file));
+                    try {
+                        String line = reader.readLine();
+                        while ((line = reader.readLine()) != null) {
+                            // sl local rem st tx:rx tr:when retrnsmt uid timeout inode ref pointer drops
+                            StringTokenizer tokenizer = new StringTokenizer(line, " ");
+                            if (tokenizer.countTokens() >= 13) {
+                                tokenizer.nextToken();
+                                String address = tokenizer.nextToken();
+                                if (address.endsWith(local)) {
+                                    tokenizer.nextToken();
+                                    tokenizer.nextToken();
+                                    String queues = tokenizer.nextToken();
+                                    int index = queues.indexOf(':');
+                                    queue += Long.parseLong(queues.substring(index + 1), 16);
+                                    for (int count = 0; count < 7; count++) {
+                                        tokenizer.nextToken();
+                                    }
+                                    drops += Long.parseLong(tokenizer.nextToken());
+                                    found = true;
+                                }
+                            }
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                } catch (Exception ex) {
+                    Server.logError(ex);
+                }
+            }
+        }
+        if (found) {
+            return "KERNEL queue=" + queue + "B drops=" + drops;
+        } else {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Fila de prioridade indexada dos registros que devem ser atualizados.
+ *
+ * A prioridade é a quantidade de consultas desde a última atualização,
+ * com desempate pela atualização mais antiga. Cada consulta reposiciona
+ * o registro em O(log n), de modo que o próximo registro a ser atualizado
+ * é obtido sem percorrer o cache inteiro.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class RefreshQueue<T> {
+
+    /**
+     * Heap binário onde a raiz é o registro de maior prioridade.
+     */
+    private final ArrayList<Node<T>> heap = new ArrayList<Node<T>>();
+
+    /**
+     * Índice da posição de cada registro no heap.
+     */
+    private final HashMap<T,Node<T>> index = new HashMap<T,Node<T>>();
+
+    private static final class Node<T> {
+
+        private final T item;
+        private int queries;
+        private long lastRefresh;
+        private int position;
+
+        private Node(T item) {
+            this.item = item;
+        }
+
+        private boolean isBefore(Node<T> other) {
+            if (this.queries == other.queries) {
+                return this.lastRefresh < other.lastRefresh;
+            } else {
+                return this.queries > other.queries;
+            }
+        }
+    }
+
+    /**
+     * Insere ou reposiciona um registro na fila.
+     * @param item o registro.
+     * @param queries a quantidade de consultas desde a última atualização.
+     * @param lastRefresh o momento da última atualização.
+     */
+    public synchronized void update(T item, int queries, long lastRefresh) {
+        if (item != null) {
+            Node<T> node = index.get(item);
+            if (node == null) {
+                node = new Node<T>(item);
+                node.queries = queries;
+                node.lastRefresh = lastRefresh;
+                node.position = heap.size();
+                heap.add(node);
+                index.put(item, node);
+                siftUp(node.position);
+            } else {
+                node.queries = queries;
+                node.lastRefresh = lastRefresh;
+                siftUp(node.position);
+                siftDown(node.position);
+            }
+        }
+    }
+
+    /**
+     * Remove um registro da fila.
+     * @param item o registro.
+     * @return verdadeiro se o registro estava na fila.
+     */
+    public synchronized boolean remove(T item) {
+        Node<T> node = item == null ? null : index.remove(item);
+        if (node == null) {
+            return false;
+        } else {
+            removeAt(node.position);
+            return true;
+        }
+    }
+
+    /**
+     * Retira da fila o registro de maior prioridade.
+     * @return o registro de maior prioridade ou nulo se a fila estiver vazia.
+     */
+    public synchronized T poll() {
+        if (heap.isEmpty()) {
+            return null;
+        } else {
+            Node<T> node = heap.get(0);
+            index.remove(node.item);
+            removeAt(0);
+            return node.item;
+        }
+    }
+
+    public synchronized int size() {
+        return heap.size();
+    }
+
+    public synchronized void clear() {
+        heap.clear();
+        index.clear();
+    }
+
+    private void removeAt(int position) {
+        int last = heap.size() - 1;
+        if (position == last) {
+            heap.remove(last);
+        } else {
+            Node<T> moved = heap.remove(last);
+            moved.position = position;
+            heap.set(position, moved);
+            siftUp(position);
+            siftDown(moved.position);
+        }
+    }
+
+    private void swap(int i, int j) {
+        Node<T> nodeI = heap.get(i);
+        Node<T> nodeJ = heap.get(j);
+        nodeI.position = j;
+        nodeJ.position = i;
+        heap.set(i, nodeJ);
+        heap.set(j, nodeI);
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (heap.get(position).isBefore(heap.get(parent))) {
+                swap(position, parent);
+                position = parent;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void siftDown(int position) {
+        int size = heap.size();
+        while (true) {
+            int left = 2 * position + 1;
+            if (left >= size) {
+                break;
+            } else {
+                int right = left + 1;
+                int child = left;
+                if (right < size && heap.get(right).isBefore(heap.get(left))) {
+                    child = right;
+                }
+                if (heap.get(child).isBefore(heap.get(position))) {
+                    swap(position, child);
+                    position = child;
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Atualizador em segundo plano de registros de cache expirados.
+ *
+ * Os caches continuam servindo o registro antigo enquanto uma única
+ * atualização por chave é executada em segundo plano.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Revalidator {
+
+    /**
+     * Quantidade máxima de atualizações simultâneas.
+     */
+    private static final int MAX = 16;
+
+    /**
+     * Quantidade máxima de atualizações aguardando execução.
+     */
+    private static final int QUEUE = 4096;
+
+    /**
+     * Chaves com atualização agendada ou em execução.
+     */
+    private static final HashSet<String> FLIGHT = new HashSet<String>();
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            MAX, MAX, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "REVALIDA");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            }
+    );
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private Revalidator() {
+    }
+
+    private static synchronized boolean startFlight(String key) {
+        return FLIGHT.add(key);
+    }
+
+    private static synchronized void endFlight(String key) {
+        FLIGHT.remove(key);
+    }
+
+    /**
+     * Agenda a atualização de um registro em segundo plano,
+     * se ainda não houver uma atualização para a mesma chave.
+     * @param key a chave do registro, prefixada pelo nome do cache.
+     * @param task a atualização a ser executada.
+     * @return verdadeiro se a atualização foi agendada.
+     */
+    public static boolean submit(final String key, final Runnable task) {
+        if (key == null || task == null) {
+            return false;
+        } else if (EXECUTOR.isShutdown()) {
+            return false;
+        } else if (startFlight(key)) {
+            try {
+                EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } catch (Exception ex) {
+                            Server.logError(ex);
+                        } finally {
+                            endFlight(key);
+                        }
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException ex) {
+                // Fila cheia: o registro antigo continua sendo
+                // servido e uma nova tentativa será feita na próxima consulta.
+                endFlight(key);
+                return false;
+            }
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Interrompe as atualizações pendentes.
+     */
+    public static void interrupt() {
+        EXECUTOR.shutdownNow();
+    }
+}
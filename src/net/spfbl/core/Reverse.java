@@ -19,16 +19,26 @@ package net.spfbl.core;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.NoSuchElementException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.naming.CommunicationException;
 import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
@@ -52,104 +62,500 @@ public final class Reverse implements Serializable {
     
     private static final long serialVersionUID = 1L;
     
-    private final String ip;
-    private TreeSet<String> addressSet = null;
+    /**
+     * Campos do formato serializado anterior, mantidos
+     * somente para a migração do arquivo reverse.map.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("ip", String.class),
+        new ObjectStreamField("addressSet", TreeSet.class),
+        new ObjectStreamField("queryCount", Integer.TYPE),
+        new ObjectStreamField("lastQuery", Long.TYPE),
+        new ObjectStreamField("lastRefresh", Long.TYPE)
+    };
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /**
+     * Representação compartilhada do reverso sem nomes.
+     */
+    private static final byte[] EMPTY = new byte[0];
+    
+    private Address address;
+    /**
+     * Nomes do reverso em UTF-8, ordenados e separados por quebra
+     * de linha, ou nulo se o reverso não existe.
+     */
+    private volatile byte[] pointers = null;
     private int queryCount = 0;
     private long lastQuery;
+    private long lastRefresh = 0;
+    /**
+     * Contador saturado de consultas usado no descarte.
+     */
+    private byte frequency = 0;
+    
+    /**
+     * Tempo após o qual o registro é atualizado em segundo plano.
+     */
+    private static final long EXPIRE_TIME = 604800000;
+    /**
+     * Tempo máximo que um registro expirado pode ser servido.
+     */
+    private static final long STALE_TIME = 1209600000;
+    /**
+     * Valor máximo do contador de consultas usado no descarte.
+     */
+    private static final byte MAX_FREQUENCY = 15;
+    /**
+     * Endereços com atualização DNS em andamento.
+     */
+    private static final ConcurrentHashMap<Address,Boolean> REFRESHING =
+            new ConcurrentHashMap<Address,Boolean>();
+    
+    /**
+     * Endereço IP binário usado como chave do cache.
+     * O IPv4 é representado como IPv6 mapeado em ::ffff:0:0/96.
+     */
+    private static final class Address {
+        
+        private static final long IPV4 = 0x0000FFFF00000000L;
+        
+        private final long high;
+        private final long low;
+        
+        private Address(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+        
+        /**
+         * Converte um IP normalizado para o endereço binário.
+         * @param ip o IP normalizado.
+         * @return o endereço binário ou nulo se o IP for inválido.
+         */
+        private static Address parse(String ip) {
+            if (ip == null) {
+                return null;
+            } else if (SubnetIPv4.isValidIPv4(ip)) {
+                long ipv4 = (long) SubnetIPv4.getAddressIP(ip) & 0xFFFFFFFFL;
+                return new Address(0, IPV4 | ipv4);
+            } else if (SubnetIPv6.isValidIPv6(ip)) {
+                short[] block = SubnetIPv6.split(ip);
+                long high = 0;
+                long low = 0;
+                for (int index = 0; index < 4; index++) {
+                    high = high << 16 | (block[index] & 0xFFFF);
+                    low = low << 16 | (block[index + 4] & 0xFFFF);
+                }
+                return new Address(high, low);
+            } else {
+                return null;
+            }
+        }
+        
+        private boolean isIPv4() {
+            return high == 0 && (low & 0xFFFFFFFF00000000L) == IPV4;
+        }
+        
+        @Override
+        public int hashCode() {
+            int hash = (int) (high ^ (high >>> 32));
+            return 31 * hash + (int) (low ^ (low >>> 32));
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof Address) {
+                Address address = (Address) other;
+                return this.high == address.high && this.low == address.low;
+            } else {
+                return false;
+            }
+        }
+        
+        /**
+         * @return o IP na notação normalizada.
+         */
+        @Override
+        public String toString() {
+            if (isIPv4()) {
+                return ((low >>> 24) & 0xFF) + "." +
+                        ((low >>> 16) & 0xFF) + "." +
+                        ((low >>> 8) & 0xFF) + "." +
+                        (low & 0xFF);
+            } else {
+                StringBuilder builder = new StringBuilder(39);
+                for (int shift = 48; shift >= 0; shift -= 16) {
+                    builder.append(Integer.toHexString((int) (high >>> shift) & 0xFFFF));
+                    builder.append(':');
+                }
+                for (int shift = 48; shift >= 0; shift -= 16) {
+                    builder.append(Integer.toHexString((int) (low >>> shift) & 0xFFFF));
+                    if (shift > 0) {
+                        builder.append(':');
+                    }
+                }
+                return builder.toString();
+            }
+        }
+    }
     
     /**
      * Mapa de atributos da verificação do reverso.
+     * As consultas não adquirem a trava da classe.
+     */
+    private static final ConcurrentHashMap<Address,Reverse> MAP = new ConcurrentHashMap<Address,Reverse>();
+    /**
+     * Ordem de inclusão dos registros para o descarte pelo algoritmo
+     * do relógio, alterada somente sob a trava da classe. Pode conter
+     * registros já removidos do mapa, que são ignorados no descarte.
+     */
+    private static ArrayDeque<Reverse> CLOCK = new ArrayDeque<Reverse>();
+    /**
+     * Quantidade máxima de segundas chances por descarte.
+     */
+    private static final int EVICT_SCAN = 64;
+    /**
+     * Quantidade máxima de registros em cache.
      */
-    private static final HashMap<String,Reverse> MAP = new HashMap<String,Reverse>();
+    private static volatile int LIMIT = 1048576;
+    /**
+     * Contadores de acertos e faltas do cache.
+     */
+    private static final AtomicLong HITS = new AtomicLong(0);
+    private static final AtomicLong MISSES = new AtomicLong(0);
     /**
      * Flag que indica se o cache foi modificado.
      */
-    private static boolean CHANGED = false;
+    private static volatile boolean CHANGED = false;
+    /**
+     * Quantidade máxima de representações compartilhadas de nomes.
+     */
+    private static final int POOL_SIZE = 65536;
+    /**
+     * Representações de nomes usadas recentemente, para que os
+     * registros com o mesmo reverso compartilhem o mesmo vetor.
+     */
+    private static final LinkedHashMap<ByteBuffer,byte[]> POOL = new LinkedHashMap<ByteBuffer,byte[]>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer,byte[]> eldest) {
+            return size() > POOL_SIZE;
+        }
+    };
+    /**
+     * Fila dos registros de reverso que devem ser atualizados.
+     */
+    private static final RefreshQueue<Reverse> QUEUE = new RefreshQueue<Reverse>();
     /**
-     * O próximo registro de reverso que deve ser atualizado.
+     * Cargas em execução dos IPs ausentes do cache.
      */
-    private static Reverse refresh = null;
+    private static final SingleFlight<Reverse> FLIGHT = new SingleFlight<Reverse>();
     
-    private static synchronized Reverse dropExact(String ip) {
-        Reverse ret = MAP.remove(ip);
-        if (ret != null) {
-            CHANGED = true;
+    public static void setLimit(String limit) {
+        if (limit != null && limit.length() > 0) {
+            try {
+                setLimit(Integer.parseInt(limit));
+            } catch (Exception ex) {
+                Server.logError("invalid reverse limit '" + limit + "'.");
+            }
         }
-        return ret;
     }
-
-    private static synchronized Reverse putExact(String key, Reverse value) {
-        Reverse reverse = MAP.put(key, value);
-        if (!value.equals(reverse)) {
+    
+    public static synchronized void setLimit(int limit) {
+        if (limit < 1024 || limit > 67108864) {
+            Server.logError("invalid reverse limit '" + limit + "'.");
+        } else {
+            Reverse.LIMIT = limit;
+            evict();
+        }
+    }
+    
+    /**
+     * @return a quantidade de registros em cache.
+     */
+    public static int size() {
+        return MAP.size();
+    }
+    
+    /**
+     * @return a taxa de acerto do cache em porcentagem.
+     */
+    public static float getHitRate() {
+        long hits = HITS.get();
+        long total = hits + MISSES.get();
+        if (total == 0) {
+            return 0.0f;
+        } else {
+            return 100.0f * hits / total;
+        }
+    }
+    
+    /**
+     * @return a situação do cache para o comando de administração.
+     */
+    public static String getStatus() {
+        return MAP.size() + " " + LIMIT + " "
+                + String.format(Locale.US, "%.1f", getHitRate()) + "%";
+    }
+    
+    /**
+     * Descarta os registros excedentes pelo algoritmo do relógio com
+     * frequência: o registro mais antigo consultado desde a última
+     * passagem volta ao final da fila com o contador reduzido à metade,
+     * enquanto o registro sem consultas é descartado.
+     *
+     * Depois de {@link #EVICT_SCAN} segundas chances numa mesma chamada,
+     * o registro mais antigo é descartado mesmo que tenha consultas,
+     * para que o descarte não percorra o cache inteiro sob a trava.
+     */
+    private static void evict() {
+        int scan = 0;
+        Reverse eldest;
+        while (MAP.size() > LIMIT && (eldest = CLOCK.poll()) != null) {
+            if (MAP.get(eldest.address) != eldest) {
+                // Registro já removido do mapa.
+            } else if (eldest.frequency > 0 && scan++ < EVICT_SCAN) {
+                synchronized (eldest) {
+                    eldest.frequency >>= 1;
+                }
+                CLOCK.offer(eldest);
+            } else if (MAP.remove(eldest.address, eldest)) {
+                QUEUE.remove(eldest);
+                CHANGED = true;
+            }
+        }
+        if (CLOCK.size() > 2 * MAP.size() + 1024) {
+            // Descarta da fila do relógio os registros removidos.
+            ArrayDeque<Reverse> clock = new ArrayDeque<Reverse>(MAP.size() + 1024);
+            for (Reverse reverse : CLOCK) {
+                if (MAP.get(reverse.address) == reverse) {
+                    clock.offer(reverse);
+                }
+            }
+            CLOCK = clock;
+        }
+    }
+    
+    private static synchronized boolean drop(Reverse reverse) {
+        if (MAP.remove(reverse.address, reverse)) {
+            QUEUE.remove(reverse);
             CHANGED = true;
+            evict();
+            return true;
+        } else {
+            return false;
         }
-        return reverse;
     }
 
-    private static synchronized TreeSet<String> keySet() {
-        TreeSet<String> keySet = new TreeSet<String>();
-        keySet.addAll(MAP.keySet());
-        return keySet;
+    /**
+     * Inclui em bloco os registros carregados do disco com uma única
+     * aquisição da trava, sem substituir os registros já consultados.
+     * Somente os registros inseridos e não descartados são enfileirados
+     * para atualização.
+     */
+    private static synchronized void putAllAbsent(ArrayList<Reverse> list) {
+        ArrayList<Reverse> insertedList = new ArrayList<Reverse>(list.size());
+        for (Reverse reverse : list) {
+            if (MAP.putIfAbsent(reverse.address, reverse) == null) {
+                CLOCK.offer(reverse);
+                insertedList.add(reverse);
+            }
+        }
+        evict();
+        for (Reverse reverse : insertedList) {
+            if (reverse.queryCount > 3 && MAP.get(reverse.address) == reverse) {
+                QUEUE.update(reverse, reverse.queryCount, reverse.lastRefresh);
+            }
+        }
     }
-
-    private static synchronized HashMap<String,Reverse> getMap() {
-        HashMap<String,Reverse> map = new HashMap<String,Reverse>();
-        map.putAll(MAP);
-        return map;
+    
+    private static synchronized void putExact(Reverse value) {
+        MAP.put(value.address, value);
+        CLOCK.offer(value);
+        CHANGED = true;
+        evict();
     }
 
-    private static Reverse getExact(String ip) {
-        return MAP.get(ip);
+    /**
+     * @return os registros em cache na ordem do relógio.
+     */
+    private static synchronized ArrayList<Reverse> getValues() {
+        ArrayList<Reverse> list = new ArrayList<Reverse>(MAP.size());
+        for (Reverse reverse : CLOCK) {
+            if (MAP.get(reverse.address) == reverse) {
+                list.add(reverse);
+            }
+        }
+        return list;
     }
 
-    private static synchronized Reverse getRefreshReverse() {
-        Reverse reverse = refresh;
-        refresh = null;
+    private static Reverse getExact(Address address) {
+        return MAP.get(address);
+    }
+    
+    /**
+     * Busca o registro contabilizando o acerto ou a falta no cache.
+     * @param address o endereço binário do IP.
+     * @return o registro em cache ou nulo se estiver ausente.
+     */
+    private static Reverse getCounted(Address address) {
+        Reverse reverse = MAP.get(address);
+        if (reverse == null) {
+            MISSES.incrementAndGet();
+        } else {
+            HITS.incrementAndGet();
+        }
         return reverse;
     }
 
-    private static synchronized void addQuery(Reverse reverse) {
-        reverse.queryCount++;
-        reverse.lastQuery = System.currentTimeMillis();
-        if (refresh == null) {
-            refresh = reverse;
-        } else if (refresh.queryCount < reverse.queryCount) {
-            refresh = reverse;
+    /**
+     * Contabiliza a consulta sob a trava do próprio registro.
+     */
+    private static void addQuery(Reverse reverse) {
+        int queryCount;
+        long lastRefresh;
+        synchronized (reverse) {
+            queryCount = ++reverse.queryCount;
+            lastRefresh = reverse.lastRefresh;
+            reverse.lastQuery = System.currentTimeMillis();
+            if (reverse.frequency < MAX_FREQUENCY) {
+                reverse.frequency++;
+            }
+        }
+        if (queryCount > 3) {
+            QUEUE.update(reverse, queryCount, lastRefresh);
         }
         CHANGED = true;
     }
     
+    /**
+     * @return a representação compartilhada de nomes iguais.
+     */
+    private static byte[] intern(byte[] data) {
+        if (data == null) {
+            return null;
+        } else if (data.length == 0) {
+            return EMPTY;
+        } else {
+            ByteBuffer key = ByteBuffer.wrap(data);
+            synchronized (POOL) {
+                byte[] shared = POOL.get(key);
+                if (shared == null) {
+                    POOL.put(key, data);
+                    return data;
+                } else {
+                    return shared;
+                }
+            }
+        }
+    }
+    
+    private static byte[] encode(Collection<?> set) {
+        if (set == null) {
+            return null;
+        } else if (set.isEmpty()) {
+            return EMPTY;
+        } else {
+            StringBuilder builder = new StringBuilder();
+            for (Object name : set) {
+                if (builder.length() > 0) {
+                    builder.append('\n');
+                }
+                builder.append(name);
+            }
+            return intern(builder.toString().getBytes(UTF8));
+        }
+    }
+    
+    /**
+     * @return os nomes do reverso na ordem gravada
+     * ou nulo se o reverso não existe.
+     */
+    private ArrayList<String> decode() {
+        byte[] data = pointers;
+        if (data == null) {
+            return null;
+        } else {
+            ArrayList<String> list = new ArrayList<String>(2);
+            int begin = 0;
+            for (int index = 0; index <= data.length; index++) {
+                if (index == data.length || data[index] == '\n') {
+                    if (index > begin) {
+                        list.add(new String(data, begin, index - begin, UTF8));
+                    }
+                    begin = index + 1;
+                }
+            }
+            return list;
+        }
+    }
+    
+    /**
+     * Compara o nome com cada linha da forma codificada,
+     * sem decodificar os nomes do reverso.
+     */
     private boolean contains(String host) {
-        if (!Domain.isHostname(host)) {
+        byte[] data = pointers;
+        if (data == null) {
             return false;
-        } else if (addressSet == null) {
+        } else if (!Domain.isHostname(host)) {
             return false;
         } else {
-            host = Domain.normalizeHostname(host, true);
-            return addressSet.contains(host);
+            byte[] name = Domain.normalizeHostname(host, true).getBytes(UTF8);
+            int begin = 0;
+            for (int index = 0; index <= data.length; index++) {
+                if (index == data.length || data[index] == '\n') {
+                    if (index - begin == name.length && equals(data, begin, name)) {
+                        return true;
+                    }
+                    begin = index + 1;
+                }
+            }
+            return false;
+        }
+    }
+    
+    private static boolean equals(byte[] data, int offset, byte[] name) {
+        for (int index = 0; index < name.length; index++) {
+            if (data[offset + index] != name[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Lista os nomes do reverso sem montar um conjunto ordenado,
+     * para quem apenas percorre os nomes.
+     * @return os nomes do reverso, já ordenados e sem repetição.
+     */
+    public ArrayList<String> getAddressList() {
+        ArrayList<String> list = decode();
+        if (list == null) {
+            return new ArrayList<String>(0);
+        } else {
+            return list;
         }
     }
     
     public TreeSet<String> getAddressSet(boolean refresh) {
-        if (addressSet == null) {
+        if (pointers == null) {
             return new TreeSet<String>();
         } else {
             if (refresh) {
                 refresh();
             }
-            TreeSet<String> resultSet = new TreeSet<String>();
-            resultSet.addAll(addressSet);
-            return resultSet;
+            return getAddressSet();
         }
     }
     
     public TreeSet<String> getAddressSet() {
-        if (addressSet == null) {
+        ArrayList<String> list = decode();
+        if (list == null) {
             return new TreeSet<String>();
         } else {
-            TreeSet<String> resultSet = new TreeSet<String>();
-            resultSet.addAll(addressSet);
-            return resultSet;
+            return new TreeSet<String>(list);
         }
     }
     
@@ -172,14 +578,14 @@ public final class Reverse implements Serializable {
     }
     
     public TreeSet<String> getAddressSet(String ip, boolean refresh) {
-        if (addressSet == null) {
+        if (pointers == null) {
             return new TreeSet<String>();
         } else {
             if (refresh) {
                 refresh();
             }
             TreeSet<String> resultSet = new TreeSet<String>();
-            for (String hostname : addressSet) {
+            for (String hostname : getAddressList()) {
                 if (SPF.matchHELO(ip, hostname, refresh)) {
                     resultSet.add(hostname);
                 }
@@ -188,35 +594,117 @@ public final class Reverse implements Serializable {
         }
     }
     
-    private int getQueryCount() {
-        return queryCount;
-    }
-    
     private String getAddressOnly() {
-        try {
-            if (addressSet == null) {
-                return null;
-            } else if (addressSet.size() == 1) {
-                return addressSet.first();
-            } else {
-                return null;
-            }
-        } catch (NoSuchElementException ex) {
+        byte[] data = pointers;
+        if (data == null || data.length == 0) {
             return null;
+        } else {
+            for (byte value : data) {
+                if (value == '\n') {
+                    return null;
+                }
+            }
+            return new String(data, UTF8);
         }
     }
     
-    private Reverse(String ip) {
-        this.ip = Subnet.normalizeIP(ip);
+    private Reverse(Address address) {
+        this.address = address;
         refresh();
         this.lastQuery = System.currentTimeMillis();
     }
     
+    /**
+     * Leitura de um registro do cache binário.
+     * @param reader o leitor posicionado no registro.
+     * @throws IOException se houver falha na leitura.
+     */
+    private Reverse(BinaryFile.Reader reader) throws IOException {
+        if (reader.getVersion() == 1) {
+            // Chave e IP em texto.
+            reader.readString();
+            this.address = Address.parse(Subnet.normalizeIP(reader.readString()));
+            TreeSet<String> set = new TreeSet<String>();
+            if (reader.readStrings(set)) {
+                this.pointers = encode(set);
+            }
+        } else {
+            this.address = new Address(reader.readLong(), reader.readLong());
+            this.pointers = intern(reader.readBytes());
+        }
+        this.queryCount = reader.readInt();
+        this.lastQuery = reader.readLong();
+        this.lastRefresh = reader.readLong();
+        if (reader.getVersion() > 1) {
+            this.frequency = (byte) reader.readInt();
+        }
+    }
+    
+    /**
+     * Gravação do registro no cache binário.
+     * @param writer o gravador posicionado no registro.
+     * @throws IOException se houver falha na gravação.
+     */
+    private void write(BinaryFile.Writer writer) throws IOException {
+        writer.writeLong(address.high);
+        writer.writeLong(address.low);
+        writer.writeBytes(pointers);
+        writer.writeInt(queryCount);
+        writer.writeLong(lastQuery);
+        writer.writeLong(lastRefresh);
+        writer.writeInt(frequency);
+    }
+    
+    private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = stream.readFields();
+        this.address = Address.parse(Subnet.normalizeIP((String) fields.get("ip", null)));
+        this.pointers = encode((Collection<?>) fields.get("addressSet", null));
+        this.queryCount = fields.get("queryCount", 0);
+        this.lastQuery = fields.get("lastQuery", 0L);
+        this.lastRefresh = fields.get("lastRefresh", 0L);
+    }
+    
+    private void writeObject(ObjectOutputStream stream) throws IOException {
+        ObjectOutputStream.PutField fields = stream.putFields();
+        fields.put("ip", address == null ? null : address.toString());
+        ArrayList<String> list = decode();
+        fields.put("addressSet", list == null ? null : new TreeSet<String>(list));
+        fields.put("queryCount", queryCount);
+        fields.put("lastQuery", lastQuery);
+        fields.put("lastRefresh", lastRefresh);
+        stream.writeFields();
+    }
+    
     public static String getListedIP(String ip, String server, String... valueSet) {
         return getListedIP(ip, server, Arrays.asList(valueSet));
     }
     
     public static String getListedIP(String ip, String server, Collection<String> valueSet) {
+        try {
+            return checkListedIP(ip, server, valueSet);
+        } catch (CommunicationException ex) {
+            Server.logDebug("DNS service '" + server + "' unreachable.");
+            return null;
+        } catch (ServiceUnavailableException ex) {
+            Server.logDebug("DNS service '" + server + "' unavailable.");
+            return null;
+        } catch (NamingException ex) {
+            Server.logError(ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Consulta um IP numa DNSBL sem tratar as falhas de comunicação.
+     * @param ip o IP consultado.
+     * @param server o servidor DNSBL.
+     * @param valueSet os retornos que indicam listagem.
+     * @return o retorno encontrado ou nulo se não estiver listado.
+     * @throws NamingException se houver falha na consulta,
+     * como CommunicationException quando o servidor não responde.
+     */
+    public static String checkListedIP(String ip, String server,
+            Collection<String> valueSet) throws NamingException {
         String host = Reverse.getHostReverse(ip, server);
         if (host == null) {
             return null;
@@ -242,18 +730,9 @@ public final class Reverse implements Serializable {
                     }
                 }
                 return null;
-            } catch (CommunicationException ex) {
-                Server.logDebug("DNS service '" + server + "' unreachable.");
-                return null;
-            } catch (ServiceUnavailableException ex) {
-                Server.logDebug("DNS service '" + server + "' unavailable.");
-                return null;
             } catch (NameNotFoundException ex) {
                 // Não listado.
                 return null;
-            } catch (NamingException ex) {
-                Server.logError(ex);
-                return null;
             }
         }
     }
@@ -637,20 +1116,26 @@ public final class Reverse implements Serializable {
         return ipSet;
     }
     
+    /**
+     * Consulta o reverso fora de qualquer trava e
+     * publica o resultado sob a trava do registro.
+     */
     public void refresh() {
         long time = System.currentTimeMillis();
+        String ip = address.toString();
+        boolean resolved = false;
+        byte[] result = null;
         try {
             String reverse;
-            if (SubnetIPv4.isValidIPv4(ip)) {
+            if (address.isIPv4()) {
                 reverse = getHostReverse(ip, "in-addr.arpa");
-            } else if (SubnetIPv6.isValidIPv6(ip)) {
-                reverse = getHostReverse(ip, "ip6.arpa");
             } else {
-                reverse = null;
+                reverse = getHostReverse(ip, "ip6.arpa");
             }
             if (reverse != null) {
                 TreeSet<String> ptrSet = getPointerSet(reverse);
-                this.addressSet = ptrSet;
+                result = encode(ptrSet);
+                resolved = true;
                 Server.logReverseDNS(time, ip, ptrSet.toString());
             }
         } catch (CommunicationException ex) {
@@ -658,16 +1143,60 @@ public final class Reverse implements Serializable {
         } catch (ServiceUnavailableException ex) {
             Server.logReverseDNS(time, ip, "SERVFAIL");
         } catch (NameNotFoundException ex) {
-            this.addressSet = null;
+            resolved = true;
             Server.logReverseDNS(time, ip, "NXDOMAIN");
         } catch (NamingException ex) {
-            this.addressSet = null;
+            resolved = true;
             Server.logReverseDNS(time, ip, "ERROR " + ex.getClass() + " " + ex.getExplanation());
         } finally {
-            this.queryCount = 0;
+            synchronized (this) {
+                if (resolved) {
+                    this.pointers = result;
+                }
+                this.queryCount = 0;
+                this.lastRefresh = System.currentTimeMillis();
+            }
+            QUEUE.remove(this);
             CHANGED = true;
         }
     }
+    
+    /**
+     * Atualiza o registro somente se ainda estiver expirado,
+     * de modo que consultas simultâneas resultem numa única
+     * consulta DNS. Quem não obtém a marca de atualização
+     * segue com o valor atual sem esperar pela rede.
+     */
+    private void refreshExpired() {
+        if (isExpired() && REFRESHING.putIfAbsent(address, Boolean.TRUE) == null) {
+            try {
+                if (isExpired()) {
+                    refresh();
+                }
+            } finally {
+                REFRESHING.remove(address);
+            }
+        }
+    }
+    
+    /**
+     * Verifica se o registro deve ser atualizado.
+     * Registros antigos, sem data de atualização,
+     * são atualizados em segundo plano.
+     * @return verdadeiro se o registro deve ser atualizado.
+     */
+    private boolean isExpired() {
+        return lastRefresh == 0 || System.currentTimeMillis() - lastRefresh > EXPIRE_TIME;
+    }
+    
+    /**
+     * Verifica se o registro expirou além do tempo máximo
+     * em que pode ser servido enquanto é atualizado.
+     * @return verdadeiro se o registro não pode mais ser servido.
+     */
+    private boolean isTooStale() {
+        return lastRefresh > 0 && System.currentTimeMillis() - lastRefresh > STALE_TIME;
+    }
 
     public boolean isExpired7() {
         return System.currentTimeMillis() - lastQuery > 604800000;
@@ -705,17 +1234,45 @@ public final class Reverse implements Serializable {
     }
     
     public static Reverse get(String ip, boolean refresh) {
+        final Address address;
         if ((ip = Subnet.normalizeIP(ip)) == null) {
             return null;
+        } else if ((address = Address.parse(ip)) == null) {
+            return null;
         } else {
-            Reverse reverse = getExact(ip);
+            Reverse reverse = getCounted(address);
             if (reverse == null) {
-                reverse = new Reverse(ip);
-                putExact(ip, reverse);
+                try {
+                    reverse = FLIGHT.load(ip, new SingleFlight.Loader<Reverse>() {
+                        @Override
+                        public Reverse load() {
+                            // Somente uma consulta DNS por IP ausente.
+                            Reverse reverse = getExact(address);
+                            if (reverse == null) {
+                                reverse = new Reverse(address);
+                                putExact(reverse);
+                            }
+                            return reverse;
+                        }
+                    });
+                } catch (ProcessException ex) {
+                    // Consulta interrompida.
+                    return null;
+                }
             } else if (refresh) {
                 reverse.refresh();
-            } else if (reverse.isExpired7()) {
-                reverse.refresh();
+            } else if (reverse.isTooStale()) {
+                reverse.refreshExpired();
+            } else if (reverse.isExpired()) {
+                // Serve o registro antigo enquanto atualiza.
+                final Reverse stale = reverse;
+                Revalidator.submit("REVERSE " + ip, new Runnable() {
+                    @Override
+                    public void run() {
+                        stale.refreshExpired();
+                    }
+                });
+                addQuery(reverse);
             } else {
                 addQuery(reverse);
             }
@@ -724,36 +1281,21 @@ public final class Reverse implements Serializable {
     }
     
     /**
-     * Atualiza o registro mais consultado.
+     * Atualiza os registros mais consultados.
      */
     public static void refreshLast() {
-        Reverse reverseMax = getRefreshReverse();
-        if (reverseMax == null) {
-            for (String ip : keySet()) {
-                Reverse reverse = getExact(ip);
-                if (reverse != null) {
-                    if (reverseMax == null) {
-                        reverseMax = reverse;
-                    } else if (reverseMax.getQueryCount() < reverse.getQueryCount()) {
-                        reverseMax = reverse;
-                    }
-                }
-            }
-        }
-        if (reverseMax != null && reverseMax.getQueryCount() > 3) {
-            reverseMax.refresh();
+        int budget = Core.getRefreshBudget();
+        Reverse reverse;
+        while (budget-- > 0 && (reverse = QUEUE.poll()) != null) {
+            reverse.refresh();
         }
     }
     
     public static void dropExpired() {
-        for (String ip : keySet()) {
+        for (Reverse reverse : getValues()) {
             long time = System.currentTimeMillis();
-            Reverse reverse = getExact(ip);
-            if (reverse != null && reverse.isExpired14()) {
-                reverse = dropExact(ip);
-                if (reverse != null) {
-                    Server.logReverseDNS(time, ip, "EXPIRED");
-                }
+            if (reverse.isExpired14() && drop(reverse)) {
+                Server.logReverseDNS(time, reverse.address.toString(), "EXPIRED");
             }
         }
     }
@@ -766,20 +1308,32 @@ public final class Reverse implements Serializable {
         CHANGED = false;
     }
 
+    /**
+     * Versão do esquema do cache binário.
+     * A versão 2 grava o IP em binário e os nomes em UTF-8.
+     */
+    private static final int VERSION = 2;
+
     public static void store() {
         if (isChanged()) {
             try {
-//                Server.logTrace("storing reverse.map");
+//                Server.logTrace("storing reverse.bin");
                 long time = System.currentTimeMillis();
-                File file = new File("./data/reverse.map");
-                HashMap<String,Reverse> map = getMap();
-                FileOutputStream outputStream = new FileOutputStream(file);
+                File file = new File("./data/reverse.bin");
+                ArrayList<Reverse> list = getValues();
+                BinaryFile.Writer writer = new BinaryFile.Writer(file, "reverse", VERSION);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    for (Reverse reverse : list) {
+                        writer.next();
+                        reverse.write(writer);
+                    }
+                    writer.finish();
                     setStored();
                 } finally {
-                    outputStream.close();
+                    writer.close();
                 }
+                // Conclui a migração do formato antigo.
+                new File("./data/reverse.map").delete();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -789,28 +1343,67 @@ public final class Reverse implements Serializable {
 
     public static void load() {
         long time = System.currentTimeMillis();
-        File file = new File("./data/reverse.map");
-        if (file.exists()) {
+        File file = new File("./data/reverse.bin");
+        File legacy = new File("./data/reverse.map");
+        if (StoreFile.exists(file)) {
+            // Recorre à geração anterior se a atual estiver danificada.
+            for (File generation : StoreFile.getGenerations(file)) {
+                try {
+                    ArrayList<Reverse> list = new ArrayList<Reverse>();
+                    BinaryFile.Reader reader = new BinaryFile.Reader(generation, "reverse", VERSION);
+                    try {
+                        while (reader.next()) {
+                            Reverse reverse = new Reverse(reader);
+                            if (reverse.address != null) {
+                                list.add(reverse);
+                            }
+                        }
+                        reader.verify();
+                    } finally {
+                        reader.close();
+                    }
+                    load(list);
+                    if (reader.getVersion() == VERSION) {
+                        setStored();
+                    } else {
+                        // Força a gravação na versão atual.
+                        CHANGED = true;
+                    }
+                    Server.logLoad(time, generation);
+                    break;
+                } catch (Exception ex) {
+                    Server.logError(ex);
+                }
+            }
+        } else if (legacy.exists()) {
             try {
                 HashMap<String,Object> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
+                FileInputStream fileInputStream = new FileInputStream(legacy);
                 try {
                     map = SerializationUtils.deserialize(fileInputStream);
                 } finally {
                     fileInputStream.close();
                 }
-                for (String key : map.keySet()) {
-                    Object value = map.get(key);
+                ArrayList<Reverse> list = new ArrayList<Reverse>(map.size());
+                for (Object value : map.values()) {
                     if (value instanceof Reverse) {
                         Reverse reverse = (Reverse) value;
-                        putExact(key, reverse);
+                        if (reverse.address != null) {
+                            list.add(reverse);
+                        }
                     }
                 }
-                setStored();
-                Server.logLoad(time, file);
+                load(list);
+                // Força a gravação no formato binário.
+                CHANGED = true;
+                Server.logLoad(time, legacy);
             } catch (Exception ex) {
                 Server.logError(ex);
             }
         }
     }
+    
+    private static void load(ArrayList<Reverse> list) {
+        putAllAbsent(list);
+    }
 }
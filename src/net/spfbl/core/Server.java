@@ -33,8 +33,6 @@ import net.spfbl.whois.SubnetIPv4;
 import net.spfbl.whois.SubnetIPv6;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.InputStream;
@@ -104,32 +102,16 @@ public abstract class Server extends Thread {
      * Carregamento de cache em disco.
      */
     public static void loadCache() {
-        Client.load();
-        NoReply.load();
-        User.load();
-        Owner.load();
-        Domain.load();
-        AutonomousSystem.load();
-        SubnetIPv4.load();
-        SubnetIPv6.load();
-        Handle.load();
-        NameServer.load();
-        Peer.load();
-        Provider.load();
-        Ignore.load();
-        Analise.load();
-        Reverse.load();
-        Generic.load();
-        Block.load();
-        White.load();
-        Trap.load();
-        SPF.load();
-        Defer.load();
-        QueryDNS.load();
+        CacheLoader.load();
     }
     
     private static Semaphore SEMAPHORE_STORE = new Semaphore(1);
     
+    /**
+     * Taxa máxima de gravação do cache em segundo plano, em bytes por segundo.
+     */
+    private static final long STORE_RATE = 16 * 1024 * 1024;
+    
     private static class Store extends Thread {
         
         public Store() {
@@ -143,8 +125,10 @@ public abstract class Server extends Thread {
                 User.autoUpdate();
                 User.autoInductionWhite();
                 User.autoInductionBlock();
+                StoreFile.setRate(STORE_RATE);
                 storeAll(true, true);
             } finally {
+                StoreFile.setRate(0);
                 SEMAPHORE_STORE.release();
             }
         }
@@ -167,6 +151,9 @@ public abstract class Server extends Thread {
      */
     private static void storeCache() {
         try {
+            // Conclui sem limite de taxa a gravação em segundo plano,
+            // mesmo que ela ainda não tenha definido a própria taxa.
+            StoreFile.setClosed();
             SEMAPHORE_STORE.acquire();
             try {
                 storeAll(false, false);
@@ -179,6 +166,12 @@ public abstract class Server extends Thread {
     }
     
     private static void storeAll(boolean simplify, boolean clone) {
+        if (!CacheLoader.isLoaded()) {
+            // Uma gravação agora sobrescreveria os arquivos
+            // ainda não carregados com listas incompletas.
+            Server.logInfo("cache store skipped because cache is still loading.");
+            return;
+        }
         Client.store();
         User.store();
         Peer.store();
@@ -210,22 +203,18 @@ public abstract class Server extends Thread {
         if (privateKey == null) {
             try {
                 File file = new File("./data/server.key");
-                if (file.exists()) {
-                    FileInputStream fileInputStream = new FileInputStream(file);
-                    try {
-                        privateKey = SerializationUtils.deserialize(fileInputStream);
-                    } finally {
-                        fileInputStream.close();
-                    }
+                if (StoreFile.exists(file)) {
+                    privateKey = StoreFile.deserialize(file);
                 } else {
                     KeyGenerator keyGen = KeyGenerator.getInstance("AES");
                     keyGen.init(new SecureRandom());
                     SecretKey key = keyGen.generateKey();
-                    FileOutputStream outputStream = new FileOutputStream(file);
+                    StoreFile storeFile = new StoreFile(file);
                     try {
-                        SerializationUtils.serialize(key, outputStream);
+                        SerializationUtils.serialize(key, storeFile.getOutputStream());
+                        storeFile.commit();
                     } finally {
-                        outputStream.close();
+                        storeFile.close();
                     }
                     privateKey = key;
                 }
@@ -946,6 +935,8 @@ public abstract class Server extends Thread {
         // Inicia finalização dos servidores.
         Server.logInfo("interrupting analises...");
         Analise.interrupt();
+        Server.logInfo("interrupting cache revalidation...");
+        Revalidator.interrupt();
         Server.logInfo("interrupting user theads...");
         User.interrupt();
         Server.logInfo("shutting down server...");
@@ -1251,18 +1242,22 @@ public abstract class Server extends Thread {
 //    }
     
     /**
-     * Atualiza os registros quase expirando.
+     * Atualiza os registros quase expirando,
+     * até o limite de atualizações por ciclo.
      */
     public static synchronized boolean tryRefreshWHOIS() {
-        if (WHOIS_QUERY_SEMAPHORE.availablePermits() == WHOIS_QUERY_LIMIT) {
+        boolean refreshed = false;
+        int budget = Core.getRefreshBudget();
+        while (budget-- > 0 && WHOIS_QUERY_SEMAPHORE.availablePermits() == WHOIS_QUERY_LIMIT) {
             if (Domain.backgroundRefresh()) {
-                return true;
+                refreshed = true;
+            } else if (Subnet.backgroundRefresh()) {
+                refreshed = true;
             } else {
-                return Subnet.backgroundRefresh();
+                break;
             }
-        } else {
-            return false;
         }
+        return refreshed;
     }
     
     /**
@@ -0,0 +1,143 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.util.HashMap;
+
+/**
+ * Carregador de registros ausentes com uma única carga por chave.
+ *
+ * A primeira consulta de uma chave ausente executa a carga enquanto
+ * as consultas simultâneas da mesma chave aguardam e recebem o mesmo
+ * resultado, ou a mesma falha, sem repetir a consulta de rede.
+ * Nenhuma trava global é mantida durante a carga.
+ *
+ * A carga deve verificar novamente o cache antes de consultar a rede,
+ * pois uma carga anterior da mesma chave pode ter terminado
+ * entre a verificação do cache e a chamada deste carregador.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class SingleFlight<V> {
+
+    /**
+     * Carga de um registro ausente.
+     */
+    public interface Loader<V> {
+
+        /**
+         * Consulta o registro e o adiciona ao cache.
+         * @return o registro carregado.
+         * @throws ProcessException se houver falha na carga.
+         */
+        public V load() throws ProcessException;
+    }
+
+    /**
+     * Cargas em execução por chave.
+     */
+    private final HashMap<String,Flight<V>> MAP = new HashMap<String,Flight<V>>();
+
+    private static final class Flight<V> {
+
+        private V value = null;
+        private Throwable failure = null;
+        private boolean done = false;
+
+        private synchronized void finish(V value, Throwable failure) {
+            this.value = value;
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        private synchronized V await() throws ProcessException {
+            try {
+                while (!done) {
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ProcessException("ERROR: INTERRUPTED", ex);
+            }
+            if (failure == null) {
+                return value;
+            } else if (failure instanceof ProcessException) {
+                throw (ProcessException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else {
+                throw (Error) failure;
+            }
+        }
+    }
+
+    private synchronized Flight<V> join(String key, Flight<V> flight) {
+        Flight<V> current = MAP.get(key);
+        if (current == null) {
+            MAP.put(key, flight);
+            return flight;
+        } else {
+            return current;
+        }
+    }
+
+    private synchronized void leave(String key, Flight<V> flight) {
+        if (MAP.get(key) == flight) {
+            MAP.remove(key);
+        }
+    }
+
+    /**
+     * Carrega um registro ausente ou aguarda a carga em execução da mesma chave.
+     * @param key a chave do registro.
+     * @param loader a carga a ser executada se não houver outra em execução.
+     * @return o registro carregado.
+     * @throws ProcessException se houver falha na carga.
+     */
+    public V load(String key, Loader<V> loader) throws ProcessException {
+        Flight<V> flight = new Flight<V>();
+        Flight<V> current = join(key, flight);
+        if (current != flight) {
+            return current.await();
+        } else {
+            try {
+                V value = loader.load();
+                flight.finish(value, null);
+                return value;
+            } catch (ProcessException ex) {
+                flight.finish(null, ex);
+                throw ex;
+            } catch (RuntimeException ex) {
+                flight.finish(null, ex);
+                throw ex;
+            } catch (Error error) {
+                flight.finish(null, error);
+                throw error;
+            } finally {
+                leave(key, flight);
+            }
+        }
+    }
+
+    /**
+     * @return a quantidade de cargas em execução.
+     */
+    public synchronized int size() {
+        return MAP.size();
+    }
+}
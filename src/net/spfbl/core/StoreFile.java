@@ -0,0 +1,326 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import org.apache.commons.lang3.SerializationUtils;
+
+/**
+ * Gravação atômica de um arquivo de cache.
+ *
+ * O conteúdo é gravado num arquivo temporário ao lado do arquivo final,
+ * sincronizado com o disco e só então renomeado sobre o arquivo final.
+ * A geração anterior é mantida com a extensão ".bak", de modo que uma
+ * falha durante a gravação nunca deixa o cache sem uma cópia completa
+ * e o carregamento pode recorrer à geração anterior se a atual
+ * estiver danificada.
+ *
+ * A gravação em segundo plano pode ter a taxa limitada através
+ * de {@link #setRate(long)} para não competir com as consultas
+ * pelo disco.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class StoreFile implements Closeable {
+
+    /**
+     * Taxa máxima de gravação em bytes por segundo, zero para sem limite.
+     */
+    private static volatile long RATE = 0;
+
+    /**
+     * Indica que o serviço está finalizando, o que remove o limite
+     * de taxa independente da ordem das chamadas de {@link #setRate(long)}.
+     */
+    private static volatile boolean CLOSED = false;
+
+    /**
+     * Define a taxa máxima de gravação dos arquivos de cache.
+     * @param rate a taxa em bytes por segundo ou zero para sem limite.
+     */
+    public static void setRate(long rate) {
+        RATE = Math.max(0, rate);
+    }
+
+    /**
+     * Remove definitivamente o limite de taxa para a finalização,
+     * inclusive das gravações em andamento.
+     */
+    public static void setClosed() {
+        CLOSED = true;
+    }
+
+    private static long getRate() {
+        if (CLOSED) {
+            return 0;
+        } else {
+            return RATE;
+        }
+    }
+
+    /**
+     * Intervalo máximo de espera antes de verificar novamente a taxa.
+     */
+    private static final long THROTTLE_STEP = 100;
+
+    /**
+     * Arquivos cujo último carregamento recorreu à geração anterior.
+     */
+    private static final HashSet<String> FALLBACK = new HashSet<String>();
+
+    private static synchronized void setFallback(File file, boolean fallback) {
+        if (fallback) {
+            FALLBACK.add(file.getPath());
+        } else {
+            FALLBACK.remove(file.getPath());
+        }
+    }
+
+    /**
+     * @param file o arquivo final.
+     * @return verdadeiro se o último carregamento do arquivo
+     * recorreu à geração anterior.
+     */
+    public static synchronized boolean isFallback(File file) {
+        return FALLBACK.contains(file.getPath());
+    }
+
+    private final File file;
+    private final File temporary;
+    private final FileChannel channel;
+    private final OutputStream outputStream;
+    private final long start = System.currentTimeMillis();
+    private long written = 0;
+    private boolean committed = false;
+
+    /**
+     * Inicia a gravação de um arquivo de cache.
+     * @param file o arquivo final.
+     * @throws IOException se o arquivo temporário não puder ser criado.
+     */
+    public StoreFile(File file) throws IOException {
+        this.file = file;
+        this.temporary = new File(file.getPath() + ".tmp");
+        this.channel = new FileOutputStream(temporary).getChannel();
+        this.outputStream = new BufferedOutputStream(new ChannelOutput(), 65536) {
+            @Override
+            public void close() throws IOException {
+                // A serialização fecha o fluxo ao terminar,
+                // mas o arquivo só é fechado na conclusão.
+                flush();
+            }
+        };
+    }
+
+    /**
+     * @param file o arquivo final.
+     * @return o arquivo da geração anterior.
+     */
+    public static File getPrevious(File file) {
+        return new File(file.getPath() + ".bak");
+    }
+
+    /**
+     * @param file o arquivo final.
+     * @return verdadeiro se existe a geração atual ou a anterior do arquivo.
+     */
+    public static boolean exists(File file) {
+        return file.exists() || getPrevious(file).exists();
+    }
+
+    /**
+     * Lista as gerações existentes de um arquivo,
+     * da mais recente para a mais antiga.
+     * @param file o arquivo final.
+     * @return as gerações existentes do arquivo.
+     */
+    public static ArrayList<File> getGenerations(File file) {
+        ArrayList<File> list = new ArrayList<File>(2);
+        if (file.exists()) {
+            list.add(file);
+        }
+        File previous = getPrevious(file);
+        if (previous.exists()) {
+            list.add(previous);
+        }
+        return list;
+    }
+
+    /**
+     * Lê um arquivo serializado, recorrendo à geração anterior
+     * se a geração atual estiver ausente ou danificada.
+     * @param file o arquivo final.
+     * @return o objeto lido.
+     * @throws IOException se nenhuma geração puder ser lida.
+     */
+    public static <T> T deserialize(File file) throws IOException {
+        Exception failure = null;
+        for (File generation : getGenerations(file)) {
+            try {
+                InputStream inputStream = new BufferedInputStream(
+                        new FileInputStream(generation), 65536
+                );
+                try {
+                    T object = SerializationUtils.deserialize(inputStream);
+                    setFallback(file, !generation.equals(file));
+                    if (failure != null) {
+                        Server.logError("cache file " + file.getName()
+                                + " was damaged and its previous generation was loaded.");
+                    }
+                    return object;
+                } finally {
+                    inputStream.close();
+                }
+            } catch (IOException ex) {
+                failure = ex;
+            } catch (RuntimeException ex) {
+                failure = ex;
+            }
+        }
+        if (failure == null) {
+            throw new IOException("cache file " + file.getName() + " not found.");
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else {
+            throw new IOException(failure);
+        }
+    }
+
+    /**
+     * @return o fluxo bufferizado de gravação do arquivo temporário.
+     */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Sincroniza o arquivo temporário com o disco
+     * e o renomeia atomicamente sobre o arquivo final.
+     * @throws IOException se houver falha na conclusão.
+     */
+    public void commit() throws IOException {
+        outputStream.flush();
+        channel.force(true);
+        channel.close();
+        Path path = file.toPath();
+        if (file.exists()) {
+            move(path, getPrevious(file).toPath());
+        }
+        move(temporary.toPath(), path);
+        committed = true;
+        syncDirectory();
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE
+            );
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source, target,
+                    StandardCopyOption.REPLACE_EXISTING
+            );
+        }
+    }
+
+    private void syncDirectory() {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            try {
+                FileChannel directoryChannel = FileChannel.open(
+                        directory.toPath(), StandardOpenOption.READ
+                );
+                try {
+                    directoryChannel.force(true);
+                } finally {
+                    directoryChannel.close();
+                }
+            } catch (IOException ex) {
+                // Sistema sem suporte à sincronização de diretório.
+            }
+        }
+    }
+
+    /**
+     * Descarta o arquivo temporário se a gravação não foi concluída.
+     */
+    @Override
+    public void close() {
+        if (!committed) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Server.logError(ex);
+            } finally {
+                temporary.delete();
+            }
+        }
+    }
+
+    /**
+     * Escrita direta no canal do arquivo temporário com limite de taxa.
+     */
+    private final class ChannelOutput extends OutputStream {
+
+        @Override
+        public void write(int data) throws IOException {
+            write(new byte[]{(byte) data}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            throttle(length);
+        }
+
+        private void throttle(int length) throws IOException {
+            written += length;
+            long rate;
+            long wait;
+            // Espera em partes para que a finalização interrompa o limite.
+            while ((rate = getRate()) > 0 && (wait = start + written * 1000 / rate - System.currentTimeMillis()) > 0) {
+                try {
+                    Thread.sleep(Math.min(wait, THROTTLE_STEP));
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("store interrupted");
+                }
+            }
+        }
+    }
+}
@@ -20,8 +20,7 @@ package net.spfbl.core;
 import com.sun.mail.smtp.SMTPAddressFailedException;
 import com.sun.mail.util.MailConnectException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
@@ -68,7 +67,6 @@ import net.spfbl.whois.Subnet;
 import net.spfbl.whois.SubnetIPv4;
 import net.spfbl.whois.SubnetIPv6;
 import org.apache.commons.lang3.LocaleUtils;
-import org.apache.commons.lang3.SerializationUtils;
 
 /**
  * Representa um usuário do sistema.
@@ -105,6 +103,71 @@ public class User implements Serializable, Comparable<User> {
         }
     }
     
+    /**
+     * Lê um usuário e as suas consultas de um arquivo binário de cache.
+     * @param reader o leitor posicionado no registro.
+     * @throws IOException se houver falha na leitura.
+     */
+    private User(BinaryFile.Reader reader) throws IOException {
+        this.email = reader.readString();
+        this.name = reader.readString();
+        String language = reader.readString();
+        if (language != null) {
+            try {
+                this.locale = LocaleUtils.toLocale(language);
+            } catch (IllegalArgumentException ex) {
+                this.locale = null;
+            }
+        }
+        this.local = reader.readBoolean();
+        this.usingHeader = reader.readBoolean();
+        this.otp_secret = reader.readString();
+        this.otp_transition = reader.readString();
+        this.otp_fail = (byte) reader.readInt();
+        if (reader.readBoolean()) {
+            this.otp_sucess = reader.readInt();
+        }
+        this.otp_last = reader.readLong();
+        int size = reader.readInt() - 1;
+        if (size >= 0) {
+            this.queryMap = new TreeMap<Long,Query>();
+            for (int index = 0; index < size; index++) {
+                long time = reader.readLong();
+                this.queryMap.put(time, new Query(reader));
+            }
+        }
+    }
+    
+    /**
+     * Grava o usuário e as suas consultas em um arquivo binário de cache.
+     * @param writer o escritor do arquivo.
+     * @throws IOException se houver falha na gravação.
+     */
+    private synchronized void write(BinaryFile.Writer writer) throws IOException {
+        writer.writeString(email);
+        writer.writeString(name);
+        writer.writeString(locale == null ? null : locale.toString());
+        writer.writeBoolean(local);
+        writer.writeBoolean(usingHeader);
+        writer.writeString(otp_secret);
+        writer.writeString(otp_transition);
+        writer.writeInt(otp_fail & 0xFF);
+        writer.writeBoolean(otp_sucess != null);
+        if (otp_sucess != null) {
+            writer.writeInt(otp_sucess);
+        }
+        writer.writeLong(otp_last);
+        if (queryMap == null) {
+            writer.writeInt(0);
+        } else {
+            writer.writeInt(queryMap.size() + 1);
+            for (long time : queryMap.keySet()) {
+                writer.writeLong(time);
+                queryMap.get(time).write(writer);
+            }
+        }
+    }
+    
     public void setName(String name) throws ProcessException {
         if (simplify(name) != null && !this.name.equals(simplify(name))) {
             this.name = simplify(name);
@@ -640,22 +703,34 @@ public class User implements Serializable, Comparable<User> {
         }
     }
     
+    /**
+     * Versão do esquema do cache binário.
+     */
+    private static final int VERSION = 1;
+    
     public synchronized static void store() {
         if (CHANGED) {
             try {
                 storeDB();
-//                Server.logTrace("storing user.map");
+//                Server.logTrace("storing user.bin");
                 long time = System.currentTimeMillis();
                 HashMap<String,User> map = getMap();
-                File file = new File("./data/user.map");
-                FileOutputStream outputStream = new FileOutputStream(file);
+                File file = new File("./data/user.bin");
+                BinaryFile.Writer writer = new BinaryFile.Writer(file, "user", VERSION);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    for (String key : map.keySet()) {
+                        writer.next();
+                        writer.writeString(key);
+                        map.get(key).write(writer);
+                    }
+                    writer.finish();
                     // Atualiza flag de atualização.
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    writer.close();
                 }
+                // Conclui a migração do formato antigo.
+                new File("./data/user.map").delete();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -665,37 +740,60 @@ public class User implements Serializable, Comparable<User> {
     
     public static synchronized void load() {
         long time = System.currentTimeMillis();
-        File file = new File("./data/user.map");
-        if (file.exists()) {
-            try {
-                HashMap<String,Object> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
+        File file = new File("./data/user.bin");
+        File legacy = new File("./data/user.map");
+        HashMap<String,Object> map = null;
+        if (StoreFile.exists(file)) {
+            // Recorre à geração anterior se a atual estiver danificada.
+            for (File generation : StoreFile.getGenerations(file)) {
                 try {
-                    map = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
-                for (String key : map.keySet()) {
-                    Object value = map.get(key);
-                    if (value instanceof User) {
-                        User user = (User) value;
-                        if (user.locale == null) {
-                            user.locale = Core.getDefaultLocale(user.email);
-                        }
-                        for (long time2 : user.getTimeSet()) {
-                            Query query = user.getQuery(time2);
-                            if (query.CHANGED == null) {
-                                query.CHANGED = new BinarySemaphore(!query.STORED);
-                            }
+                    HashMap<String,Object> userMap = new HashMap<String,Object>();
+                    BinaryFile.Reader reader = new BinaryFile.Reader(generation, "user", VERSION);
+                    try {
+                        while (reader.next()) {
+                            String key = reader.readString();
+                            userMap.put(key, new User(reader));
                         }
-                        MAP.put(key, user);
+                        reader.verify();
+                    } finally {
+                        reader.close();
                     }
+                    map = userMap;
+                    file = generation;
+                    break;
+                } catch (Exception ex) {
+                    Server.logError(ex);
                 }
-                Server.logLoad(time, file);
+            }
+        } else if (StoreFile.exists(legacy)) {
+            try {
+                map = StoreFile.deserialize(legacy);
+                file = legacy;
+                // Força a gravação no formato binário.
+                CHANGED = true;
             } catch (Exception ex) {
                 Server.logError(ex);
             }
         }
+        if (map != null) {
+            for (String key : map.keySet()) {
+                Object value = map.get(key);
+                if (value instanceof User) {
+                    User user = (User) value;
+                    if (user.locale == null) {
+                        user.locale = Core.getDefaultLocale(user.email);
+                    }
+                    for (long time2 : user.getTimeSet()) {
+                        Query query = user.getQuery(time2);
+                        if (query.CHANGED == null) {
+                            query.CHANGED = new BinarySemaphore(!query.STORED);
+                        }
+                    }
+                    MAP.put(key, user);
+                }
+            }
+            Server.logLoad(time, file);
+        }
     }
     
     @Override
@@ -1506,6 +1604,80 @@ public class User implements Serializable, Comparable<User> {
             this.CHANGED = new BinarySemaphore(false);
         }
         
+        /**
+         * Lê uma consulta de um arquivo binário de cache.
+         * O semáforo de alteração é reconstruído no carregamento
+         * a partir da marcação de gravação no banco de dados.
+         * @param reader o leitor posicionado na consulta.
+         * @throws IOException se houver falha na leitura.
+         */
+        private Query(BinaryFile.Reader reader) throws IOException {
+            this.client = reader.readString();
+            this.ip = reader.readString();
+            this.helo = reader.readString();
+            this.hostname = reader.readString();
+            this.sender = reader.readString();
+            this.qualifier = SPF.Qualifier.get(reader.readString());
+            this.recipient = reader.readString();
+            reader.readStrings(tokenSet);
+            this.result = reader.readString();
+            this.from = reader.readString();
+            this.replyto = reader.readString();
+            this.subject = reader.readString();
+            this.messageID = reader.readString();
+            this.unsubscribe = Core.getURL(reader.readString());
+            int size = reader.readInt() - 1;
+            if (size >= 0) {
+                this.linkMap = new TreeMap<String,Boolean>();
+                for (int index = 0; index < size; index++) {
+                    String link = reader.readString();
+                    this.linkMap.put(link, reader.readBoolean());
+                }
+            }
+            this.malware = reader.readString();
+            this.adminAdvised = reader.readBoolean();
+            this.senderAdvised = reader.readBoolean();
+            this.recipientAdvised = reader.readBoolean();
+            this.STORED = reader.readBoolean();
+        }
+        
+        /**
+         * Grava a consulta em um arquivo binário de cache.
+         * @param writer o escritor do arquivo.
+         * @throws IOException se houver falha na gravação.
+         */
+        private void write(BinaryFile.Writer writer) throws IOException {
+            writer.writeString(client);
+            writer.writeString(ip);
+            writer.writeString(helo);
+            writer.writeString(hostname);
+            writer.writeString(sender);
+            writer.writeString(SPF.Qualifier.name(qualifier));
+            writer.writeString(recipient);
+            writer.writeStrings(tokenSet);
+            writer.writeString(result);
+            writer.writeString(from);
+            writer.writeString(replyto);
+            writer.writeString(subject);
+            writer.writeString(messageID);
+            writer.writeString(getUnsubscribeString());
+            TreeMap<String,Boolean> map = linkMap;
+            if (map == null) {
+                writer.writeInt(0);
+            } else {
+                writer.writeInt(map.size() + 1);
+                for (String link : map.keySet()) {
+                    writer.writeString(link);
+                    writer.writeBoolean(map.get(link));
+                }
+            }
+            writer.writeString(malware);
+            writer.writeBoolean(adminAdvised);
+            writer.writeBoolean(senderAdvised);
+            writer.writeBoolean(recipientAdvised);
+            writer.writeBoolean(STORED);
+        }
+        
         private boolean loadTokenSet(String text) {
             TreeSet<String> set = Core.getTreeSet(text, ";");
             if (set == null) {
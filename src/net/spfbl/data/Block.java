@@ -18,28 +18,30 @@ package net.spfbl.data;
 
 import net.spfbl.core.Reverse;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import net.spfbl.core.Client;
 import net.spfbl.core.Core;
+import net.spfbl.core.DumpWriter;
+import net.spfbl.core.Journal;
 import net.spfbl.core.Peer;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Server;
+import net.spfbl.core.StoreFile;
 import net.spfbl.core.User;
 import net.spfbl.spf.SPF;
 import net.spfbl.whois.Domain;
@@ -61,12 +63,35 @@ public class Block {
      */
     private static boolean CHANGED = false;
     
+    /**
+     * Flag que indica se há blocos CIDR novos a simplificar.
+     */
+    private static boolean SIMPLIFY = false;
+    
+    /**
+     * Flag que indica se a data de uso de algum remetente foi atualizada.
+     * 
+     * As datas de uso não são registradas no diário e só são gravadas
+     * junto com a lista completa, sem forçar a gravação.
+     */
+    private static boolean TOUCHED = false;
+    
+    /**
+     * Diário das alterações desde a última gravação completa.
+     */
+    private static final Journal JOURNAL = new Journal("block");
+    
     /**
      * Conjunto de remetentes bloqueados.
      */
     private static class SET {
         
-        private static final HashMap<String,Long> MAP = new HashMap<String,Long>();
+        private static final ConcurrentHashMap<String,Long> MAP = new ConcurrentHashMap<String,Long>();
+        
+        /**
+         * Filtro que descarta as consultas ausentes sem tocar no mapa.
+         */
+        private static final BloomFilter FILTER = new BloomFilter(MAP.keySet());
         
         public static synchronized boolean isEmpty() {
             return MAP.isEmpty();
@@ -74,6 +99,7 @@ public class Block {
         
         public static synchronized void clear() {
             MAP.clear();
+            FILTER.rebuild();
         }
         
         public static TreeSet<String> get(User user) {
@@ -97,44 +123,67 @@ public class Block {
             return resultSet;
         }
         
-        public static int getAll(OutputStream outputStream) throws Exception {
+        public static int getAll(DumpWriter writer) throws IOException {
             int count = 0;
-            for (String token : getAll()) {
-                outputStream.write(token.getBytes("UTF-8"));
-                outputStream.write('\n');
-                count++;
+            for (String token : MAP.keySet()) {
+                if (writer.write(token)) {
+                    count++;
+                }
             }
             return count;
         }
         
-        public static synchronized TreeMap<String,Long> getMap() {
+        public static int get(DumpWriter writer) throws IOException {
+            int count = 0;
+            for (String token : MAP.keySet()) {
+                if (!token.contains(":") && writer.write(token)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        
+        public static TreeMap<String,Long> getMap() {
             TreeMap<String,Long> map = new TreeMap<String,Long>();
             map.putAll(MAP);
             return map;
         }
                 
-        public static synchronized TreeSet<String> getAll() {
+        public static TreeSet<String> getAll() {
             TreeSet<String> set = new TreeSet<String>();
             set.addAll(MAP.keySet());
             return set;
         }
         
-        private static synchronized void putExact(String token, Long last) {
-            MAP.put(token, last);
+        private static void putExact(String token, Long last) {
+            if (MAP.put(token, last) == null) {
+                FILTER.add(token);
+            }
         }
         
-        private static synchronized boolean addExact(String token) {
-            return MAP.put(token, System.currentTimeMillis()) == null;
+        private static boolean addExact(String token) {
+            if (MAP.put(token, System.currentTimeMillis()) == null) {
+                FILTER.add(token);
+                return true;
+            } else {
+                return false;
+            }
         }
         
-        private static synchronized boolean dropExact(String token) {
-            return MAP.remove(token) != null;
+        private static boolean dropExact(String token) {
+            if (MAP.remove(token) == null) {
+                return false;
+            } else {
+                FILTER.remove(token);
+                return true;
+            }
         }
         
-        public static synchronized boolean contains(String token) {
-            if (MAP.containsKey(token)) {
-                MAP.put(token, System.currentTimeMillis());
-                return CHANGED = true;
+        public static boolean contains(String token) {
+            if (!FILTER.mightContain(token)) {
+                return false;
+            } else if (MAP.replace(token, System.currentTimeMillis()) != null) {
+                return TOUCHED = true;
             } else {
                 return false;
             }
@@ -146,13 +195,13 @@ public class Block {
      */
     private static class WHOIS {
         
-        private static final HashMap<String,TreeSet<String>> MAP = new HashMap<String,TreeSet<String>>();
+        private static final TenantMap.Sorted<String> MAP = new TenantMap.Sorted<String>();
         
-        public static synchronized boolean isEmpty() {
+        public static boolean isEmpty() {
             return MAP.isEmpty();
         }
         
-        public static synchronized void clear() {
+        public static void clear() {
             MAP.clear();
         }
         
@@ -164,7 +213,7 @@ public class Block {
             }
         }
         
-        public static synchronized TreeSet<String> get(String user) {
+        public static TreeSet<String> get(String user) {
             TreeSet<String> resultSet = new TreeSet<String>();
             TreeSet<String> whoisSet = MAP.get(user);
             if (whoisSet != null) {
@@ -175,38 +224,52 @@ public class Block {
             return resultSet;
         }
         
-        public static synchronized int getAll(OutputStream outputStream) throws Exception {
+        public static int getAll(DumpWriter writer) throws IOException {
             int count = 0;
-            for (String client : MAP.keySet()) {
-                for (String whois : MAP.get(client)) {
-                    if (client != null) {
-                        outputStream.write(client.getBytes("UTF-8"));
-                        outputStream.write(':');
+            for (String client : MAP.getClientList()) {
+                TreeSet<String> whoisSet = MAP.get(client);
+                if (whoisSet != null) {
+                    for (String whois : whoisSet) {
+                        if (writer.write(client, "WHOIS/", whois)) {
+                            count++;
+                        }
                     }
-                    outputStream.write("WHOIS/".getBytes("UTF-8"));
-                    outputStream.write(whois.getBytes("UTF-8"));
-                    outputStream.write('\n');
-                    count++;
                 }
             }
             return count;
         }
         
-        public static synchronized TreeSet<String> getAll() {
+        public static int get(DumpWriter writer) throws IOException {
+            int count = 0;
+            TreeSet<String> whoisSet = MAP.get(null);
+            if (whoisSet != null) {
+                for (String whois : whoisSet) {
+                    if (writer.write(null, "WHOIS/", whois)) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+        
+        public static TreeSet<String> getAll() {
             TreeSet<String> set = new TreeSet<String>();
-            for (String client : MAP.keySet()) {
-                for (String whois : MAP.get(client)) {
-                    if (client == null) {
-                        set.add("WHOIS/" + whois);
-                    } else {
-                        set.add(client + ":WHOIS/" + whois);
+            for (String client : MAP.getClientList()) {
+                TreeSet<String> whoisSet = MAP.get(client);
+                if (whoisSet != null) {
+                    for (String whois : whoisSet) {
+                        if (client == null) {
+                            set.add("WHOIS/" + whois);
+                        } else {
+                            set.add(client + ":WHOIS/" + whois);
+                        }
                     }
                 }
             }
             return set;
         }
         
-        private static synchronized boolean dropExact(String token) {
+        private static boolean dropExact(String token) {
             int index = token.indexOf('/');
             String whois = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -216,30 +279,16 @@ public class Block {
             } else {
                 client = token.substring(0, index);
             }
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                return false;
-            } else {
-                boolean removed = set.remove(whois);
-                if (set.isEmpty()) {
-                    MAP.remove(client);
-                }
-                return removed;
-            }
+            return MAP.remove(client, whois);
         }
         
-        private static synchronized boolean addExact(String client, String token) {
+        private static boolean addExact(String client, String token) {
             int index = token.indexOf('/');
             String whois = token.substring(index+1);
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                set = new TreeSet<String>();
-                MAP.put(client, set);
-            }
-            return set.add(whois);
+            return MAP.add(client, whois);
         }
         
-        private static synchronized boolean addExact(String token) {
+        private static boolean addExact(String token) {
             int index = token.indexOf('/');
             String whois = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -249,28 +298,14 @@ public class Block {
             } else {
                 client = token.substring(0, index);
             }
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                set = new TreeSet<String>();
-                MAP.put(client, set);
-            }
-            return set.add(whois);
-        }
-        
-        private static synchronized TreeSet<String> getClientSet(String client) {
-            return MAP.get(client);
+            return MAP.add(client, whois);
         }
         
         public static boolean contains(String client, String host) {
             if (host == null) {
                 return false;
             } else {
-                TreeSet<String> whoisSet = getClientSet(client);
-                if (whoisSet == null) {
-                    return false;
-                } else {
-                    return whoisSet.contains(host);
-                }
+                return MAP.contains(client, host);
             }
         }
         
@@ -282,112 +317,112 @@ public class Block {
             if (tokenSet.isEmpty()) {
                 return null;
             } else {
-                TreeSet<String> subSet = new TreeSet<String>();
-                TreeSet<String> whoisSet = getClientSet(null);
+                String result = null;
+                TreeSet<String> whoisSet = MAP.get(null);
                 if (whoisSet != null) {
-                    subSet.addAll(whoisSet);
+                    for (String whois : whoisSet) {
+                        if ((result = get(null, whois, tokenSet, autoBlock)) != null) {
+                            return result;
+                        }
+                    }
                 }
-                if (client != null) {
-                    whoisSet = getClientSet(client);
-                    if (whoisSet != null) {
-                        for (String whois : whoisSet) {
-                            subSet.add(client + ':' + whois);
+                if (client != null && (whoisSet = MAP.get(client)) != null) {
+                    for (String whois : whoisSet) {
+                        if ((result = get(client, whois, tokenSet, autoBlock)) != null) {
+                            return result;
                         }
                     }
                 }
-                if (subSet.isEmpty()) {
-                    return null;
-                } else {
-                    for (String whois : subSet) {
-                        try {
-                            char signal = '=';
-                            int indexValue = whois.indexOf(signal);
-                            if (indexValue == -1) {
-                                signal = '<';
-                                indexValue = whois.indexOf(signal);
-                                if (indexValue == -1) {
-                                    signal = '>';
-                                    indexValue = whois.indexOf(signal);
-                                }
-                            }
-                            if (indexValue != -1) {
-                                String userLocal = null;
-                                int indexUser = whois.indexOf(':');
-                                if (indexUser > 0 && indexUser < indexValue) {
-                                    userLocal = whois.substring(0, indexUser);
+                return result;
+            }
+        }
+        
+        private static String get(
+                String userLocal,
+                String whois,
+                Set<String> tokenSet,
+                boolean autoBlock
+        ) {
+            try {
+                char signal = '=';
+                int indexValue = whois.indexOf(signal);
+                if (indexValue == -1) {
+                    signal = '<';
+                    indexValue = whois.indexOf(signal);
+                    if (indexValue == -1) {
+                        signal = '>';
+                        indexValue = whois.indexOf(signal);
+                    }
+                }
+                if (indexValue != -1) {
+                    String key = whois.substring(0, indexValue);
+                    String criterion = whois.substring(indexValue + 1);
+                    for (String token : tokenSet) {
+                        String value = null;
+                        if (Subnet.isValidIP(token)) {
+                            value = Subnet.getValue(token, key);
+                        } else if (token.startsWith(".") && Domain.isHostname(token)) {
+                            value = Domain.getValue(token, key);
+                        } else if (!token.startsWith(".") && Domain.isHostname(token.substring(1))) {
+                            value = Domain.getValue(token, key);
+                        }
+                        if (value != null) {
+                            if (signal == '=') {
+                                if (criterion.equals(value)) {
+                                    if (autoBlock && (token = addDomain(userLocal, token)) != null) {
+                                        if (userLocal == null) {
+                                            Server.logDebug("new BLOCK '" + token + "' added by 'WHOIS/" + whois + "'.");
+                                            Peer.sendBlockToAll(token);
+                                        } else {
+                                            Server.logDebug("new BLOCK '" + userLocal + ":" + token + "' added by '" + userLocal + ":WHOIS/" + whois + "'.");
+                                        }
+                                    }
+                                    if (userLocal == null) {
+                                        return "WHOIS/" + whois;
+                                    } else {
+                                        return userLocal + ":WHOIS/" + whois;
+                                    }
                                 }
-                                String key = whois.substring(indexUser + 1, indexValue);
-                                String criterion = whois.substring(indexValue + 1);
-                                whois = indexUser == -1 ? whois : whois.substring(indexUser+1, whois.length());
-                                for (String token : tokenSet) {
-                                    String value = null;
-                                    if (Subnet.isValidIP(token)) {
-                                        value = Subnet.getValue(token, key);
-                                    } else if (token.startsWith(".") && Domain.isHostname(token)) {
-                                        value = Domain.getValue(token, key);
-                                    } else if (!token.startsWith(".") && Domain.isHostname(token.substring(1))) {
-                                        value = Domain.getValue(token, key);
+                            } else if (value.length() > 0) {
+                                int criterionInt = parseIntWHOIS(criterion);
+                                int valueInt = parseIntWHOIS(value);
+                                if (signal == '<' && valueInt < criterionInt) {
+                                    if (autoBlock && (token = addDomain(userLocal, token)) != null) {
+                                        if (userLocal == null) {
+                                            Server.logDebug("new BLOCK '" + token + "' added by 'WHOIS/" + whois + "'.");
+                                            Peer.sendBlockToAll(token);
+                                        } else {
+                                            Server.logDebug("new BLOCK '" + userLocal + ":" + token + "' added by '" + userLocal + ":WHOIS/" + whois + "'.");
+                                        }
+                                    }
+                                    if (userLocal == null) {
+                                        return "WHOIS/" + whois;
+                                    } else {
+                                        return userLocal + ":WHOIS/" + whois;
                                     }
-                                    if (value != null) {
-                                        if (signal == '=') {
-                                            if (criterion.equals(value)) {
-                                                if (autoBlock && (token = addDomain(userLocal, token)) != null) {
-                                                    if (userLocal == null) {
-                                                        Server.logDebug("new BLOCK '" + token + "' added by 'WHOIS/" + whois + "'.");
-                                                        Peer.sendBlockToAll(token);
-                                                    } else {
-                                                        Server.logDebug("new BLOCK '" + userLocal + ":" + token + "' added by '" + userLocal + ":WHOIS/" + whois + "'.");
-                                                    }
-                                                }
-                                                if (userLocal == null) {
-                                                    return "WHOIS/" + whois;
-                                                } else {
-                                                    return userLocal + ":WHOIS/" + whois;
-                                                }
-                                            }
-                                        } else if (value.length() > 0) {
-                                            int criterionInt = parseIntWHOIS(criterion);
-                                            int valueInt = parseIntWHOIS(value);
-                                            if (signal == '<' && valueInt < criterionInt) {
-                                                if (autoBlock && (token = addDomain(userLocal, token)) != null) {
-                                                    if (userLocal == null) {
-                                                        Server.logDebug("new BLOCK '" + token + "' added by 'WHOIS/" + whois + "'.");
-                                                        Peer.sendBlockToAll(token);
-                                                    } else {
-                                                        Server.logDebug("new BLOCK '" + userLocal + ":" + token + "' added by '" + userLocal + ":WHOIS/" + whois + "'.");
-                                                    }
-                                                }
-                                                if (userLocal == null) {
-                                                    return "WHOIS/" + whois;
-                                                } else {
-                                                    return userLocal + ":WHOIS/" + whois;
-                                                }
-                                            } else if (signal == '>' && valueInt > criterionInt) {
-                                                if (autoBlock && (token = addDomain(userLocal, token)) != null) {
-                                                    if (userLocal == null) {
-                                                        Server.logDebug("new BLOCK '" + token + "' added by 'WHOIS/" + whois + "'.");
-                                                        Peer.sendBlockToAll(token);
-                                                    } else {
-                                                        Server.logDebug("new BLOCK '" + userLocal + ":" + token + "' added by '" + userLocal + ":WHOIS/" + whois + "'.");
-                                                    }
-                                                }
-                                                if (userLocal == null) {
-                                                    return "WHOIS/" + whois;
-                                                } else {
-                                                    return userLocal + ":WHOIS/" + whois;
-                                                }
-                                            }
+                                } else if (signal == '>' && valueInt > criterionInt) {
+                                    if (autoBlock && (token = addDomain(userLocal, token)) != null) {
+                                        if (userLocal == null) {
+                                            Server.logDebug("new BLOCK '" + token + "' added by 'WHOIS/" + whois + "'.");
+                                            Peer.sendBlockToAll(token);
+                                        } else {
+                                            Server.logDebug("new BLOCK '" + userLocal + ":" + token + "' added by '" + userLocal + ":WHOIS/" + whois + "'.");
                                         }
                                     }
+                                    if (userLocal == null) {
+                                        return "WHOIS/" + whois;
+                                    } else {
+                                        return userLocal + ":WHOIS/" + whois;
+                                    }
                                 }
                             }
-                        } catch (Exception ex) {
-                            Server.logError(ex);
                         }
                     }
-                    return null;
                 }
+            } catch (Exception ex) {
+                Server.logError(ex);
             }
+            return null;
         }
     }
     
@@ -396,13 +431,13 @@ public class Block {
      */
     private static class DNSBL {
         
-        private static final HashMap<String,TreeSet<String>> MAP = new HashMap<String,TreeSet<String>>();
+        private static final TenantMap.Sorted<String> MAP = new TenantMap.Sorted<String>();
         
-        public static synchronized boolean isEmpty() {
+        public static boolean isEmpty() {
             return MAP.isEmpty();
         }
         
-        public static synchronized void clear() {
+        public static void clear() {
             MAP.clear();
         }
         
@@ -414,7 +449,7 @@ public class Block {
             }
         }
         
-        public static synchronized TreeSet<String> get(String user) {
+        public static TreeSet<String> get(String user) {
             TreeSet<String> resultSet = new TreeSet<String>();
             TreeSet<String> dnsblSet = MAP.get(user);
             if (dnsblSet != null) {
@@ -425,38 +460,52 @@ public class Block {
             return resultSet;
         }
         
-        public static synchronized int getAll(OutputStream outputStream) throws Exception {
+        public static int getAll(DumpWriter writer) throws IOException {
             int count = 0;
-            for (String client : MAP.keySet()) {
-                for (String dnsbl : MAP.get(client)) {
-                    if (client != null) {
-                        outputStream.write(client.getBytes("UTF-8"));
-                        outputStream.write(':');
+            for (String client : MAP.getClientList()) {
+                TreeSet<String> dnsblSet = MAP.get(client);
+                if (dnsblSet != null) {
+                    for (String dnsbl : dnsblSet) {
+                        if (writer.write(client, "DNSBL=", dnsbl)) {
+                            count++;
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+        
+        public static int get(DumpWriter writer) throws IOException {
+            int count = 0;
+            TreeSet<String> dnsblSet = MAP.get(null);
+            if (dnsblSet != null) {
+                for (String dnsbl : dnsblSet) {
+                    if (writer.write(null, "DNSBL=", dnsbl)) {
+                        count++;
                     }
-                    outputStream.write("DNSBL=".getBytes("UTF-8"));
-                    outputStream.write(dnsbl.getBytes("UTF-8"));
-                    outputStream.write('\n');
-                    count++;
                 }
             }
             return count;
         }
         
-        public static synchronized TreeSet<String> getAll() {
+        public static TreeSet<String> getAll() {
             TreeSet<String> set = new TreeSet<String>();
-            for (String client : MAP.keySet()) {
-                for (String dnsbl : MAP.get(client)) {
-                    if (client == null) {
-                        set.add("DNSBL=" + dnsbl);
-                    } else {
-                        set.add(client + ":DNSBL=" + dnsbl);
+            for (String client : MAP.getClientList()) {
+                TreeSet<String> dnsblSet = MAP.get(client);
+                if (dnsblSet != null) {
+                    for (String dnsbl : dnsblSet) {
+                        if (client == null) {
+                            set.add("DNSBL=" + dnsbl);
+                        } else {
+                            set.add(client + ":DNSBL=" + dnsbl);
+                        }
                     }
                 }
             }
             return set;
         }
         
-        private static synchronized boolean dropExact(String token) {
+        private static boolean dropExact(String token) {
             int index = token.indexOf('=');
             String dnsbl = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -466,30 +515,16 @@ public class Block {
             } else {
                 client = token.substring(0, index);
             }
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                return false;
-            } else {
-                boolean removed = set.remove(dnsbl);
-                if (set.isEmpty()) {
-                    MAP.remove(client);
-                }
-                return removed;
-            }
+            return MAP.remove(client, dnsbl);
         }
         
-        private static synchronized boolean addExact(String client, String token) {
+        private static boolean addExact(String client, String token) {
             int index = token.indexOf('=');
             String dnsbl = token.substring(index+1);
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                set = new TreeSet<String>();
-                MAP.put(client, set);
-            }
-            return set.add(dnsbl);
+            return MAP.add(client, dnsbl);
         }
         
-        private static synchronized boolean addExact(String token) {
+        private static boolean addExact(String token) {
             int index = token.indexOf('=');
             String dnsbl = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -499,84 +534,96 @@ public class Block {
             } else {
                 client = token.substring(0, index);
             }
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                set = new TreeSet<String>();
-                MAP.put(client, set);
-            }
-            return set.add(dnsbl);
+            return MAP.add(client, dnsbl);
         }
         
-        public static synchronized boolean contains(String client, String dnsbl) {
+        public static boolean contains(String client, String dnsbl) {
             if (dnsbl == null) {
                 return false;
             } else {
-                TreeSet<String> dnsblSet = MAP.get(client);
-                if (dnsblSet == null) {
-                    return false;
-                } else {
-                    return dnsblSet.contains(dnsbl);
+                return MAP.contains(client, dnsbl);
+            }
+        }
+        
+        /**
+         * Servidores e retornos consultados por um cliente,
+         * somando os cadastros globais aos do próprio cliente.
+         * 
+         * O resultado guarda os conjuntos publicados usados no cálculo
+         * e só é reaproveitado enquanto eles não forem substituídos.
+         */
+        private static final class Compiled {
+            
+            private final TreeSet<String> globalSet;
+            private final TreeSet<String> clientSet;
+            private final TreeMap<String,Set<String>> serverMap;
+            
+            private Compiled(TreeSet<String> globalSet, TreeSet<String> clientSet) {
+                this.globalSet = globalSet;
+                this.clientSet = clientSet;
+                this.serverMap = new TreeMap<String,Set<String>>();
+                putServer(serverMap, globalSet);
+                putServer(serverMap, clientSet);
+            }
+        }
+        
+        private static final ConcurrentHashMap<String,Compiled> COMPILED =
+                new ConcurrentHashMap<String,Compiled>();
+        
+        private static void putServer(TreeMap<String,Set<String>> dnsblMap, TreeSet<String> registrySet) {
+            if (registrySet != null) {
+                for (String dnsbl : registrySet) {
+                    int index = dnsbl.indexOf(';');
+                    String server = dnsbl.substring(0, index);
+                    String value = dnsbl.substring(index + 1);
+                    Set<String> dnsblSet = dnsblMap.get(server);
+                    if (dnsblSet == null) {
+                        dnsblSet = new TreeSet<String>();
+                        dnsblMap.put(server, dnsblSet);
+                    }
+                    dnsblSet.add(value);
                 }
             }
         }
         
-        private static synchronized TreeSet<String> getClientSet(String client) {
-            return MAP.get(client);
+        private static TreeMap<String,Set<String>> getServerMap(String client) {
+            TreeSet<String> globalSet = MAP.get(null);
+            TreeSet<String> clientSet = client == null ? null : MAP.get(client);
+            String key = client == null ? "" : client;
+            Compiled compiled = COMPILED.get(key);
+            if (compiled == null || compiled.globalSet != globalSet || compiled.clientSet != clientSet) {
+                compiled = new Compiled(globalSet, clientSet);
+                COMPILED.put(key, compiled);
+            }
+            return compiled.serverMap;
         }
         
         private static String get(String client, String ip) {
             if (ip == null) {
                 return null;
             } else {
-                TreeMap<String,TreeSet<String>> dnsblMap =
-                        new TreeMap<String,TreeSet<String>>();
-                TreeSet<String> registrySet = getClientSet(null);
-                if (registrySet != null) {
-                    for (String dnsbl : registrySet) {
-                        int index = dnsbl.indexOf(';');
-                        String server = dnsbl.substring(0, index);
-                        String value = dnsbl.substring(index + 1);
-                        TreeSet<String> dnsblSet = dnsblMap.get(server);
-                        if (dnsblSet == null) {
-                            dnsblSet = new TreeSet<String>();
-                            dnsblMap.put(server, dnsblSet);
-                        }
-                        dnsblSet.add(value);
-                    }
-                }
-                if (client != null) {
-                    registrySet = getClientSet(client);
-                    if (registrySet != null) {
-                        for (String dnsbl : registrySet) {
-                            int index = dnsbl.indexOf(';');
-                            String server = dnsbl.substring(0, index);
-                            String value = dnsbl.substring(index + 1);
-                            TreeSet<String> dnsblSet = dnsblMap.get(server);
-                            if (dnsblSet == null) {
-                                dnsblSet = new TreeSet<String>();
-                                dnsblMap.put(server, dnsblSet);
-                            }
-                            dnsblSet.add(value);
-                        }
-                    }
+                TreeMap<String,Set<String>> dnsblMap = getServerMap(client);
+                if (dnsblMap.isEmpty()) {
+                    return null;
                 }
-                for (String server : dnsblMap.keySet()) {
-                    TreeSet<String> valueSet = dnsblMap.get(server);
-                    String listed = Reverse.getListedIP(ip, server, valueSet);
-                    if (listed != null) {
-                        Server.logDebug("IP " + ip + " is listed in '" + server + ";" + listed + "'.");
-                        if (client == null) {
-                            return "DNSBL=" + server + ";" + listed;
-                        } else if ((registrySet = getClientSet(null)) == null) {
-                            return client + ":DNSBL=" + server + ";" + listed;
-                        } else if (registrySet.contains(server + ";" + listed)) {
-                            return "DNSBL=" + server + ";" + listed;
-                        } else {
-                            return client + ":DNSBL=" + server + ";" + listed;
-                        }
+                String[] result = DNSBLLookup.find(ip, dnsblMap);
+                if (result == null) {
+                    return null;
+                } else {
+                    String server = result[0];
+                    String listed = result[1];
+                    TreeSet<String> registrySet;
+                    Server.logDebug("IP " + ip + " is listed in '" + server + ";" + listed + "'.");
+                    if (client == null) {
+                        return "DNSBL=" + server + ";" + listed;
+                    } else if ((registrySet = MAP.get(null)) == null) {
+                        return client + ":DNSBL=" + server + ";" + listed;
+                    } else if (registrySet.contains(server + ";" + listed)) {
+                        return "DNSBL=" + server + ";" + listed;
+                    } else {
+                        return client + ":DNSBL=" + server + ";" + listed;
                     }
                 }
-                return null;
             }
         }
     }
@@ -586,20 +633,19 @@ public class Block {
      */
     private static class REGEX {
         
-        private static final HashMap<String,ArrayList<Pattern>> MAP = new HashMap<String,ArrayList<Pattern>>();
+        /**
+         * Listas publicadas de cada cliente, copiadas a cada alteração.
+         */
+        private static final TenantMap<ArrayList<Pattern>> MAP = new TenantMap<ArrayList<Pattern>>();
         
-        public static synchronized boolean isEmpty() {
+        public static boolean isEmpty() {
             return MAP.isEmpty();
         }
         
-        public static synchronized void clear() {
+        public static void clear() {
             MAP.clear();
         }
         
-        public static synchronized void drop(String client) {
-            MAP.remove(client);
-        }
-        
         public static TreeSet<String> get(User user) {
             if (user == null) {
                 return get((String) null);
@@ -608,7 +654,7 @@ public class Block {
             }
         }
         
-        private static synchronized ArrayList<Pattern> getClientList(String client) {
+        private static ArrayList<Pattern> getClientList(String client) {
             return MAP.get(client);
         }
         
@@ -623,25 +669,24 @@ public class Block {
             return resultSet;
         }
         
-        private static synchronized ArrayList<String> getKeySet() {
-            ArrayList<String> keySet = new ArrayList<String>();
-            keySet.addAll(MAP.keySet());
-            return keySet;
+        private static ArrayList<String> getKeySet() {
+            return MAP.getClientList();
         }
         
-        public static int getAll(OutputStream outputStream) throws Exception {
+        public static int getAll(DumpWriter writer) throws IOException {
             int count = 0;
             for (String client : getKeySet()) {
-                ArrayList<Pattern> patternList = getClientList(client);
-                if (patternList != null) {
-                    for (Pattern pattern : patternList) {
-                        if (client != null) {
-                            outputStream.write(client.getBytes("UTF-8"));
-                            outputStream.write(':');
-                        }
-                        outputStream.write("REGEX=".getBytes("UTF-8"));
-                        outputStream.write(pattern.toString().getBytes("UTF-8"));
-                        outputStream.write('\n');
+                count += get(client, writer);
+            }
+            return count;
+        }
+        
+        public static int get(String client, DumpWriter writer) throws IOException {
+            int count = 0;
+            ArrayList<Pattern> patternList = MAP.get(client);
+            if (patternList != null) {
+                for (Pattern pattern : patternList) {
+                    if (writer.write(client, "REGEX=", pattern.pattern())) {
                         count++;
                     }
                 }
@@ -681,38 +726,46 @@ public class Block {
                 } else {
                     client = null;
                 }
-                ArrayList<Pattern> list = getClientList(client);
-                if (list == null) {
-                    return false;
-                } else {
-                    for (index = 0; index < list.size(); index++) {
-                        Pattern pattern = list.get(index);
-                        if (regex.equals(pattern.pattern())) {
-                            list.remove(index);
-                            if (list.isEmpty()) {
-                                drop(client);
+                TenantMap.Shard<ArrayList<Pattern>> shard = MAP.getShard(client);
+                synchronized (shard) {
+                    ArrayList<Pattern> list = shard.get();
+                    if (list == null) {
+                        return false;
+                    } else {
+                        for (index = 0; index < list.size(); index++) {
+                            Pattern pattern = list.get(index);
+                            if (regex.equals(pattern.pattern())) {
+                                list = new ArrayList<Pattern>(list);
+                                list.remove(index);
+                                shard.set(list.isEmpty() ? null : list);
+                                return true;
                             }
-                            return true;
                         }
+                        return false;
                     }
-                    return false;
                 }
             }
         }
         
-        private static synchronized boolean addExact(String client, String token) {
+        private static boolean addExact(String client, String token) {
             int index = token.indexOf('=');
             String regex = token.substring(index+1);
-            ArrayList<Pattern> list = MAP.get(client);
-            if (list == null) {
-                list = new ArrayList<Pattern>();
-                MAP.put(client, list);
-            }
             Pattern pattern = Pattern.compile(regex);
-            return list.add(pattern);
+            TenantMap.Shard<ArrayList<Pattern>> shard = MAP.getShard(client);
+            synchronized (shard) {
+                ArrayList<Pattern> list = shard.get();
+                if (list == null) {
+                    list = new ArrayList<Pattern>();
+                } else {
+                    list = new ArrayList<Pattern>(list);
+                }
+                list.add(pattern);
+                shard.set(list);
+                return true;
+            }
         }
         
-        private static synchronized boolean addExact(String token) {
+        private static boolean addExact(String token) {
             int index = token.indexOf('=');
             String regex = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -722,20 +775,25 @@ public class Block {
             } else {
                 client = token.substring(0, index);
             }
-            ArrayList<Pattern> list = MAP.get(client);
-            if (list == null) {
-                list = new ArrayList<Pattern>();
-                MAP.put(client, list);
-            }
-            for (index = 0; index < list.size(); index++) {
-                Pattern pattern = list.get(index);
-                if (regex.equals(pattern.pattern())) {
-                    return false;
+            TenantMap.Shard<ArrayList<Pattern>> shard = MAP.getShard(client);
+            synchronized (shard) {
+                ArrayList<Pattern> list = shard.get();
+                if (list == null) {
+                    list = new ArrayList<Pattern>();
+                } else {
+                    for (index = 0; index < list.size(); index++) {
+                        Pattern pattern = list.get(index);
+                        if (regex.equals(pattern.pattern())) {
+                            return false;
+                        }
+                    }
+                    list = new ArrayList<Pattern>(list);
                 }
+                Pattern pattern = Pattern.compile(regex);
+                list.add(pattern);
+                shard.set(list);
+                return true;
             }
-            Pattern pattern = Pattern.compile(regex);
-            list.add(pattern);
-            return true;
         }
         
         public static boolean contains(String client, String regex) {
@@ -786,8 +844,7 @@ public class Block {
                 String result = null;
                 ArrayList<Pattern> patternList = getClientList(null);
                 if (patternList != null) {
-                    for (Object object : patternList.toArray()) {
-                        Pattern pattern = (Pattern) object;
+                    for (Pattern pattern : patternList) {
                         for (String token : tokenList) {
                             if (token.contains("@") == pattern.pattern().contains("@")) {
                                 Matcher matcher = pattern.matcher(token);
@@ -809,8 +866,7 @@ public class Block {
                 if (result == null && client != null) {
                     patternList = getClientList(client);
                     if (patternList != null) {
-                        for (Object object : patternList.toArray()) {
-                            Pattern pattern = (Pattern) object;
+                        for (Pattern pattern : patternList) {
                             for (String token : tokenList) {
                                 if (token.contains("@") == pattern.pattern().contains("@")) {
                                     Matcher matcher = pattern.matcher(token);
@@ -838,28 +894,30 @@ public class Block {
      */
     private static class CIDR {
         
-        private static final HashMap<String,TreeSet<String>> MAP = new HashMap<String,TreeSet<String>>();
+        /**
+         * Conjuntos concorrentes de cada cliente, alterados somente
+         * com a partição do cliente sincronizada.
+         */
+        private static final TenantMap<NavigableSet<String>> MAP = new TenantMap<NavigableSet<String>>();
         
-        public static synchronized boolean isEmpty() {
+        public static boolean isEmpty() {
             return MAP.isEmpty();
         }
         
-        public static synchronized void clear() {
+        public static void clear() {
             MAP.clear();
         }
         
-        public static synchronized ArrayList<String> getKeySet() {
-            ArrayList<String> resultSet = new ArrayList<String>();
-            resultSet.addAll(MAP.keySet());
-            return resultSet;
+        public static ArrayList<String> getKeySet() {
+            return MAP.getClientList();
         }
         
-        public static synchronized TreeSet<String> getClientSet(String client) {
+        public static NavigableSet<String> getClientSet(String client) {
             return MAP.get(client);
         }
         
-        public static synchronized TreeSet<String> cloneClientSet(String client) {
-            TreeSet<String> clientSet = MAP.get(client);
+        public static TreeSet<String> cloneClientSet(String client) {
+            NavigableSet<String> clientSet = MAP.get(client);
             if (clientSet == null) {
                 return null;
             } else {
@@ -869,8 +927,8 @@ public class Block {
             }
         }
         
-        public static synchronized Object[] getClientArray(String client) {
-            TreeSet<String> clientSet = MAP.get(client);
+        public static Object[] getClientArray(String client) {
+            NavigableSet<String> clientSet = MAP.get(client);
             if (clientSet == null) {
                 return null;
             } else {
@@ -878,9 +936,9 @@ public class Block {
             }
         }
         
-        public static synchronized TreeSet<String> getExtended() {
+        public static TreeSet<String> getExtended() {
             TreeSet<String> returnSet = new TreeSet<String>();
-            TreeSet<String> cidrSet = MAP.get(null);
+            NavigableSet<String> cidrSet = MAP.get(null);
             if (cidrSet != null) {
                 returnSet.addAll(cidrSet);
             }
@@ -911,25 +969,25 @@ public class Block {
             return resultSet;
         }
         
-        public static int getAll(OutputStream outputStream) throws Exception {
+        public static int getAll(DumpWriter writer) throws IOException {
             int count = 0;
             for (String client : getKeySet()) {
-                Object[] clientSet = getClientArray(client);
-                if (clientSet != null) {
-                    for (Object cidrObj : clientSet) {
-                        String cidr = (String) cidrObj;
-                        if (cidr.contains(":")) {
-                            cidr = SubnetIPv6.normalizeCIDRv6(cidr);
-                        } else {
-                            cidr = SubnetIPv4.normalizeCIDRv4(cidr);
-                        }
-                        if (client != null) {
-                            outputStream.write(client.getBytes("UTF-8"));
-                            outputStream.write(':');
-                        }
-                        outputStream.write("CIDR=".getBytes("UTF-8"));
-                        outputStream.write(cidr.getBytes("UTF-8"));
-                        outputStream.write('\n');
+                count += get(client, writer);
+            }
+            return count;
+        }
+        
+        public static int get(String client, DumpWriter writer) throws IOException {
+            int count = 0;
+            NavigableSet<String> cidrSet = getClientSet(client);
+            if (cidrSet != null) {
+                for (String cidr : cidrSet) {
+                    if (cidr.contains(":")) {
+                        cidr = SubnetIPv6.normalizeCIDRv6(cidr);
+                    } else {
+                        cidr = SubnetIPv4.normalizeCIDRv4(cidr);
+                    }
+                    if (writer.write(client, "CIDR=", cidr)) {
                         count++;
                     }
                 }
@@ -989,7 +1047,7 @@ public class Block {
             }
         }
         
-        private static synchronized boolean dropExact(String token) {
+        private static boolean dropExact(String token) {
             if (token == null) {
                 return false;
             } else {
@@ -1002,85 +1060,70 @@ public class Block {
                 } else {
                     client = token.substring(0, index);
                 }
-                TreeSet<String> set = MAP.get(client);
-                if (set == null) {
-                    return false;
-                } else {
-                    String key = Subnet.expandCIDR(cidr);
-                    boolean removed = set.remove(key);
-                    if (set.isEmpty()) {
-                        MAP.remove(client);
+                TenantMap.Shard<NavigableSet<String>> shard = MAP.getShard(client);
+                synchronized (shard) {
+                    NavigableSet<String> set = shard.get();
+                    if (set == null) {
+                        return false;
+                    } else {
+                        String key = Subnet.expandCIDR(cidr);
+                        boolean removed = set.remove(key);
+                        if (set.isEmpty()) {
+                            shard.set(null);
+                        }
+                        return removed;
                     }
-                    return removed;
                 }
             }
         }
         
-        public static void simplify() {
+        /**
+         * Agrega os blocos de cada cliente e troca o conjunto inteiro
+         * de uma só vez, sincronizando somente a partição do cliente.
+         * As consultas continuam no conjunto anterior durante a agregação.
+         * @return a quantidade de blocos eliminados.
+         */
+        public static int simplify() {
+            int collapsed = 0;
             try {
-                TreeSet<String> cidrSet = getClientSet(null);
-                if (cidrSet != null && !cidrSet.isEmpty()) {
-                    String cidrExtended = cidrSet.first();
-                    do {
-                        if (SubnetIPv4.isValidCIDRv4(cidrExtended)) {
-                            String cidrSmaller = SubnetIPv4.normalizeCIDRv4(cidrExtended);
-                            short mask = Subnet.getMask(cidrSmaller);
-                            if (mask > 8) {
-                                String ipFirst = SubnetIPv4.getFirstIPv4(cidrSmaller);
-                                String cidrBigger = SubnetIPv4.normalizeCIDRv4(ipFirst + "/" + (mask - 1));
-                                ipFirst = SubnetIPv4.getFirstIPv4(cidrBigger);
-                                String ipLast = SubnetIPv4.getLastIPv4(cidrBigger);
-                                String cidr1 = SubnetIPv4.normalizeCIDRv4(ipFirst + "/" + mask);
-                                if (CIDR.contains((String) null, cidr1)) {
-                                    String cidr2 = SubnetIPv4.normalizeCIDRv4(ipLast + "/" + mask);
-                                    if (CIDR.contains((String) null, cidr2)) {
-                                        CIDR.dropExact(SubnetIPv4.expandCIDRv4(cidr1));
-                                        CIDR.dropExact(SubnetIPv4.expandCIDRv4(cidr2));
-                                        CIDR.addExact(null, cidrBigger);
-                                    }
-                                }
-                            }
-                        } else if (SubnetIPv6.isValidCIDRv6(cidrExtended)) {
-                            String cidrSmaller = SubnetIPv6.normalizeCIDRv6(cidrExtended);
-                            short mask = Subnet.getMask(cidrSmaller);
-                            if (mask > 16) {
-                                String ipFirst = SubnetIPv6.getFirstIPv6(cidrSmaller);
-                                String cidrBigger = SubnetIPv6.normalizeCIDRv6(ipFirst + "/" + (mask - 1));
-                                ipFirst = SubnetIPv6.getFirstIPv6(cidrBigger);
-                                String ipLast = SubnetIPv6.getLastIPv6(cidrBigger);
-                                String cidr1 = SubnetIPv6.normalizeCIDRv6(ipFirst + "/" + mask);
-                                if (CIDR.contains((String) null, cidr1)) {
-                                    String cidr2 = SubnetIPv6.normalizeCIDRv6(ipLast + "/" + mask);
-                                    if (CIDR.contains((String) null, cidr2)) {
-                                        CIDR.dropExact(SubnetIPv6.expandCIDRv6(cidr1));
-                                        CIDR.dropExact(SubnetIPv6.expandCIDRv6(cidr2));
-                                        CIDR.addExact(null, cidrBigger);
-                                    }
-                                }
+                for (String client : getKeySet()) {
+                    TenantMap.Shard<NavigableSet<String>> shard = MAP.getShard(client);
+                    synchronized (shard) {
+                        NavigableSet<String> cidrSet = shard.get();
+                        if (cidrSet != null) {
+                            NavigableSet<String> set = new ConcurrentSkipListSet<String>();
+                            int count = CIDRAggregator.aggregate(cidrSet.toArray(), set);
+                            if (count > 0) {
+                                shard.set(set.isEmpty() ? null : set);
+                                collapsed += count;
                             }
                         }
-                    } while ((cidrExtended = cidrSet.higher(cidrExtended)) != null);
+                    }
                 }
             } catch (Exception ex) {
                 Server.logError(ex);
             }
+            return collapsed;
         }
         
-        private static synchronized boolean addExact(
+        private static boolean addExact(
                 String client, String token
         ) {
             int index = token.indexOf('=');
             String cidr = token.substring(index+1);
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                set = new TreeSet<String>();
-                MAP.put(client, set);
-            }
             String key = Subnet.expandCIDR(cidr);
-            return set.add(key);
+            TenantMap.Shard<NavigableSet<String>> shard = MAP.getShard(client);
+            synchronized (shard) {
+                NavigableSet<String> set = shard.get();
+                if (set == null) {
+                    set = new ConcurrentSkipListSet<String>();
+                    shard.set(set);
+                }
+                return set.add(key);
+            }
         }
                 
-        private static synchronized boolean addExact(
+        private static boolean addExact(
                 String token, boolean overlap
         ) throws ProcessException {
             int index = token.indexOf('=');
@@ -1092,14 +1135,38 @@ public class Block {
             } else {
                 client = token.substring(0, index);
             }
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                set = new TreeSet<String>();
-                MAP.put(client, set);
+            TenantMap.Shard<NavigableSet<String>> shard = MAP.getShard(client);
+            synchronized (shard) {
+                NavigableSet<String> set = shard.get();
+                if (set == null) {
+                    set = new ConcurrentSkipListSet<String>();
+                }
+                if ((set = addExact(set, cidr, overlap)) == null) {
+                    return false;
+                } else {
+                    shard.set(set);
+                    return true;
+                }
             }
+        }
+        
+        /**
+         * Inclui o bloco no conjunto sem expor às consultas sem trava
+         * um estado com blocos sobrepostos ou ausentes.
+         *
+         * A inclusão de um bloco disjunto é feita no próprio conjunto.
+         * Quando há blocos contidos a remover ou blocos a juntar, as
+         * alterações são feitas numa cópia, que deve ser publicada
+         * pelo chamador, pois a consulta por piso só encontra o bloco
+         * certo num conjunto sem sobreposições.
+         * @return o conjunto a publicar ou nulo se o bloco já existia.
+         */
+        private static NavigableSet<String> addExact(
+                NavigableSet<String> set, String cidr, boolean overlap
+        ) throws ProcessException {
             String key = Subnet.expandCIDR(cidr);
             if (set.contains(key)) {
-                return false;
+                return null;
             } else {
                 String firstCIDR = Subnet.getFirstIP(cidr);
                 String lastCIDR = Subnet.getLastIP(cidr);
@@ -1136,7 +1203,12 @@ public class Block {
                 }
                 String error = errorBuilder.toString();
                 if (error.length() == 0) {
-                    set.removeAll(overlapSet);
+                    boolean copied = false;
+                    if (!overlapSet.isEmpty()) {
+                        set = new ConcurrentSkipListSet<String>(set);
+                        set.removeAll(overlapSet);
+                        copied = true;
+                    }
                     if (set.add(key)) {
                         try { // Join algorithm.
                             short mask;
@@ -1152,6 +1224,10 @@ public class Block {
                                     String cidrExpanded2 = Subnet.expandCIDR(cidr2);
                                     if (set.contains(cidrExpanded2)) {
                                         String cidrBiggerExpanded = Subnet.expandCIDR(cidr);
+                                        if (!copied) {
+                                            set = new ConcurrentSkipListSet<String>(set);
+                                            copied = true;
+                                        }
                                         set.remove(cidrExpanded1);
                                         set.remove(cidrExpanded2);
                                         set.add(cidrBiggerExpanded);
@@ -1165,9 +1241,9 @@ public class Block {
                         } catch (Exception ex) {
                             Server.logError(ex);
                         }
-                        return true;
+                        return set;
                     } else {
-                        return false;
+                        return null;
                     }
                 } else {
                     throw new ProcessException(error);
@@ -1188,7 +1264,7 @@ public class Block {
                 return false;
             } else {
                 String key = Subnet.expandCIDR(cidr);
-                TreeSet<String> cidrSet = getClientSet(client);
+                NavigableSet<String> cidrSet = getClientSet(client);
                 if (cidrSet == null) {
                     return false;
                 } else {
@@ -1198,7 +1274,7 @@ public class Block {
         }
         
         private static String getFloor(String client, String ip) {
-            TreeSet<String> cidrSet = getClientSet(client);
+            NavigableSet<String> cidrSet = getClientSet(client);
             if (cidrSet == null || cidrSet.isEmpty()) {
                 return null;
             } else if (SubnetIPv4.isValidIPv4(ip)) {
@@ -1252,93 +1328,114 @@ public class Block {
         for (String token : map.keySet()) {
             Long time = map.get(token);
             if (time == null || time < max) {
-                if (SET.dropExact(token)) {
-                    Server.logDebug("expired BLOCK '" + token + "'.");
+                synchronized (JOURNAL) {
+                    if (SET.dropExact(token)) {
+                        JOURNAL.drop(token);
+                        Server.logDebug("expired BLOCK '" + token + "'.");
+                    }
                 }
             }
         }
     }
 
     public static boolean dropExact(String token) {
-        if (token == null) {
-            return false;
-        } else if (token.contains("DNSBL=")) {
-            if (DNSBL.dropExact(token)) {
-                return CHANGED = true;
-            } else {
-                return false;
-            }
-        } else if (token.contains("CIDR=")) {
-            if (CIDR.dropExact(token)) {
-                return CHANGED = true;
-            } else {
-                return false;
-            }
-        } else if (token.contains("REGEX=")) {
-            if (REGEX.dropExact(token)) {
-                return CHANGED = true;
-            } else {
+        synchronized (JOURNAL) {
+            if (token == null) {
                 return false;
-            }
-        } else if (token.contains("WHOIS/")) {
-            if (WHOIS.dropExact(token)) {
+            } else if (token.contains("DNSBL=")) {
+                if (DNSBL.dropExact(token)) {
+                    JOURNAL.drop(token);
+                    return CHANGED = true;
+                } else {
+                    return false;
+                }
+            } else if (token.contains("CIDR=")) {
+                if (CIDR.dropExact(token)) {
+                    JOURNAL.drop(token);
+                    return CHANGED = true;
+                } else {
+                    return false;
+                }
+            } else if (token.contains("REGEX=")) {
+                if (REGEX.dropExact(token)) {
+                    JOURNAL.drop(token);
+                    return CHANGED = true;
+                } else {
+                    return false;
+                }
+            } else if (token.contains("WHOIS/")) {
+                if (WHOIS.dropExact(token)) {
+                    JOURNAL.drop(token);
+                    return CHANGED = true;
+                } else {
+                    return false;
+                }
+            } else if (SET.dropExact(token)) {
+                JOURNAL.drop(token);
                 return CHANGED = true;
             } else {
                 return false;
             }
-        } else if (SET.dropExact(token)) {
-            return CHANGED = true;
-        } else {
-            return false;
         }
     }
 
     public static boolean dropAll() {
-        SET.clear();
-        CIDR.clear();
-        REGEX.clear();
-        DNSBL.clear();
-        WHOIS.clear();
-        CHANGED = true;
-        return true;
+        synchronized (JOURNAL) {
+            SET.clear();
+            CIDR.clear();
+            REGEX.clear();
+            DNSBL.clear();
+            WHOIS.clear();
+            JOURNAL.clear();
+            CHANGED = true;
+            return true;
+        }
     }
 
     public static boolean addExact(String token) throws ProcessException {
-        if (token == null) {
-            return false;
-        } else if (token.contains("WHOIS/")) {
-            if (WHOIS.addExact(token)) {
-                CHANGED = true;
-                return true;
-            } else {
-                return false;
-            }
-        } else if (token.contains("DNSBL=")) {
-            if (DNSBL.addExact(token)) {
-                CHANGED = true;
-                return true;
-            } else {
-                return false;
-            }
-        } else if (token.contains("CIDR=")) {
-            if (CIDR.addExact(token, false)) {
-                CHANGED = true;
-                return true;
-            } else {
+        synchronized (JOURNAL) {
+            if (token == null) {
                 return false;
-            }
-        } else if (token.contains("REGEX=")) {
-            if (REGEX.addExact(token)) {
+            } else if (token.contains("WHOIS/")) {
+                if (WHOIS.addExact(token)) {
+                    CHANGED = true;
+                    JOURNAL.add(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (token.contains("DNSBL=")) {
+                if (DNSBL.addExact(token)) {
+                    CHANGED = true;
+                    JOURNAL.add(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (token.contains("CIDR=")) {
+                if (CIDR.addExact(token, false)) {
+                    CHANGED = true;
+                    SIMPLIFY = true;
+                    JOURNAL.add(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (token.contains("REGEX=")) {
+                if (REGEX.addExact(token)) {
+                    CHANGED = true;
+                    JOURNAL.add(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (SET.addExact(token)) {
                 CHANGED = true;
+                JOURNAL.add(token);
                 return true;
             } else {
                 return false;
             }
-        } else if (SET.addExact(token)) {
-            CHANGED = true;
-            return true;
-        } else {
-            return false;
         }
     }
     
@@ -1521,8 +1618,13 @@ public class Block {
             throw new ProcessException("TOKEN INVALID");
         } else if (!cidr.startsWith("CIDR=")) {
             throw new ProcessException("TOKEN INVALID");
+        } else if (CIDR.addExact(cidr, true)) {
+            // Os blocos sobrepostos foram removidos.
+            JOURNAL.invalidate();
+            SIMPLIFY = true;
+            return CHANGED = true;
         } else {
-            return CIDR.addExact(cidr, true);
+            return false;
         }
     }
     
@@ -1700,62 +1802,43 @@ public class Block {
         return blockSet;
     }
     
-    public static int getAll(OutputStream outputStream) throws Exception {
-        int count = SET.getAll(outputStream);
-        count += CIDR.getAll(outputStream);
-        count += REGEX.getAll(outputStream);
-        count += DNSBL.getAll(outputStream);
-        count += WHOIS.getAll(outputStream);
-        outputStream.flush();
+    /**
+     * Escreve todos os bloqueios, inclusive os dos usuários.
+     *
+     * Cada lista é percorrida no conjunto concorrente ou na cópia
+     * publicada da partição de cada cliente, sem manter nenhuma trava
+     * durante a escrita na saída. O percurso é fracamente consistente
+     * e a saída não é ordenada, como descrito em {@link DumpWriter}.
+     * @param writer o escritor da listagem.
+     * @return a quantidade de registros escritos.
+     * @throws IOException se houver falha na escrita.
+     */
+    public static int getAll(DumpWriter writer) throws IOException {
+        int count = SET.getAll(writer);
+        count += CIDR.getAll(writer);
+        count += REGEX.getAll(writer);
+        count += DNSBL.getAll(writer);
+        count += WHOIS.getAll(writer);
+        writer.finish();
         return count;
     }
     
-    public static int get(OutputStream outputStream) throws IOException {
-        int count = 0;
-        TreeSet<String> set;
-        if ((set = SET.get((User) null)) != null) {
-            for (String token : set) {
-                outputStream.write(token.getBytes("UTF-8"));
-                outputStream.write('\n');
-                outputStream.flush();
-                count++;
-            }
-        }
-        if ((set = CIDR.get((User) null)) != null) {
-            for (String token : set) {
-                outputStream.write(token.getBytes("UTF-8"));
-                outputStream.write('\n');
-                outputStream.flush();
-                count++;
-            }
-        }
-        if ((set = REGEX.get((User) null)) != null) {
-            for (String token : set) {
-                outputStream.write(token.getBytes("UTF-8"));
-                outputStream.write('\n');
-                outputStream.flush();
-                count++;
-            }
-        }
-        if ((set = DNSBL.get((User) null)) != null) {
-            for (String token : set) {
-                outputStream.write(token.getBytes("UTF-8"));
-                outputStream.write('\n');
-                outputStream.flush();
-                count++;
-            }
-        }
-        if ((set = WHOIS.get((User) null)) != null) {
-            for (String token : set) {
-                outputStream.write(token.getBytes("UTF-8"));
-                outputStream.write('\n');
-                outputStream.flush();
-                count++;
-            }
-        }
+    /**
+     * Escreve os bloqueios globais, da mesma forma que {@link #getAll(DumpWriter)}.
+     * @param writer o escritor da listagem.
+     * @return a quantidade de registros escritos.
+     * @throws IOException se houver falha na escrita.
+     */
+    public static int get(DumpWriter writer) throws IOException {
+        int count = SET.get(writer);
+        count += CIDR.get(null, writer);
+        count += REGEX.get(null, writer);
+        count += DNSBL.get(writer);
+        count += WHOIS.get(writer);
+        writer.finish();
         return count;
     }
-
+    
     public static TreeSet<String> get() throws ProcessException {
         TreeSet<String> blockSet = new TreeSet<String>();
         for (String token : getAll()) {
@@ -1845,6 +1928,9 @@ public class Block {
                 TreeSet<String> blockSet = new TreeSet<String>();
                 String cidr;
                 while ((cidr = CIDR.get(null, ip)) != null) {
+                    // A divisão de blocos não é representada no diário.
+                    JOURNAL.invalidate();
+                    CHANGED = true;
                     if (blockSet.contains(cidr)) {
                         throw new ProcessException("FATAL BLOCK ERROR " + cidr);
                     } else if (!CIDR.split(cidr)) {
@@ -2036,7 +2122,7 @@ public class Block {
             }
             Reverse reverse = Reverse.get(token);
             if (reverse != null) {
-                for (String host : reverse.getAddressSet()) {
+                for (String host : reverse.getAddressList()) {
                     String block = find(userEmail, host, findDNSBL, findREGEX, findWHOIS, autoBlock);
                     if (block != null) {
                         return block;
@@ -2162,7 +2248,7 @@ public class Block {
             }
             Reverse reverse = Reverse.get(token);
             if (reverse != null) {
-                for (String host : reverse.getAddressSet()) {
+                for (String host : reverse.getAddressList()) {
                     String block = findHREF(userEmail, host, autoBlock);
                     if (block != null) {
                         return block;
@@ -2185,13 +2271,19 @@ public class Block {
             String ownerID = Domain.getOwnerID(token);
             if (ownerID != null) {
                 if (SET.contains("HREF=" + ownerID)) {
-                    if (SET.addExact("HREF=" + token)) {
-                        Server.logDebug("new BLOCK 'HREF=" + token + "' added by 'HREF=" + ownerID + "'.");
+                    synchronized (JOURNAL) {
+                        if (SET.addExact("HREF=" + token)) {
+                            JOURNAL.add("HREF=" + token);
+                            Server.logDebug("new BLOCK 'HREF=" + token + "' added by 'HREF=" + ownerID + "'.");
+                        }
                     }
                     return "HREF=" + ownerID;
                 } else if (userEmail != null && SET.contains(userEmail + ":HREF=" + ownerID)) {
-                    if (SET.addExact(userEmail + ":HREF=" + token)) {
-                        Server.logDebug("new BLOCK '" + userEmail + ":HREF=" + token + "' added by '" + userEmail + ":HREF=" + token + "'.");
+                    synchronized (JOURNAL) {
+                        if (SET.addExact(userEmail + ":HREF=" + token)) {
+                            JOURNAL.add(userEmail + ":HREF=" + token);
+                            Server.logDebug("new BLOCK '" + userEmail + ":HREF=" + token + "' added by '" + userEmail + ":HREF=" + token + "'.");
+                        }
                     }
                     return userEmail + ":HREF=" + ownerID;
                 }
@@ -2438,7 +2530,7 @@ public class Block {
             }
             Reverse reverse = Reverse.get(ip);
             if (reverse != null) {
-                for (String host : reverse.getAddressSet()) {
+                for (String host : reverse.getAddressList()) {
                     String block = find(userEmail, host, findDNSBL, findREGEX, findWHOIS, autoblock);
                     if (block != null) {
                         return block;
@@ -2689,8 +2781,11 @@ public class Block {
             String ownerID = Domain.getOwnerID(token);
             if (ownerID != null) {
                 if (SET.contains("HREF=" + ownerID)) {
-                    if (SET.addExact("HREF=" + token)) {
-                        Server.logDebug("new BLOCK 'HREF=" + token + "' added by 'HREF=" + ownerID + "'.");
+                    synchronized (JOURNAL) {
+                        if (SET.addExact("HREF=" + token)) {
+                            JOURNAL.add("HREF=" + token);
+                            Server.logDebug("new BLOCK 'HREF=" + token + "' added by 'HREF=" + ownerID + "'.");
+                        }
                     }
                     return true;
                 }
@@ -2843,23 +2938,34 @@ public class Block {
     }
 
     public static void store(boolean simplify) {
-        if (CHANGED) {
-            if (simplify) {
-                Server.logTrace("simplifing block.set");
-                CIDR.simplify();
+        if (simplify && SIMPLIFY) {
+            SIMPLIFY = false;
+            Server.logTrace("simplifing block.set");
+            int collapsed = CIDR.simplify();
+            Server.logTrace("simplified block.set: " + collapsed + " CIDR collapsed.");
+            if (collapsed > 0) {
+                // A junção de blocos não é representada no diário.
+                JOURNAL.invalidate();
+                CHANGED = true;
             }
+        }
+        if (JOURNAL.isCompactable(CHANGED || TOUCHED)) {
+            boolean stored = false;
             try {
 //                Server.logTrace("storing block.set");
                 long time = System.currentTimeMillis();
                 File file = new File("./data/block.set");
+                JOURNAL.rotate();
                 TreeSet<String> tokenSet = getAll();
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(tokenSet, outputStream);
+                    SerializationUtils.serialize(tokenSet, storeFile.getOutputStream());
+                    storeFile.commit();
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
+                stored = true;
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -2869,12 +2975,17 @@ public class Block {
                 long time = System.currentTimeMillis();
                 File file = new File("./data/block.map");
                 TreeMap<String,Long> tokenMap = SET.getMap();
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(tokenMap, outputStream);
+                    SerializationUtils.serialize(tokenMap, storeFile.getOutputStream());
+                    storeFile.commit();
                     CHANGED = false;
+                    TOUCHED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
+                }
+                if (stored) {
+                    JOURNAL.commit();
                 }
                 Server.logStore(time, file);
             } catch (Exception ex) {
@@ -2886,15 +2997,9 @@ public class Block {
     public static void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/block.set");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                Set<String> set;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    set = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                Set<String> set = StoreFile.deserialize(file);
                 for (String token : set) {
                     String client;
                     String identifier;
@@ -2924,6 +3029,7 @@ public class Block {
                     }
                 }
                 CHANGED = false;
+                SIMPLIFY = true;
                 Server.logLoad(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -2931,15 +3037,9 @@ public class Block {
         }
         time = System.currentTimeMillis();
         file = new File("./data/block.map");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                Map<String,Long> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    map = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                Map<String,Long> map = StoreFile.deserialize(file);
                 for (String token : map.keySet()) {
                     Long last = map.get(token);
                     if (last != null) {
@@ -2952,5 +3052,19 @@ public class Block {
                 Server.logError(ex);
             }
         }
+        JOURNAL.replay(new File("./data/block.set"), new Journal.Replay() {
+            @Override
+            public void add(String token) throws ProcessException {
+                addExact(token);
+            }
+            @Override
+            public void drop(String token) {
+                dropExact(token);
+            }
+            @Override
+            public void clear() {
+                dropAll();
+            }
+        });
     }
 }
@@ -0,0 +1,166 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.data;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Filtro de Bloom em blocos à frente de um conjunto de chaves.
+ *
+ * Todos os bits de uma chave ficam num único bloco de 512 bits,
+ * do tamanho de uma linha de cache, de modo que uma chave ausente
+ * costuma ser descartada com uma ou duas leituras de memória,
+ * sem sincronização e sem consultar o conjunto.
+ *
+ * A chave deve ser incluída no conjunto antes de ser incluída no filtro.
+ * A remoção não limpa bits, apenas conta as chaves removidas, e o filtro
+ * é reconstruído a partir do conjunto quando fica cheio ou impreciso.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+final class BloomFilter {
+
+    /**
+     * Bits por chave na capacidade do filtro.
+     */
+    private static final int BITS = 12;
+
+    /**
+     * Quantidade de bits marcados por chave.
+     */
+    private static final int HASHES = 6;
+
+    /**
+     * Quantidade mínima de blocos.
+     */
+    private static final int MINIMUM = 32;
+
+    /**
+     * Quantidade máxima de blocos, limitando o filtro a 64MB.
+     */
+    private static final int MAXIMUM = 1 << 20;
+
+    /**
+     * Chaves do conjunto filtrado, usadas na reconstrução.
+     */
+    private final Collection<String> keySet;
+
+    private volatile AtomicLongArray table;
+    private int capacity;
+    private int inserted;
+    private int removed;
+
+    /**
+     * @param keySet a visão das chaves do conjunto filtrado, que deve
+     * poder ser percorrida durante as chamadas de inclusão e remoção.
+     */
+    BloomFilter(Collection<String> keySet) {
+        this.keySet = keySet;
+        rebuild();
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * @return o índice da primeira palavra do bloco da chave.
+     */
+    private static int getBase(AtomicLongArray array, long hash) {
+        int blocks = array.length() >>> 3;
+        int block = (int) mix(hash + 0x9e3779b97f4a7c15L) & (blocks - 1);
+        return block << 3;
+    }
+
+    private static void set(AtomicLongArray array, String key) {
+        long hash = mix(key.hashCode());
+        int base = getBase(array, hash);
+        for (int index = 0; index < HASHES; index++) {
+            int bit = (int) (hash >>> (index * 9)) & 511;
+            int word = base + (bit >>> 6);
+            array.set(word, array.get(word) | (1L << bit));
+        }
+    }
+
+    /**
+     * @param key a chave consultada.
+     * @return falso somente se a chave certamente não está no conjunto.
+     */
+    boolean mightContain(String key) {
+        AtomicLongArray array = table;
+        long hash = mix(key.hashCode());
+        int base = getBase(array, hash);
+        for (int index = 0; index < HASHES; index++) {
+            int bit = (int) (hash >>> (index * 9)) & 511;
+            if ((array.get(base + (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Inclui uma chave já incluída no conjunto.
+     * @param key a chave incluída.
+     */
+    synchronized void add(String key) {
+        if (++inserted > capacity && table.length() < MAXIMUM << 3) {
+            rebuild();
+        } else {
+            set(table, key);
+        }
+    }
+
+    /**
+     * Registra a remoção de uma chave do conjunto.
+     * @param key a chave removida.
+     */
+    synchronized void remove(String key) {
+        if (++removed > capacity / 4) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Reconstrói o filtro com as chaves atuais do conjunto.
+     *
+     * As consultas continuam no filtro anterior durante a reconstrução.
+     */
+    synchronized void rebuild() {
+        long bits = (long) Math.max(1024, keySet.size() * 2) * BITS;
+        int blocks = MINIMUM;
+        while (blocks < MAXIMUM && (long) blocks * 512 < bits) {
+            blocks <<= 1;
+        }
+        AtomicLongArray array = new AtomicLongArray(blocks << 3);
+        int count = 0;
+        for (String key : keySet) {
+            set(array, key);
+            count++;
+        }
+        table = array;
+        capacity = (int) Math.min(Integer.MAX_VALUE, (long) blocks * 512 / BITS);
+        inserted = count;
+        removed = 0;
+    }
+}
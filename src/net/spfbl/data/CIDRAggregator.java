@@ -0,0 +1,324 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Agregação numérica dos blocos CIDR de uma lista.
+ *
+ * Os blocos no formato expandido das listas são convertidos em endereços
+ * de 128 bits, com o IPv4 no final do espaço, e ordenados uma única vez.
+ * Uma passada linear com pilha descarta os blocos contidos em outros
+ * e junta os pares de blocos irmãos no bloco maior, repetidamente,
+ * sem ultrapassar a máscara mínima de cada versão.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+final class CIDRAggregator {
+
+    /**
+     * Máscara mínima de junção do IPv4 no espaço de 128 bits.
+     */
+    private static final int MINIMUM_IPV4 = 96 + 8;
+
+    /**
+     * Máscara mínima de junção do IPv6.
+     */
+    private static final int MINIMUM_IPV6 = 16;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private CIDRAggregator() {
+    }
+
+    private static final class Prefix {
+
+        private final long high;
+        private final long low;
+        private final int mask;
+
+        private Prefix(long high, long low, int mask) {
+            // Descarta os bits de host.
+            int bits = 128 - mask;
+            if (bits >= 64) {
+                this.high = bits == 128 ? 0 : high & (-1L << (bits - 64));
+                this.low = 0;
+            } else {
+                this.high = high;
+                this.low = bits == 0 ? low : low & (-1L << bits);
+            }
+            this.mask = mask;
+        }
+
+        private long lastHigh() {
+            int bits = 128 - mask;
+            if (bits >= 64) {
+                return high | (bits == 128 ? -1L : ~(-1L << (bits - 64)));
+            } else {
+                return high;
+            }
+        }
+
+        private long lastLow() {
+            int bits = 128 - mask;
+            if (bits >= 64) {
+                return -1L;
+            } else {
+                return low | (bits == 0 ? 0 : ~(-1L << bits));
+            }
+        }
+
+        private boolean contains(Prefix other) {
+            return mask <= other.mask
+                    && compare(high, low, other.high, other.low) <= 0
+                    && compare(other.high, other.low, lastHigh(), lastLow()) <= 0;
+        }
+
+        /**
+         * @return verdadeiro se o outro bloco é o irmão à direita deste.
+         */
+        private boolean isSibling(Prefix other) {
+            if (mask != other.mask || mask == 0) {
+                return false;
+            }
+            int bit = 128 - mask;
+            if (bit >= 64) {
+                long flag = 1L << (bit - 64);
+                return (high & flag) == 0 && other.high == (high | flag) && other.low == low;
+            } else {
+                long flag = 1L << bit;
+                return (low & flag) == 0 && other.low == (low | flag) && other.high == high;
+            }
+        }
+
+        private Prefix getParent() {
+            return new Prefix(high, low, mask - 1);
+        }
+    }
+
+    private static int compare(long high1, long low1, long high2, long low2) {
+        if (high1 != high2) {
+            return (high1 + Long.MIN_VALUE) < (high2 + Long.MIN_VALUE) ? -1 : 1;
+        } else if (low1 != low2) {
+            return (low1 + Long.MIN_VALUE) < (low2 + Long.MIN_VALUE) ? -1 : 1;
+        } else {
+            return 0;
+        }
+    }
+
+    private static final Comparator<Prefix> COMPARATOR = new Comparator<Prefix>() {
+        @Override
+        public int compare(Prefix prefix1, Prefix prefix2) {
+            int result = CIDRAggregator.compare(
+                    prefix1.high, prefix1.low,
+                    prefix2.high, prefix2.low
+            );
+            if (result == 0) {
+                // O bloco maior antes dos contidos nele.
+                return prefix1.mask - prefix2.mask;
+            } else {
+                return result;
+            }
+        }
+    };
+
+    private static int digit(char character) {
+        if (character >= '0' && character <= '9') {
+            return character - '0';
+        } else if (character >= 'a' && character <= 'f') {
+            return character - 'a' + 10;
+        } else if (character >= 'A' && character <= 'F') {
+            return character - 'A' + 10;
+        } else {
+            return -1;
+        }
+    }
+
+    private static int parseMask(String cidr, int begin, int max) {
+        if (begin >= cidr.length() || cidr.length() - begin > 3) {
+            return -1;
+        }
+        int mask = 0;
+        for (int index = begin; index < cidr.length(); index++) {
+            int digit = digit(cidr.charAt(index));
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            mask = mask * 10 + digit;
+        }
+        return mask > max ? -1 : mask;
+    }
+
+    /**
+     * Converte um bloco IPv4 expandido, como "010.000.000.000/8".
+     */
+    private static Prefix parseIPv4(String cidr) {
+        if (cidr.length() < 17 || cidr.charAt(15) != '/') {
+            return null;
+        }
+        long address = 0;
+        for (int octet = 0; octet < 4; octet++) {
+            int offset = octet * 4;
+            int value = 0;
+            for (int index = offset; index < offset + 3; index++) {
+                int digit = digit(cidr.charAt(index));
+                if (digit < 0 || digit > 9) {
+                    return null;
+                }
+                value = value * 10 + digit;
+            }
+            if (value > 255 || (octet < 3 && cidr.charAt(offset + 3) != '.')) {
+                return null;
+            }
+            address = address << 8 | value;
+        }
+        int mask = parseMask(cidr, 16, 32);
+        if (mask < 0) {
+            return null;
+        } else {
+            return new Prefix(0, address, 96 + mask);
+        }
+    }
+
+    /**
+     * Converte um bloco IPv6 expandido, com oito grupos de quatro dígitos.
+     */
+    private static Prefix parseIPv6(String cidr) {
+        if (cidr.length() < 41 || cidr.charAt(39) != '/') {
+            return null;
+        }
+        long high = 0;
+        long low = 0;
+        for (int group = 0; group < 8; group++) {
+            int offset = group * 5;
+            int value = 0;
+            for (int index = offset; index < offset + 4; index++) {
+                int digit = digit(cidr.charAt(index));
+                if (digit < 0) {
+                    return null;
+                }
+                value = value << 4 | digit;
+            }
+            if (group < 7 && cidr.charAt(offset + 4) != ':') {
+                return null;
+            } else if (group < 4) {
+                high = high << 16 | value;
+            } else {
+                low = low << 16 | value;
+            }
+        }
+        int mask = parseMask(cidr, 40, 128);
+        if (mask < 0) {
+            return null;
+        } else {
+            return new Prefix(high, low, mask);
+        }
+    }
+
+    private static String formatIPv4(Prefix prefix) {
+        StringBuilder builder = new StringBuilder(18);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            int octet = (int) (prefix.low >>> shift) & 0xFF;
+            builder.append((char) ('0' + octet / 100));
+            builder.append((char) ('0' + octet / 10 % 10));
+            builder.append((char) ('0' + octet % 10));
+            builder.append(shift == 0 ? '/' : '.');
+        }
+        builder.append(prefix.mask - 96);
+        return builder.toString();
+    }
+
+    private static String formatIPv6(Prefix prefix) {
+        StringBuilder builder = new StringBuilder(43);
+        for (int group = 0; group < 8; group++) {
+            long value = group < 4 ? prefix.high : prefix.low;
+            int shift = (3 - group % 4) * 16;
+            for (int nibble = 12; nibble >= 0; nibble -= 4) {
+                builder.append(HEX[(int) (value >>> (shift + nibble)) & 0xF]);
+            }
+            builder.append(group == 7 ? '/' : ':');
+        }
+        builder.append(prefix.mask);
+        return builder.toString();
+    }
+
+    /**
+     * Agrega uma família de blocos numa passada linear com pilha.
+     */
+    private static ArrayList<Prefix> aggregate(ArrayList<Prefix> list, int minimum) {
+        Collections.sort(list, COMPARATOR);
+        ArrayList<Prefix> stack = new ArrayList<Prefix>(list.size());
+        for (Prefix prefix : list) {
+            int top = stack.size() - 1;
+            if (top >= 0 && stack.get(top).contains(prefix)) {
+                // Bloco já coberto por um bloco maior.
+                continue;
+            }
+            stack.add(prefix);
+            while ((top = stack.size() - 1) > 0) {
+                Prefix left = stack.get(top - 1);
+                Prefix right = stack.get(top);
+                if (right.mask > minimum && left.isSibling(right)) {
+                    stack.remove(top);
+                    stack.set(top - 1, left.getParent());
+                } else {
+                    break;
+                }
+            }
+        }
+        return stack;
+    }
+
+    /**
+     * Agrega os blocos CIDR expandidos de uma lista.
+     * @param cidrArray os blocos no formato expandido da lista.
+     * @param resultSet o conjunto que recebe os blocos agregados,
+     * mantendo sem alteração os elementos que não são blocos CIDR.
+     * @return a quantidade de blocos eliminados pela agregação.
+     */
+    static int aggregate(Object[] cidrArray, Collection<String> resultSet) {
+        ArrayList<Prefix> listIPv4 = new ArrayList<Prefix>();
+        ArrayList<Prefix> listIPv6 = new ArrayList<Prefix>();
+        int count = 0;
+        for (Object element : cidrArray) {
+            String cidr = (String) element;
+            Prefix prefix;
+            if ((prefix = parseIPv4(cidr)) != null) {
+                listIPv4.add(prefix);
+            } else if ((prefix = parseIPv6(cidr)) != null) {
+                listIPv6.add(prefix);
+            } else if (resultSet.add(cidr)) {
+                count++;
+            }
+        }
+        for (Prefix prefix : aggregate(listIPv4, MINIMUM_IPV4)) {
+            if (resultSet.add(formatIPv4(prefix))) {
+                count++;
+            }
+        }
+        for (Prefix prefix : aggregate(listIPv6, MINIMUM_IPV6)) {
+            if (resultSet.add(formatIPv6(prefix))) {
+                count++;
+            }
+        }
+        return cidrArray.length - count;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import net.spfbl.core.Reverse;
+import net.spfbl.core.Server;
+
+/**
+ * Consulta simultânea de um IP nas DNSBLs externas cadastradas.
+ *
+ * Todas as consultas são disparadas ao mesmo tempo e compartilham
+ * um único prazo, retornando o primeiro servidor que listar o IP.
+ * As consultas que terminam depois do prazo continuam em segundo
+ * plano e alimentam o cache para as próximas consultas.
+ *
+ * O resultado de cada servidor fica em cache, por mais tempo quando
+ * listado, separado pelos retornos aceitos, pois cada cliente pode
+ * considerar listados retornos diferentes do mesmo servidor.
+ * O servidor que deixa de responder algumas vezes seguidas é
+ * suspenso por um intervalo, para que uma lista lenta não atrase
+ * todas as consultas.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+final class DNSBLLookup {
+
+    /**
+     * Prazo total das consultas de um IP.
+     */
+    private static final long DEADLINE = 3000;
+
+    /**
+     * Validade do resultado listado.
+     */
+    private static final long LISTED_TIME = 3600000;
+
+    /**
+     * Validade do resultado não listado.
+     */
+    private static final long UNLISTED_TIME = 600000;
+
+    /**
+     * Falhas seguidas que suspendem um servidor.
+     */
+    private static final int FAILURE_LIMIT = 3;
+
+    /**
+     * Tempo de suspensão de um servidor que não responde.
+     */
+    private static final long SUSPENSION_TIME = 60000;
+
+    /**
+     * Quantidade máxima de resultados em cache.
+     */
+    private static final int MAX = 65536;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            32, 32, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(1024),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "DNSBLQRY");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+    );
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private DNSBLLookup() {
+    }
+
+    /**
+     * Resultado de um servidor para um IP.
+     */
+    private static final class Result {
+
+        private final String listed;
+        private final long expire;
+
+        private Result(String listed) {
+            this.listed = listed;
+            long time = listed == null ? UNLISTED_TIME : LISTED_TIME;
+            this.expire = System.currentTimeMillis() + time;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expire;
+        }
+    }
+
+    private static final LinkedHashMap<String,Result> RESULT_MAP = new LinkedHashMap<String,Result>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Result> eldest) {
+            return size() > MAX;
+        }
+    };
+
+    private static String getKey(String server, String ip, Set<String> valueSet) {
+        return server + ' ' + ip + ' ' + valueSet;
+    }
+
+    private static synchronized Result getResult(String key) {
+        Result result = RESULT_MAP.get(key);
+        if (result == null) {
+            return null;
+        } else if (result.isExpired()) {
+            RESULT_MAP.remove(key);
+            return null;
+        } else {
+            return result;
+        }
+    }
+
+    private static synchronized void putResult(String key, String listed) {
+        RESULT_MAP.put(key, new Result(listed));
+    }
+
+    /**
+     * Situação de resposta de um servidor.
+     */
+    private static final class Health {
+
+        private int failures = 0;
+        private long suspended = 0;
+    }
+
+    private static final HashMap<String,Health> HEALTH_MAP = new HashMap<String,Health>();
+
+    private static synchronized boolean isAvailable(String server) {
+        Health health = HEALTH_MAP.get(server);
+        if (health == null) {
+            return true;
+        } else if (health.suspended == 0) {
+            return true;
+        } else if (System.currentTimeMillis() > health.suspended) {
+            // Nova tentativa depois da suspensão.
+            health.suspended = 0;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private static synchronized void success(String server) {
+        HEALTH_MAP.remove(server);
+    }
+
+    private static synchronized void failure(String server) {
+        Health health = HEALTH_MAP.get(server);
+        if (health == null) {
+            health = new Health();
+            HEALTH_MAP.put(server, health);
+        }
+        if (++health.failures >= FAILURE_LIMIT) {
+            health.failures = 0;
+            health.suspended = System.currentTimeMillis() + SUSPENSION_TIME;
+            Server.logDebug("DNS service '" + server + "' suspended for " + (SUSPENSION_TIME / 1000) + "s.");
+        }
+    }
+
+    /**
+     * Consulta de um IP num servidor.
+     */
+    private static final class Query implements Callable<String[]> {
+
+        private final String ip;
+        private final String server;
+        private final Set<String> valueSet;
+
+        private Query(String ip, String server, Set<String> valueSet) {
+            this.ip = ip;
+            this.server = server;
+            this.valueSet = valueSet;
+        }
+
+        @Override
+        public String[] call() {
+            try {
+                String listed = Reverse.checkListedIP(ip, server, valueSet);
+                success(server);
+                putResult(getKey(server, ip, valueSet), listed);
+                if (listed == null) {
+                    return null;
+                } else {
+                    return new String[]{server, listed};
+                }
+            } catch (CommunicationException ex) {
+                Server.logDebug("DNS service '" + server + "' unreachable.");
+                failure(server);
+                return null;
+            } catch (ServiceUnavailableException ex) {
+                Server.logDebug("DNS service '" + server + "' unavailable.");
+                failure(server);
+                return null;
+            } catch (NamingException ex) {
+                Server.logError(ex);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Busca o primeiro servidor que lista o IP.
+     * @param ip o IP consultado.
+     * @param serverMap os retornos que indicam listagem de cada servidor.
+     * @return o servidor e o retorno encontrado ou nulo se não estiver listado.
+     */
+    static String[] find(String ip, Map<String,Set<String>> serverMap) {
+        ArrayList<String> serverList = new ArrayList<String>(serverMap.size());
+        for (Map.Entry<String,Set<String>> entry : serverMap.entrySet()) {
+            String server = entry.getKey();
+            Result result = getResult(getKey(server, ip, entry.getValue()));
+            if (result == null) {
+                if (isAvailable(server)) {
+                    serverList.add(server);
+                }
+            } else if (result.listed != null) {
+                return new String[]{server, result.listed};
+            }
+        }
+        if (serverList.isEmpty()) {
+            return null;
+        } else {
+            ExecutorCompletionService<String[]> service =
+                    new ExecutorCompletionService<String[]>(EXECUTOR);
+            int pending = 0;
+            for (String server : serverList) {
+                try {
+                    Set<String> valueSet = serverMap.get(server);
+                    service.submit(new Query(ip, server, valueSet));
+                    pending++;
+                } catch (RejectedExecutionException ex) {
+                    Server.logDebug("DNS service '" + server + "' skipped by full queue.");
+                }
+            }
+            long deadline = System.currentTimeMillis() + DEADLINE;
+            try {
+                while (pending > 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Future<String[]> future;
+                    if (remaining <= 0) {
+                        return null;
+                    } else if ((future = service.poll(remaining, TimeUnit.MILLISECONDS)) == null) {
+                        return null;
+                    } else {
+                        pending--;
+                        String[] result = future.get();
+                        if (result != null) {
+                            return result;
+                        }
+                    }
+                }
+                return null;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException ex) {
+                Server.logError(ex);
+                return null;
+            }
+        }
+    }
+}
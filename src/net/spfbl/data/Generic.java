@@ -17,8 +17,6 @@
 package net.spfbl.data;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -30,8 +28,10 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import net.spfbl.core.Journal;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Server;
+import net.spfbl.core.StoreFile;
 import net.spfbl.spf.SPF;
 import net.spfbl.whois.Domain;
 import net.spfbl.whois.Subnet;
@@ -48,6 +48,11 @@ public class Generic {
      * Flag que indica se o cache foi modificado.
      */
     private static boolean CHANGED = false;
+    
+    /**
+     * Diário das alterações desde a última gravação completa.
+     */
+    private static final Journal JOURNAL = new Journal("generic");
 
     /**
      * Conjunto de zonas de reversos genericos.
@@ -56,21 +61,24 @@ public class Generic {
         
         private static final HashMap<String,Boolean> MAP = new HashMap<String,Boolean>();
         
+        /**
+         * Filtro que descarta as consultas ausentes sem sincronização.
+         * 
+         * É alterado e reconstruído somente dentro dos métodos
+         * sincronizados, pois percorre as chaves do mapa.
+         */
+        private static final BloomFilter FILTER = new BloomFilter(MAP.keySet());
+        
         public static synchronized boolean isEmpty() {
             return MAP.isEmpty();
         }
         
         public static synchronized void clearGeneric() {
             MAP.clear();
+            FILTER.rebuild();
             CHANGED = true;
         }
         
-        public static synchronized void clearDynamic() {
-            for (String key : MAP.keySet()) {
-                MAP.put(key, false);
-            }
-        }
-        
         public static synchronized TreeSet<String> getGenericAll() {
             TreeSet<String> set = new TreeSet<String>();
             set.addAll(MAP.keySet());
@@ -98,6 +106,9 @@ public class Generic {
                 return false;
             } else {
                 Boolean old = MAP.put(token, false);
+                if (old == null) {
+                    FILTER.add(token);
+                }
                 boolean changed = old == null || old.equals(true);
                 CHANGED |= changed;
                 return changed;
@@ -106,6 +117,9 @@ public class Generic {
         
         private static synchronized boolean addDynamicExact(String token) {
             Boolean old = MAP.put(token, true);
+            if (old == null) {
+                FILTER.add(token);
+            }
             boolean changed = old == null || old.equals(false);
             CHANGED |= changed;
             return changed;
@@ -113,6 +127,9 @@ public class Generic {
         
         private static synchronized boolean putExact(String token, boolean dyn) {
             Boolean old = MAP.put(token, dyn);
+            if (old == null) {
+                FILTER.add(token);
+            }
             boolean changed = old == null || !old.equals(dyn);
             CHANGED |= changed;
             return changed;
@@ -120,6 +137,9 @@ public class Generic {
         
         private static synchronized boolean dropGenericExact(String token) {
             boolean changed = MAP.remove(token) != null;
+            if (changed) {
+                FILTER.remove(token);
+            }
             CHANGED |= changed;
             return changed;
         }
@@ -136,11 +156,19 @@ public class Generic {
             }
         }
         
-        public static synchronized boolean containsGeneric(String token) {
+        public static boolean containsGeneric(String token) {
+            return FILTER.mightContain(token) && containsGenericExact(token);
+        }
+        
+        private static synchronized boolean containsGenericExact(String token) {
             return MAP.containsKey(token);
         }
         
-        public static synchronized boolean containsDynamic(String token) {
+        public static boolean containsDynamic(String token) {
+            return FILTER.mightContain(token) && containsDynamicExact(token);
+        }
+        
+        private static synchronized boolean containsDynamicExact(String token) {
             Boolean dyn = MAP.get(token);
             if (dyn == null) {
                 return false;
@@ -263,69 +291,88 @@ public class Generic {
     }
     
     public static boolean dropGenericExact(String token) {
-        if (token == null) {
-            return false;
-        } else if (token.contains("REGEX=")) {
-            if (REGEX.dropExact(token)) {
+        synchronized (JOURNAL) {
+            if (token == null) {
+                return false;
+            } else if (token.contains("REGEX=")) {
+                if (REGEX.dropExact(token)) {
+                    JOURNAL.drop(token);
+                    return CHANGED = true;
+                } else {
+                    return false;
+                }
+            } else if (MAP.dropGenericExact(token)) {
+                JOURNAL.drop(token);
                 return CHANGED = true;
             } else {
                 return false;
             }
-        } else if (MAP.dropGenericExact(token)) {
-            return CHANGED = true;
-        } else {
-            return false;
         }
     }
     
     public static boolean dropDynamicExact(String token) {
-        if (token == null) {
-            return false;
-        } else if (token.contains("REGEX=")) {
-            return false;
-        } else if (MAP.dropDynamicExact(token)) {
-            return CHANGED = true;
-        } else {
-            return false;
+        synchronized (JOURNAL) {
+            if (token == null) {
+                return false;
+            } else if (token.contains("REGEX=")) {
+                return false;
+            } else if (MAP.dropDynamicExact(token)) {
+                JOURNAL.put(token, "false");
+                return CHANGED = true;
+            } else {
+                return false;
+            }
         }
     }
 
     public static boolean dropGenericAll() {
-        MAP.clearGeneric();
-        REGEX.clear();
-        return CHANGED = true;
+        synchronized (JOURNAL) {
+            MAP.clearGeneric();
+            REGEX.clear();
+            JOURNAL.clear();
+            return CHANGED = true;
+        }
     }
     
     public static boolean dropDynamicAll() {
-        MAP.clearDynamic();
+        for (String token : MAP.getDynamicAll()) {
+            dropDynamicExact(token);
+        }
         return CHANGED = true;
     }
 
     private static boolean addGenericExact(String token) throws ProcessException {
-        if (token == null) {
-            return false;
-        } else if (token.contains("REGEX=")) {
-            if (REGEX.addExact(token)) {
+        synchronized (JOURNAL) {
+            if (token == null) {
+                return false;
+            } else if (token.contains("REGEX=")) {
+                if (REGEX.addExact(token)) {
+                    JOURNAL.add(token);
+                    return CHANGED = true;
+                } else {
+                    return false;
+                }
+            } else if (MAP.addGenericExact(token)) {
+                JOURNAL.put(token, "false");
                 return CHANGED = true;
             } else {
                 return false;
             }
-        } else if (MAP.addGenericExact(token)) {
-            return CHANGED = true;
-        } else {
-            return false;
         }
     }
     
     private static boolean addDynamicExact(String token) throws ProcessException {
-        if (token == null) {
-            return false;
-        } else if (token.contains("REGEX=")) {
-            return false;
-        } else if (MAP.addDynamicExact(token)) {
-            return CHANGED = true;
-        } else {
-            return false;
+        synchronized (JOURNAL) {
+            if (token == null) {
+                return false;
+            } else if (token.contains("REGEX=")) {
+                return false;
+            } else if (MAP.addDynamicExact(token)) {
+                JOURNAL.put(token, "true");
+                return CHANGED = true;
+            } else {
+                return false;
+            }
         }
     }
     
@@ -857,31 +904,35 @@ public class Generic {
     }
 
     public static void store() {
-        if (CHANGED) {
+        if (JOURNAL.isCompactable(CHANGED)) {
             try {
 //                Server.logTrace("storing generic.set");
                 long time = System.currentTimeMillis();
                 File file = new File("./data/generic.set");
+                JOURNAL.rotate();
                 TreeSet<String> set = getGenericAll();
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(set, outputStream);
+                    SerializationUtils.serialize(set, storeFile.getOutputStream());
+                    storeFile.commit();
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
                 Server.logStore(time, file);
 //                Server.logTrace("storing generic.map");
                 time = System.currentTimeMillis();
                 file = new File("./data/generic.map");
                 TreeMap<String,Boolean> map = getMapAll();
-                outputStream = new FileOutputStream(file);
+                storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    SerializationUtils.serialize(map, storeFile.getOutputStream());
+                    storeFile.commit();
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
+                JOURNAL.commit();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -892,15 +943,9 @@ public class Generic {
     public static void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/generic.map");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                Map<String,Boolean> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    map = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                Map<String,Boolean> map = StoreFile.deserialize(file);
                 for (String token : map.keySet()) {
                     boolean dyn = map.get(token);
                     if (token.startsWith("REGEX=")) {
@@ -916,13 +961,7 @@ public class Generic {
             }
         } else if ((file = new File("./data/generic.set")).exists()) {
             try {
-                Set<String> set;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    set = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                Set<String> set = StoreFile.deserialize(file);
                 for (String token : set) {
                     if (token.startsWith("REGEX=")) {
                         REGEX.addExact(token);
@@ -936,5 +975,23 @@ public class Generic {
                 Server.logError(ex);
             }
         }
+        JOURNAL.replay(file, new Journal.Replay() {
+            @Override
+            public void add(String token) throws ProcessException {
+                addGenericExact(token);
+            }
+            @Override
+            public void put(String token, String value) {
+                MAP.putExact(token, Boolean.parseBoolean(value));
+            }
+            @Override
+            public void drop(String token) {
+                dropGenericExact(token);
+            }
+            @Override
+            public void clear() {
+                dropGenericAll();
+            }
+        });
     }
 }
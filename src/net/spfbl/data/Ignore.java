@@ -17,14 +17,16 @@
 package net.spfbl.data;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import net.spfbl.core.DumpWriter;
+import net.spfbl.core.Journal;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Server;
+import net.spfbl.core.StoreFile;
 import net.spfbl.spf.SPF;
 import net.spfbl.whois.Domain;
 import net.spfbl.whois.Subnet;
@@ -44,36 +46,57 @@ public class Ignore {
      */
     private static boolean CHANGED = false;
     
+    /**
+     * Diário das alterações desde a última gravação completa.
+     */
+    private static final Journal JOURNAL = new Journal("ignore");
+    
     /**
      * Conjunto de remetentes bloqueados.
      */
     private static class SET {
         
-        private static final HashSet<String> SET = new HashSet<String>();
+        private static final Set<String> SET = Collections.newSetFromMap(
+                new ConcurrentHashMap<String,Boolean>()
+        );
         
-        public static synchronized boolean isEmpty() {
+        public static boolean isEmpty() {
             return SET.isEmpty();
         }
         
-        public static synchronized void clear() {
+        public static void clear() {
             SET.clear();
         }
         
-        public static synchronized TreeSet<String> getAll() {
+        public static TreeSet<String> getAll() {
             TreeSet<String> set = new TreeSet<String>();
             set.addAll(SET);
             return set;
         }
         
-        private static synchronized boolean addExact(String token) {
+        /**
+         * Escreve os registros diretamente do conjunto concorrente,
+         * sem cópia e sem trava.
+         */
+        public static int get(DumpWriter writer) throws IOException {
+            int count = 0;
+            for (String token : SET) {
+                if (writer.write(token)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        
+        private static boolean addExact(String token) {
             return SET.add(token);
         }
         
-        private static synchronized boolean dropExact(String token) {
+        private static boolean dropExact(String token) {
             return SET.remove(token);
         }
         
-        public static synchronized boolean contains(String token) {
+        public static boolean contains(String token) {
             return SET.contains(token);
         }
     }
@@ -83,36 +106,57 @@ public class Ignore {
      */
     private static class CIDR {
         
-        private static final HashMap<String,TreeSet<String>> MAP = new HashMap<String,TreeSet<String>>();
+        private static final TenantMap.Sorted<String> MAP = new TenantMap.Sorted<String>();
         
-        public static synchronized boolean isEmpty() {
+        public static boolean isEmpty() {
             return MAP.isEmpty();
         }
         
-        public static synchronized void clear() {
+        public static void clear() {
             MAP.clear();
         }
         
-        public static synchronized TreeSet<String> getAll() {
+        public static TreeSet<String> getAll() {
             TreeSet<String> set = new TreeSet<String>();
-            for (String client : MAP.keySet()) {
-                for (String cidr : MAP.get(client)) {
+            for (String client : MAP.getClientList()) {
+                TreeSet<String> cidrSet = MAP.get(client);
+                if (cidrSet != null) {
+                    for (String cidr : cidrSet) {
+                        if (cidr.contains(":")) {
+                            cidr = SubnetIPv6.normalizeCIDRv6(cidr);
+                        } else {
+                            cidr = SubnetIPv4.normalizeCIDRv4(cidr);
+                        }
+                        if (client == null) {
+                            set.add("CIDR=" + cidr);
+                        } else {
+                            set.add(client + ":CIDR=" + cidr);
+                        }
+                    }
+                }
+            }
+            return set;
+        }
+        
+        public static int get(DumpWriter writer) throws IOException {
+            int count = 0;
+            TreeSet<String> cidrSet = MAP.get(null);
+            if (cidrSet != null) {
+                for (String cidr : cidrSet) {
                     if (cidr.contains(":")) {
                         cidr = SubnetIPv6.normalizeCIDRv6(cidr);
                     } else {
                         cidr = SubnetIPv4.normalizeCIDRv4(cidr);
                     }
-                    if (client == null) {
-                        set.add("CIDR=" + cidr);
-                    } else {
-                        set.add(client + ":CIDR=" + cidr);
+                    if (writer.write(null, "CIDR=", cidr)) {
+                        count++;
                     }
                 }
             }
-            return set;
+            return count;
         }
         
-        private static synchronized boolean dropExact(String token) {
+        private static boolean dropExact(String token) {
             int index = token.indexOf('=');
             String cidr = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -122,20 +166,11 @@ public class Ignore {
             } else {
                 client = token.substring(0, index);
             }
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                return false;
-            } else {
-                String key = Subnet.expandCIDR(cidr);
-                boolean removed = set.remove(key);
-                if (set.isEmpty()) {
-                    MAP.remove(client);
-                }
-                return removed;
-            }
+            String key = Subnet.expandCIDR(cidr);
+            return MAP.remove(client, key);
         }
         
-        private static synchronized boolean addExact(String token) throws ProcessException {
+        private static boolean addExact(String token) throws ProcessException {
             int index = token.indexOf('=');
             String cidr = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -145,11 +180,26 @@ public class Ignore {
             } else {
                 client = token.substring(0, index);
             }
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                set = new TreeSet<String>();
-                MAP.put(client, set);
+            TenantMap.Shard<TreeSet<String>> shard = MAP.getShard(client);
+            synchronized (shard) {
+                TreeSet<String> set = shard.get();
+                if (set == null) {
+                    set = new TreeSet<String>();
+                } else {
+                    set = new TreeSet<String>(set);
+                }
+                if (addExact(set, cidr)) {
+                    shard.set(set);
+                    return true;
+                } else {
+                    return false;
+                }
             }
+        }
+        
+        private static boolean addExact(
+                TreeSet<String> set, String cidr
+        ) throws ProcessException {
             String key = Subnet.expandCIDR(cidr);
             String first = Subnet.getFirstIP(cidr);
             String last = Subnet.getLastIP(cidr);
@@ -192,7 +242,7 @@ public class Ignore {
             }
         }
         
-        private static synchronized TreeSet<String> getClientSet(String client) {
+        private static TreeSet<String> getClientSet(String client) {
             return MAP.get(client);
         }
         
@@ -201,8 +251,7 @@ public class Ignore {
                 return false;
             } else {
                 String key = Subnet.expandCIDR(cidr);
-                TreeSet<String> cidrSet = getClientSet(client);
-                return cidrSet.contains(key);
+                return MAP.contains(client, key);
             }
         }
         
@@ -254,20 +303,24 @@ public class Ignore {
     }
 
     private static boolean addExact(String token) throws ProcessException {
-        if (token == null) {
-            return false;
-        } else if (token.contains("CIDR=")) {
-            if (CIDR.addExact(token)) {
+        synchronized (JOURNAL) {
+            if (token == null) {
+                return false;
+            } else if (token.contains("CIDR=")) {
+                if (CIDR.addExact(token)) {
+                    CHANGED = true;
+                    JOURNAL.add(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (SET.addExact(token)) {
                 CHANGED = true;
+                JOURNAL.add(token);
                 return true;
             } else {
                 return false;
             }
-        } else if (SET.addExact(token)) {
-            CHANGED = true;
-            return true;
-        } else {
-            return false;
         }
     }
 
@@ -276,26 +329,41 @@ public class Ignore {
         ignoreSet.addAll(CIDR.getAll());
         return ignoreSet;
     }
+    
+    public static int get(DumpWriter writer) throws IOException {
+        int count = SET.get(writer);
+        count += CIDR.get(writer);
+        writer.finish();
+        return count;
+    }
 
-    private static boolean containsExact(String address) {
+    /**
+     * @param address o registro exato, como um IP ou um domínio iniciado por ponto.
+     * @return verdadeiro se o registro é ignorado exatamente.
+     */
+    public static boolean containsExact(String address) {
         return SET.contains(address);
     }
 
     public static boolean dropExact(String token) {
-        if (token == null) {
-            return false;
-        } else if (token.contains("CIDR=")) {
-            if (CIDR.dropExact(token)) {
+        synchronized (JOURNAL) {
+            if (token == null) {
+                return false;
+            } else if (token.contains("CIDR=")) {
+                if (CIDR.dropExact(token)) {
+                    CHANGED = true;
+                    JOURNAL.drop(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (SET.dropExact(token)) {
                 CHANGED = true;
+                JOURNAL.drop(token);
                 return true;
             } else {
                 return false;
             }
-        } else if (SET.dropExact(token)) {
-            CHANGED = true;
-            return true;
-        } else {
-            return false;
         }
     }
     
@@ -336,6 +404,24 @@ public class Ignore {
     public static boolean containsCIDR(String ip) {
         return CIDR.get(null, ip) != null;
     }
+    
+    /**
+     * Verifica se o IP é ignorado individualmente,
+     * diretamente ou por um bloco de um único endereço.
+     * @param ip o IP normalizado.
+     * @return verdadeiro se o IP é ignorado individualmente.
+     */
+    public static boolean containsIP(String ip) {
+        if (ip == null) {
+            return false;
+        } else if (containsExact(ip)) {
+            return true;
+        } else if (SubnetIPv4.isValidIPv4(ip)) {
+            return CIDR.contains((String) null, ip + "/32");
+        } else {
+            return CIDR.contains((String) null, ip + "/128");
+        }
+    }
 
     public static boolean contains(String token) {
         if (token == null) {
@@ -425,19 +511,22 @@ public class Ignore {
     }
 
     public static void store() {
-        if (CHANGED) {
+        if (JOURNAL.isCompactable(CHANGED)) {
             try {
 //                Server.logTrace("storing ignore.set");
                 long time = System.currentTimeMillis();
                 File file = new File("./data/ignore.set");
+                JOURNAL.rotate();
                 TreeSet<String> set = getAll();
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(set, outputStream);
+                    SerializationUtils.serialize(set, storeFile.getOutputStream());
+                    storeFile.commit();
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
+                JOURNAL.commit();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -448,15 +537,9 @@ public class Ignore {
     public static void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/ignore.set");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                Set<String> set;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    set = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                Set<String> set = StoreFile.deserialize(file);
                 // Processo temporário de transição.
                 for (String token : set) {
                     if ((token = normalizeTokenCIDR(token)) != null) {
@@ -490,5 +573,15 @@ public class Ignore {
                 Server.logError(ex);
             }
         }
+        JOURNAL.replay(file, new Journal.Replay() {
+            @Override
+            public void add(String token) throws ProcessException {
+                addExact(token);
+            }
+            @Override
+            public void drop(String token) {
+                dropExact(token);
+            }
+        });
     }
 }
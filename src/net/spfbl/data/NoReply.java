@@ -18,13 +18,13 @@
 package net.spfbl.data;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import net.spfbl.core.Journal;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Server;
+import net.spfbl.core.StoreFile;
 import net.spfbl.whois.Domain;
 import org.apache.commons.lang3.SerializationUtils;
 
@@ -42,15 +42,32 @@ public class NoReply {
     /**
      * Conjunto de destinatarios de não envio.
      */
-    private static final HashSet<String> SET = new HashSet<String>();
+    private static final RecipientTrie<Boolean> SET = new RecipientTrie<Boolean>();
+    /**
+     * Conjunto dos sufixos de domínio iniciados por ponto,
+     * gravados de trás para frente.
+     */
+    private static final RecipientTrie<Boolean> SUFFIX = new RecipientTrie<Boolean>();
     /**
      * Flag que indica se o cache foi modificado.
      */
     private static boolean CHANGED = false;
+    
+    /**
+     * Diário das alterações desde a última gravação completa.
+     */
+    private static final Journal JOURNAL = new Journal("noreply");
+
+    private static String reverse(String token) {
+        return new StringBuilder(token).reverse().toString();
+    }
 
     private static synchronized boolean dropExact(String token) {
-        if (SET.remove(token)) {
+        RecipientTrie<Boolean> trie = token.startsWith(".") ? SUFFIX : SET;
+        String key = token.startsWith(".") ? reverse(token) : token;
+        if (trie.remove(key) != null) {
             CHANGED = true;
+            JOURNAL.drop(token);
             return true;
         } else {
             return false;
@@ -58,8 +75,11 @@ public class NoReply {
     }
 
     private static synchronized boolean addExact(String token) {
-        if (SET.add(token)) {
+        RecipientTrie<Boolean> trie = token.startsWith(".") ? SUFFIX : SET;
+        String key = token.startsWith(".") ? reverse(token) : token;
+        if (trie.put(key, Boolean.TRUE) == null) {
             CHANGED = true;
+            JOURNAL.add(token);
             return true;
         } else {
             return false;
@@ -67,13 +87,41 @@ public class NoReply {
     }
 
     private static synchronized TreeSet<String> getAll() throws ProcessException {
-        TreeSet<String> blockSet = new TreeSet<String>();
-        blockSet.addAll(SET);
+        TreeMap<String,Boolean> map = new TreeMap<String,Boolean>();
+        SET.copyTo(map);
+        TreeSet<String> blockSet = new TreeSet<String>(map.keySet());
+        map.clear();
+        SUFFIX.copyTo(map);
+        for (String key : map.keySet()) {
+            blockSet.add(reverse(key));
+        }
         return blockSet;
     }
 
     private static synchronized boolean containsExact(String address) {
-        return SET.contains(address);
+        return SET.get(address) != null;
+    }
+
+    /**
+     * Verifica o domínio, seus prefixos e seus sufixos numa descida por árvore.
+     * @param address o endereço válido em minúsculo.
+     * @param index a posição da arroba do domínio.
+     * @return verdadeiro se algum registro de domínio foi encontrado.
+     */
+    private static synchronized boolean containsDomain(String address, int index) {
+        if (SET.match("", address, index, index + 1, null, new RecipientTrie.Match<Boolean>())) {
+            return true;
+        } else if (SUFFIX.isEmpty()) {
+            return false;
+        } else {
+            StringBuilder builder = new StringBuilder(address.length() - index);
+            for (int position = address.length() - 1; position > index; position--) {
+                builder.append(address.charAt(position));
+            }
+            builder.append('.');
+            String reversed = builder.toString();
+            return SUFFIX.match("", reversed, 0, 0, null, new RecipientTrie.Match<Boolean>());
+        }
     }
 
     private static String normalize(String recipient) {
@@ -164,53 +212,31 @@ public class NoReply {
             int index1 = address.indexOf('@');
             int index2 = address.lastIndexOf('@');
             String recipient = address.substring(0, index1 + 1);
-            String domain = address.substring(index2);
             if (containsExact(recipient)) {
                 return true;
-            } else if (containsExact(domain)) {
-                return true;
             } else {
-                int index3 = domain.length();
-                while ((index3 = domain.lastIndexOf('.', index3 - 1)) > index2) {
-                    String subdomain = domain.substring(0, index3 + 1);
-                    if (containsExact(subdomain)) {
-                        return true;
-                    }
-                }
-                int index4 = recipient.length();
-                while ((index4 = recipient.lastIndexOf('.', index4 - 1)) > index2) {
-                    String subrecipient = recipient.substring(0, index4 + 1);
-                    if (containsExact(subrecipient)) {
-                        return true;
-                    }
-                }
-                domain = '.' + domain.substring(1);
-                int index5 = 0;
-                while ((index5 = domain.indexOf('.', index5)) != -1) {
-                    String subdomain = domain.substring(index5++);
-                    if (containsExact(subdomain)) {
-                        return true;
-                    }
-                }
-                return false;
+                return containsDomain(address, index2);
             }
         }
     }
 
     public static void store() {
-        if (CHANGED) {
+        if (JOURNAL.isCompactable(CHANGED)) {
             try {
 //                Server.logTrace("storing noreply.set");
                 long time = System.currentTimeMillis();
                 File file = new File("./data/noreply.set");
+                JOURNAL.rotate();
                 TreeSet<String> set = getAll();
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(set, outputStream);
+                    SerializationUtils.serialize(set, storeFile.getOutputStream());
+                    storeFile.commit();
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
+                JOURNAL.commit();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -221,15 +247,9 @@ public class NoReply {
     public static void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/noreply.set");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                Set<String> set;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    set = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                Set<String> set = StoreFile.deserialize(file);
                 for (String token : set) {
                     addExact(token);
                 }
@@ -239,5 +259,15 @@ public class NoReply {
                 Server.logError(ex);
             }
         }
+        JOURNAL.replay(file, new Journal.Replay() {
+            @Override
+            public void add(String token) {
+                addExact(token);
+            }
+            @Override
+            public void drop(String token) {
+                dropExact(token);
+            }
+        });
     }
 }
@@ -17,14 +17,13 @@
 package net.spfbl.data;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.TreeSet;
 import net.spfbl.core.Core;
+import net.spfbl.core.Journal;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Server;
+import net.spfbl.core.StoreFile;
 import net.spfbl.spf.SPF;
 import net.spfbl.whois.Domain;
 import net.spfbl.whois.Subnet;
@@ -44,6 +43,11 @@ public class Provider {
      */
     private static boolean CHANGED = false;
     
+    /**
+     * Diário das alterações desde a última gravação completa.
+     */
+    private static final Journal JOURNAL = new Journal("provider");
+    
     /**
      * Conjunto de remetentes bloqueados.
      */
@@ -83,36 +87,39 @@ public class Provider {
      */
     private static class CIDR {
         
-        private static final HashMap<String,TreeSet<String>> MAP = new HashMap<String,TreeSet<String>>();
+        private static final TenantMap.Sorted<String> MAP = new TenantMap.Sorted<String>();
         
-        public static synchronized boolean isEmpty() {
+        public static boolean isEmpty() {
             return MAP.isEmpty();
         }
         
-        public static synchronized void clear() {
+        public static void clear() {
             MAP.clear();
         }
         
-        public static synchronized TreeSet<String> getAll() {
+        public static TreeSet<String> getAll() {
             TreeSet<String> set = new TreeSet<String>();
-            for (String client : MAP.keySet()) {
-                for (String cidr : MAP.get(client)) {
-                    if (cidr.contains(":")) {
-                        cidr = SubnetIPv6.normalizeCIDRv6(cidr);
-                    } else {
-                        cidr = SubnetIPv4.normalizeCIDRv4(cidr);
-                    }
-                    if (client == null) {
-                        set.add("CIDR=" + cidr);
-                    } else {
-                        set.add(client + ":CIDR=" + cidr);
+            for (String client : MAP.getClientList()) {
+                TreeSet<String> cidrSet = MAP.get(client);
+                if (cidrSet != null) {
+                    for (String cidr : cidrSet) {
+                        if (cidr.contains(":")) {
+                            cidr = SubnetIPv6.normalizeCIDRv6(cidr);
+                        } else {
+                            cidr = SubnetIPv4.normalizeCIDRv4(cidr);
+                        }
+                        if (client == null) {
+                            set.add("CIDR=" + cidr);
+                        } else {
+                            set.add(client + ":CIDR=" + cidr);
+                        }
                     }
                 }
             }
             return set;
         }
         
-        private static synchronized boolean dropExact(String token) {
+        private static boolean dropExact(String token) {
             int index = token.indexOf('=');
             String cidr = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -122,20 +129,11 @@ public class Provider {
             } else {
                 client = token.substring(0, index);
             }
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                return false;
-            } else {
-                String key = Subnet.expandCIDR(cidr);
-                boolean removed = set.remove(key);
-                if (set.isEmpty()) {
-                    MAP.remove(client);
-                }
-                return removed;
-            }
+            String key = Subnet.expandCIDR(cidr);
+            return MAP.remove(client, key);
         }
         
-        private static synchronized boolean addExact(String token) throws ProcessException {
+        private static boolean addExact(String token) throws ProcessException {
             int index = token.indexOf('=');
             String cidr = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -145,11 +143,26 @@ public class Provider {
             } else {
                 client = token.substring(0, index);
             }
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                set = new TreeSet<String>();
-                MAP.put(client, set);
+            TenantMap.Shard<TreeSet<String>> shard = MAP.getShard(client);
+            synchronized (shard) {
+                TreeSet<String> set = shard.get();
+                if (set == null) {
+                    set = new TreeSet<String>();
+                } else {
+                    set = new TreeSet<String>(set);
+                }
+                if (addExact(set, cidr)) {
+                    shard.set(set);
+                    return true;
+                } else {
+                    return false;
+                }
             }
+        }
+        
+        private static boolean addExact(
+                TreeSet<String> set, String cidr
+        ) throws ProcessException {
             String key = Subnet.expandCIDR(cidr);
             String first = Subnet.getFirstIP(cidr);
             String last = Subnet.getLastIP(cidr);
@@ -192,7 +205,7 @@ public class Provider {
             }
         }
         
-        private static synchronized TreeSet<String> getClientSet(String client) {
+        private static TreeSet<String> getClientSet(String client) {
             return MAP.get(client);
         }
         
@@ -201,8 +214,7 @@ public class Provider {
                 return false;
             } else {
                 String key = Subnet.expandCIDR(cidr);
-                TreeSet<String> cidrSet = getClientSet(client);
-                return cidrSet.contains(key);
+                return MAP.contains(client, key);
             }
         }
         
@@ -254,38 +266,46 @@ public class Provider {
     }
     
     private static boolean dropExact(String token) {
-        if (token == null) {
-            return false;
-        } else if (token.contains("CIDR=")) {
-            if (CIDR.dropExact(token)) {
+        synchronized (JOURNAL) {
+            if (token == null) {
+                return false;
+            } else if (token.contains("CIDR=")) {
+                if (CIDR.dropExact(token)) {
+                    CHANGED = true;
+                    JOURNAL.drop(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (SET.dropExact(token)) {
                 CHANGED = true;
+                JOURNAL.drop(token);
                 return true;
             } else {
                 return false;
             }
-        } else if (SET.dropExact(token)) {
-            CHANGED = true;
-            return true;
-        } else {
-            return false;
         }
     }
 
     private static boolean addExact(String token) throws ProcessException {
-        if (token == null) {
-            return false;
-        } else if (token.contains("CIDR=")) {
-            if (CIDR.addExact(token)) {
+        synchronized (JOURNAL) {
+            if (token == null) {
+                return false;
+            } else if (token.contains("CIDR=")) {
+                if (CIDR.addExact(token)) {
+                    CHANGED = true;
+                    JOURNAL.add(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (SET.addExact(token)) {
                 CHANGED = true;
+                JOURNAL.add(token);
                 return true;
             } else {
                 return false;
             }
-        } else if (SET.addExact(token)) {
-            CHANGED = true;
-            return true;
-        } else {
-            return false;
         }
     }
 
@@ -403,19 +423,22 @@ public class Provider {
     }
 
     public static void store() {
-        if (CHANGED) {
+        if (JOURNAL.isCompactable(CHANGED)) {
             try {
 //                Server.logTrace("storing provider.set");
                 long time = System.currentTimeMillis();
                 File file = new File("./data/provider.set");
+                JOURNAL.rotate();
                 TreeSet<String> set = getAll();
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(set, outputStream);
+                    SerializationUtils.serialize(set, storeFile.getOutputStream());
+                    storeFile.commit();
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
+                JOURNAL.commit();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -426,15 +449,9 @@ public class Provider {
     public static void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/provider.set");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                TreeSet<String> set;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    set = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                TreeSet<String> set = StoreFile.deserialize(file);
                 for (String token : set) {
                     try {
                         addExact(token);
@@ -448,5 +465,15 @@ public class Provider {
                 Server.logError(ex);
             }
         }
+        JOURNAL.replay(file, new Journal.Replay() {
+            @Override
+            public void add(String token) throws ProcessException {
+                addExact(token);
+            }
+            @Override
+            public void drop(String token) {
+                dropExact(token);
+            }
+        });
     }
 }
@@ -0,0 +1,322 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.data;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Árvore de prefixos compactada das chaves de destinatário.
+ *
+ * As chaves de destinatário, domínio e seus prefixos terminados em ponto
+ * compartilham os trechos iniciais, assim como as chaves de um mesmo
+ * usuário, que ficam abaixo do trecho "usuario@dominio:". Deste modo uma
+ * única descida pela chave completa encontra todos os prefixos cadastrados,
+ * sem a montagem de uma nova string para cada prefixo consultado.
+ *
+ * A estrutura não é sincronizada e deve ser protegida pela lista que a usa.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+final class RecipientTrie<V> {
+
+    @SuppressWarnings("rawtypes")
+    private static final Node[] EMPTY = new Node[0];
+
+    private static final class Node<V> {
+
+        private String edge;
+        private Node<V>[] children;
+        private V value;
+
+        @SuppressWarnings("unchecked")
+        private Node(String edge, V value) {
+            this.edge = edge;
+            this.children = EMPTY;
+            this.value = value;
+        }
+
+        /**
+         * Busca binária pelo primeiro caractere do trecho dos filhos.
+         * @return o índice do filho ou o ponto de inserção negativo menos um.
+         */
+        private int indexOf(char character) {
+            int low = 0;
+            int high = children.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                char first = children[middle].edge.charAt(0);
+                if (first < character) {
+                    low = middle + 1;
+                } else if (first > character) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -(low + 1);
+        }
+
+        private void insert(int index, Node<V> child) {
+            Node<V>[] array = Arrays.copyOf(children, children.length + 1);
+            System.arraycopy(children, index, array, index + 1, children.length - index);
+            array[index] = child;
+            children = array;
+        }
+
+        private void delete(int index) {
+            Node<V>[] array = Arrays.copyOf(children, children.length - 1);
+            System.arraycopy(children, index + 1, array, index, array.length - index);
+            children = array;
+        }
+    }
+
+    /**
+     * Critério de aceitação dos valores encontrados na descida.
+     */
+    interface Filter<V> {
+
+        boolean accept(V value);
+    }
+
+    /**
+     * Resultado de uma descida.
+     */
+    static final class Match<V> {
+
+        /**
+         * Valor da chave completa.
+         */
+        private V exact;
+        /**
+         * Valor do prefixo terminado em ponto mais longo.
+         */
+        private V partial;
+        /**
+         * Posição do ponto no texto do prefixo mais longo.
+         */
+        private int index;
+
+        Match() {
+            reset();
+        }
+
+        void reset() {
+            exact = null;
+            partial = null;
+            index = -1;
+        }
+
+        V getExact() {
+            return exact;
+        }
+
+        V getPartial() {
+            return partial;
+        }
+
+        int getIndex() {
+            return index;
+        }
+    }
+
+    private final Node<V> root = new Node<V>("", null);
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    void clear() {
+        root.children = EMPTY;
+        root.value = null;
+        size = 0;
+    }
+
+    V get(String key) {
+        Node<V> node = root;
+        int position = 0;
+        while (position < key.length()) {
+            int index = node.indexOf(key.charAt(position));
+            if (index < 0) {
+                return null;
+            } else {
+                node = node.children[index];
+                if (key.startsWith(node.edge, position)) {
+                    position += node.edge.length();
+                } else {
+                    return null;
+                }
+            }
+        }
+        return node.value;
+    }
+
+    V put(String key, V value) {
+        Node<V> node = root;
+        int position = 0;
+        while (position < key.length()) {
+            int index = node.indexOf(key.charAt(position));
+            if (index < 0) {
+                node.insert(-(index + 1), new Node<V>(key.substring(position), value));
+                size++;
+                return null;
+            }
+            Node<V> child = node.children[index];
+            String edge = child.edge;
+            int common = 1;
+            int limit = Math.min(edge.length(), key.length() - position);
+            while (common < limit && edge.charAt(common) == key.charAt(position + common)) {
+                common++;
+            }
+            if (common < edge.length()) {
+                // Divide o trecho no ponto de divergência.
+                Node<V> middle = new Node<V>(edge.substring(0, common), null);
+                child.edge = edge.substring(common);
+                middle.insert(0, child);
+                node.children[index] = middle;
+                child = middle;
+            }
+            node = child;
+            position += common;
+        }
+        V old = node.value;
+        node.value = value;
+        if (old == null) {
+            size++;
+        }
+        return old;
+    }
+
+    V remove(String key) {
+        V old = remove(root, key, 0);
+        if (old != null) {
+            size--;
+        }
+        return old;
+    }
+
+    private static <V> V remove(Node<V> node, String key, int position) {
+        if (position == key.length()) {
+            V old = node.value;
+            node.value = null;
+            return old;
+        }
+        int index = node.indexOf(key.charAt(position));
+        if (index < 0) {
+            return null;
+        }
+        Node<V> child = node.children[index];
+        if (!key.startsWith(child.edge, position)) {
+            return null;
+        }
+        V old = remove(child, key, position + child.edge.length());
+        if (old != null && child.value == null) {
+            if (child.children.length == 0) {
+                node.delete(index);
+            } else if (child.children.length == 1) {
+                // Junta o trecho com o único filho.
+                Node<V> grandchild = child.children[0];
+                grandchild.edge = child.edge + grandchild.edge;
+                node.children[index] = grandchild;
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Copia todas as chaves e valores para um mapa.
+     * @param map o mapa de destino.
+     */
+    void copyTo(Map<String,V> map) {
+        copyTo(root, new StringBuilder(), map);
+    }
+
+    private static <V> void copyTo(Node<V> node, StringBuilder builder, Map<String,V> map) {
+        int length = builder.length();
+        builder.append(node.edge);
+        if (node.value != null) {
+            map.put(builder.toString(), node.value);
+        }
+        for (Node<V> child : node.children) {
+            copyTo(child, builder, map);
+        }
+        builder.setLength(length);
+    }
+
+    private static char charAt(String prefix, String text, int begin, int position) {
+        if (position < prefix.length()) {
+            return prefix.charAt(position);
+        } else {
+            return text.charAt(begin + position - prefix.length());
+        }
+    }
+
+    /**
+     * Desce pela chave formada pelo prefixo seguido do texto a partir do
+     * início indicado, registrando o valor da chave completa e o valor do
+     * prefixo mais longo terminado num ponto do texto a partir da posição
+     * mínima, considerando somente os valores aceitos pelo filtro.
+     * @param prefix o prefixo da chave, como o usuário seguido de dois pontos.
+     * @param text o texto da chave.
+     * @param begin o início da chave no texto.
+     * @param from a posição mínima dos pontos no texto.
+     * @param filter o filtro dos valores ou nulo para aceitar todos.
+     * @param match o resultado da descida.
+     * @return verdadeiro se algum valor foi encontrado.
+     */
+    boolean match(String prefix, String text, int begin, int from, Filter<V> filter, Match<V> match) {
+        int length = prefix.length() + text.length() - begin;
+        Node<V> node = root;
+        int position = 0;
+        while (position < length) {
+            int index = node.indexOf(charAt(prefix, text, begin, position));
+            if (index < 0) {
+                break;
+            }
+            node = node.children[index];
+            String edge = node.edge;
+            if (position + edge.length() > length) {
+                break;
+            }
+            int offset = 1;
+            while (offset < edge.length() && edge.charAt(offset) == charAt(prefix, text, begin, position + offset)) {
+                offset++;
+            }
+            if (offset < edge.length()) {
+                break;
+            }
+            position += offset;
+            V value = node.value;
+            if (value != null && (filter == null || filter.accept(value))) {
+                int dot = begin + position - prefix.length() - 1;
+                if (position == length) {
+                    match.exact = value;
+                } else if (dot >= from && text.charAt(dot) == '.') {
+                    match.partial = value;
+                    match.index = dot;
+                }
+            }
+        }
+        return match.exact != null || match.partial != null;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.data;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Listas de um critério separadas por cliente: a lista global,
+ * de cliente nulo, e uma lista para cada usuário.
+ *
+ * Cada lista fica numa partição própria, cujo valor publicado é lido
+ * sem sincronização. As alterações são sincronizadas somente na própria
+ * partição, de modo que a edição da lista de um usuário não bloqueia
+ * as consultas nem as alterações das listas dos demais usuários.
+ *
+ * As partições não são removidas, somente esvaziadas, para que uma
+ * alteração concorrente nunca seja feita numa partição descartada.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+class TenantMap<V> {
+
+    /**
+     * Chave da lista global, que não pode ser nula no mapa concorrente.
+     */
+    private static final String GLOBAL = "";
+
+    /**
+     * Partição da lista de um cliente.
+     *
+     * As alterações devem ser feitas sincronizadas na própria partição.
+     */
+    static final class Shard<V> {
+
+        private volatile V value = null;
+
+        V get() {
+            return value;
+        }
+
+        void set(V value) {
+            this.value = value;
+        }
+    }
+
+    private final ConcurrentHashMap<String,Shard<V>> MAP =
+            new ConcurrentHashMap<String,Shard<V>>();
+
+    private static String getKey(String client) {
+        return client == null ? GLOBAL : client;
+    }
+
+    /**
+     * @param client o cliente ou nulo para a lista global.
+     * @return o valor publicado da lista do cliente ou nulo se estiver vazia.
+     */
+    V get(String client) {
+        Shard<V> shard = MAP.get(getKey(client));
+        if (shard == null) {
+            return null;
+        } else {
+            return shard.get();
+        }
+    }
+
+    /**
+     * @param client o cliente ou nulo para a lista global.
+     * @return a partição do cliente, criada se ainda não existir.
+     */
+    Shard<V> getShard(String client) {
+        String key = getKey(client);
+        Shard<V> shard = MAP.get(key);
+        if (shard == null) {
+            shard = new Shard<V>();
+            Shard<V> previous = MAP.putIfAbsent(key, shard);
+            if (previous != null) {
+                shard = previous;
+            }
+        }
+        return shard;
+    }
+
+    boolean isEmpty() {
+        for (Shard<V> shard : MAP.values()) {
+            if (shard.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void clear() {
+        for (Shard<V> shard : MAP.values()) {
+            synchronized (shard) {
+                shard.set(null);
+            }
+        }
+    }
+
+    /**
+     * @return os clientes com lista não vazia, sendo nulo a lista global.
+     */
+    ArrayList<String> getClientList() {
+        ArrayList<String> clientList = new ArrayList<String>(MAP.size());
+        for (Map.Entry<String,Shard<V>> entry : MAP.entrySet()) {
+            if (entry.getValue().get() != null) {
+                String key = entry.getKey();
+                clientList.add(key.equals(GLOBAL) ? null : key);
+            }
+        }
+        return clientList;
+    }
+
+    /**
+     * Listas ordenadas copiadas a cada alteração.
+     *
+     * O conjunto publicado nunca é alterado e pode ser percorrido
+     * pelas consultas sem cópia e sem sincronização.
+     */
+    static final class Sorted<E> extends TenantMap<TreeSet<E>> {
+
+        boolean contains(String client, E element) {
+            TreeSet<E> set = get(client);
+            return set != null && set.contains(element);
+        }
+
+        boolean add(String client, E element) {
+            Shard<TreeSet<E>> shard = getShard(client);
+            synchronized (shard) {
+                TreeSet<E> set = shard.get();
+                if (set == null) {
+                    set = new TreeSet<E>();
+                } else if (set.contains(element)) {
+                    return false;
+                } else {
+                    set = new TreeSet<E>(set);
+                }
+                set.add(element);
+                shard.set(set);
+                return true;
+            }
+        }
+
+        boolean remove(String client, E element) {
+            Shard<TreeSet<E>> shard = getShard(client);
+            synchronized (shard) {
+                TreeSet<E> set = shard.get();
+                if (set == null || !set.contains(element)) {
+                    return false;
+                } else {
+                    set = new TreeSet<E>(set);
+                    set.remove(element);
+                    shard.set(set.isEmpty() ? null : set);
+                    return true;
+                }
+            }
+        }
+    }
+}
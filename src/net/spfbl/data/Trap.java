@@ -18,15 +18,15 @@
 package net.spfbl.data;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import net.spfbl.core.Client;
+import net.spfbl.core.Journal;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Server;
+import net.spfbl.core.StoreFile;
 import net.spfbl.core.User;
 import net.spfbl.whois.Domain;
 import org.apache.commons.lang3.SerializationUtils;
@@ -40,13 +40,21 @@ public class Trap {
     
     /**
      * Conjunto de destinatarios de spamtrap.
+     * 
+     * As chaves de usuário ficam abaixo do trecho "usuario@dominio:",
+     * de modo que cada consulta desce uma única vez pela chave global
+     * e uma vez pela chave de cada usuário.
      */
-//    private static final HashSet<String> SET = new HashSet<String>();
-    private static final HashMap<String,Long> MAP = new HashMap<String,Long>();
+    private static final RecipientTrie<Long> MAP = new RecipientTrie<Long>();
     /**
      * Flag que indica se o cache foi modificado.
      */
     private static boolean CHANGED = false;
+    
+    /**
+     * Diário das alterações desde a última gravação completa.
+     */
+    private static final Journal JOURNAL = new Journal("trap");
 
     private synchronized static boolean dropExact(String token) {
         if (token == null) {
@@ -55,6 +63,7 @@ public class Trap {
             return false;
         } else {
             CHANGED = true;
+            JOURNAL.drop(token);
             return true;
         }
     }
@@ -129,8 +138,12 @@ public class Trap {
         } else {
             Long timeOld = MAP.put(token, timeNew);
             if (timeOld == null) {
+                JOURNAL.put(token, timeNew.toString());
                 return CHANGED = true;
             } else {
+                if (!timeOld.equals(timeNew)) {
+                    JOURNAL.put(token, timeNew.toString());
+                }
                 long timeNow = System.currentTimeMillis();
                 boolean changed = timeOld < timeNow != timeNew < timeNow;
                 CHANGED |= changed;
@@ -139,12 +152,63 @@ public class Trap {
         }
     }
 
+    /**
+     * Inclui os registros em lote numa única sincronização.
+     * @param map o tempo de cada destinatário já normalizado.
+     * @param journal se as inclusões devem ser registradas no diário.
+     * @return a quantidade de registros incluídos ou alterados.
+     */
+    private synchronized static int putAllExact(Map<String,Long> map, boolean journal) {
+        int count = 0;
+        for (Map.Entry<String,Long> entry : map.entrySet()) {
+            String token = entry.getKey();
+            Long timeNew = entry.getValue();
+            if (token != null && timeNew != null) {
+                Long timeOld = MAP.put(token, timeNew);
+                if (journal && !timeNew.equals(timeOld)) {
+                    JOURNAL.put(token, timeNew.toString());
+                }
+                if (timeOld == null) {
+                    CHANGED = true;
+                    count++;
+                } else {
+                    long timeNow = System.currentTimeMillis();
+                    if (timeOld < timeNow != timeNew < timeNow) {
+                        CHANGED = true;
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Inclui em lote os spamtraps e inexistentes de uma importação,
+     * descartando os destinatários inválidos.
+     * @param map o tempo de cada destinatário, com ou sem o usuário.
+     * @return a quantidade de registros incluídos ou alterados.
+     */
+    public static int putAll(Map<String,Long> map) {
+        HashMap<String,Long> normalized = new HashMap<String,Long>(map.size() * 2);
+        for (Map.Entry<String,Long> entry : map.entrySet()) {
+            String token = entry.getKey();
+            int index = token.indexOf(':');
+            if (index == -1 ? isValid(token) : Domain.isValidEmail(token.substring(0, index))
+                    && isValid(token.substring(index + 1))) {
+                normalized.put(token.toLowerCase(), entry.getValue());
+            }
+        }
+        return putAllExact(normalized, true);
+    }
+
     private synchronized static boolean addTrapExact(String token) {
         if (token == null) {
             return false;
         } else {
             Long time = MAP.put(token, 0L);
             if (time == null || !time.equals(0L)) {
+                JOURNAL.put(token, "0");
                 return CHANGED = true;
             } else {
                 return false;
@@ -152,20 +216,22 @@ public class Trap {
         }
     }
 
-    public synchronized static TreeSet<String> getTrapAllSet() {
+    public static TreeSet<String> getTrapAllSet() {
         TreeSet<String> blockSet = new TreeSet<String>();
-        for (String key : MAP.keySet()) {
-            if (System.currentTimeMillis() > MAP.get(key)) {
+        HashMap<String,Long> map = getMap();
+        for (String key : map.keySet()) {
+            if (System.currentTimeMillis() > map.get(key)) {
                 blockSet.add(key);
             }
         }
         return blockSet;
     }
     
-    public synchronized static TreeSet<String> getInexistentAllSet() {
+    public static TreeSet<String> getInexistentAllSet() {
         TreeSet<String> blockSet = new TreeSet<String>();
-        for (String key : MAP.keySet()) {
-            if (System.currentTimeMillis() <= MAP.get(key)) {
+        HashMap<String,Long> map = getMap();
+        for (String key : map.keySet()) {
+            if (System.currentTimeMillis() <= map.get(key)) {
                 blockSet.add(key);
             }
         }
@@ -181,21 +247,23 @@ public class Trap {
     }
     
     public synchronized static HashMap<String,Long> getMap() {
-        HashMap<String,Long> map = new HashMap<String,Long>();
-        map.putAll(MAP);
+        HashMap<String,Long> map = new HashMap<String,Long>(MAP.size() * 2);
+        MAP.copyTo(map);
         return map;
     }
 
     public synchronized static boolean containsTrapExact(String address) {
-        return System.currentTimeMillis() > MAP.get(address);
+        Long time = getTime(address);
+        return time != null && System.currentTimeMillis() > time;
     }
     
     public synchronized static boolean containsInexistentExact(String address) {
-        return System.currentTimeMillis() <= MAP.get(address);
+        Long time = getTime(address);
+        return time != null && System.currentTimeMillis() <= time;
     }
     
     public synchronized static boolean containsAnythingExact(String address) {
-        return MAP.containsKey(address);
+        return getTime(address) != null;
     }
 
     public static boolean isValid(String recipient) {
@@ -481,6 +549,84 @@ public class Trap {
         return trapSet;
     }
 
+    /**
+     * Filtro dos registros pela situação na data da consulta.
+     */
+    private static final class Kind implements RecipientTrie.Filter<Long> {
+        
+        private final boolean trap;
+        private final long time = System.currentTimeMillis();
+        
+        private Kind(boolean trap) {
+            this.trap = trap;
+        }
+        
+        @Override
+        public boolean accept(Long value) {
+            return trap == time > value;
+        }
+    }
+    
+    /**
+     * Busca o registro de maior prioridade do destinatário.
+     * 
+     * A prioridade é a do destinatário e do domínio exatos, globais antes
+     * dos usuários, seguidos dos prefixos de domínio e depois dos prefixos
+     * de destinatário terminados em ponto, dos mais longos aos mais curtos.
+     * @param recipient o destinatário válido em minúsculo.
+     * @param filter o filtro dos registros ou nulo para aceitar todos.
+     * @param emailArray os e-mails dos usuários, que podem ser nulos.
+     * @return o tempo do registro encontrado ou nulo se não houver.
+     */
+    private static synchronized Long find(
+            String recipient,
+            RecipientTrie.Filter<Long> filter,
+            String... emailArray
+    ) {
+        if (MAP.isEmpty()) {
+            return null;
+        }
+        int at = recipient.lastIndexOf('@');
+        RecipientTrie.Match<Long> recipientMatch = new RecipientTrie.Match<Long>();
+        RecipientTrie.Match<Long> domainMatch = new RecipientTrie.Match<Long>();
+        Long recipientPartial = null;
+        int recipientIndex = -1;
+        Long domainPartial = null;
+        int domainIndex = -1;
+        for (int index = -1; index < emailArray.length; index++) {
+            String prefix;
+            if (index == -1) {
+                prefix = "";
+            } else if (emailArray[index] == null) {
+                continue;
+            } else {
+                prefix = emailArray[index] + ':';
+            }
+            recipientMatch.reset();
+            domainMatch.reset();
+            MAP.match(prefix, recipient, 0, at + 1, filter, recipientMatch);
+            MAP.match(prefix, recipient, at, at + 1, filter, domainMatch);
+            if (recipientMatch.getExact() != null) {
+                return recipientMatch.getExact();
+            } else if (domainMatch.getExact() != null) {
+                return domainMatch.getExact();
+            }
+            if (domainMatch.getIndex() > domainIndex) {
+                domainPartial = domainMatch.getPartial();
+                domainIndex = domainMatch.getIndex();
+            }
+            if (recipientMatch.getIndex() > recipientIndex) {
+                recipientPartial = recipientMatch.getPartial();
+                recipientIndex = recipientMatch.getIndex();
+            }
+        }
+        if (domainPartial == null) {
+            return recipientPartial;
+        } else {
+            return domainPartial;
+        }
+    }
+
     public static boolean containsTrap(Client client, User user, String recipient) {
         // Definição do e-mail do usuário.
         String userEmail = null;
@@ -495,37 +641,7 @@ public class Trap {
             return false;
         } else {
             recipient = recipient.toLowerCase();
-            int index2 = recipient.lastIndexOf('@');
-            String domain = recipient.substring(recipient.lastIndexOf('@'));
-            if (containsTrapExact(recipient)) {
-                return true;
-            } else if (containsTrapExact(domain)) {
-                return true;
-            } else if (containsTrapExact(userEmail + ':' + recipient)) {
-                return true;
-            } else if (containsTrapExact(userEmail + ':' + domain)) {
-                return true;
-            } else {
-                int index3 = domain.length();
-                while ((index3 = domain.lastIndexOf('.', index3 - 1)) > index2) {
-                    String subdomain = domain.substring(0, index3 + 1);
-                    if (containsTrapExact(subdomain)) {
-                        return true;
-                    } else if (containsTrapExact(userEmail + ':' + subdomain)) {
-                        return true;
-                    }
-                }
-                int index4 = recipient.length();
-                while ((index4 = recipient.lastIndexOf('.', index4 - 1)) > index2) {
-                    String subrecipient = recipient.substring(0, index4 + 1);
-                    if (containsTrapExact(subrecipient)) {
-                        return true;
-                    } else if (containsTrapExact(userEmail + ':' + subrecipient)) {
-                        return true;
-                    }
-                }
-                return false;
-            }
+            return find(recipient, new Kind(true), userEmail) != null;
         }
     }
     
@@ -543,37 +659,7 @@ public class Trap {
             return false;
         } else {
             recipient = recipient.toLowerCase();
-            int index2 = recipient.lastIndexOf('@');
-            String domain = recipient.substring(recipient.lastIndexOf('@'));
-            if (containsInexistentExact(recipient)) {
-                return true;
-            } else if (containsInexistentExact(domain)) {
-                return true;
-            } else if (containsInexistentExact(userEmail + ':' + recipient)) {
-                return true;
-            } else if (containsInexistentExact(userEmail + ':' + domain)) {
-                return true;
-            } else {
-                int index3 = domain.length();
-                while ((index3 = domain.lastIndexOf('.', index3 - 1)) > index2) {
-                    String subdomain = domain.substring(0, index3 + 1);
-                    if (containsInexistentExact(subdomain)) {
-                        return true;
-                    } else if (containsInexistentExact(userEmail + ':' + subdomain)) {
-                        return true;
-                    }
-                }
-                int index4 = recipient.length();
-                while ((index4 = recipient.lastIndexOf('.', index4 - 1)) > index2) {
-                    String subrecipient = recipient.substring(0, index4 + 1);
-                    if (containsInexistentExact(subrecipient)) {
-                        return true;
-                    } else if (containsInexistentExact(userEmail + ':' + subrecipient)) {
-                        return true;
-                    }
-                }
-                return false;
-            }
+            return find(recipient, new Kind(false), userEmail) != null;
         }
     }
     
@@ -582,47 +668,9 @@ public class Trap {
             return false;
         } else {
             recipient = recipient.toLowerCase();
-            int index2 = recipient.lastIndexOf('@');
-            String domain = recipient.substring(recipient.lastIndexOf('@'));
             String emailClient = client == null ? null : client.getEmail();
             String emailUser = user == null ? null : user.getEmail();
-            if (containsAnythingExact(recipient)) {
-                return true;
-            } else if (containsAnythingExact(domain)) {
-                return true;
-            } else if (emailClient != null && containsAnythingExact(emailClient + ':' + recipient)) {
-                return true;
-            } else if (emailClient != null && containsAnythingExact(emailClient + ':' + domain)) {
-                return true;
-            } else if (emailUser != null && containsAnythingExact(emailUser + ':' + recipient)) {
-                return true;
-            } else if (emailUser != null && containsAnythingExact(emailUser + ':' + domain)) {
-                return true;
-            } else {
-                int index3 = domain.length();
-                while ((index3 = domain.lastIndexOf('.', index3 - 1)) > index2) {
-                    String subdomain = domain.substring(0, index3 + 1);
-                    if (containsAnythingExact(subdomain)) {
-                        return true;
-                    } else if (emailClient != null && containsAnythingExact(emailClient + ':' + subdomain)) {
-                        return true;
-                    } else if (emailUser != null && containsAnythingExact(emailUser + ':' + subdomain)) {
-                        return true;
-                    }
-                }
-                int index4 = recipient.length();
-                while ((index4 = recipient.lastIndexOf('.', index4 - 1)) > index2) {
-                    String subrecipient = recipient.substring(0, index4 + 1);
-                    if (containsAnythingExact(subrecipient)) {
-                        return true;
-                    } else if (emailClient != null && containsAnythingExact(emailClient + ':' + subrecipient)) {
-                        return true;
-                    } else if (emailUser != null && containsAnythingExact(emailUser + ':' + subrecipient)) {
-                        return true;
-                    }
-                }
-                return false;
-            }
+            return find(recipient, null, emailClient, emailUser) != null;
         }
     }
     
@@ -678,55 +726,27 @@ public class Trap {
             return null;
         } else {
             recipient = recipient.toLowerCase();
-            int index2 = recipient.lastIndexOf('@');
-            String domain = recipient.substring(recipient.lastIndexOf('@'));
-            Long time;
-            if ((time = Trap.getTime(recipient)) != null) {
-                return time;
-            } else if ((time = Trap.getTime(domain)) != null) {
-                return time;
-            } else if (userEmail != null && (time = Trap.getTime(userEmail + ':' + recipient)) != null) {
-                return time;
-            } else if (userEmail != null && (time = Trap.getTime(userEmail + ':' + domain)) != null) {
-                return time;
-            } else {
-                int index3 = domain.length();
-                while ((index3 = domain.lastIndexOf('.', index3 - 1)) > index2) {
-                    String subdomain = domain.substring(0, index3 + 1);
-                    if ((time = Trap.getTime(subdomain)) != null) {
-                        return time;
-                    } else if (userEmail != null && (time = Trap.getTime(userEmail + ':' + subdomain)) != null) {
-                        return time;
-                    }
-                }
-                int index4 = recipient.length();
-                while ((index4 = recipient.lastIndexOf('.', index4 - 1)) > index2) {
-                    String subrecipient = recipient.substring(0, index4 + 1);
-                    if ((time = Trap.getTime(subrecipient)) != null) {
-                        return time;
-                    } else if (userEmail != null && (time = Trap.getTime(userEmail + ':' + subrecipient)) != null) {
-                        return time;
-                    }
-                }
-                return null;
-            }
+            return find(recipient, null, userEmail);
         }
     }
 
     public static void store() {
-        if (CHANGED) {
+        if (JOURNAL.isCompactable(CHANGED)) {
             try {
 //                Server.logTrace("storing trap.map");
                 long time = System.currentTimeMillis();
                 File file = new File("./data/trap.map");
+                JOURNAL.rotate();
                 HashMap<String,Long> map = getMap();
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    SerializationUtils.serialize(map, storeFile.getOutputStream());
+                    storeFile.commit();
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
+                JOURNAL.commit();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -737,24 +757,29 @@ public class Trap {
     public static void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/trap.map");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                Map<String,Long> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    map = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
-                for (String token : map.keySet()) {
-                    Long time2 = map.get(token);
-                    putExact(token, time2);
-                }
+                Map<String,Long> map = StoreFile.deserialize(file);
+                putAllExact(map, false);
                 CHANGED = false;
                 Server.logLoad(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
             }
         }
+        JOURNAL.replay(file, new Journal.Replay() {
+            @Override
+            public void put(String token, String value) throws ProcessException {
+                try {
+                    putExact(token, Long.parseLong(value));
+                } catch (NumberFormatException ex) {
+                    throw new ProcessException("INVALID TIME", ex);
+                }
+            }
+            @Override
+            public void drop(String token) {
+                dropExact(token);
+            }
+        });
     }
 }
@@ -18,25 +18,27 @@
 package net.spfbl.data;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.NavigableSet;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import net.spfbl.core.Client;
 import net.spfbl.core.Core;
+import net.spfbl.core.DumpWriter;
+import net.spfbl.core.Journal;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Server;
+import net.spfbl.core.StoreFile;
 import net.spfbl.core.User;
 import net.spfbl.spf.SPF;
 import net.spfbl.whois.Domain;
@@ -57,15 +59,32 @@ public class White {
      * Flag que indica se o cache foi modificado.
      */
     private static boolean CHANGED = false;
+    
+    /**
+     * Flag que indica se há blocos CIDR novos a simplificar.
+     */
+    private static boolean SIMPLIFY = false;
+    
+    /**
+     * Diário das alterações desde a última gravação completa.
+     */
+    private static final Journal JOURNAL = new Journal("white");
 
     /**
      * Conjunto de remetentes liberados.
      */
     private static class SET {
         
-        private static final HashSet<String> SET = new HashSet<String>();
+        private static final Set<String> SET = Collections.newSetFromMap(
+                new ConcurrentHashMap<String,Boolean>()
+        );
+        
+        /**
+         * Filtro que descarta as consultas ausentes sem tocar no conjunto.
+         */
+        private static final BloomFilter FILTER = new BloomFilter(SET);
         
-        public static synchronized boolean isEmpty() {
+        public static boolean isEmpty() {
             return SET.isEmpty();
         }
         
@@ -73,25 +92,58 @@ public class White {
             TreeSet<String> set = new TreeSet<String>();
             set.addAll(SET);
             SET.clear();
+            FILTER.rebuild();
             return set;
         }
         
-        public static synchronized TreeSet<String> getAll() {
+        public static TreeSet<String> getAll() {
             TreeSet<String> set = new TreeSet<String>();
             set.addAll(SET);
             return set;
         }
         
-        private static synchronized boolean addExact(String token) {
-            return SET.add(token);
+        public static int getAll(DumpWriter writer) throws IOException {
+            int count = 0;
+            for (String token : SET) {
+                if (writer.write(token)) {
+                    count++;
+                }
+            }
+            return count;
         }
         
-        private static synchronized boolean dropExact(String token) {
-            return SET.remove(token);
+        public static int get(DumpWriter writer) throws IOException {
+            int count = 0;
+            for (String token : SET) {
+                int index = Math.max(0, token.indexOf(':'));
+                String email = token.substring(0, index);
+                if (!Domain.isValidEmail(email) && writer.write(token)) {
+                    count++;
+                }
+            }
+            return count;
         }
         
-        public static synchronized boolean contains(String token) {
-            return SET.contains(token);
+        private static boolean addExact(String token) {
+            if (SET.add(token)) {
+                FILTER.add(token);
+                return true;
+            } else {
+                return false;
+            }
+        }
+        
+        private static boolean dropExact(String token) {
+            if (SET.remove(token)) {
+                FILTER.remove(token);
+                return true;
+            } else {
+                return false;
+            }
+        }
+        
+        public static boolean contains(String token) {
+            return FILTER.mightContain(token) && SET.contains(token);
         }
     }
     
@@ -100,33 +152,64 @@ public class White {
      */
     private static class WHOIS {
         
-        private static final HashMap<String,TreeSet<String>> MAP = new HashMap<String,TreeSet<String>>();
+        private static final TenantMap.Sorted<String> MAP = new TenantMap.Sorted<String>();
         
-        public static synchronized boolean isEmpty() {
+        public static boolean isEmpty() {
             return MAP.isEmpty();
         }
         
-        public static synchronized TreeSet<String> clear() {
+        public static TreeSet<String> clear() {
             TreeSet<String> set = getAll();
             MAP.clear();
             return set;
         }
         
-        public static synchronized TreeSet<String> getAll() {
+        public static TreeSet<String> getAll() {
             TreeSet<String> set = new TreeSet<String>();
-            for (String client : MAP.keySet()) {
-                for (String whois : MAP.get(client)) {
-                    if (client == null) {
-                        set.add("WHOIS/" + whois);
-                    } else {
-                        set.add(client + ":WHOIS/" + whois);
+            for (String client : MAP.getClientList()) {
+                TreeSet<String> whoisSet = MAP.get(client);
+                if (whoisSet != null) {
+                    for (String whois : whoisSet) {
+                        if (client == null) {
+                            set.add("WHOIS/" + whois);
+                        } else {
+                            set.add(client + ":WHOIS/" + whois);
+                        }
                     }
                 }
-        }
+            }
             return set;
         }
         
-        private static synchronized boolean dropExact(String token) {
+        public static int getAll(DumpWriter writer) throws IOException {
+            int count = 0;
+            for (String client : MAP.getClientList()) {
+                TreeSet<String> whoisSet = MAP.get(client);
+                if (whoisSet != null) {
+                    for (String whois : whoisSet) {
+                        if (writer.write(client, "WHOIS/", whois)) {
+                            count++;
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+        
+        public static int get(DumpWriter writer) throws IOException {
+            int count = 0;
+            TreeSet<String> whoisSet = MAP.get(null);
+            if (whoisSet != null) {
+                for (String whois : whoisSet) {
+                    if (writer.write(null, "WHOIS/", whois)) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+        
+        private static boolean dropExact(String token) {
             int index = token.indexOf('/');
             String whois = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -136,19 +219,10 @@ public class White {
             } else {
                 client = token.substring(0, index);
             }
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                return false;
-            } else {
-                boolean removed = set.remove(whois);
-                if (set.isEmpty()) {
-                    MAP.remove(client);
-                }
-                return removed;
-            }
+            return MAP.remove(client, whois);
         }
         
-        private static synchronized boolean addExact(String token) {
+        private static boolean addExact(String token) {
             int index = token.indexOf('/');
             String whois = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -158,39 +232,14 @@ public class White {
             } else {
                 client = token.substring(0, index);
             }
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                set = new TreeSet<String>();
-                MAP.put(client, set);
-            }
-            return set.add(whois);
-        }
-        
-        private static synchronized TreeSet<String> getClientSet(String client) {
-            return MAP.get(client);
+            return MAP.add(client, whois);
         }
         
         public static boolean contains(String client, String dnsbl) {
             if (dnsbl == null) {
                 return false;
             } else {
-                TreeSet<String> dnsblSet = getClientSet(client);
-                if (dnsblSet == null) {
-                    return false;
-                } else {
-                    return dnsblSet.contains(dnsbl);
-                }
-            }
-        }
-        
-        private static String[] getArray(String client) {
-            TreeSet<String> set = getClientSet(client);
-            if (set == null) {
-                return null;
-            } else {
-                int size = set.size();
-                String[] array = new String[size];
-                return set.toArray(array);
+                return MAP.contains(client, dnsbl);
             }
         }
         
@@ -198,72 +247,70 @@ public class White {
             if (tokenSet.isEmpty()) {
                 return null;
             } else {
-                TreeSet<String> subSet = new TreeSet<String>();
-                String[] array = getArray(null);
-                if (array != null) {
-                    subSet.addAll(Arrays.asList(array));
+                TreeSet<String> whoisSet = MAP.get(null);
+                if (whoisSet != null) {
+                    for (String whois : whoisSet) {
+                        if (matches(whois, tokenSet)) {
+                            return whois;
+                        }
+                    }
                 }
-                if (client != null) {
-                    array = getArray(client);
-                    if (array != null) {
-                        for (String whois : array) {
-                            subSet.add(client + ':' + whois);
+                if (client != null && (whoisSet = MAP.get(client)) != null) {
+                    for (String whois : whoisSet) {
+                        if (matches(whois, tokenSet)) {
+                            return client + ':' + whois;
                         }
                     }
                 }
-                if (subSet.isEmpty()) {
-                    return null;
-                } else {
-                    for (String whois : subSet) {
-                        try {
-                            char signal = '=';
-                            int indexValue = whois.indexOf(signal);
-                            if (indexValue == -1) {
-                                signal = '<';
-                                indexValue = whois.indexOf(signal);
-                                if (indexValue == -1) {
-                                    signal = '>';
-                                    indexValue = whois.indexOf(signal);
+                return null;
+            }
+        }
+        
+        private static boolean matches(String whois, Set<String> tokenSet) {
+            try {
+                char signal = '=';
+                int indexValue = whois.indexOf(signal);
+                if (indexValue == -1) {
+                    signal = '<';
+                    indexValue = whois.indexOf(signal);
+                    if (indexValue == -1) {
+                        signal = '>';
+                        indexValue = whois.indexOf(signal);
+                    }
+                }
+                if (indexValue != -1) {
+                    String key = whois.substring(0, indexValue);
+                    String criterion = whois.substring(indexValue + 1);
+                    for (String token : tokenSet) {
+                        String value = null;
+                        if (Subnet.isValidIP(token)) {
+                            value = Subnet.getValue(token, key);
+                        } else if (token.startsWith(".") && Domain.isHostname(token)) {
+                            value = Domain.getValue(token, key);
+                        } else if (!token.startsWith(".") && Domain.isHostname(token.substring(1))) {
+                            value = Domain.getValue(token, key);
+                        }
+                        if (value != null) {
+                            if (signal == '=') {
+                                if (criterion.equals(value)) {
+                                    return true;
                                 }
-                            }
-                            if (indexValue != -1) {
-                                int indexUser = whois.indexOf(':');
-                                String key = whois.substring(indexUser + 1, indexValue);
-                                String criterion = whois.substring(indexValue + 1);
-                                for (String token : tokenSet) {
-                                    String value = null;
-                                    if (Subnet.isValidIP(token)) {
-                                        value = Subnet.getValue(token, key);
-                                    } else if (token.startsWith(".") && Domain.isHostname(token)) {
-                                        value = Domain.getValue(token, key);
-                                    } else if (!token.startsWith(".") && Domain.isHostname(token.substring(1))) {
-                                        value = Domain.getValue(token, key);
-                                    }
-                                    if (value != null) {
-                                        if (signal == '=') {
-                                            if (criterion.equals(value)) {
-                                                return whois;
-                                            }
-                                        } else if (value.length() > 0) {
-                                            int criterionInt = parseIntWHOIS(criterion);
-                                            int valueInt = parseIntWHOIS(value);
-                                            if (signal == '<' && valueInt < criterionInt) {
-                                                return whois;
-                                            } else if (signal == '>' && valueInt > criterionInt) {
-                                                return whois;
-                                            }
-                                        }
-                                    }
+                            } else if (value.length() > 0) {
+                                int criterionInt = parseIntWHOIS(criterion);
+                                int valueInt = parseIntWHOIS(value);
+                                if (signal == '<' && valueInt < criterionInt) {
+                                    return true;
+                                } else if (signal == '>' && valueInt > criterionInt) {
+                                    return true;
                                 }
                             }
-                        } catch (Exception ex) {
-                            Server.logError(ex);
                         }
                     }
-                    return null;
                 }
-
+            } catch (Exception ex) {
+                Server.logError(ex);
             }
+            return false;
         }
     }
     
@@ -272,33 +319,67 @@ public class White {
      */
     private static class REGEX {
         
-        private static final HashMap<String,ArrayList<Pattern>> MAP = new HashMap<String,ArrayList<Pattern>>();
+        /**
+         * Listas publicadas de cada cliente, copiadas a cada alteração.
+         */
+        private static final TenantMap<ArrayList<Pattern>> MAP = new TenantMap<ArrayList<Pattern>>();
         
-        public static synchronized boolean isEmpty() {
+        public static boolean isEmpty() {
             return MAP.isEmpty();
         }
         
-        public static synchronized TreeSet<String> clear() {
+        public static TreeSet<String> clear() {
             TreeSet<String> set = getAll();
             MAP.clear();
             return set;
         }
         
-        public static synchronized TreeSet<String> getAll() {
+        public static TreeSet<String> getAll() {
             TreeSet<String> set = new TreeSet<String>();
-            for (String client : MAP.keySet()) {
-                for (Pattern pattern : MAP.get(client)) {
-                    if (client == null) {
-                        set.add("REGEX=" + pattern);
-                    } else {
-                        set.add(client + ":REGEX=" + pattern);
+            for (String client : MAP.getClientList()) {
+                ArrayList<Pattern> patternList = MAP.get(client);
+                if (patternList != null) {
+                    for (Pattern pattern : patternList) {
+                        if (client == null) {
+                            set.add("REGEX=" + pattern);
+                        } else {
+                            set.add(client + ":REGEX=" + pattern);
+                        }
                     }
                 }
             }
             return set;
         }
         
-        private static synchronized boolean dropExact(String token) {
+        public static int getAll(DumpWriter writer) throws IOException {
+            int count = 0;
+            for (String client : MAP.getClientList()) {
+                ArrayList<Pattern> patternList = MAP.get(client);
+                if (patternList != null) {
+                    for (Pattern pattern : patternList) {
+                        if (writer.write(client, "REGEX=", pattern.pattern())) {
+                            count++;
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+        
+        public static int get(DumpWriter writer) throws IOException {
+            int count = 0;
+            ArrayList<Pattern> patternList = MAP.get(null);
+            if (patternList != null) {
+                for (Pattern pattern : patternList) {
+                    if (writer.write(null, "REGEX=", pattern.pattern())) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+        
+        private static boolean dropExact(String token) {
             int index = token.indexOf('=');
             String regex = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -308,25 +389,27 @@ public class White {
             } else {
                 client = token.substring(0, index);
             }
-            ArrayList<Pattern> list = MAP.get(client);
-            if (list == null) {
-                return false;
-            } else {
-                for (index = 0; index < list.size(); index++) {
-                    Pattern pattern = list.get(index);
-                    if (regex.equals(pattern.pattern())) {
-                        list.remove(index);
-                        if (list.isEmpty()) {
-                            MAP.remove(client);
+            TenantMap.Shard<ArrayList<Pattern>> shard = MAP.getShard(client);
+            synchronized (shard) {
+                ArrayList<Pattern> list = shard.get();
+                if (list == null) {
+                    return false;
+                } else {
+                    for (index = 0; index < list.size(); index++) {
+                        Pattern pattern = list.get(index);
+                        if (regex.equals(pattern.pattern())) {
+                            list = new ArrayList<Pattern>(list);
+                            list.remove(index);
+                            shard.set(list.isEmpty() ? null : list);
+                            return true;
                         }
-                        return true;
                     }
+                    return false;
                 }
-                return false;
             }
         }
         
-        private static synchronized boolean addExact(String token) {
+        private static boolean addExact(String token) {
             int index = token.indexOf('=');
             String regex = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -336,23 +419,28 @@ public class White {
             } else {
                 client = token.substring(0, index);
             }
-            ArrayList<Pattern> list = MAP.get(client);
-            if (list == null) {
-                list = new ArrayList<Pattern>();
-                MAP.put(client, list);
-            }
-            for (index = 0; index < list.size(); index++) {
-                Pattern pattern = list.get(index);
-                if (regex.equals(pattern.pattern())) {
-                    return false;
+            TenantMap.Shard<ArrayList<Pattern>> shard = MAP.getShard(client);
+            synchronized (shard) {
+                ArrayList<Pattern> list = shard.get();
+                if (list == null) {
+                    list = new ArrayList<Pattern>();
+                } else {
+                    for (index = 0; index < list.size(); index++) {
+                        Pattern pattern = list.get(index);
+                        if (regex.equals(pattern.pattern())) {
+                            return false;
+                        }
+                    }
+                    list = new ArrayList<Pattern>(list);
                 }
+                Pattern pattern = Pattern.compile(regex);
+                list.add(pattern);
+                shard.set(list);
+                return true;
             }
-            Pattern pattern = Pattern.compile(regex);
-            list.add(pattern);
-            return true;
         }
         
-        private static synchronized ArrayList<Pattern> getClientList(String client) {
+        private static ArrayList<Pattern> getClientList(String client) {
             return MAP.get(client);
         }
         
@@ -374,26 +462,15 @@ public class White {
             }
         }
         
-        private static Pattern[] getArray(String client) {
-            ArrayList<Pattern> patternList = getClientList(client);
-            if (patternList == null) {
-                return null;
-            } else {
-                int size = patternList.size();
-                Pattern[] array = new Pattern[size];
-                return patternList.toArray(array);
-            }
-        }
-        
         private static String get(String client, Set<String> tokenSet) {
             if (tokenSet.isEmpty()) {
                 return null;
             } else {
 //                long time = System.currentTimeMillis();
                 String result = null;
-                Pattern[] patternArray = getArray(null);
-                if (patternArray != null) {
-                    for (Pattern pattern : patternArray) {
+                ArrayList<Pattern> patternList = getClientList(null);
+                if (patternList != null) {
+                    for (Pattern pattern : patternList) {
                         for (String token : tokenSet) {
                             if (token.contains("@") == pattern.pattern().contains("@")) {
                                 Matcher matcher = pattern.matcher(token);
@@ -406,9 +483,9 @@ public class White {
                     }
                 }
                 if (result == null && client != null) {
-                    patternArray = getArray(client);
-                    if (patternArray != null) {
-                        for (Pattern pattern : patternArray) {
+                    patternList = getClientList(client);
+                    if (patternList != null) {
+                        for (Pattern pattern : patternList) {
                             for (String token : tokenSet) {
                                 if (token.contains("@") == pattern.pattern().contains("@")) {
                                     Matcher matcher = pattern.matcher(token);
@@ -432,30 +509,32 @@ public class White {
      */
     private static class CIDR {
         
-        private static final HashMap<String,TreeSet<String>> MAP = new HashMap<String,TreeSet<String>>();
+        /**
+         * Conjuntos concorrentes de cada cliente, alterados somente
+         * com a partição do cliente sincronizada.
+         */
+        private static final TenantMap<NavigableSet<String>> MAP = new TenantMap<NavigableSet<String>>();
         
-        public static synchronized boolean isEmpty() {
+        public static boolean isEmpty() {
             return MAP.isEmpty();
         }
         
-        public static synchronized TreeSet<String> clear() {
+        public static TreeSet<String> clear() {
             TreeSet<String> set = getAll();
             MAP.clear();
             return set;
         }
         
-        public static synchronized ArrayList<String> getKeySet() {
-            ArrayList<String> resultSet = new ArrayList<String>();
-            resultSet.addAll(MAP.keySet());
-            return resultSet;
+        public static ArrayList<String> getKeySet() {
+            return MAP.getClientList();
         }
         
-        public static synchronized TreeSet<String> getClientSet(String client) {
+        public static NavigableSet<String> getClientSet(String client) {
             return MAP.get(client);
         }
         
-        public static synchronized Object[] getClientArray(String client) {
-            TreeSet<String> clientSet = MAP.get(client);
+        public static Object[] getClientArray(String client) {
+            NavigableSet<String> clientSet = MAP.get(client);
             if (clientSet == null) {
                 return null;
             } else {
@@ -463,9 +542,9 @@ public class White {
             }
         }
         
-        public static synchronized TreeSet<String> getExtended() {
+        public static TreeSet<String> getExtended() {
             TreeSet<String> returnSet = new TreeSet<String>();
-            TreeSet<String> cidrSet = MAP.get(null);
+            NavigableSet<String> cidrSet = MAP.get(null);
             if (cidrSet != null) {
                 returnSet.addAll(cidrSet);
             }
@@ -480,9 +559,9 @@ public class White {
             }
         }
         
-        public static synchronized TreeSet<String> get(String user) {
+        public static TreeSet<String> get(String user) {
             TreeSet<String> resultSet = new TreeSet<String>();
-            TreeSet<String> cidrSet = MAP.get(user);
+            NavigableSet<String> cidrSet = MAP.get(user);
             if (cidrSet != null) {
                 for (String cidr : cidrSet) {
                     if (cidr.contains(":")) {
@@ -496,25 +575,25 @@ public class White {
             return resultSet;
         }
         
-        public static int getAll(OutputStream outputStream) throws Exception {
+        public static int getAll(DumpWriter writer) throws IOException {
             int count = 0;
             for (String client : getKeySet()) {
-                Object[] clientSet = getClientArray(client);
-                if (clientSet != null) {
-                    for (Object cidrObj : clientSet) {
-                        String cidr = (String) cidrObj;
-                        if (cidr.contains(":")) {
-                            cidr = SubnetIPv6.normalizeCIDRv6(cidr);
-                        } else {
-                            cidr = SubnetIPv4.normalizeCIDRv4(cidr);
-                        }
-                        if (client != null) {
-                            outputStream.write(client.getBytes("UTF-8"));
-                            outputStream.write(':');
-                        }
-                        outputStream.write("CIDR=".getBytes("UTF-8"));
-                        outputStream.write(cidr.getBytes("UTF-8"));
-                        outputStream.write('\n');
+                count += get(client, writer);
+            }
+            return count;
+        }
+        
+        public static int get(String client, DumpWriter writer) throws IOException {
+            int count = 0;
+            NavigableSet<String> cidrSet = getClientSet(client);
+            if (cidrSet != null) {
+                for (String cidr : cidrSet) {
+                    if (cidr.contains(":")) {
+                        cidr = SubnetIPv6.normalizeCIDRv6(cidr);
+                    } else {
+                        cidr = SubnetIPv4.normalizeCIDRv4(cidr);
+                    }
+                    if (writer.write(client, "CIDR=", cidr)) {
                         count++;
                     }
                 }
@@ -582,7 +661,7 @@ public class White {
             }
         }
         
-        private static synchronized boolean dropExact(String token) {
+        private static boolean dropExact(String token) {
             if (token == null) {
                 return false;
             } else {
@@ -595,85 +674,70 @@ public class White {
                 } else {
                     client = token.substring(0, index);
                 }
-                TreeSet<String> set = MAP.get(client);
-                if (set == null) {
-                    return false;
-                } else {
-                    String key = Subnet.expandCIDR(cidr);
-                    boolean removed = set.remove(key);
-                    if (set.isEmpty()) {
-                        MAP.remove(client);
+                TenantMap.Shard<NavigableSet<String>> shard = MAP.getShard(client);
+                synchronized (shard) {
+                    NavigableSet<String> set = shard.get();
+                    if (set == null) {
+                        return false;
+                    } else {
+                        String key = Subnet.expandCIDR(cidr);
+                        boolean removed = set.remove(key);
+                        if (set.isEmpty()) {
+                            shard.set(null);
+                        }
+                        return removed;
                     }
-                    return removed;
                 }
             }
         }
         
-        public static void simplify() {
+        /**
+         * Agrega os blocos de cada cliente e troca o conjunto inteiro
+         * de uma só vez, sincronizando somente a partição do cliente.
+         * As consultas continuam no conjunto anterior durante a agregação.
+         * @return a quantidade de blocos eliminados.
+         */
+        public static int simplify() {
+            int collapsed = 0;
             try {
-                TreeSet<String> cidrSet = getClientSet(null);
-                if (cidrSet != null && !cidrSet.isEmpty()) {
-                    String cidrExtended = cidrSet.first();
-                    do {
-                        if (SubnetIPv4.isValidCIDRv4(cidrExtended)) {
-                            String cidrSmaller = SubnetIPv4.normalizeCIDRv4(cidrExtended);
-                            short mask = Subnet.getMask(cidrSmaller);
-                            if (mask > 8) {
-                                String ipFirst = SubnetIPv4.getFirstIPv4(cidrSmaller);
-                                String cidrBigger = SubnetIPv4.normalizeCIDRv4(ipFirst + "/" + (mask - 1));
-                                ipFirst = SubnetIPv4.getFirstIPv4(cidrBigger);
-                                String ipLast = SubnetIPv4.getLastIPv4(cidrBigger);
-                                String cidr1 = SubnetIPv4.normalizeCIDRv4(ipFirst + "/" + mask);
-                                if (CIDR.contains((String) null, cidr1)) {
-                                    String cidr2 = SubnetIPv4.normalizeCIDRv4(ipLast + "/" + mask);
-                                    if (CIDR.contains((String) null, cidr2)) {
-                                        CIDR.dropExact(SubnetIPv4.expandCIDRv4(cidr1));
-                                        CIDR.dropExact(SubnetIPv4.expandCIDRv4(cidr2));
-                                        CIDR.addExact(null, cidrBigger);
-                                    }
-                                }
-                            }
-                        } else if (SubnetIPv6.isValidCIDRv6(cidrExtended)) {
-                            String cidrSmaller = SubnetIPv6.normalizeCIDRv6(cidrExtended);
-                            short mask = Subnet.getMask(cidrSmaller);
-                            if (mask > 16) {
-                                String ipFirst = SubnetIPv6.getFirstIPv6(cidrSmaller);
-                                String cidrBigger = SubnetIPv6.normalizeCIDRv6(ipFirst + "/" + (mask - 1));
-                                ipFirst = SubnetIPv6.getFirstIPv6(cidrBigger);
-                                String ipLast = SubnetIPv6.getLastIPv6(cidrBigger);
-                                String cidr1 = SubnetIPv6.normalizeCIDRv6(ipFirst + "/" + mask);
-                                if (CIDR.contains((String) null, cidr1)) {
-                                    String cidr2 = SubnetIPv6.normalizeCIDRv6(ipLast + "/" + mask);
-                                    if (CIDR.contains((String) null, cidr2)) {
-                                        CIDR.dropExact(SubnetIPv6.expandCIDRv6(cidr1));
-                                        CIDR.dropExact(SubnetIPv6.expandCIDRv6(cidr2));
-                                        CIDR.addExact(null, cidrBigger);
-                                    }
-                                }
+                for (String client : getKeySet()) {
+                    TenantMap.Shard<NavigableSet<String>> shard = MAP.getShard(client);
+                    synchronized (shard) {
+                        NavigableSet<String> cidrSet = shard.get();
+                        if (cidrSet != null) {
+                            NavigableSet<String> set = new ConcurrentSkipListSet<String>();
+                            int count = CIDRAggregator.aggregate(cidrSet.toArray(), set);
+                            if (count > 0) {
+                                shard.set(set.isEmpty() ? null : set);
+                                collapsed += count;
                             }
                         }
-                    } while ((cidrExtended = cidrSet.higher(cidrExtended)) != null);
+                    }
                 }
             } catch (Exception ex) {
                 Server.logError(ex);
             }
+            return collapsed;
         }
         
-        private static synchronized boolean addExact(
+        private static boolean addExact(
                 String client, String token
         ) {
             int index = token.indexOf('=');
             String cidr = token.substring(index+1);
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                set = new TreeSet<String>();
-                MAP.put(client, set);
-            }
             String key = Subnet.expandCIDR(cidr);
-            return set.add(key);
+            TenantMap.Shard<NavigableSet<String>> shard = MAP.getShard(client);
+            synchronized (shard) {
+                NavigableSet<String> set = shard.get();
+                if (set == null) {
+                    set = new ConcurrentSkipListSet<String>();
+                    shard.set(set);
+                }
+                return set.add(key);
+            }
         }
         
-        private static synchronized boolean addExact(String token) throws ProcessException {
+        private static boolean addExact(String token) throws ProcessException {
             int index = token.indexOf('=');
             String cidr = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -683,11 +747,24 @@ public class White {
             } else {
                 client = token.substring(0, index);
             }
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                set = new TreeSet<String>();
-                MAP.put(client, set);
+            TenantMap.Shard<NavigableSet<String>> shard = MAP.getShard(client);
+            synchronized (shard) {
+                NavigableSet<String> set = shard.get();
+                if (set == null) {
+                    set = new ConcurrentSkipListSet<String>();
+                }
+                if (addExact(set, cidr)) {
+                    shard.set(set);
+                    return true;
+                } else {
+                    return false;
+                }
             }
+        }
+        
+        private static boolean addExact(
+                NavigableSet<String> set, String cidr
+        ) throws ProcessException {
             String key = Subnet.expandCIDR(cidr);
             String first = Subnet.getFirstIP(cidr);
             String last = Subnet.getLastIP(cidr);
@@ -730,7 +807,7 @@ public class White {
             }
         }
         
-        private static synchronized boolean addExact(
+        private static boolean addExact(
                 String token, boolean overlap
         ) throws ProcessException {
             int index = token.indexOf('=');
@@ -742,14 +819,38 @@ public class White {
             } else {
                 client = token.substring(0, index);
             }
-            TreeSet<String> set = MAP.get(client);
-            if (set == null) {
-                set = new TreeSet<String>();
-                MAP.put(client, set);
+            TenantMap.Shard<NavigableSet<String>> shard = MAP.getShard(client);
+            synchronized (shard) {
+                NavigableSet<String> set = shard.get();
+                if (set == null) {
+                    set = new ConcurrentSkipListSet<String>();
+                }
+                if ((set = addExact(set, cidr, overlap)) == null) {
+                    return false;
+                } else {
+                    shard.set(set);
+                    return true;
+                }
             }
+        }
+        
+        /**
+         * Inclui o bloco no conjunto sem expor às consultas sem trava
+         * um estado com blocos sobrepostos ou ausentes.
+         *
+         * A inclusão de um bloco disjunto é feita no próprio conjunto.
+         * Quando há blocos contidos a remover ou blocos a juntar, as
+         * alterações são feitas numa cópia, que deve ser publicada
+         * pelo chamador, pois a consulta por piso só encontra o bloco
+         * certo num conjunto sem sobreposições.
+         * @return o conjunto a publicar ou nulo se o bloco já existia.
+         */
+        private static NavigableSet<String> addExact(
+                NavigableSet<String> set, String cidr, boolean overlap
+        ) throws ProcessException {
             String key = Subnet.expandCIDR(cidr);
             if (set.contains(key)) {
-                return false;
+                return null;
             } else {
                 String firstCIDR = Subnet.getFirstIP(cidr);
                 String lastCIDR = Subnet.getLastIP(cidr);
@@ -786,7 +887,12 @@ public class White {
                 }
                 String error = errorBuilder.toString();
                 if (error.length() == 0) {
-                    set.removeAll(overlapSet);
+                    boolean copied = false;
+                    if (!overlapSet.isEmpty()) {
+                        set = new ConcurrentSkipListSet<String>(set);
+                        set.removeAll(overlapSet);
+                        copied = true;
+                    }
                     if (set.add(key)) {
                         try { // Join algorithm.
                             short mask;
@@ -802,6 +908,10 @@ public class White {
                                     String cidrExpanded2 = Subnet.expandCIDR(cidr2);
                                     if (set.contains(cidrExpanded2)) {
                                         String cidrBiggerExpanded = Subnet.expandCIDR(cidr);
+                                        if (!copied) {
+                                            set = new ConcurrentSkipListSet<String>(set);
+                                            copied = true;
+                                        }
                                         set.remove(cidrExpanded1);
                                         set.remove(cidrExpanded2);
                                         set.add(cidrBiggerExpanded);
@@ -815,9 +925,9 @@ public class White {
                         } catch (Exception ex) {
                             Server.logError(ex);
                         }
-                        return true;
+                        return set;
                     } else {
-                        return false;
+                        return null;
                     }
                 } else {
                     throw new ProcessException(error);
@@ -838,7 +948,7 @@ public class White {
                 return false;
             } else {
                 String key = Subnet.expandCIDR(cidr);
-                TreeSet<String> cidrSet = getClientSet(client);
+                NavigableSet<String> cidrSet = getClientSet(client);
                 if (cidrSet == null) {
                     return false;
                 } else {
@@ -848,7 +958,7 @@ public class White {
         }
         
         private static String getFloor(String client, String ip) {
-            TreeSet<String> cidrSet = getClientSet(client);
+            NavigableSet<String> cidrSet = getClientSet(client);
             if (cidrSet == null || cidrSet.isEmpty()) {
                 return null;
             } else if (SubnetIPv4.isValidIPv4(ip)) {
@@ -897,48 +1007,57 @@ public class White {
     }
     
     public static boolean dropExact(String token) throws ProcessException {
-        if (token == null) {
-            return false;
-        } else if (token.contains("WHOIS/")) {
-            if (WHOIS.dropExact(token)) {
-//                Peer.releaseAll(token);
-                CHANGED = true;
-                return true;
-            } else {
-                return false;
-            }
-        } else if (token.contains("CIDR=")) {
-            if (CIDR.dropExact(token)) {
-//                Peer.releaseAll(token);
-                CHANGED = true;
-                return true;
-            } else {
+        synchronized (JOURNAL) {
+            if (token == null) {
                 return false;
-            }
-        } else if (token.contains("REGEX=")) {
-            if (REGEX.dropExact(token)) {
-//                Peer.releaseAll(token);
+            } else if (token.contains("WHOIS/")) {
+                if (WHOIS.dropExact(token)) {
+    //                Peer.releaseAll(token);
+                    CHANGED = true;
+                    JOURNAL.drop(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (token.contains("CIDR=")) {
+                if (CIDR.dropExact(token)) {
+    //                Peer.releaseAll(token);
+                    CHANGED = true;
+                    JOURNAL.drop(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (token.contains("REGEX=")) {
+                if (REGEX.dropExact(token)) {
+    //                Peer.releaseAll(token);
+                    CHANGED = true;
+                    JOURNAL.drop(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (SET.dropExact(token)) {
+    //            Peer.releaseAll(token);
                 CHANGED = true;
+                JOURNAL.drop(token);
                 return true;
             } else {
                 return false;
             }
-        } else if (SET.dropExact(token)) {
-//            Peer.releaseAll(token);
-            CHANGED = true;
-            return true;
-        } else {
-            return false;
         }
     }
 
     public static synchronized TreeSet<String> dropAll() {
-        TreeSet<String> set = SET.clear();
-        set.addAll(CIDR.clear());
-        set.addAll(REGEX.clear());
-        set.addAll(WHOIS.clear());
-        CHANGED = true;
-        return set;
+        synchronized (JOURNAL) {
+            TreeSet<String> set = SET.clear();
+            set.addAll(CIDR.clear());
+            set.addAll(REGEX.clear());
+            set.addAll(WHOIS.clear());
+            JOURNAL.clear();
+            CHANGED = true;
+            return set;
+        }
     }
 
     public static String byTicket(
@@ -1005,38 +1124,45 @@ public class White {
     }
     
     public static boolean addExact(String token) throws ProcessException {
-        if (token == null) {
-            return false;
-        } else if (token.contains("WHOIS/")) {
-            if (WHOIS.addExact(token)) {
-//                Peer.releaseAll(token);
-                CHANGED = true;
-                return true;
-            } else {
-                return false;
-            }
-        } else if (token.contains("CIDR=")) {
-            if (CIDR.addExact(token)) {
-//                Peer.releaseAll(token);
-                CHANGED = true;
-                return true;
-            } else {
+        synchronized (JOURNAL) {
+            if (token == null) {
                 return false;
-            }
-        } else if (token.contains("REGEX=")) {
-            if (REGEX.addExact(token)) {
-//                Peer.releaseAll(token);
+            } else if (token.contains("WHOIS/")) {
+                if (WHOIS.addExact(token)) {
+    //                Peer.releaseAll(token);
+                    CHANGED = true;
+                    JOURNAL.add(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (token.contains("CIDR=")) {
+                if (CIDR.addExact(token)) {
+    //                Peer.releaseAll(token);
+                    CHANGED = true;
+                    SIMPLIFY = true;
+                    JOURNAL.add(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (token.contains("REGEX=")) {
+                if (REGEX.addExact(token)) {
+    //                Peer.releaseAll(token);
+                    CHANGED = true;
+                    JOURNAL.add(token);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (SET.addExact(token)) {
+    //            Peer.releaseAll(token);
                 CHANGED = true;
+                JOURNAL.add(token);
                 return true;
             } else {
                 return false;
             }
-        } else if (SET.addExact(token)) {
-//            Peer.releaseAll(token);
-            CHANGED = true;
-            return true;
-        } else {
-            return false;
         }
     }
 
@@ -1048,6 +1174,41 @@ public class White {
         return whiteSet;
     }
     
+    /**
+     * Escreve todas as liberações, inclusive as dos usuários.
+     *
+     * Cada lista é percorrida no conjunto concorrente ou na cópia
+     * publicada da partição de cada cliente, sem manter nenhuma trava
+     * durante a escrita na saída. O percurso é fracamente consistente
+     * e a saída não é ordenada, como descrito em {@link DumpWriter}.
+     * @param writer o escritor da listagem.
+     * @return a quantidade de registros escritos.
+     * @throws IOException se houver falha na escrita.
+     */
+    public static int getAll(DumpWriter writer) throws IOException {
+        int count = SET.getAll(writer);
+        count += CIDR.getAll(writer);
+        count += REGEX.getAll(writer);
+        count += WHOIS.getAll(writer);
+        writer.finish();
+        return count;
+    }
+    
+    /**
+     * Escreve as liberações globais, da mesma forma que {@link #getAll(DumpWriter)}.
+     * @param writer o escritor da listagem.
+     * @return a quantidade de registros escritos.
+     * @throws IOException se houver falha na escrita.
+     */
+    public static int get(DumpWriter writer) throws IOException {
+        int count = SET.get(writer);
+        count += CIDR.get(null, writer);
+        count += REGEX.get(writer);
+        count += WHOIS.get(writer);
+        writer.finish();
+        return count;
+    }
+    
     public static boolean containsIP(String ip) {
         if ((ip = Subnet.normalizeIP(ip)) == null) {
             return false;
@@ -1384,6 +1545,9 @@ public class White {
         if (Subnet.isValidIP(ip)) {
             String cidr;
             while ((cidr = CIDR.get(null, ip)) != null) {
+                // A divisão de blocos não é representada no diário.
+                JOURNAL.invalidate();
+                CHANGED = true;
                 if (!CIDR.split(cidr)) {
                     return cidr;
                 }
@@ -1729,23 +1893,33 @@ public class White {
     }
 
     public static void store(boolean simplify) {
-        if (CHANGED) {
+        if (simplify && SIMPLIFY) {
+            SIMPLIFY = false;
+            Server.logTrace("simplifing white.set");
+            int collapsed = CIDR.simplify();
+            Server.logTrace("simplified white.set: " + collapsed + " CIDR collapsed.");
+            if (collapsed > 0) {
+                // A junção de blocos não é representada no diário.
+                JOURNAL.invalidate();
+                CHANGED = true;
+            }
+        }
+        if (JOURNAL.isCompactable(CHANGED)) {
             try {
-                if (simplify) {
-                    Server.logTrace("simplifing white.set");
-                    CIDR.simplify();
-                }
 //                Server.logTrace("storing white.set");
                 long time = System.currentTimeMillis();
                 File file = new File("./data/white.set");
+                JOURNAL.rotate();
                 TreeSet<String> set = getAll();
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(set, outputStream);
+                    SerializationUtils.serialize(set, storeFile.getOutputStream());
+                    storeFile.commit();
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
+                JOURNAL.commit();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -1756,15 +1930,9 @@ public class White {
     public static void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/white.set");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                Set<String> set;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    set = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                Set<String> set = StoreFile.deserialize(file);
                 // Processo temporário de transição.
                 for (String token : set) {
                     String client;
@@ -1814,10 +1982,25 @@ public class White {
                     }
                 }
                 CHANGED = false;
+                SIMPLIFY = true;
                 Server.logLoad(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
             }
         }
+        JOURNAL.replay(file, new Journal.Replay() {
+            @Override
+            public void add(String token) throws ProcessException {
+                addExact(token);
+            }
+            @Override
+            public void drop(String token) throws ProcessException {
+                dropExact(token);
+            }
+            @Override
+            public void clear() {
+                dropAll();
+            }
+        });
     }
 }
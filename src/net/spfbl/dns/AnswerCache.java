@@ -0,0 +1,193 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.spfbl.core.Generation;
+
+/**
+ * Cache de curta duração das respostas DNSBL e DNSWL já codificadas.
+ *
+ * A chave é a própria consulta sem o ID da transação, o que inclui
+ * o nome consultado com as mesmas maiúsculas, o tipo, a classe,
+ * os flags e a extensão EDNS ecoados na resposta, acrescida do modo
+ * passivo do cliente, que altera algumas respostas. O valor guarda
+ * os bytes da resposta, dos quais somente o ID é alterado a cada envio.
+ *
+ * Uma resposta é descartada quando expira ou quando a geração das listas
+ * mudou desde o seu cálculo.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+final class AnswerCache {
+
+    /**
+     * Quantidade máxima de respostas em cache.
+     */
+    private static final int MAX = 65536;
+
+    /**
+     * Tempo de validade de uma resposta em cache.
+     */
+    private static final long TIME = 60000;
+
+    private AnswerCache() {
+    }
+
+    private static final class Key {
+
+        private final byte[] data;
+        private final int hash;
+
+        private Key(byte[] query, int length, boolean passive) {
+            // O ID da transação ocupa os dois primeiros bytes.
+            this.data = new byte[length - 1];
+            this.data[0] = (byte) (passive ? 1 : 0);
+            System.arraycopy(query, 2, data, 1, length - 2);
+            this.hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof Key) {
+                Key key = (Key) other;
+                return this.hash == key.hash && Arrays.equals(this.data, key.data);
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Resposta codificada em cache.
+     */
+    static final class Answer {
+
+        private final long generation;
+        private final long expire;
+        private final byte[] response;
+        private final String tag;
+        private final String result;
+
+        private Answer(long generation, byte[] response, String tag, String result) {
+            this.generation = generation;
+            this.expire = System.currentTimeMillis() + TIME;
+            this.response = response;
+            this.tag = tag;
+            this.result = result;
+        }
+
+        private boolean isValid() {
+            return generation == Generation.get()
+                    && System.currentTimeMillis() < expire;
+        }
+
+        String getTag() {
+            return tag;
+        }
+
+        String getResult() {
+            return result;
+        }
+
+        /**
+         * Grava a resposta com o ID da transação da consulta.
+         * @param query a consulta recebida.
+         * @param buffer o buffer reutilizado pela conexão.
+         * @return o tamanho da resposta.
+         */
+        int write(byte[] query, ByteBuffer buffer) {
+            buffer.clear();
+            buffer.put(query, 0, 2);
+            buffer.put(response, 2, response.length - 2);
+            return buffer.position();
+        }
+    }
+
+    private static final LinkedHashMap<Key,Answer> MAP = new LinkedHashMap<Key,Answer>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key,Answer> eldest) {
+            return size() > MAX;
+        }
+    };
+
+    private static synchronized Answer getExact(Key key) {
+        return MAP.get(key);
+    }
+
+    private static synchronized void putExact(Key key, Answer answer) {
+        MAP.put(key, answer);
+    }
+
+    private static synchronized void dropExact(Key key, Answer answer) {
+        if (MAP.get(key) == answer) {
+            MAP.remove(key);
+        }
+    }
+
+    /**
+     * Busca a resposta válida de uma consulta.
+     * @param query os bytes da consulta recebida.
+     * @param length o tamanho da consulta.
+     * @param passive se o cliente está em modo passivo.
+     * @return a resposta em cache ou nulo se não houver resposta válida.
+     */
+    static Answer get(byte[] query, int length, boolean passive) {
+        if (length < 12) {
+            return null;
+        } else {
+            Key key = new Key(query, length, passive);
+            Answer answer = getExact(key);
+            if (answer == null) {
+                return null;
+            } else if (answer.isValid()) {
+                return answer;
+            } else {
+                dropExact(key, answer);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Guarda a resposta codificada de uma consulta.
+     * @param query os bytes da consulta recebida.
+     * @param length o tamanho da consulta.
+     * @param passive se o cliente está em modo passivo.
+     * @param generation a geração das listas antes do cálculo da resposta.
+     * @param response os bytes da resposta.
+     * @param size o tamanho da resposta.
+     * @param tag o tipo de registro do log.
+     * @param result o resultado do log.
+     */
+    static void put(byte[] query, int length, boolean passive,
+            long generation, byte[] response, int size, String tag, String result) {
+        if (length >= 12 && generation == Generation.get()) {
+            Key key = new Key(query, length, passive);
+            byte[] data = Arrays.copyOf(response, size);
+            putExact(key, new Answer(generation, data, tag, result));
+        }
+    }
+}
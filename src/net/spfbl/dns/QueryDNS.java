@@ -17,8 +17,7 @@
 package net.spfbl.dns;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import net.spfbl.core.Server;
 import net.spfbl.spf.SPF;
 import net.spfbl.whois.SubnetIPv4;
@@ -26,18 +25,20 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.TreeSet;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 import net.spfbl.core.Analise;
 import net.spfbl.data.Block;
 import net.spfbl.core.Client;
 import net.spfbl.core.Client.Permission;
 import net.spfbl.core.Core;
+import net.spfbl.core.Generation;
 import net.spfbl.core.NormalDistribution;
+import net.spfbl.core.ReceiveCounter;
+import net.spfbl.core.StoreFile;
 import net.spfbl.data.Generic;
 import net.spfbl.data.Ignore;
 import net.spfbl.data.White;
@@ -75,7 +76,7 @@ public final class QueryDNS extends Server {
      */
     private static final HashMap<String,Zone> MAP = new HashMap<String,Zone>();
 
-    private static final long SERIAL = 2015102500;
+    static final long SERIAL = 2015102500;
 
     /**
      * Flag que indica se o cache foi modificado.
@@ -87,6 +88,7 @@ public final class QueryDNS extends Server {
         if (ret == null) {
             return null;
         } else {
+            Generation.increment();
             CHANGED = true;
             return ret;
         }
@@ -94,6 +96,7 @@ public final class QueryDNS extends Server {
     
     private static synchronized boolean putExact(String key, ServerDNSBL server) {
         Zone ret = MAP.put(key, new Zone(server));
+        Generation.increment();
         if (ret == null) {
             return false;
         } else if (server.getHostName().equals(ret.getHostName())) {
@@ -105,6 +108,7 @@ public final class QueryDNS extends Server {
 
     private static synchronized boolean putExact(String key, Zone zone) {
         Zone ret = MAP.put(key, zone);
+        Generation.increment();
         if (zone.equals(ret)) {
             return false;
         } else {
@@ -200,6 +204,7 @@ public final class QueryDNS extends Server {
                 return false;
             } else {
                 server.setMessage(message);
+                Generation.increment();
                 return CHANGED = true;
             }
         } else {
@@ -289,12 +294,13 @@ public final class QueryDNS extends Server {
                 long time = System.currentTimeMillis();
                 File file = new File("./data/zone.map");
                 HashMap<String,Zone> map = getMap();
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    SerializationUtils.serialize(map, storeFile.getOutputStream());
+                    storeFile.commit();
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
                 Server.logStore(time, file);
             } catch (Exception ex) {
@@ -306,15 +312,9 @@ public final class QueryDNS extends Server {
     public static void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/zone.map");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                Map<String,Zone> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    map = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                Map<String,Zone> map = StoreFile.deserialize(file);
                 for (String key : map.keySet()) {
                     Zone value = map.get(key);
                     putExact(key, value);
@@ -326,15 +326,9 @@ public final class QueryDNS extends Server {
             }
         } else {
             file = new File("./data/dnsbl.map");
-            if (file.exists()) {
+            if (StoreFile.exists(file)) {
                 try {
-                    Map<String,ServerDNSBL> map;
-                    FileInputStream fileInputStream = new FileInputStream(file);
-                    try {
-                        map = SerializationUtils.deserialize(fileInputStream);
-                    } finally {
-                        fileInputStream.close();
-                    }
+                    Map<String,ServerDNSBL> map = StoreFile.deserialize(file);
                     for (String key : map.keySet()) {
                         ServerDNSBL value = map.get(key);
                         putExact(key, value);
@@ -359,70 +353,78 @@ public final class QueryDNS extends Server {
         Server.logDebug("binding DNS socket on port " + port + "...");
         PORT = port;
         SERVER_SOCKET = new DatagramSocket(port);
+        // Amplia a fila do kernel para absorver os picos de consultas.
+        SERVER_SOCKET.setReceiveBufferSize(RECEIVE_BUFFER);
         Server.logTrace(getName() + " thread allocation.");
     }
 
+    /**
+     * Tamanho solicitado para a fila de recepção do kernel.
+     */
+    private static final int RECEIVE_BUFFER = 4194304;
+
     private int CONNECTION_ID = 1;
 
     /**
-     * Representa uma conexão ativa.
-     * Serve para processar todas as requisições.
+     * Representa uma thread de recepção.
+     * Cada thread recebe diretamente do socket,
+     * processa a consulta e envia o resultado,
+     * sem passar o pacote para outra thread.
      */
     private class Connection extends Thread {
 
         /**
-         * O poll de pacotes de consulta a serem processados.
+         * Pacote e buffer reutilizados na recepção das consultas.
+         */
+        private final byte[] RECEIVE = new byte[1024];
+        private final DatagramPacket PACKET = new DatagramPacket(RECEIVE, RECEIVE.length);
+
+        /**
+         * Buffer reutilizado na codificação das respostas.
          */
-        private DatagramPacket PACKET = null;
+        private final ByteBuffer BUFFER = ByteBuffer.allocate(4096);
 
-        private final Semaphore SEMAPHORE = new Semaphore(0);
+        private final ReceiveCounter COUNTER;
 
         private long time = 0;
+        private long begin = 0;
         
         public Connection() {
             super("DNSUDP" + Core.CENTENA_FORMAT.format(CONNECTION_ID++));
             // Toda connexão recebe prioridade mínima.
             setPriority(Thread.NORM_PRIORITY);
+            COUNTER = new ReceiveCounter(getName());
             Server.logTrace(getName() + " thread allocation.");
         }
 
         /**
-         * Processa um pacote de consulta.
-         * @param packet o pacote de consulta a ser processado.
-         */
-        private void process(DatagramPacket packet, long time) {
-            this.PACKET = packet;
-            this.time = time;
-            this.SEMAPHORE.release();
-        }
-
-        /**
-         * Fecha esta conexão liberando a thread.
+         * Aguarda a próxima consulta diretamente no socket.
+         * @return o pacote recebido ou nulo se o socket foi fechado.
          */
-        private void close() {
-            Server.logDebug("closing " + getName() + "...");
-            PACKET = null;
-            SEMAPHORE.release();
-        }
-
         public DatagramPacket getPacket() {
-            if (continueListenning()) {
+            while (continueListenning()) {
                 try {
-                    SEMAPHORE.acquire();
-                    interrupted = false;
-                } catch (InterruptedException ex) {
+                    PACKET.setData(RECEIVE);
+                    SERVER_SOCKET.receive(PACKET);
+                    time = System.currentTimeMillis();
+                    begin = System.nanoTime();
+                    // Consulta recebida durante o fechamento do servidor.
+                    interrupted = !continueListenning();
+                    return PACKET;
+                } catch (SocketException ex) {
+                    // Conexão fechada externamente pelo método close().
+                    return null;
+                } catch (IOException ex) {
                     Server.logError(ex);
-                    interrupted = true;
                 }
-                return PACKET;
-            } else {
-                return null;
             }
+            return null;
         }
 
         public void clearPacket() {
+            COUNTER.add(System.nanoTime() - begin);
             time = 0;
-            PACKET = null;
+            begin = 0;
         }
         
         private NormalDistribution frequency = null;
@@ -487,49 +489,62 @@ public final class QueryDNS extends Server {
         @Override
         public void run() {
             try {
-                do {
-                    DatagramPacket packet;
-                    while ((packet = getPacket()) != null) {
-                        InetAddress ipAddress = packet.getAddress();
-                        String origin = ipAddress.getHostAddress();
-                        String query = "ERROR";
-                        String result = "IGNORED";
-                        String tag = "DNSQR";
-                        try {
-                            byte[] data = packet.getData();
-                            tag = "DNSQR";
-                            // Processando consulta DNS.
-                            Message message = new Message(data);
-                            Header header = message.getHeader();
-                            Record question = message.getQuestion();
-                            if (question == null) {
-                                query = "NO QUESTION";
-                                result = "IGNORED";
+                DatagramPacket packet;
+                while ((packet = getPacket()) != null) {
+                    InetAddress ipAddress = packet.getAddress();
+                    String origin = ipAddress.getHostAddress();
+                    String query = "ERROR";
+                    String result = "IGNORED";
+                    String tag = "DNSQR";
+                    try {
+                        byte[] data = packet.getData();
+                        int length = packet.getLength();
+                        tag = "DNSQR";
+                        // Processando consulta DNS, decodificando diretamente
+                        // as consultas simples e as demais pelo dnsjava.
+                        WireQuery wire = WireQuery.parse(data, length);
+                        Message message = wire == null ? new Message(data) : null;
+                        Record question = message == null ? null : message.getQuestion();
+                        if (wire == null && question == null) {
+                            query = "NO QUESTION";
+                            result = "IGNORED";
+                        } else {
+                            String type;
+                            if (wire == null) {
+                                type = Type.string(question.getType());
+                                query = question.getName().toString();
                             } else {
-                                Name name = question.getName();
-                                String type = Type.string(question.getType());
-                                query = name.toString();
-                                if (interrupted) {
-                                    result = "INTERRUPTED";
+                                type = Type.string(wire.getType());
+                                query = wire.getName();
+                            }
+                            if (interrupted) {
+                                result = "INTERRUPTED";
+                            } else {
+                                // Identificação do cliente.
+                                Client client = Client.create(ipAddress, "DNSBL");
+                                if (client == null) {
+                                    result = "IGNORED";
+                                } else if (client.hasPermission(Permission.NONE)) {
+                                    this.addQuery();
+                                    client.addQuery();
+                                    origin += ' ' + client.getDomain();
+                                    result = "IGNORED";
+                                } else if (isCongested() && client.isAbusing()) {
+                                    this.addQuery();
+                                    client.addQuery();
+                                    origin += ' ' + client.getDomain();
+                                    result = "IGNORED";
                                 } else {
-                                    // Identificação do cliente.
-                                    Client client = Client.create(ipAddress, "DNSBL");
-                                    if (client == null) {
-                                        result = "IGNORED";
-                                    } else if (client.hasPermission(Permission.NONE)) {
-                                        this.addQuery();
-                                        client.addQuery();
-                                        origin += ' ' + client.getDomain();
-                                        result = "IGNORED";
-                                    } else if (isCongested() && client.isAbusing()) {
-                                        this.addQuery();
-                                        client.addQuery();
-                                        origin += ' ' + client.getDomain();
-                                        result = "IGNORED";
-                                    } else {
-                                        this.addQuery();
-                                        client.addQuery();
-                                        origin += ' ' + client.getDomain();
+                                    this.addQuery();
+                                    client.addQuery();
+                                    origin += ' ' + client.getDomain();
+                                    byte[] sendData;
+                                    int sendLength;
+                                    boolean passive = client.isPassive();
+                                    AnswerCache.Answer answer = AnswerCache.get(data, length, passive);
+                                    if (answer == null) {
+                                        // Geração das listas antes do cálculo da resposta.
+                                        long generation = Generation.get();
                                         long ttl = 3600; // Uma hora padrão.
                                         String host = Domain.extractHost(query, false);
                                         Zone zone = null;
@@ -616,9 +631,9 @@ public final class QueryDNS extends Server {
                                                         Analise.processToday(clientQuery);
                                                         result = "127.0.0.2";
                                                         ttl = 86400; // Um dia.
-//                                                    } else if (Block.containsHREF(clientQuery)) {
-//                                                        result = "127.0.0.4";
-//                                                        ttl = 86400; // Um dia.
+//                                                        } else if (Block.containsHREF(clientQuery)) {
+//                                                            result = "127.0.0.4";
+//                                                            ttl = 86400; // Um dia.
                                                     } else {
                                                         Analise.processToday(clientQuery);
                                                         result = "NXDOMAIN";
@@ -690,9 +705,9 @@ public final class QueryDNS extends Server {
                                                         Analise.processToday(clientQuery);
                                                         result = "127.0.0.2";
                                                         ttl = 86400; // Um dia.
-//                                                    } else if (Block.containsHREF(clientQuery)) {
-//                                                        result = "127.0.0.4";
-//                                                        ttl = 86400; // Um dia.
+//                                                        } else if (Block.containsHREF(clientQuery)) {
+//                                                            result = "127.0.0.4";
+//                                                            ttl = 86400; // Um dia.
                                                     } else if (status == SPF.Status.YELLOW) {
                                                         Analise.processToday(clientQuery);
                                                         result = "NXDOMAIN";
@@ -825,99 +840,115 @@ public final class QueryDNS extends Server {
                                                 }
                                             }
                                         }
-                                        // Alterando mensagem DNS para resposta.
-                                        header.setFlag(Flags.QR);
-                                        header.setFlag(Flags.AA);
-                                        if (result.equals("NXDOMAIN")) {
-                                            header.setRcode(Rcode.NXDOMAIN);
-                                            if (zone != null) {
-                                                long refresh = 1800;
-                                                long retry = 900;
-                                                long expire = 604800;
-                                                long minimum = 300;
-                                                name = new Name(zone.getHostName().substring(1) + '.');
-                                                SOARecord soa = new SOARecord(name, DClass.IN, ttl, name,
-                                                        name, SERIAL, refresh, retry, expire, minimum);
-                                                message.addRecord(soa, Section.AUTHORITY);
-                                            }
-                                        } else if (type.equals("TXT")) {
-                                            TXTRecord txt = new TXTRecord(name, DClass.IN, ttl, result);
-                                            message.addRecord(txt, Section.ANSWER);
-                                        } else if (result.startsWith("127.0.0.")) {
-                                            InetAddress address = InetAddress.getByName(result);
-                                            ARecord a = new ARecord(name, DClass.IN, ttl, address);
-                                            message.addRecord(a, Section.ANSWER);
-                                        } else if (type.equals("NS")) {
-                                            Name hostname = Name.fromString(result);
-                                            NSRecord ns = new NSRecord(name, DClass.IN, ttl, hostname);
-                                            message.addRecord(ns, Section.ANSWER);
+                                        if (wire == null) {
+                                            sendLength = -1;
+                                        } else {
+                                            sendLength = wire.encode(
+                                                    BUFFER, type, result, ttl,
+                                                    zone == null ? null : zone.getHostName()
+                                            );
+                                        }
+                                        if (sendLength >= 0) {
+                                            sendData = BUFFER.array();
                                         } else {
-                                            InetAddress address = InetAddress.getByName(result);
-                                            ARecord a = new ARecord(name, DClass.IN, ttl, address);
-                                            message.addRecord(a, Section.ANSWER);
+                                            // Alterando mensagem DNS para resposta.
+                                            if (message == null) {
+                                                message = new Message(data);
+                                            }
+                                            Header header = message.getHeader();
+                                            Name name = message.getQuestion().getName();
+                                            header.setFlag(Flags.QR);
+                                            header.setFlag(Flags.AA);
+                                            if (result.equals("NXDOMAIN")) {
+                                                header.setRcode(Rcode.NXDOMAIN);
+                                                if (zone != null) {
+                                                    long refresh = 1800;
+                                                    long retry = 900;
+                                                    long expire = 604800;
+                                                    long minimum = 300;
+                                                    name = new Name(zone.getHostName().substring(1) + '.');
+                                                    SOARecord soa = new SOARecord(name, DClass.IN, ttl, name,
+                                                            name, SERIAL, refresh, retry, expire, minimum);
+                                                    message.addRecord(soa, Section.AUTHORITY);
+                                                }
+                                            } else if (type.equals("TXT")) {
+                                                TXTRecord txt = new TXTRecord(name, DClass.IN, ttl, result);
+                                                message.addRecord(txt, Section.ANSWER);
+                                            } else if (result.startsWith("127.0.0.")) {
+                                                InetAddress address = InetAddress.getByName(result);
+                                                ARecord a = new ARecord(name, DClass.IN, ttl, address);
+                                                message.addRecord(a, Section.ANSWER);
+                                            } else if (type.equals("NS")) {
+                                                Name hostname = Name.fromString(result);
+                                                NSRecord ns = new NSRecord(name, DClass.IN, ttl, hostname);
+                                                message.addRecord(ns, Section.ANSWER);
+                                            } else {
+                                                InetAddress address = InetAddress.getByName(result);
+                                                ARecord a = new ARecord(name, DClass.IN, ttl, address);
+                                                message.addRecord(a, Section.ANSWER);
+                                            }
+                                            sendData = message.toWire();
+                                            sendLength = sendData.length;
                                         }
                                         result = ttl + " " + result;
-                                        // Enviando resposta.
-                                        int portDestiny = packet.getPort();
-                                        byte[] sendData = message.toWire();
-                                        DatagramPacket sendPacket = new DatagramPacket(
-                                                sendData, sendData.length,
-                                                ipAddress, portDestiny
-                                        );
-                                        SERVER_SOCKET.send(sendPacket);
+                                        if (ttl > 0) {
+                                            AnswerCache.put(
+                                                    data, length, passive,
+                                                    generation, sendData, sendLength,
+                                                    tag, result
+                                            );
+                                        }
+                                    } else {
+                                        // Resposta já codificada, alterando somente o ID.
+                                        tag = answer.getTag();
+                                        result = answer.getResult();
+                                        sendLength = answer.write(data, BUFFER);
+                                        sendData = BUFFER.array();
                                     }
-                                    query = type + " " + query;
+                                    // Enviando resposta.
+                                    int portDestiny = packet.getPort();
+                                    DatagramPacket sendPacket = new DatagramPacket(
+                                            sendData, sendLength,
+                                            ipAddress, portDestiny
+                                    );
+                                    SERVER_SOCKET.send(sendPacket);
                                 }
+                                query = type + " " + query;
                             }
-                        } catch (SocketException ex) {
-                            // Houve fechamento do socket.
-                            result = "CLOSED";
-                        } catch (WireParseException ex) {
-                            // Ignorar consultas inválidas.
-                            query = "UNPARSEABLE";
-                            result = "IGNORED";
-                        } catch (Exception ex) {
-                            Server.logError(ex);
-                            result = "ERROR";
-                        } finally {
-                            Server.logQuery(
-                                    time,
-                                    tag,
-                                    origin,
-                                    query,
-                                    result
-                            );
-                            clearPacket();
-                            // Oferece a conexão ociosa na última posição da lista.
-                            offer(this);
-                            CONNECION_SEMAPHORE.release();
                         }
+                    } catch (SocketException ex) {
+                        // Houve fechamento do socket.
+                        result = "CLOSED";
+                    } catch (WireParseException ex) {
+                        // Ignorar consultas inválidas.
+                        query = "UNPARSEABLE";
+                        result = "IGNORED";
+                    } catch (Exception ex) {
+                        Server.logError(ex);
+                        result = "ERROR";
+                    } finally {
+                        Server.logQuery(
+                                time,
+                                tag,
+                                origin,
+                                query,
+                                result
+                        );
+                        clearPacket();
                     }
-                } while (interrupted);
+                }
             } catch (Exception ex) {
                 Server.logError(ex);
             } finally {
-                CONNECTION_COUNT--;
                 Server.logTrace(getName() + " thread closed.");
             }
         }
     }
 
     /**
-     * Pool de conexões ativas.
-     */
-    private final LinkedList<Connection> CONNECTION_POLL = new LinkedList<Connection>();
-    private final LinkedList<Connection> CONNECTION_USE = new LinkedList<Connection>();
-
-    /**
-     * Semáforo que controla o pool de conexões.
+     * Threads de recepção ativas.
      */
-    private final Semaphore CONNECION_SEMAPHORE = new Semaphore(0);
-
-    /**
-     * Quantidade total de conexões intanciadas.
-     */
-    private int CONNECTION_COUNT = 0;
+    private final LinkedList<Connection> CONNECTION_LIST = new LinkedList<Connection>();
 
     private static byte CONNECTION_LIMIT = 16;
 
@@ -939,91 +970,43 @@ public final class QueryDNS extends Server {
         }
     }
 
-    private synchronized Connection poll() {
-        return CONNECTION_POLL.poll();
-    }
-
-    private synchronized void use(Connection connection) {
-        CONNECTION_USE.offer(connection);
-    }
-
-    private synchronized void offer(Connection connection) {
-        CONNECTION_USE.remove(connection);
-        CONNECTION_POLL.offer(connection);
-    }
-
     /**
-     * Coleta uma conexão ociosa ou inicia uma nova.
-     * @return uma conexão ociosa ou nova se não houver ociosa.
+     * @return a situação de cada thread de recepção e da fila do kernel.
      */
-    private Connection pollConnection() {
-        try {
-            if (CONNECION_SEMAPHORE.tryAcquire(500, TimeUnit.MILLISECONDS)) {
-                Connection connection = poll();
-                if (connection == null) {
-                    CONNECION_SEMAPHORE.release();
-                } else {
-                    use(connection);
-                }
-                return connection;
-            } else if (CONNECTION_COUNT < CONNECTION_LIMIT) {
-                // Cria uma nova conexão se não houver conecões ociosas.
-                // O servidor aumenta a capacidade conforme a demanda.
-                Server.logDebug("creating DNSUDP" + Core.CENTENA_FORMAT.format(CONNECTION_ID) + "...");
-                Connection connection = new Connection();
-                connection.start();
-                CONNECTION_COUNT++;
-                return connection;
-            } else {
-                // Se não houver liberação, ignorar consulta DNS.
-                // O MX que fizer a consulta terá um TIMEOUT
-                // considerando assim o IP como não listado.
-                return null;
-            }
-        } catch (Exception ex) {
-            Server.logError(ex);
-            return null;
+    public synchronized String getStatus() {
+        StringBuilder builder = new StringBuilder();
+        for (Connection connection : CONNECTION_LIST) {
+            builder.append(connection.COUNTER.getStatus());
+            builder.append('\n');
+        }
+        String kernel = ReceiveCounter.getSocketStatus(PORT);
+        if (kernel != null) {
+            builder.append(kernel);
+            builder.append('\n');
         }
+        return builder.toString();
     }
 
     /**
      * Inicialização do serviço.
+     * Inicia as threads de recepção que compartilham o socket,
+     * de modo que o processamento das consultas use todos os núcleos.
      */
     @Override
     public void run() {
         try {
             Server.logInfo("listening DNS on UDP port " + PORT + ".");
-            while (continueListenning()) {
-                try {
-                    byte[] receiveData = new byte[1024];
-                    DatagramPacket packet = new DatagramPacket(
-                            receiveData, receiveData.length
-                    );
-                    SERVER_SOCKET.receive(packet);
-                    if (continueListenning()) {
-                        long time = System.currentTimeMillis();
-                        Connection connection = pollConnection();
-                        if (connection == null) {
-                            InetAddress ipAddress = packet.getAddress();
-                            String result = "TOO MANY CONNECTIONS\n";
-                            Server.logQueryDNSBL(time, ipAddress, null, result);
-                        } else {
-                            try {
-                                connection.process(packet, time);
-                            } catch (IllegalThreadStateException ex) {
-                                // Houve problema na liberação do processo.
-                                InetAddress ipAddress = packet.getAddress();
-                                String result = "ERROR: FATAL\n";
-                                Server.logError(ex);
-                                Server.logQueryDNSBL(time, ipAddress, null, result);
-                                offer(connection);
-                            }
-                        }
-                    }
-                } catch (SocketException ex) {
-                    // Conexão fechada externamente pelo método close().
+            synchronized (this) {
+                while (CONNECTION_LIST.size() < CONNECTION_LIMIT) {
+                    Server.logDebug("creating DNSUDP" + Core.CENTENA_FORMAT.format(CONNECTION_ID) + "...");
+                    Connection connection = new Connection();
+                    connection.start();
+                    CONNECTION_LIST.offer(connection);
                 }
             }
+            for (Connection connection : getConnections()) {
+                connection.join();
+            }
         } catch (Exception ex) {
             Server.logError(ex);
         } finally {
@@ -1031,25 +1014,26 @@ public final class QueryDNS extends Server {
         }
     }
 
+    private synchronized LinkedList<Connection> getConnections() {
+        return new LinkedList<Connection>(CONNECTION_LIST);
+    }
+
     /**
      * Fecha todas as conexões e finaliza o servidor UDP.
      * @throws Exception se houver falha em algum fechamento.
      */
     @Override
     protected void close() {
-        while (CONNECTION_COUNT > 0) {
+        Server.logDebug("unbinding DNS socket on port " + PORT + "...");
+        // O fechamento do socket libera as threads em recepção.
+        SERVER_SOCKET.close();
+        for (Connection connection : getConnections()) {
             try {
-                Connection connection = poll();
-                if (connection == null) {
-                    CONNECION_SEMAPHORE.tryAcquire(500, TimeUnit.MILLISECONDS);
-                } else {
-                    connection.close();
-                }
+                Server.logDebug("closing " + connection.getName() + "...");
+                connection.join(5000);
             } catch (Exception ex) {
                 Server.logError(ex);
             }
         }
-        Server.logDebug("unbinding DNS socket on port " + PORT + "...");
-        SERVER_SOCKET.close();
     }
 }
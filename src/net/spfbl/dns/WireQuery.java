@@ -0,0 +1,307 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.dns;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import net.spfbl.whois.SubnetIPv4;
+
+/**
+ * Decodificação e codificação direta do formato de rede DNS
+ * para as consultas simples respondidas pelo servidor DNSBL.
+ *
+ * Somente consultas com uma única pergunta, sem compressão de nome,
+ * com nomes de caracteres comuns e sem registros além de um OPT
+ * da extensão EDNS são aceitas. As demais consultas, assim como
+ * as respostas que não podem ser representadas aqui, são tratadas
+ * pelo dnsjava.
+ *
+ * A resposta reaproveita a pergunta e o registro OPT da consulta
+ * byte a byte e é gravada num buffer reutilizado pela conexão.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+final class WireQuery {
+
+    private static final int HEADER = 12;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_AA = 0x0400;
+    private static final int MASK_OPCODE = 0x7800;
+    private static final int MASK_RCODE = 0x000F;
+
+    private static final int RCODE_NXDOMAIN = 3;
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_NS = 2;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_TXT = 16;
+    private static final int TYPE_OPT = 41;
+
+    private static final int CLASS_IN = 1;
+
+    /**
+     * Ponteiro de compressão para o nome da pergunta.
+     */
+    private static final int POINTER_QUESTION = 0xC000 | HEADER;
+
+    private static final int REFRESH = 1800;
+    private static final int RETRY = 900;
+    private static final int EXPIRE = 604800;
+    private static final int MINIMUM = 300;
+
+    private final byte[] data;
+    private final int length;
+    private final int flags;
+    private final String name;
+    private final int type;
+    private final int questionEnd;
+    private final boolean edns;
+
+    private WireQuery(byte[] data, int length, int flags,
+            String name, int type, int questionEnd, boolean edns) {
+        this.data = data;
+        this.length = length;
+        this.flags = flags;
+        this.name = name;
+        this.type = type;
+        this.questionEnd = questionEnd;
+        this.edns = edns;
+    }
+
+    private static int getShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static boolean isValidChar(int character) {
+        if (character >= 'a' && character <= 'z') {
+            return true;
+        } else if (character >= 'A' && character <= 'Z') {
+            return true;
+        } else if (character >= '0' && character <= '9') {
+            return true;
+        } else {
+            return character == '-' || character == '_';
+        }
+    }
+
+    /**
+     * Decodifica uma consulta simples.
+     * @param data os bytes da consulta.
+     * @param length o tamanho da consulta.
+     * @return a consulta decodificada ou nulo se ela deve ser tratada pelo dnsjava.
+     */
+    static WireQuery parse(byte[] data, int length) {
+        if (length < HEADER + 5) {
+            return null;
+        }
+        int flags = getShort(data, 2);
+        if ((flags & FLAG_QR) != 0 || (flags & MASK_OPCODE) != 0) {
+            return null;
+        } else if (getShort(data, 4) != 1) {
+            return null;
+        } else if (getShort(data, 6) != 0 || getShort(data, 8) != 0) {
+            return null;
+        }
+        int additional = getShort(data, 10);
+        if (additional > 1) {
+            return null;
+        }
+        // Nome da pergunta em texto, como no dnsjava.
+        char[] text = new char[255];
+        int size = 0;
+        int offset = HEADER;
+        int label;
+        while ((label = data[offset++] & 0xFF) != 0) {
+            if (label > 63 || offset + label >= length || size + label + 1 > text.length) {
+                // Compressão, tipo estendido ou nome longo.
+                return null;
+            }
+            for (int index = 0; index < label; index++) {
+                int character = data[offset++] & 0xFF;
+                if (isValidChar(character)) {
+                    text[size++] = (char) character;
+                } else {
+                    return null;
+                }
+            }
+            text[size++] = '.';
+        }
+        if (size == 0 || offset + 4 > length) {
+            return null;
+        }
+        int type = getShort(data, offset);
+        offset += 4;
+        int questionEnd = offset;
+        if (additional == 1) {
+            // Registro OPT da extensão EDNS com nome raiz.
+            if (offset + 11 > length || data[offset] != 0) {
+                return null;
+            } else if (getShort(data, offset + 1) != TYPE_OPT) {
+                return null;
+            }
+            offset += 11 + getShort(data, offset + 9);
+        }
+        if (offset != length) {
+            return null;
+        } else {
+            String name = new String(text, 0, size);
+            return new WireQuery(data, length, flags, name, type, questionEnd, additional == 1);
+        }
+    }
+
+    /**
+     * @return o nome consultado na forma absoluta.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return o código do tipo consultado.
+     */
+    int getType() {
+        return type;
+    }
+
+    private static void putName(ByteBuffer buffer, String hostname) {
+        int begin = 0;
+        int length = hostname.length();
+        if (length > 0 && hostname.charAt(length - 1) == '.') {
+            length--;
+        }
+        while (begin < length) {
+            int end = hostname.indexOf('.', begin);
+            if (end < 0 || end > length) {
+                end = length;
+            }
+            int size = end - begin;
+            if (size == 0 || size > 63) {
+                throw new IllegalArgumentException(hostname);
+            }
+            buffer.put((byte) size);
+            for (int index = begin; index < end; index++) {
+                int character = hostname.charAt(index);
+                if (isValidChar(character)) {
+                    buffer.put((byte) character);
+                } else {
+                    throw new IllegalArgumentException(hostname);
+                }
+            }
+            begin = end + 1;
+        }
+        buffer.put((byte) 0);
+    }
+
+    private static void putRecord(ByteBuffer buffer, int type, long ttl) {
+        buffer.putShort((short) type);
+        buffer.putShort((short) CLASS_IN);
+        buffer.putInt((int) ttl);
+    }
+
+    private static void putText(ByteBuffer buffer, String text) {
+        int size = text.length();
+        if (size > 255) {
+            throw new IllegalArgumentException(text);
+        }
+        buffer.putShort((short) (size + 1));
+        buffer.put((byte) size);
+        for (int index = 0; index < size; index++) {
+            int character = text.charAt(index);
+            if (character < 0x20 || character > 0x7E || character == '"' || character == '\\') {
+                // Caracteres que o dnsjava interpretaria.
+                throw new IllegalArgumentException(text);
+            }
+            buffer.put((byte) character);
+        }
+    }
+
+    private static void putAddress(ByteBuffer buffer, String ip) {
+        if (SubnetIPv4.isValidIPv4(ip)) {
+            buffer.putShort((short) 4);
+            buffer.putInt(SubnetIPv4.getAddressIP(ip));
+        } else {
+            throw new IllegalArgumentException(ip);
+        }
+    }
+
+    /**
+     * Codifica a resposta da consulta no buffer da conexão.
+     * @param buffer o buffer reutilizado pela conexão.
+     * @param typeName o nome do tipo consultado.
+     * @param result o resultado da consulta.
+     * @param ttl o tempo de vida da resposta.
+     * @param zone o nome da zona, iniciado por ponto, ou nulo se não houver.
+     * @return o tamanho da resposta ou -1 se ela deve ser codificada pelo dnsjava.
+     */
+    int encode(ByteBuffer buffer, String typeName, String result, long ttl, String zone) {
+        boolean nxdomain = result.equals("NXDOMAIN");
+        try {
+            buffer.clear();
+            buffer.put(data, 0, 2);
+            int rcode = nxdomain ? RCODE_NXDOMAIN : 0;
+            buffer.putShort((short) ((flags | FLAG_QR | FLAG_AA) & ~MASK_RCODE | rcode));
+            buffer.putShort((short) 1);
+            buffer.putShort((short) (nxdomain ? 0 : 1));
+            buffer.putShort((short) (nxdomain && zone != null ? 1 : 0));
+            buffer.putShort((short) (edns ? 1 : 0));
+            buffer.put(data, HEADER, questionEnd - HEADER);
+            if (nxdomain) {
+                if (zone != null) {
+                    int owner = buffer.position();
+                    putName(buffer, zone.substring(1));
+                    putRecord(buffer, TYPE_SOA, ttl);
+                    buffer.putShort((short) 24);
+                    buffer.putShort((short) (0xC000 | owner));
+                    buffer.putShort((short) (0xC000 | owner));
+                    buffer.putInt((int) QueryDNS.SERIAL);
+                    buffer.putInt(REFRESH);
+                    buffer.putInt(RETRY);
+                    buffer.putInt(EXPIRE);
+                    buffer.putInt(MINIMUM);
+                }
+            } else if (typeName.equals("TXT")) {
+                buffer.putShort((short) POINTER_QUESTION);
+                putRecord(buffer, TYPE_TXT, ttl);
+                putText(buffer, result);
+            } else if (result.startsWith("127.0.0.")) {
+                buffer.putShort((short) POINTER_QUESTION);
+                putRecord(buffer, TYPE_A, ttl);
+                putAddress(buffer, result);
+            } else if (typeName.equals("NS")) {
+                buffer.putShort((short) POINTER_QUESTION);
+                putRecord(buffer, TYPE_NS, ttl);
+                int position = buffer.position();
+                buffer.putShort((short) 0);
+                putName(buffer, result);
+                buffer.putShort(position, (short) (buffer.position() - position - 2));
+            } else {
+                buffer.putShort((short) POINTER_QUESTION);
+                putRecord(buffer, TYPE_A, ttl);
+                putAddress(buffer, result);
+            }
+            if (edns) {
+                buffer.put(data, questionEnd, length - questionEnd);
+            }
+            return buffer.position();
+        } catch (BufferOverflowException ex) {
+            return -1;
+        } catch (IllegalArgumentException ex) {
+            return -1;
+        }
+    }
+}
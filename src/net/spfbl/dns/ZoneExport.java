@@ -0,0 +1,608 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.dns;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import net.spfbl.core.DumpWriter;
+import net.spfbl.core.Generation;
+import net.spfbl.core.Server;
+import net.spfbl.core.StoreFile;
+import net.spfbl.data.Block;
+import net.spfbl.data.Generic;
+import net.spfbl.data.Ignore;
+import net.spfbl.data.White;
+import net.spfbl.spf.SPF;
+import net.spfbl.whois.Domain;
+import net.spfbl.whois.Subnet;
+import net.spfbl.whois.SubnetIPv4;
+import net.spfbl.whois.SubnetIPv6;
+
+/**
+ * Exportação das zonas DNSBL e DNSWL no formato de dados do rbldnsd.
+ *
+ * Para cada zona são gerados três arquivos, um ip4trie, um ip6trie
+ * e um dnset, com a parte estática das decisões do servidor:
+ * os blocos e domínios bloqueados globalmente, na DNSBL, os IPs e
+ * domínios ignorados ou liberados globalmente, na DNSWL, e as
+ * distribuições cujo status já determina a resposta.
+ *
+ * Cada nome exportado recebe a mesma resposta que o servidor daria
+ * a ele. Na DNSBL, os subdomínios de um domínio bloqueado recebem
+ * um curinga com 127.0.0.3, a resposta de qualquer subdomínio sem
+ * distribuição, e os subdomínios com distribuição vermelha ou amarela
+ * recebem um registro exato. Na DNSWL não há curingas nem blocos,
+ * pois a resposta de cada subdomínio ou IP depende de padrões
+ * genéricos e de bloqueios que não podem ser enumerados, e apenas
+ * os nomes exatos são exportados.
+ *
+ * As decisões que dependem do cliente, como o modo passivo,
+ * ou de padrões sobre nomes sem distribuição, como os genéricos
+ * e o HREF, continuam no servidor.
+ *
+ * <h2>Geração incremental</h2>
+ * A exportação só ocorre quando a geração das listas mudou.
+ * Os registros são lidos das listas em fluxo contínuo e escritos
+ * num arquivo temporário enquanto o CRC32 é calculado, sem cópia
+ * das listas em memória. O arquivo só substitui o anterior se o
+ * conteúdo mudou, de modo que o rbldnsd recarrega somente os
+ * arquivos alterados.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class ZoneExport {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String LISTED = "127.0.0.2";
+    private static final String SUSPECT = "127.0.0.3";
+    private static final String WHITE = "127.0.0.4";
+
+    /**
+     * TTL padrão das respostas exportadas, o mesmo padrão do servidor.
+     */
+    private static final int TTL = 3600;
+
+    /**
+     * Pasta de destino dos arquivos ou nulo se a exportação está desativada.
+     */
+    private static File FOLDER = null;
+
+    /**
+     * Geração das listas na última exportação.
+     */
+    private static long GENERATION = -1;
+
+    /**
+     * CRC32 do conteúdo atual de cada arquivo exportado.
+     */
+    private static final HashMap<String,Long> CRC_MAP = new HashMap<String,Long>();
+
+    private ZoneExport() {
+    }
+
+    public static synchronized void setFolder(String folder) {
+        if (folder == null || folder.length() == 0) {
+            FOLDER = null;
+        } else {
+            File file = new File(folder);
+            if (file.isDirectory() || file.mkdirs()) {
+                FOLDER = file;
+                GENERATION = -1;
+            } else {
+                Server.logError("invalid rbldnsd folder '" + folder + "'.");
+            }
+        }
+    }
+
+    public static synchronized boolean isEnabled() {
+        return FOLDER != null;
+    }
+
+    /**
+     * Arquivo de dados de uma zona em gravação.
+     *
+     * Recebe as linhas escritas pelo {@link DumpWriter} das listas
+     * e as converte em registros do rbldnsd.
+     */
+    private abstract static class ZoneFile extends OutputStream {
+
+        private final File file;
+        private final StoreFile store;
+        private final OutputStream outputStream;
+        private final CRC32 crc = new CRC32();
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        private final String message;
+        private int count = 0;
+        /**
+         * Se os registros recebidos são das liberações globais.
+         */
+        protected boolean white = false;
+
+        private ZoneFile(File file, Zone zone) throws IOException {
+            this.file = file;
+            this.store = new StoreFile(file);
+            this.outputStream = store.getOutputStream();
+            this.message = zone.getMessage(null, "$");
+            writeLine("# SPFBL " + zone.getTypeName() + " " + zone.getHostName().substring(1));
+            writeLine("$TTL " + TTL);
+        }
+
+        private void writeLine(String text) throws IOException {
+            byte[] data = text.getBytes(UTF8);
+            outputStream.write(data);
+            outputStream.write('\n');
+            crc.update(data);
+            crc.update('\n');
+        }
+
+        /**
+         * Escreve um registro com o código de retorno e a mensagem da zona.
+         * @param key o IP, o bloco ou o domínio no formato do rbldnsd.
+         * @param code o código de retorno.
+         * @throws IOException se houver falha na escrita.
+         */
+        protected void writeEntry(String key, String code) throws IOException {
+            if (message == null) {
+                writeLine(key + " :" + code + ":");
+            } else {
+                writeLine(key + " :" + code + ":" + message);
+            }
+            count++;
+        }
+
+        /**
+         * Escreve um registro somente se houver resposta.
+         * @param key o IP, o bloco ou o domínio no formato do rbldnsd.
+         * @param code o código de retorno ou nulo se não é listado.
+         * @throws IOException se houver falha na escrita.
+         */
+        protected void writeCode(String key, String code) throws IOException {
+            if (code != null) {
+                writeEntry(key, code);
+            }
+        }
+
+        /**
+         * Converte um registro das listas.
+         * @param token o registro no formato das listas.
+         * @throws IOException se houver falha na escrita.
+         */
+        protected abstract void entry(String token) throws IOException;
+
+        @Override
+        public void write(int character) throws IOException {
+            if (character == '\n') {
+                String token = new String(line.toByteArray(), UTF8);
+                line.reset();
+                entry(token);
+            } else {
+                line.write(character);
+            }
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            for (int index = offset; index < offset + length; index++) {
+                write(data[index]);
+            }
+        }
+
+        /**
+         * Substitui o arquivo anterior somente se o conteúdo mudou.
+         * @return verdadeiro se o arquivo foi substituído.
+         * @throws IOException se houver falha na gravação.
+         */
+        boolean commit() throws IOException {
+            long value = crc.getValue();
+            Long previous = getCRC(file);
+            if (previous != null && previous == value) {
+                // O temporário é descartado no fechamento.
+                return false;
+            } else {
+                store.commit();
+                putCRC(file, value);
+                Server.logDebug("rbldnsd file " + file.getName() + " exported with " + count + " records.");
+                return true;
+            }
+        }
+
+        /**
+         * Descarta o arquivo temporário se não houve substituição.
+         */
+        @Override
+        public void close() {
+            store.close();
+        }
+    }
+
+    private static synchronized Long getCRC(File file) {
+        Long value = CRC_MAP.get(file.getName());
+        if (value == null && file.exists()) {
+            // Primeira exportação desde o início do serviço.
+            try {
+                CRC32 crc = new CRC32();
+                InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    byte[] buffer = new byte[65536];
+                    int length;
+                    while ((length = inputStream.read(buffer)) != -1) {
+                        crc.update(buffer, 0, length);
+                    }
+                } finally {
+                    inputStream.close();
+                }
+                value = crc.getValue();
+            } catch (IOException ex) {
+                Server.logError(ex);
+            }
+        }
+        return value;
+    }
+
+    private static synchronized void putCRC(File file, long value) {
+        CRC_MAP.put(file.getName(), value);
+    }
+
+    /**
+     * @param token o IP ou domínio do registro.
+     * @return o código de um elemento bloqueado conforme o status da distribuição.
+     */
+    private static String getBlockedCode(String token) {
+        SPF.Status status = SPF.getStatus(token, false);
+        if (status == SPF.Status.RED || status == SPF.Status.YELLOW) {
+            return LISTED;
+        } else {
+            return SUSPECT;
+        }
+    }
+
+    /**
+     * @param token o IP ou domínio do registro.
+     * @return o código de um elemento ignorado conforme a distribuição.
+     */
+    private static String getIgnoredCode(String token) {
+        if (SPF.isGood(token)) {
+            return LISTED;
+        } else {
+            return SUSPECT;
+        }
+    }
+
+    /**
+     * Resposta do servidor na DNSWL para um IP.
+     * @param ip o IP normalizado.
+     * @return o código de retorno ou nulo se o IP não é listado.
+     */
+    private static String getAddressCode(String ip) {
+        if (SPF.getStatus(ip, false) != SPF.Status.GREEN) {
+            return null;
+        } else if (Block.containsCIDR(ip)) {
+            return null;
+        } else if (Ignore.containsCIDR(ip)) {
+            return getIgnoredCode(ip);
+        } else if (SPF.isGood(ip)) {
+            return LISTED;
+        } else if (White.containsIP(ip)) {
+            return WHITE;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Resposta do servidor na DNSBL para um domínio, exceto o modo passivo e o HREF.
+     * @param host o domínio iniciado por ponto.
+     * @return o código de retorno ou nulo se o domínio não é listado.
+     */
+    private static String getBlockedDomainCode(String host) {
+        SPF.Status status = SPF.getStatus(host, false);
+        if (Generic.containsDynamic(host)) {
+            return status == SPF.Status.GREEN ? SUSPECT : LISTED;
+        } else if (Block.containsDomain(host, true)) {
+            return getBlockedCode(host);
+        } else if (status == SPF.Status.RED) {
+            return LISTED;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Resposta do servidor na DNSWL para um domínio.
+     * @param host o domínio iniciado por ponto.
+     * @return o código de retorno ou nulo se o domínio não é listado.
+     */
+    private static String getDomainCode(String host) {
+        if (SPF.getStatus(host, false) != SPF.Status.GREEN) {
+            return null;
+        } else if (Generic.containsGenericSoft(host)) {
+            return null;
+        } else if (Block.containsDomain(host, true)) {
+            return null;
+        } else if (Ignore.containsHost(host)) {
+            return getIgnoredCode(host);
+        } else if (SPF.isGood(host)) {
+            return LISTED;
+        } else if (White.containsDomain(host)) {
+            return WHITE;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Verifica se o IP está bloqueado exatamente por um bloco de um único endereço.
+     */
+    private static boolean isBlockedHost(String ip) {
+        if (SubnetIPv4.isValidIPv4(ip)) {
+            return Block.containsExact("CIDR=" + ip + "/32");
+        } else {
+            return Block.containsExact("CIDR=" + ip + "/128");
+        }
+    }
+
+    /**
+     * Verifica se o IP está liberado exatamente por um bloco de um único endereço.
+     */
+    private static boolean isWhiteHost(String ip) {
+        if (SubnetIPv4.isValidIPv4(ip)) {
+            return White.containsExact("CIDR=" + ip + "/32");
+        } else {
+            return White.containsExact("CIDR=" + ip + "/128");
+        }
+    }
+
+    private static String getMask(String cidr) {
+        int index = cidr.indexOf('/');
+        return cidr.substring(index + 1);
+    }
+
+    /**
+     * Arquivo de blocos IP de uma zona.
+     */
+    private static final class AddressFile extends ZoneFile {
+
+        private final Zone zone;
+        private final boolean ipv6;
+
+        private AddressFile(File file, Zone zone, boolean ipv6) throws IOException {
+            super(file, zone);
+            this.zone = zone;
+            this.ipv6 = ipv6;
+            if (!ipv6) {
+                // Consulta de teste para positivo.
+                writeEntry("127.0.0.2/32", LISTED);
+            }
+        }
+
+        private boolean isFamily(String ip) {
+            if (ipv6) {
+                return SubnetIPv6.isValidIPv6(ip);
+            } else {
+                return SubnetIPv4.isValidIPv4(ip);
+            }
+        }
+
+        private String getHostMask() {
+            return ipv6 ? "/128" : "/32";
+        }
+
+        @Override
+        protected void entry(String token) throws IOException {
+            if (token.startsWith("CIDR=")) {
+                String cidr = token.substring(5);
+                int index = cidr.indexOf('/');
+                String ip = cidr.substring(0, index);
+                if (!isFamily(ip)) {
+                    // Outra família de endereços.
+                } else if (zone.isDNSBL()) {
+                    if (getMask(cidr).equals(getHostMask().substring(1))) {
+                        writeEntry(cidr, getBlockedCode(ip));
+                    } else {
+                        writeEntry(cidr, SUSPECT);
+                    }
+                } else if (!getMask(cidr).equals(getHostMask().substring(1))) {
+                    // A DNSWL só responde pelos IPs verdes e não bloqueados
+                    // do bloco ignorado ou liberado, que não podem ser
+                    // exportados como um bloco inteiro. Os IPs conhecidos
+                    // do bloco são exportados individualmente pela distribuição.
+                } else if (white && Ignore.containsIP(ip)) {
+                    // Já exportado como IP ignorado.
+                } else {
+                    writeCode(cidr, getAddressCode(ip));
+                }
+            } else if (zone.isDNSWL() && !white && isFamily(token)) {
+                // IP ignorado individualmente.
+                String ip = Subnet.normalizeIP(token);
+                writeCode(ip + getHostMask(), getAddressCode(ip));
+            }
+        }
+
+        /**
+         * Acrescenta os IPs cuja distribuição determina a resposta.
+         */
+        private void distribution(String ip) throws IOException {
+            if (isFamily(ip)) {
+                SPF.Status status = SPF.getStatus(ip, false);
+                if (zone.isDNSBL()) {
+                    if (isBlockedHost(ip)) {
+                        // Já exportado pelo bloco do próprio IP.
+                    } else if (status == SPF.Status.RED) {
+                        writeEntry(ip + getHostMask(), LISTED);
+                    } else if (status == SPF.Status.YELLOW && Block.containsCIDR(ip)) {
+                        writeEntry(ip + getHostMask(), LISTED);
+                    }
+                } else if (Ignore.containsIP(ip) || isWhiteHost(ip)) {
+                    // Já exportado pelo registro do próprio IP.
+                } else {
+                    writeCode(ip + getHostMask(), getAddressCode(ip));
+                }
+            }
+        }
+    }
+
+    /**
+     * Arquivo de domínios de uma zona.
+     */
+    private static final class DomainFile extends ZoneFile {
+
+        private final Zone zone;
+
+        private DomainFile(File file, Zone zone) throws IOException {
+            super(file, zone);
+            this.zone = zone;
+            // Consulta de teste para positivo.
+            writeEntry("test", LISTED);
+        }
+
+        private static boolean isDomain(String token) {
+            return token.startsWith(".") && Domain.isHostname(token.substring(1));
+        }
+
+        @Override
+        protected void entry(String token) throws IOException {
+            if (white) {
+                // Domínio liberado globalmente.
+                if (token.endsWith(";PASS")) {
+                    String host = token.substring(0, token.length() - 5);
+                    if (isDomain(host) && !Ignore.containsExact(host)) {
+                        writeCode(host.substring(1), getDomainCode(host));
+                    }
+                }
+            } else if (!isDomain(token)) {
+                // Não é um domínio.
+            } else if (zone.isDNSBL()) {
+                writeCode(token.substring(1), getBlockedDomainCode(token));
+                // Subdomínios sem distribuição respondem 127.0.0.3.
+                // Os vermelhos e amarelos são exportados pela distribuição.
+                writeEntry("*" + token, SUSPECT);
+            } else {
+                // Somente o nome exato, pois os subdomínios podem ser
+                // genéricos ou bloqueados e a resposta seria diferente.
+                writeCode(token.substring(1), getDomainCode(token));
+            }
+        }
+
+        /**
+         * Acrescenta os domínios cuja distribuição determina a resposta.
+         */
+        private void distribution(String host) throws IOException {
+            if (!isDomain(host)) {
+                // Não é um domínio.
+            } else if (zone.isDNSBL()) {
+                if (Block.containsExact(host)) {
+                    // Já exportado pelo domínio bloqueado.
+                } else if (SPF.getStatus(host, false) == SPF.Status.GREEN && Block.containsDomain(host, true)) {
+                    // Coberto pelo curinga do domínio bloqueado.
+                } else {
+                    // O registro exato prevalece sobre o curinga.
+                    writeCode(host.substring(1), getBlockedDomainCode(host));
+                }
+            } else if (Ignore.containsExact(host) || White.containsExact(host + ";PASS")) {
+                // Já exportado pelo registro do próprio domínio.
+            } else {
+                writeCode(host.substring(1), getDomainCode(host));
+            }
+        }
+    }
+
+    private static File getFile(File folder, Zone zone, String type) {
+        String name = zone.getHostName().substring(1);
+        return new File(folder, name + "." + type);
+    }
+
+    private static void exportZone(File folder, Zone zone) throws IOException {
+        AddressFile ipv4File = new AddressFile(getFile(folder, zone, "ip4trie"), zone, false);
+        try {
+            AddressFile ipv6File = new AddressFile(getFile(folder, zone, "ip6trie"), zone, true);
+            try {
+                DomainFile domainFile = new DomainFile(getFile(folder, zone, "dnset"), zone);
+                try {
+                    for (ZoneFile file : new ZoneFile[]{ipv4File, ipv6File, domainFile}) {
+                        DumpWriter writer = new DumpWriter(file, null, false);
+                        if (zone.isDNSBL()) {
+                            Block.get(writer);
+                        } else {
+                            Ignore.get(writer);
+                            // As liberações globais respondem 127.0.0.4 na DNSWL.
+                            file.white = true;
+                            White.get(new DumpWriter(file, null, false));
+                        }
+                    }
+                    // Percorre as distribuições uma única vez para os três arquivos.
+                    String key = null;
+                    while ((key = SPF.nextDistributionKey(key)) != null) {
+                        if (Subnet.isValidIP(key)) {
+                            String ip = Subnet.normalizeIP(key);
+                            ipv4File.distribution(ip);
+                            ipv6File.distribution(ip);
+                        } else {
+                            domainFile.distribution(key);
+                        }
+                    }
+                    ipv4File.commit();
+                    ipv6File.commit();
+                    domainFile.commit();
+                } finally {
+                    domainFile.close();
+                }
+            } finally {
+                ipv6File.close();
+            }
+        } finally {
+            ipv4File.close();
+        }
+    }
+
+    /**
+     * Exporta todas as zonas se a geração das listas mudou.
+     * @param force se a exportação deve ocorrer mesmo sem mudança.
+     * @return verdadeiro se a exportação foi realizada.
+     */
+    public static synchronized boolean export(boolean force) {
+        if (FOLDER == null) {
+            return false;
+        } else {
+            long generation = Generation.get();
+            if (!force && generation == GENERATION) {
+                return false;
+            } else {
+                long time = System.currentTimeMillis();
+                try {
+                    for (Zone zone : QueryDNS.getValues()) {
+                        exportZone(FOLDER, zone);
+                    }
+                    GENERATION = generation;
+                    Server.logTrace("rbldnsd zones exported in " + (System.currentTimeMillis() - time) + "ms.");
+                    return true;
+                } catch (Exception ex) {
+                    Server.logError(ex);
+                    return false;
+                }
+            }
+        }
+    }
+}
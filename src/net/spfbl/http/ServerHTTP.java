@@ -24,8 +24,6 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import net.spfbl.core.Server;
 import java.io.IOException;
@@ -68,6 +66,7 @@ import net.spfbl.core.Core;
 import net.spfbl.core.Defer;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Reverse;
+import net.spfbl.core.StoreFile;
 import net.spfbl.core.User;
 import net.spfbl.core.User.Query;
 import net.spfbl.core.User.Situation;
@@ -141,12 +140,14 @@ public final class ServerHTTP extends Server {
             File file = new File("./data/url.map");
             if (MAP.isEmpty()) {
                 file.delete();
+                StoreFile.getPrevious(file).delete();
             } else {
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(MAP, outputStream);
+                    SerializationUtils.serialize(MAP, storeFile.getOutputStream());
+                    storeFile.commit();
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
                 Server.logStore(time, file);
             }
@@ -158,15 +159,9 @@ public final class ServerHTTP extends Server {
     public synchronized void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/url.map");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                HashMap<String,String> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    map = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                HashMap<String,String> map = StoreFile.deserialize(file);
                 MAP.putAll(map);
                 Server.logLoad(time, file);
             } catch (Exception ex) {
@@ -486,7 +481,7 @@ public final class ServerHTTP extends Server {
     
     public static File getWebFile(String name) {
         File file = new File(FOLDER, name);
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             return file;
         } else {
             return null;
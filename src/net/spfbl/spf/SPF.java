@@ -17,18 +17,22 @@
 package net.spfbl.spf;
 
 import com.sun.mail.util.MailConnectException;
+import net.spfbl.core.BinaryFile;
 import net.spfbl.core.Core;
+import net.spfbl.core.Generation;
 import net.spfbl.core.NormalDistribution;
 import net.spfbl.whois.Domain;
 import net.spfbl.core.ProcessException;
+import net.spfbl.core.RefreshQueue;
+import net.spfbl.core.Revalidator;
 import net.spfbl.core.Server;
+import net.spfbl.core.SingleFlight;
 import net.spfbl.whois.Owner;
 import net.spfbl.whois.Subnet;
 import net.spfbl.whois.SubnetIPv4;
 import net.spfbl.whois.SubnetIPv6;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -36,7 +40,6 @@ import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -74,6 +77,7 @@ import net.spfbl.data.NoReply;
 import net.spfbl.core.Peer;
 import net.spfbl.data.Provider;
 import net.spfbl.core.Reverse;
+import net.spfbl.core.StoreFile;
 import net.spfbl.core.User;
 import net.spfbl.data.Generic;
 import net.spfbl.data.Trap;
@@ -129,6 +133,7 @@ public final class SPF implements Serializable {
     private int nxdomain = 0; // Contador de inexistência de domínio.
     private long lastRefresh = 0; // Última vez que houve atualização do registro em milisegundos.
     private static final int REFRESH_TIME = 7; // Prazo máximo que o registro deve permanecer em cache em dias.
+    private static final int STALE_TIME = 14; // Prazo máximo que o registro expirado pode ser servido enquanto é atualizado em dias.
     
     private SPF(String hostname) throws ProcessException {
         this.hostname = hostname;
@@ -136,6 +141,112 @@ public final class SPF implements Serializable {
         // indisponibilidade de DNS na primeira consulta.
         refresh(false, true);
     }
+    
+    /**
+     * Lê um registro SPF de um arquivo binário de cache.
+     * @param reader o leitor posicionado no registro.
+     * @throws IOException se houver falha na leitura.
+     */
+    private SPF(BinaryFile.Reader reader) throws IOException {
+        this.hostname = reader.readString();
+        this.redirect = reader.readString();
+        this.explanation = reader.readString();
+        int size = reader.readInt() - 1;
+        if (size >= 0) {
+            this.mechanismList = new ArrayList<Mechanism>(size);
+            for (int index = 0; index < size; index++) {
+                String type = reader.readString();
+                String expression = reader.readString();
+                Mechanism mechanism = newMechanism(type, expression);
+                if (mechanism != null) {
+                    this.mechanismList.add(mechanism);
+                }
+            }
+        }
+        this.all = Qualifier.get(reader.readString());
+        this.error = reader.readBoolean();
+        this.queries = reader.readInt();
+        this.nxdomain = reader.readInt();
+        this.lastRefresh = reader.readLong();
+    }
+    
+    /**
+     * Grava o registro SPF em um arquivo binário de cache.
+     * Cada mecanismo é gravado pelo seu tipo e pela sua expressão,
+     * e os mecanismos A e MX voltam a resolver os seus endereços
+     * na primeira consulta após a leitura.
+     * @param writer o escritor do arquivo.
+     * @throws IOException se houver falha na gravação.
+     */
+    private void write(BinaryFile.Writer writer) throws IOException {
+        ArrayList<Mechanism> list = mechanismList;
+        writer.writeString(hostname);
+        writer.writeString(redirect);
+        writer.writeString(explanation);
+        if (list == null) {
+            writer.writeInt(0);
+        } else {
+            writer.writeInt(list.size() + 1);
+            for (Mechanism mechanism : list) {
+                writer.writeString(getType(mechanism));
+                writer.writeString(mechanism.getExpression());
+            }
+        }
+        writer.writeString(Qualifier.name(all));
+        writer.writeBoolean(error);
+        writer.writeInt(queries);
+        writer.writeInt(nxdomain);
+        writer.writeLong(lastRefresh);
+    }
+    
+    /**
+     * @return o tipo gravado no cache binário para o mecanismo.
+     */
+    private static String getType(Mechanism mechanism) {
+        if (mechanism instanceof MechanismIPv4) {
+            return "ip4";
+        } else if (mechanism instanceof MechanismIPv6) {
+            return "ip6";
+        } else if (mechanism instanceof MechanismA) {
+            return "a";
+        } else if (mechanism instanceof MechanismMX) {
+            return "mx";
+        } else if (mechanism instanceof MechanismPTR) {
+            return "ptr";
+        } else if (mechanism instanceof MechanismExists) {
+            return "exists";
+        } else if (mechanism instanceof MechanismInclude) {
+            return "include";
+        } else {
+            return null;
+        }
+    }
+    
+    /**
+     * @return o mecanismo do tipo gravado ou nulo se
+     * o tipo for nulo ou não existir mais.
+     */
+    private Mechanism newMechanism(String type, String expression) {
+        if (type == null || expression == null) {
+            return null;
+        } else if (type.equals("ip4")) {
+            return new MechanismIPv4(expression);
+        } else if (type.equals("ip6")) {
+            return new MechanismIPv6(expression);
+        } else if (type.equals("a")) {
+            return new MechanismA(expression, false);
+        } else if (type.equals("mx")) {
+            return new MechanismMX(expression, false);
+        } else if (type.equals("ptr")) {
+            return new MechanismPTR(expression);
+        } else if (type.equals("exists")) {
+            return new MechanismExists(expression);
+        } else if (type.equals("include")) {
+            return new MechanismInclude(expression);
+        } else {
+            return null;
+        }
+    }
 
     /**
      * Consulta o registro SPF nos registros DNS do domínio. Se houver mais de
@@ -394,6 +505,7 @@ public final class SPF implements Serializable {
     private synchronized void updateLastRefresh() {
         this.queries = 0;
         this.lastRefresh = System.currentTimeMillis();
+        CacheSPF.QUEUE.remove(this);
     }
 
     /**
@@ -782,6 +894,30 @@ public final class SPF implements Serializable {
         return expiredTime > REFRESH_TIME;
     }
     
+    /**
+     * Verifica se o registro expirou além do prazo
+     * em que pode ser servido enquanto é atualizado.
+     *
+     * @return verdadeiro se o registro não pode mais ser servido.
+     */
+    private boolean isRegistryTooStale() {
+        long expiredTime = (System.currentTimeMillis() - lastRefresh) / Server.DAY_TIME;
+        return expiredTime > STALE_TIME;
+    }
+    
+    /**
+     * Atualiza o registro somente se ainda estiver expirado,
+     * de modo que consultas simultâneas resultem numa única
+     * consulta DNS.
+     *
+     * @throws ProcessException se houver falha no processamento.
+     */
+    private synchronized void refreshExpired() throws ProcessException {
+        if (isRegistryExpired()) {
+            refresh(false, false);
+        }
+    }
+    
     /**
      * Verifica se o registro atual expirou.
      *
@@ -1545,7 +1681,7 @@ public final class SPF implements Serializable {
             if (reverse == null) {
                 return false;
             } else {
-                for (String address : reverse.getAddressSet()) {
+                for (String address : reverse.getAddressList()) {
                     if (address.endsWith(hostname)) {
                         return true;
                     }
@@ -1662,9 +1798,13 @@ public final class SPF implements Serializable {
          */
         private static final HashMap<String,SPF> MAP = new HashMap<String,SPF>();
         /**
-         * O próximo registro SPF que deve ser atualizado.
+         * Fila dos registros SPF que devem ser atualizados.
+         */
+        private static final RefreshQueue<SPF> QUEUE = new RefreshQueue<SPF>();
+        /**
+         * Cargas em execução dos registros SPF ausentes do cache.
          */
-        private static SPF spfRefresh = null;
+        private static final SingleFlight<SPF> FLIGHT = new SingleFlight<SPF>();
         /**
          * Flag que indica se o cache foi modificado.
          */
@@ -1681,11 +1821,24 @@ public final class SPF implements Serializable {
         private static synchronized SPF dropExact(String token) {
             SPF ret = MAP.remove(token);
             if (ret != null) {
+                QUEUE.remove(ret);
                 CHANGED = true;
             }
             return ret;
         }
 
+        /**
+         * Inclui em bloco os registros carregados do disco com uma única
+         * aquisição da trava, sem substituir os registros já consultados.
+         */
+        private static synchronized void putAllAbsent(HashMap<String,SPF> map) {
+            for (String key : map.keySet()) {
+                if (!MAP.containsKey(key)) {
+                    MAP.put(key, map.get(key));
+                }
+            }
+        }
+
         private static synchronized SPF putExact(String key, SPF value) {
             SPF ret = MAP.put(key, value);
             if (!value.equals(ret)) {
@@ -1710,22 +1863,10 @@ public final class SPF implements Serializable {
             return MAP.get(host);
         }
         
-        private static synchronized Collection<SPF> getValues() {
-            return MAP.values();
-        }
-        
-        private static synchronized SPF getRefreshSPF() {
-            SPF spf = spfRefresh;
-            spfRefresh = null;
-            return spf;
-        }
-        
         private static synchronized void addQuerie(SPF spf) {
             spf.queries++;
-            if (spfRefresh == null) {
-                spfRefresh = spf;
-            } else if (spfRefresh.queries < spf.queries) {
-                spfRefresh = spf;
+            if (spf.queries > 3) {
+                QUEUE.update(spf, spf.queries, spf.lastRefresh);
             }
         }
         
@@ -1791,12 +1932,27 @@ public final class SPF implements Serializable {
             } else {
                 SPF spf = getExact(host);
                 if (spf == null) {
-                    spf = new SPF(host);
-                    add(spf);
-                } else if (refresh || spf.isRegistryExpired()) {
+                    final String hostname = host;
+                    spf = FLIGHT.load(host, new SingleFlight.Loader<SPF>() {
+                        @Override
+                        public SPF load() throws ProcessException {
+                            // Somente uma consulta DNS por registro ausente.
+                            SPF spf = getExact(hostname);
+                            if (spf == null) {
+                                spf = new SPF(hostname);
+                                add(spf);
+                            }
+                            return spf;
+                        }
+                    });
+                } else if (refresh || spf.isRegistryTooStale()) {
                     try {
                         // Atualiza o registro se ele for antigo demais.
-                        spf.refresh(false, false);
+                        if (refresh) {
+                            spf.refresh(false, false);
+                        } else {
+                            spf.refreshExpired();
+                        }
                     } catch (ProcessException ex) {
                         if (ex.getMessage().equals("ERROR: DNS UNAVAILABLE")) {
                             // Manter registro anterior quando houver erro de DNS.
@@ -1805,6 +1961,19 @@ public final class SPF implements Serializable {
                             throw ex;
                         }
                     }
+                } else if (spf.isRegistryExpired()) {
+                    // Serve o registro antigo enquanto atualiza.
+                    final SPF stale = spf;
+                    Revalidator.submit("SPF " + host, new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                stale.refreshExpired();
+                            } catch (ProcessException ex) {
+                                Server.logDebug(stale.getHostname() + ": SPF refresh failed. " + ex.getMessage());
+                            }
+                        }
+                    });
                 }
 //                spf.queries++; // Incrementa o contador de consultas.
                 addQuerie(spf); // Incrementa o contador de consultas.
@@ -1812,20 +1981,32 @@ public final class SPF implements Serializable {
             }
         }
 
+        /**
+         * Versão do esquema do cache binário.
+         */
+        private static final int VERSION = 1;
+        
         private static void store() {
             if (isChanged()) {
                 try {
-//                    Server.logTrace("storing spf.map");
+//                    Server.logTrace("storing spf.bin");
                     long time = System.currentTimeMillis();
-                    File file = new File("./data/spf.map");
+                    File file = new File("./data/spf.bin");
                     HashMap<String,SPF> map = getMap();
-                    FileOutputStream outputStream = new FileOutputStream(file);
+                    BinaryFile.Writer writer = new BinaryFile.Writer(file, "spf", VERSION);
                     try {
-                        SerializationUtils.serialize(map, outputStream);
+                        for (String key : map.keySet()) {
+                            writer.next();
+                            writer.writeString(key);
+                            map.get(key).write(writer);
+                        }
+                        writer.finish();
                         setNotChanged();
                     } finally {
-                        outputStream.close();
+                        writer.close();
                     }
+                    // Conclui a migração do formato antigo.
+                    new File("./data/spf.map").delete();
                     Server.logStore(time, file);
                 } catch (Exception ex) {
                     Server.logError(ex);
@@ -1835,48 +2016,66 @@ public final class SPF implements Serializable {
 
         private static void load() {
             long time = System.currentTimeMillis();
-            File file = new File("./data/spf.map");
-            if (file.exists()) {
-                try {
-                    HashMap<String,Object> map;
-                    FileInputStream fileInputStream = new FileInputStream(file);
+            File file = new File("./data/spf.bin");
+            File legacy = new File("./data/spf.map");
+            HashMap<String,Object> map = null;
+            boolean migrate = false;
+            if (StoreFile.exists(file)) {
+                // Recorre à geração anterior se a atual estiver danificada.
+                for (File generation : StoreFile.getGenerations(file)) {
                     try {
-                        map = SerializationUtils.deserialize(fileInputStream);
-                    } finally {
-                        fileInputStream.close();
-                    }
-                    for (String key : map.keySet()) {
-                        Object value = map.get(key);
-                        if (value instanceof SPF) {
-                            SPF spf = (SPF) value;
-                            if (!spf.isRegistryExpired14()) {
-                                putExact(key, spf);
+                        HashMap<String,Object> spfMap = new HashMap<String,Object>();
+                        BinaryFile.Reader reader = new BinaryFile.Reader(generation, "spf", VERSION);
+                        try {
+                            while (reader.next()) {
+                                String key = reader.readString();
+                                spfMap.put(key, new SPF(reader));
                             }
+                            reader.verify();
+                        } finally {
+                            reader.close();
                         }
+                        map = spfMap;
+                        file = generation;
+                        break;
+                    } catch (Exception ex) {
+                        Server.logError(ex);
                     }
-                    setNotChanged();
-                    Server.logLoad(time, file);
+                }
+            } else if (StoreFile.exists(legacy)) {
+                try {
+                    map = StoreFile.deserialize(legacy);
+                    file = legacy;
+                    migrate = true;
                 } catch (Exception ex) {
                     Server.logError(ex);
                 }
             }
+            if (map != null) {
+                HashMap<String,SPF> spfMap = new HashMap<String,SPF>(map.size());
+                for (String key : map.keySet()) {
+                    Object value = map.get(key);
+                    if (value instanceof SPF) {
+                        SPF spf = (SPF) value;
+                        if (!spf.isRegistryExpired14()) {
+                            spfMap.put(key, spf);
+                        }
+                    }
+                }
+                putAllAbsent(spfMap);
+                // Força a gravação no formato binário.
+                CHANGED = migrate;
+                Server.logLoad(time, file);
+            }
         }
         
         /**
-         * Atualiza o registro mais consultado.
+         * Atualiza os registros mais consultados.
          */
         private static void refresh() {
-            SPF spfMax = getRefreshSPF();
-            if (spfMax == null) {
-                for (SPF spf : getValues()) {
-                    if (spfMax == null) {
-                        spfMax = spf;
-                    } else if (spfMax.queries < spf.queries) {
-                        spfMax = spf;
-                    }
-                }
-            }
-            if (spfMax != null && spfMax.queries > 3) {
+            int budget = Core.getRefreshBudget();
+            SPF spfMax;
+            while (budget-- > 0 && (spfMax = QUEUE.poll()) != null) {
                 try {
                     spfMax.refresh(true, false);
                 } catch (ProcessException ex) {
@@ -2418,6 +2617,9 @@ public final class SPF implements Serializable {
         private static synchronized Distribution dropExact(String key) {
             Distribution ret = MAP.remove(key);
             if (ret != null) {
+                if (!ret.isGreen() || ret.isGood()) {
+                    Generation.increment();
+                }
                 CHANGED = true;
             }
             return ret;
@@ -2447,6 +2649,14 @@ public final class SPF implements Serializable {
             return MAP.get(key);
         }
         
+        private static synchronized String nextKey(String key) {
+            if (key == null) {
+                return MAP.isEmpty() ? null : MAP.firstKey();
+            } else {
+                return MAP.higherKey(key);
+            }
+        }
+        
         private static HashMap<String,Distribution> getCloneMap() {
             HashMap<String,Distribution> map = new HashMap<String,Distribution>();
             for (String key : keySet()) {
@@ -2496,12 +2706,13 @@ public final class SPF implements Serializable {
                     } else {
                         map = getMap();
                     }
-                    FileOutputStream outputStream = new FileOutputStream(file);
+                    StoreFile storeFile = new StoreFile(file);
                     try {
-                        SerializationUtils.serialize(map, outputStream);
+                        SerializationUtils.serialize(map, storeFile.getOutputStream());
+                        storeFile.commit();
                         setStored();
                     } finally {
-                        outputStream.close();
+                        storeFile.close();
                     }
                     Server.logStore(time, file);
                 } catch (Exception ex) {
@@ -2513,15 +2724,9 @@ public final class SPF implements Serializable {
         private static void load() {
             long time = System.currentTimeMillis();
             File file = new File("./data/distribution.map");
-            if (file.exists()) {
+            if (StoreFile.exists(file)) {
                 try {
-                    Map<String,Object> map;
-                    FileInputStream fileInputStream = new FileInputStream(file);
-                    try {
-                        map = SerializationUtils.deserialize(fileInputStream);
-                    } finally {
-                        fileInputStream.close();
-                    }
+                    Map<String,Object> map = StoreFile.deserialize(file);
                     for (String key : map.keySet()) {
                         Object value = map.get(key);
                         if (value instanceof Distribution) {
@@ -2746,6 +2951,15 @@ public final class SPF implements Serializable {
         return CacheDistribution.get(token, false);
     }
     
+    /**
+     * Percorre as chaves das distribuições em ordem sem copiar o mapa.
+     * @param key a chave anterior ou nulo para a primeira.
+     * @return a chave seguinte ou nulo se não houver.
+     */
+    public static String nextDistributionKey(String key) {
+        return CacheDistribution.nextKey(key);
+    }
+    
     public static Distribution getDistribution(String token, boolean create) {
         return CacheDistribution.get(token, create);
     }
@@ -3119,12 +3333,13 @@ public final class SPF implements Serializable {
                     long time = System.currentTimeMillis();
                     File file = new File("./data/guess.map");
                     HashMap<String,String> map = getMap();
-                    FileOutputStream outputStream = new FileOutputStream(file);
+                    StoreFile storeFile = new StoreFile(file);
                     try {
-                        SerializationUtils.serialize(map, outputStream);
+                        SerializationUtils.serialize(map, storeFile.getOutputStream());
+                        storeFile.commit();
                         setStored();
                     } finally {
-                        outputStream.close();
+                        storeFile.close();
                     }
                     Server.logStore(time, file);
                 } catch (Exception ex) {
@@ -3136,15 +3351,9 @@ public final class SPF implements Serializable {
         private static void load() {
             long time = System.currentTimeMillis();
             File file = new File("./data/guess.map");
-            if (file.exists()) {
+            if (StoreFile.exists(file)) {
                 try {
-                    HashMap<String,String> map;
-                    FileInputStream fileInputStream = new FileInputStream(file);
-                    try {
-                        map = SerializationUtils.deserialize(fileInputStream);
-                    } finally {
-                        fileInputStream.close();
-                    }
+                    HashMap<String,String> map = StoreFile.deserialize(file);
                     for (String key : map.keySet()) {
                         String value = map.get(key);
                         putExact(key, value);
@@ -3228,10 +3437,13 @@ public final class SPF implements Serializable {
          */
         private static final HashMap<String,HELO> MAP = new HashMap<String,HELO>();
         /**
-         * O próximo registro HELO que deve ser atualizado.
+         * Fila dos HELO que devem ser atualizados.
+         */
+        private static final RefreshQueue<String> QUEUE = new RefreshQueue<String>();
+        /**
+         * Cargas em execução dos HELO ausentes do cache.
          */
-        private static String hostRefresh = null;
-        private static HELO heloRefresh = null;
+        private static final SingleFlight<HELO> FLIGHT = new SingleFlight<HELO>();
         /**
          * Flag que indica se o cache foi modificado.
          */
@@ -3240,6 +3452,7 @@ public final class SPF implements Serializable {
         private static synchronized HELO dropExact(String token) {
             HELO ret = MAP.remove(token);
             if (ret != null) {
+                QUEUE.remove(token);
                 CHANGED = true;
             }
             return ret;
@@ -3269,22 +3482,11 @@ public final class SPF implements Serializable {
             return MAP.get(host);
         }
         
-        private static synchronized String getRefreshHELO() {
-            String helo = hostRefresh;
-            hostRefresh = null;
-            heloRefresh = null;
-            return helo;
-        }
-        
         private static synchronized void addQuery(String host, HELO helo) {
             helo.queryCount++;
             helo.lastQuery = System.currentTimeMillis();
-            if (hostRefresh == null || heloRefresh == null) {
-                hostRefresh = host;
-                heloRefresh = helo;
-            } else if (heloRefresh.queryCount < helo.queryCount) {
-                hostRefresh = host;
-                heloRefresh = helo;
+            if (helo.queryCount > 3) {
+                QUEUE.update(host, helo.queryCount, helo.lastRefresh);
             }
         }
 
@@ -3300,6 +3502,7 @@ public final class SPF implements Serializable {
             private String address6 = null;
             private int queryCount = 0;
             private long lastQuery;
+            private long lastRefresh = 0;
             
             private HELO(String hostname) {
                 this.lastQuery = System.currentTimeMillis();
@@ -3373,10 +3576,39 @@ public final class SPF implements Serializable {
                     Server.logLookupHELO(time, hostname, "ERROR " + ex.getClass() + " " + ex.getExplanation());
                 } finally {
                     this.queryCount = 0;
+                    this.lastRefresh = System.currentTimeMillis();
+                    QUEUE.remove(hostname);
                     CHANGED = true;
                 }
             }
             
+            /**
+             * Atualiza o registro somente se ainda estiver expirado,
+             * de modo que consultas simultâneas resultem numa única
+             * consulta DNS.
+             */
+            private synchronized void refreshExpired(String hostname) {
+                if (isExpired()) {
+                    refresh(hostname);
+                }
+            }
+            
+            /**
+             * Registros antigos, sem data de atualização,
+             * são atualizados em segundo plano.
+             * @return verdadeiro se o registro deve ser atualizado.
+             */
+            private boolean isExpired() {
+                return System.currentTimeMillis() - lastRefresh > Server.DAY_TIME;
+            }
+            
+            /**
+             * @return verdadeiro se o registro não pode mais ser servido.
+             */
+            private boolean isTooStale() {
+                return lastRefresh > 0 && System.currentTimeMillis() - lastRefresh > Server.DAY_TIME * 7;
+            }
+            
             public TreeSet<String> getAddressSet() {
                 TreeSet<String> set = new TreeSet<String>();
                 set.addAll(this.addressSet);
@@ -3444,12 +3676,44 @@ public final class SPF implements Serializable {
             } else {
                 HELO heloObj = getExact(helo);
                 if (heloObj == null) {
-                    heloObj = new HELO(helo);
-                    putExact(helo, heloObj);
+                    final String hostname = helo;
+                    try {
+                        heloObj = FLIGHT.load(helo, new SingleFlight.Loader<HELO>() {
+                            @Override
+                            public HELO load() {
+                                // Somente uma consulta DNS por HELO ausente.
+                                HELO heloObj = getExact(hostname);
+                                if (heloObj == null) {
+                                    heloObj = new HELO(hostname);
+                                    putExact(hostname, heloObj);
+                                }
+                                return heloObj;
+                            }
+                        });
+                    } catch (ProcessException ex) {
+                        // Consulta interrompida.
+                        return false;
+                    }
                 } else if (refresh) {
                     heloObj.refresh(helo);
                     addQuery(helo, heloObj);
                     CHANGED = true;
+                } else if (heloObj.isTooStale()) {
+                    heloObj.refreshExpired(helo);
+                    addQuery(helo, heloObj);
+                    CHANGED = true;
+                } else if (heloObj.isExpired()) {
+                    // Serve o registro antigo enquanto atualiza.
+                    final HELO stale = heloObj;
+                    final String hostname = helo;
+                    Revalidator.submit("HELO " + helo, new Runnable() {
+                        @Override
+                        public void run() {
+                            stale.refreshExpired(hostname);
+                        }
+                    });
+                    addQuery(helo, heloObj);
+                    CHANGED = true;
                 } else {
                     addQuery(helo, heloObj);
                     CHANGED = true;
@@ -3472,28 +3736,17 @@ public final class SPF implements Serializable {
         }
 
         /**
-         * Atualiza o registro mais consultado.
+         * Atualiza os registros mais consultados.
          */
         private static void refresh() {
-            String heloMax = getRefreshHELO();
-            HELO heloObjMax = getExact(heloMax);
-            if (heloObjMax == null) {
-                for (String hostname : keySet()) {
-                    HELO heloObj = getExact(hostname);
-                    if (heloObj != null) {
-                        if (heloObjMax == null) {
-                            heloMax = hostname;
-                            heloObjMax = heloObj;
-                        } else if (heloObjMax.queryCount < heloObj.queryCount) {
-                            heloMax = hostname;
-                            heloObjMax = heloObj;
-                        }
-                    }
+            int budget = Core.getRefreshBudget();
+            String heloMax;
+            while (budget-- > 0 && (heloMax = QUEUE.poll()) != null) {
+                HELO heloObjMax = getExact(heloMax);
+                if (heloObjMax != null) {
+                    heloObjMax.refresh(heloMax);
                 }
             }
-            if (heloMax != null && heloObjMax != null && heloObjMax.queryCount > 3) {
-                heloObjMax.refresh(heloMax);
-            }
         }
 
         private static void store() {
@@ -3503,12 +3756,13 @@ public final class SPF implements Serializable {
                     long time = System.currentTimeMillis();
                     File file = new File("./data/helo.map");
                     HashMap<String,HELO> map = getMap();
-                    FileOutputStream outputStream = new FileOutputStream(file);
+                    StoreFile storeFile = new StoreFile(file);
                     try {
-                        SerializationUtils.serialize(map, outputStream);
+                        SerializationUtils.serialize(map, storeFile.getOutputStream());
+                        storeFile.commit();
                         CHANGED = false;
                     } finally {
-                        outputStream.close();
+                        storeFile.close();
                     }
                     Server.logStore(time, file);
                 } catch (Exception ex) {
@@ -3520,15 +3774,9 @@ public final class SPF implements Serializable {
         private static void load() {
             long time = System.currentTimeMillis();
             File file = new File("./data/helo.map");
-            if (file.exists()) {
+            if (StoreFile.exists(file)) {
                 try {
-                    HashMap<String,Object> map;
-                    FileInputStream fileInputStream = new FileInputStream(file);
-                    try {
-                        map = SerializationUtils.deserialize(fileInputStream);
-                    } finally {
-                        fileInputStream.close();
-                    }
+                    HashMap<String,Object> map = StoreFile.deserialize(file);
                     for (String key : map.keySet()) {
                         Object value = map.get(key);
                         if (value instanceof HELO) {
@@ -6200,6 +6448,7 @@ public final class SPF implements Serializable {
             status = Status.GREEN;
             frequency = null;
             CacheDistribution.CHANGED = true;
+            Generation.increment();
         }
         
         public synchronized Distribution replicate() {
@@ -6241,6 +6490,7 @@ public final class SPF implements Serializable {
             hamSet.addAll(spamSet);
             spamSet.clear();
             status = Status.GREEN;
+            Generation.increment();
             CacheDistribution.CHANGED = true;
             return true;
         }
@@ -6387,7 +6637,11 @@ public final class SPF implements Serializable {
             }
             int total = binomial[0] + binomial[1];
             float probability = (float) binomial[1] / (float) total;
+            boolean goodOld = good;
             good = binomial[0] > 512 && binomial[1] < 32;
+            if (good != goodOld) {
+                Generation.increment();
+            }
             if (total == 0) {
                 return 0.0f;
             } else if (probability > LIMIAR1 && binomial[1] < 5) {
@@ -6430,6 +6684,9 @@ public final class SPF implements Serializable {
             } else {
                 status = Status.YELLOW;
             }
+            if (status != statusOld) {
+                Generation.increment();
+            }
             return status;
         }
         
@@ -19,10 +19,9 @@ package net.spfbl.whois;
 
 import net.spfbl.core.Server;
 import net.spfbl.core.ProcessException;
+import net.spfbl.core.StoreFile;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.text.SimpleDateFormat;
@@ -329,13 +328,14 @@ public class AutonomousSystem implements Serializable, Comparable<AutonomousSyst
                 long time = System.currentTimeMillis();
                 HashMap<String,AutonomousSystem> map = getMap();
                 File file = new File("./data/as.map");
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    SerializationUtils.serialize(map, storeFile.getOutputStream());
+                    storeFile.commit();
                     // Atualiza flag de atualização.
                     AS_CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
                 Server.logStore(time, file);
             } catch (Exception ex) {
@@ -354,15 +354,9 @@ public class AutonomousSystem implements Serializable, Comparable<AutonomousSyst
     public static void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/as.map");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                HashMap<String,Object> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    map = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                HashMap<String,Object> map = StoreFile.deserialize(file);
                 for (String key : map.keySet()) {
                     Object value = map.get(key);
                     if (value instanceof AutonomousSystem) {
@@ -16,12 +16,15 @@
  */
 package net.spfbl.whois;
 
+import net.spfbl.core.BinaryFile;
+import net.spfbl.core.RefreshQueue;
 import net.spfbl.core.Server;
+import net.spfbl.core.SingleFlight;
 import net.spfbl.core.ProcessException;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.text.SimpleDateFormat;
@@ -39,6 +42,7 @@ import javax.naming.NameNotFoundException;
 import javax.naming.OperationNotSupportedException;
 import javax.naming.ServiceUnavailableException;
 import net.spfbl.core.Core;
+import net.spfbl.core.StoreFile;
 import org.apache.commons.lang3.SerializationUtils;
 
 /**
@@ -430,6 +434,70 @@ public class Domain implements Serializable, Comparable<Domain> {
         this.domain = refresh(result);
     }
     
+    /**
+     * Leitura de um registro do cache binário.
+     * @param reader o leitor posicionado no registro.
+     * @throws IOException se houver falha na leitura.
+     */
+    private Domain(BinaryFile.Reader reader) throws IOException {
+        this.domain = reader.readString();
+        this.owner = reader.readString();
+        this.ownerid = reader.readString();
+        this.responsible = reader.readString();
+        this.country = reader.readString();
+        this.owner_c = reader.readString();
+        this.admin_c = reader.readString();
+        this.tech_c = reader.readString();
+        this.billing_c = reader.readString();
+        this.created = reader.readDate();
+        this.expires = reader.readDate();
+        this.changed = reader.readDate();
+        this.provider = reader.readString();
+        this.status = reader.readString();
+        this.dsrecord = reader.readString();
+        this.dsstatus = reader.readString();
+        this.dslastok = reader.readString();
+        this.saci = reader.readString();
+        this.web_whois = reader.readString();
+        reader.readStrings(nameServerList);
+        this.server = reader.readString();
+        this.lastRefresh = reader.readLong();
+        this.reduced = reader.readBoolean();
+        this.queries = reader.readInt();
+    }
+    
+    /**
+     * Gravação do registro no cache binário.
+     * @param writer o gravador posicionado no registro.
+     * @throws IOException se houver falha na gravação.
+     */
+    private void write(BinaryFile.Writer writer) throws IOException {
+        writer.writeString(domain);
+        writer.writeString(owner);
+        writer.writeString(ownerid);
+        writer.writeString(responsible);
+        writer.writeString(country);
+        writer.writeString(owner_c);
+        writer.writeString(admin_c);
+        writer.writeString(tech_c);
+        writer.writeString(billing_c);
+        writer.writeDate(created);
+        writer.writeDate(expires);
+        writer.writeDate(changed);
+        writer.writeString(provider);
+        writer.writeString(status);
+        writer.writeString(dsrecord);
+        writer.writeString(dsstatus);
+        writer.writeString(dslastok);
+        writer.writeString(saci);
+        writer.writeString(web_whois);
+        writer.writeStrings(nameServerList);
+        writer.writeString(server);
+        writer.writeLong(lastRefresh);
+        writer.writeBoolean(reduced);
+        writer.writeInt(queries);
+    }
+    
     private boolean refresh() throws ProcessException {
         server = getWhoisServer(domain); // Temporário até final de transição.
         String result = Server.whois(domain, server);
@@ -735,6 +803,7 @@ public class Domain implements Serializable, Comparable<Domain> {
                 DOMAIN_CHANGED = true;
                 this.lastRefresh = System.currentTimeMillis();
                 this.queries = 1;
+                QUEUE.remove(this);
                 // Retorna o domínio real indicado pelo WHOIS.
                 return domainResult;
             }
@@ -1054,18 +1123,25 @@ public class Domain implements Serializable, Comparable<Domain> {
     private static void storeDomain() {
         if (DOMAIN_CHANGED) {
             try {
-//                Server.logTrace("storing domain.map");
+//                Server.logTrace("storing domain.bin");
                 long time = System.currentTimeMillis();
-                File file = new File("./data/domain.map");
+                File file = new File("./data/domain.bin");
                 HashMap<String,Domain> map = getDomainMap();
-                FileOutputStream outputStream = new FileOutputStream(file);
+                BinaryFile.Writer writer = new BinaryFile.Writer(file, "domain", VERSION);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    for (String key : map.keySet()) {
+                        writer.next();
+                        writer.writeString(key);
+                        map.get(key).write(writer);
+                    }
+                    writer.finish();
                     // Atualiza flag de atualização.
                     DOMAIN_CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    writer.close();
                 }
+                // Conclui a migração do formato antigo.
+                new File("./data/domain.map").delete();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -1086,13 +1162,14 @@ public class Domain implements Serializable, Comparable<Domain> {
                 long time = System.currentTimeMillis();
                 File file = new File("./data/tld.set");
                 TreeSet<String> set = getSetTLD();
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(set, outputStream);
+                    SerializationUtils.serialize(set, storeFile.getOutputStream());
+                    storeFile.commit();
                     // Atualiza flag de atualização.
                     TLD_CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
                 Server.logStore(time, file);
             } catch (Exception ex) {
@@ -1105,6 +1182,18 @@ public class Domain implements Serializable, Comparable<Domain> {
         return MAP.put(key, domain);
     }
     
+    /**
+     * Inclui em bloco os registros carregados do disco com uma única
+     * aquisição da trava, sem substituir os registros já consultados.
+     */
+    private static synchronized void putAllAbsent(HashMap<String,Domain> map) {
+        for (String key : map.keySet()) {
+            if (!MAP.containsKey(key)) {
+                MAP.put(key, map.get(key));
+            }
+        }
+    }
+    
     private static synchronized void addAll(Collection<String> set) {
         for (String tld : set) {
             if (!tld.startsWith(".")) {
@@ -1119,39 +1208,67 @@ public class Domain implements Serializable, Comparable<Domain> {
      */
     public static void load() {
         long time = System.currentTimeMillis();
-        File file = new File("./data/domain.map");
-        if (file.exists()) {
+        File file = new File("./data/domain.bin");
+        File legacy = new File("./data/domain.map");
+        if (StoreFile.exists(file)) {
+            // Recorre à geração anterior se a atual estiver danificada.
+            for (File generation : StoreFile.getGenerations(file)) {
+                try {
+                    HashMap<String,Domain> domainMap = new HashMap<String,Domain>();
+                    BinaryFile.Reader reader = new BinaryFile.Reader(generation, "domain", VERSION);
+                    try {
+                        while (reader.next()) {
+                            String key = reader.readString();
+                            domainMap.put(key, new Domain(reader));
+                        }
+                        reader.verify();
+                    } finally {
+                        reader.close();
+                    }
+                    putAllAbsent(domainMap);
+                    Server.logLoad(time, generation);
+                    break;
+                } catch (Exception ex) {
+                    Server.logError(ex);
+                }
+            }
+        } else if (legacy.exists()) {
             try {
                 HashMap<String,Object> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
+                FileInputStream fileInputStream = new FileInputStream(legacy);
                 try {
                     map = SerializationUtils.deserialize(fileInputStream);
                 } finally {
                     fileInputStream.close();
                 }
+                HashMap<String,Domain> domainMap = new HashMap<String,Domain>(map.size());
                 for (String key : map.keySet()) {
                     Object value = map.get(key);
                     if (value instanceof Domain) {
                         Domain domain = (Domain) value;
-                        put(key, domain);
+                        domainMap.put(key, domain);
                     }
                 }
-                Server.logLoad(time, file);
+                putAllAbsent(domainMap);
+                // Força a gravação no formato binário.
+                DOMAIN_CHANGED = true;
+                Server.logLoad(time, legacy);
             } catch (Exception ex) {
                 Server.logError(ex);
             }
         }
-        time = System.currentTimeMillis();
-        file = new File("./data/tld.set");
-        if (file.exists()) {
+    }
+    
+    /**
+     * Carregamento dos TLDs do disco, que deve preceder
+     * o carregamento das listas que normalizam domínios.
+     */
+    public static void loadTLD() {
+        long time = System.currentTimeMillis();
+        File file = new File("./data/tld.set");
+        if (StoreFile.exists(file)) {
             try {
-                Collection<String> set;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    set = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                Collection<String> set = StoreFile.deserialize(file);
                 addAll(set);
                 Server.logLoad(time, file);
             } catch (Exception ex) {
@@ -1207,8 +1324,36 @@ public class Domain implements Serializable, Comparable<Domain> {
      */
     private static final HashMap<String,Domain> MAP = new HashMap<String,Domain>();
     
+    /**
+     * Cargas em execução dos domínios ausentes do cache.
+     */
+    private static final SingleFlight<Domain> FLIGHT = new SingleFlight<Domain>();
+    
+    private static synchronized Domain getExact(String key) {
+        return MAP.get(key);
+    }
+    
+    private static synchronized boolean dropExact(String key) {
+        Domain domain = MAP.remove(key);
+        if (domain != null) {
+            QUEUE.remove(domain);
+            DOMAIN_CHANGED = true;
+            return true;
+        } else {
+            return false;
+        }
+    }
+    
+    private static synchronized void addReservedTLD(String host) {
+        if (TLD_SET.add(host)) {
+            // Atualiza flag de atualização.
+            TLD_CHANGED = true;
+        }
+    }
+    
     public synchronized boolean drop() {
         if (MAP.remove(getDomain()) != null) {
+            QUEUE.remove(this);
             DOMAIN_CHANGED = true;
             return true;
         } else {
@@ -1225,6 +1370,7 @@ public class Domain implements Serializable, Comparable<Domain> {
     public static synchronized Domain removeDomain(String host) throws ProcessException {
         String key = extractDomain(host, false);
         Domain domain = MAP.remove(key);
+        QUEUE.remove(domain);
         // Atualiza flag de atualização.
         DOMAIN_CHANGED = true;
         return domain;
@@ -1235,6 +1381,11 @@ public class Domain implements Serializable, Comparable<Domain> {
      */
     private static boolean DOMAIN_CHANGED = false;
     
+    /**
+     * Versão do esquema do cache binário.
+     */
+    private static final int VERSION = 1;
+    
     public static synchronized TreeSet<Domain> getDomainSet() {
         TreeSet<Domain> domainSet = new TreeSet<Domain>();
         domainSet.addAll(MAP.values());
@@ -1248,23 +1399,29 @@ public class Domain implements Serializable, Comparable<Domain> {
     }
     
     /**
-     * Atualiza em background todos os registros adicionados no conjunto.
+     * Fila dos registros que devem ser atualizados.
      */
-    public static boolean backgroundRefresh() {
-        Domain domainMax = null;
-        for (Domain domain : getDomainSet()) {
-            if (domain.isReduced() || domain.isRegistryExpired()) {
-                if (domain.queries > 3) {
-                    if (domainMax == null) {
-                        domainMax = domain;
-                    } else if (domainMax.queries < domain.queries) {
-                        domainMax = domain;
-                    } else if (domainMax.lastRefresh > domain.lastRefresh) {
-                        domainMax = domain;
-                    }
-                }
-            }
+    private static final RefreshQueue<Domain> QUEUE = new RefreshQueue<Domain>();
+    
+    /**
+     * Registra uma consulta e, se o registro estiver reduzido ou expirado,
+     * o posiciona na fila de atualização.
+     */
+    private void addQuery() {
+        queries++;
+        if (queries > 3 && (isReduced() || isRegistryExpired())) {
+            QUEUE.update(this, queries, lastRefresh);
         }
+    }
+    
+    /**
+     * Atualiza em background o registro mais consultado da fila.
+     */
+    public static boolean backgroundRefresh() {
+        Domain domainMax;
+        do {
+            domainMax = QUEUE.poll();
+        } while (domainMax != null && !domainMax.isReduced() && !domainMax.isRegistryExpired());
         if (domainMax == null) {
             return false;
         } else {
@@ -1298,51 +1455,25 @@ public class Domain implements Serializable, Comparable<Domain> {
      * @param address o endereço cujo registro de domínio deve ser atualizado.
      * @throws ProcessException se houver falha no processamento.
      */
-    public static synchronized void refreshDomain(String address) throws ProcessException {
+    public static void refreshDomain(String address) throws ProcessException {
         String key = extractDomain(address, false);
         // Busca eficiente O(1).
-        if (MAP.containsKey(key)) {
-            // Domínio encontrado.
-            Domain domain = MAP.get(key);
-            // Atualizando campos do registro.
-            if (!domain.refresh()) {
-                // Domínio real do resultado WHOIS não bate com o registro.
-                // Pode haver a criação de uma nova TLD.
-                // Apagando registro de domínio do cache.
-                if (MAP.remove(domain.getDomain()) != null) {
-                    // Atualiza flag de atualização.
-                    DOMAIN_CHANGED = true;
-                }
-                // Segue para nova consulta.
-            }
-        } else {
+        Domain domain = getExact(key);
+        if (domain == null) {
             // Extrair o host se for e-mail.
             String host = extractHost(address, false);
             // Não encontrou o dominio em cache.
-            // Selecionando servidor da pesquisa WHOIS.
-            String server = getWhoisServer(host);
             // Verifica o DNS do host antes de fazer a consulta no WHOIS.
             // Evita consulta desnecessária no WHOIS.
             checkHost(host);
             // Domínio existente.
             // Realizando a consulta no WHOIS.
-            String result = Server.whois(host, server);
-            try {
-                Domain domain = new Domain(result);
-                domain.server = server; // Temporário até final de transição.
-                // Adicinando registro em cache.
-                MAP.put(domain.getDomain(), domain);
-                DOMAIN_CHANGED = true;
-            } catch (ProcessException ex) {
-                if (ex.isErrorMessage("RESERVED")) {
-                    // A chave de busca é um TLD.
-                    if (TLD_SET.add(host)) {
-                        // Atualiza flag de atualização.
-                        TLD_CHANGED = true;
-                    }
-                }
-                throw ex;
-            }
+            newDomain(host);
+        } else if (!domain.refresh()) {
+            // Domínio real do resultado WHOIS não bate com o registro.
+            // Pode haver a criação de uma nova TLD.
+            // Apagando registro de domínio do cache.
+            dropExact(domain.getDomain());
         }
     }
     
@@ -1427,36 +1558,26 @@ public class Domain implements Serializable, Comparable<Domain> {
         }
     }
     
-//    private static final Semaphore SEMAPHORE_NEW = new Semaphore(1);
-    
-    private static synchronized Domain newDomain(String host) throws ProcessException {
-//        try {
-//            Server.logTrace("quering new WHOIS domain");
-            // Selecionando servidor da pesquisa WHOIS.
-            String server = getWhoisServer(host);
-            // Domínio existente.
-            // Realizando a consulta no WHOIS.
-            String result = Server.whois(host, server);
-            try {
-                Domain domain = new Domain(result);
-                domain.server = server; // Temporário até final de transição.
-                // Adicinando registro em cache.
-                MAP.put(domain.getDomain(), domain);
-                DOMAIN_CHANGED = true;
-                return domain;
-            } catch (ProcessException ex) {
-                if (ex.isErrorMessage("RESERVED")) {
-                    // A chave de busca é um TLD.
-                    if (TLD_SET.add(host)) {
-                        // Atualiza flag de atualização.
-                        TLD_CHANGED = true;
-                    }
-                }
-                throw ex;
+    private static Domain newDomain(String host) throws ProcessException {
+        // Selecionando servidor da pesquisa WHOIS.
+        String server = getWhoisServer(host);
+        // Domínio existente.
+        // Realizando a consulta no WHOIS.
+        String result = Server.whois(host, server);
+        try {
+            Domain domain = new Domain(result);
+            domain.server = server; // Temporário até final de transição.
+            // Adicinando registro em cache.
+            put(domain.getDomain(), domain);
+            DOMAIN_CHANGED = true;
+            return domain;
+        } catch (ProcessException ex) {
+            if (ex.isErrorMessage("RESERVED")) {
+                // A chave de busca é um TLD.
+                addReservedTLD(host);
             }
-//        } finally {
-//            SEMAPHORE_NEW.release();
-//        }
+            throw ex;
+        }
     }
     
     /**
@@ -1466,23 +1587,23 @@ public class Domain implements Serializable, Comparable<Domain> {
      * @throws ProcessException se houver falha no processamento.
      */
     public static Domain getDomain(String address) throws ProcessException {
-        String key = extractDomain(address, false);
-        Domain domain = MAP.get(key);
+        final String key = extractDomain(address, false);
+        Domain domain = getExact(key);
         // Busca eficiente O(1).
         if (domain != null) {
             // Domínio encontrado.
-            domain.queries++;
+            domain.addQuery();
             if (domain.isRegistryExpired()) {
                 // Registro desatualizado.
                 // Atualizando campos do registro.
                 if (domain.refresh()) {
                     // Domínio real do resultado WHOIS bate com o registro.
                     return domain;
-                } else if (MAP.remove(domain.getDomain()) != null) {
+                } else {
                     // Domínio real do resultado WHOIS não bate com o registro.
                     // Pode haver a criação de uma nova TLD.
                     // Apagando registro de domínio do cache.
-                    DOMAIN_CHANGED = true;
+                    dropExact(domain.getDomain());
                     // Segue para nova consulta.
                 }
             } else {
@@ -1491,15 +1612,22 @@ public class Domain implements Serializable, Comparable<Domain> {
             }
         }
         // Extrair o host se for e-mail.
-        String host = extractHost(address, false);
-        // Verifica o DNS do host antes de fazer a consulta no WHOIS.
-        // Evita consulta desnecessária no WHOIS.
-        checkHost(host);
-//        if (SEMAPHORE_NEW.tryAcquire()) {
-            return newDomain(host);
-//        } else {
-//            return null;
-//        }
+        final String host = extractHost(address, false);
+        return FLIGHT.load(key, new SingleFlight.Loader<Domain>() {
+            @Override
+            public Domain load() throws ProcessException {
+                // Somente uma consulta WHOIS por domínio ausente.
+                Domain domain = getExact(key);
+                if (domain == null || domain.isRegistryExpired()) {
+                    // Verifica o DNS do host antes de fazer a consulta no WHOIS.
+                    // Evita consulta desnecessária no WHOIS.
+                    checkHost(host);
+                    return newDomain(host);
+                } else {
+                    return domain;
+                }
+            }
+        });
     }
     
     /**
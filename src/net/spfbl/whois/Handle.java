@@ -19,9 +19,8 @@ package net.spfbl.whois;
 
 import net.spfbl.core.Server;
 import net.spfbl.core.ProcessException;
+import net.spfbl.core.StoreFile;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.Serializable;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -274,13 +273,14 @@ public class Handle implements Serializable, Comparable<Handle> {
                 long time = System.currentTimeMillis();
                 HashMap<String,Handle> map = getMap();
                 File file = new File("./data/handle.map");
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    SerializationUtils.serialize(map, storeFile.getOutputStream());
+                    storeFile.commit();
                     // Atualiza flag de atualização.
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
                 Server.logStore(time, file);
             } catch (Exception ex) {
@@ -299,15 +299,9 @@ public class Handle implements Serializable, Comparable<Handle> {
     public static void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/handle.map");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                HashMap<String,Object> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    map = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                HashMap<String,Object> map = StoreFile.deserialize(file);
                 for (String key : map.keySet()) {
                     Object value = map.get(key);
                     if (value instanceof Handle) {
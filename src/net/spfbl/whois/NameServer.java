@@ -19,9 +19,8 @@ package net.spfbl.whois;
 
 import net.spfbl.core.Server;
 import net.spfbl.core.ProcessException;
+import net.spfbl.core.StoreFile;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 import org.apache.commons.lang3.SerializationUtils;
@@ -147,13 +146,14 @@ public class NameServer implements Serializable, Comparable<NameServer> {
                 long time = System.currentTimeMillis();
                 HashMap<String,NameServer> map = getMap();
                 File file = new File("./data/ns.map");
-                FileOutputStream outputStream = new FileOutputStream(file);
+                StoreFile storeFile = new StoreFile(file);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    SerializationUtils.serialize(map, storeFile.getOutputStream());
+                    storeFile.commit();
                     // Atualiza flag de atualização.
                     NS_CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    storeFile.close();
                 }
                 Server.logStore(time, file);
             } catch (Exception ex) {
@@ -168,15 +168,9 @@ public class NameServer implements Serializable, Comparable<NameServer> {
     public static void load() {
         long time = System.currentTimeMillis();
         File file = new File("./data/ns.map");
-        if (file.exists()) {
+        if (StoreFile.exists(file)) {
             try {
-                HashMap<String,NameServer> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
-                try {
-                    map = SerializationUtils.deserialize(fileInputStream);
-                } finally {
-                    fileInputStream.close();
-                }
+                HashMap<String,NameServer> map = StoreFile.deserialize(file);
                 for (String key : map.keySet()) {
                     Object value = map.get(key);
                     if (value instanceof NameServer) {
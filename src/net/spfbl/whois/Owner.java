@@ -17,12 +17,14 @@
 
 package net.spfbl.whois;
 
+import net.spfbl.core.BinaryFile;
 import net.spfbl.core.Server;
+import net.spfbl.core.StoreFile;
 import net.spfbl.core.ProcessException;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.text.SimpleDateFormat;
@@ -131,6 +133,48 @@ public class Owner implements Serializable, Comparable<Owner> {
         this.refresh();
     }
     
+    /**
+     * Leitura de um registro do cache binário.
+     * @param reader o leitor posicionado no registro.
+     * @throws IOException se houver falha na leitura.
+     */
+    private Owner(BinaryFile.Reader reader) throws IOException {
+        this.owner = reader.readString();
+        this.ownerid = reader.readString();
+        this.responsible = reader.readString();
+        this.country = reader.readString();
+        this.owner_c = reader.readString();
+        this.created = reader.readDate();
+        this.changed = reader.readDate();
+        this.provider = reader.readString();
+        reader.readStrings(domainList);
+        this.server = reader.readString();
+        this.lastRefresh = reader.readLong();
+        this.reduced = reader.readBoolean();
+        this.queries = reader.readInt();
+    }
+    
+    /**
+     * Gravação do registro no cache binário.
+     * @param writer o gravador posicionado no registro.
+     * @throws IOException se houver falha na gravação.
+     */
+    private void write(BinaryFile.Writer writer) throws IOException {
+        writer.writeString(owner);
+        writer.writeString(ownerid);
+        writer.writeString(responsible);
+        writer.writeString(country);
+        writer.writeString(owner_c);
+        writer.writeDate(created);
+        writer.writeDate(changed);
+        writer.writeString(provider);
+        writer.writeStrings(domainList);
+        writer.writeString(server);
+        writer.writeLong(lastRefresh);
+        writer.writeBoolean(reduced);
+        writer.writeInt(queries);
+    }
+    
     public static String normalizeID(String id) throws ProcessException {
         if (id == null) {
             return null;
@@ -348,18 +392,25 @@ public class Owner implements Serializable, Comparable<Owner> {
     public static void store() {
         if (OWNER_CHANGED) {
             try {
-//                Server.logTrace("storing owner.map");
+//                Server.logTrace("storing owner.bin");
                 long time = System.currentTimeMillis();
                 HashMap<String,Owner> map = getMap();
-                File file = new File("./data/owner.map");
-                FileOutputStream outputStream = new FileOutputStream(file);
+                File file = new File("./data/owner.bin");
+                BinaryFile.Writer writer = new BinaryFile.Writer(file, "owner", VERSION);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    for (String key : map.keySet()) {
+                        writer.next();
+                        writer.writeString(key);
+                        map.get(key).write(writer);
+                    }
+                    writer.finish();
                     // Atualiza flag de atualização.
                     OWNER_CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    writer.close();
                 }
+                // Conclui a migração do formato antigo.
+                new File("./data/owner.map").delete();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -376,11 +427,36 @@ public class Owner implements Serializable, Comparable<Owner> {
      */
     public static void load() {
         long time = System.currentTimeMillis();
-        File file = new File("./data/owner.map");
-        if (file.exists()) {
+        File file = new File("./data/owner.bin");
+        File legacy = new File("./data/owner.map");
+        if (StoreFile.exists(file)) {
+            // Recorre à geração anterior se a atual estiver danificada.
+            for (File generation : StoreFile.getGenerations(file)) {
+                try {
+                    HashMap<String,Owner> ownerMap = new HashMap<String,Owner>();
+                    BinaryFile.Reader reader = new BinaryFile.Reader(generation, "owner", VERSION);
+                    try {
+                        while (reader.next()) {
+                            String key = reader.readString();
+                            ownerMap.put(key, new Owner(reader));
+                        }
+                        reader.verify();
+                    } finally {
+                        reader.close();
+                    }
+                    for (String key : ownerMap.keySet()) {
+                        put(key, ownerMap.get(key));
+                    }
+                    Server.logLoad(time, generation);
+                    break;
+                } catch (Exception ex) {
+                    Server.logError(ex);
+                }
+            }
+        } else if (legacy.exists()) {
             try {
                 HashMap<String,Object> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
+                FileInputStream fileInputStream = new FileInputStream(legacy);
                 try {
                     map = SerializationUtils.deserialize(fileInputStream);
                 } finally {
@@ -393,7 +469,9 @@ public class Owner implements Serializable, Comparable<Owner> {
                         put(key, owner);
                     }
                 }
-                Server.logLoad(time, file);
+                // Força a gravação no formato binário.
+                OWNER_CHANGED = true;
+                Server.logLoad(time, legacy);
             } catch (Exception ex) {
                 Server.logError(ex);
             }
@@ -445,6 +523,11 @@ public class Owner implements Serializable, Comparable<Owner> {
      */
     private static boolean OWNER_CHANGED = false;
     
+    /**
+     * Versão do esquema do cache binário.
+     */
+    private static final int VERSION = 1;
+    
     /**
      * Atualiza o registro de domínio de um determinado host.
      * @param id a identificação do dono que deve ser atualizado.
@@ -0,0 +1,178 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.whois;
+
+/**
+ * Classificador de blocos reservados para propósitos especiais da IANA.
+ *
+ * <h2>Mecanismo de busca</h2>
+ * Os blocos são convertidos uma única vez em pares de endereço e máscara,
+ * em inteiro de 32 bits para IPv4 e nos primeiros 64 bits para IPv6,
+ * ordenados do bloco mais específico para o mais abrangente.
+ * O IP da consulta é convertido uma única vez e comparado com cada par
+ * através de uma operação de máscara, retornando o bloco mais específico.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class ReservedRange {
+
+    private final String cidr;
+    private final String name;
+    private final long address;
+    private final long mask;
+
+    private ReservedRange(String cidr, String name, long address, long mask) {
+        this.cidr = cidr;
+        this.name = name;
+        this.address = address;
+        this.mask = mask;
+    }
+
+    /**
+     * @return o bloco reservado em notação CIDR.
+     */
+    public String getCIDR() {
+        return cidr;
+    }
+
+    /**
+     * @return o nome do bloco no registro de propósitos especiais da IANA.
+     */
+    public String getName() {
+        return name;
+    }
+
+    private boolean contains(long ip) {
+        return (ip & mask) == address;
+    }
+
+    @Override
+    public String toString() {
+        return cidr + " " + name;
+    }
+
+    private static ReservedRange newIPv4(String cidr, String name) {
+        long address = (long) SubnetIPv4.getAddressNet(cidr) & 0xFFFFFFFFL;
+        long mask = (long) SubnetIPv4.getMaskNet(cidr) & 0xFFFFFFFFL;
+        return new ReservedRange(cidr, name, address & mask, mask);
+    }
+
+    private static ReservedRange newIPv6(String cidr, String name) {
+        int index = cidr.indexOf('/');
+        int size = Integer.parseInt(cidr.substring(index+1));
+        long address = SubnetIPv6.getAddressIP(cidr.substring(0, index));
+        long mask = 0xFFFFFFFFFFFFFFFFL << 64 - size;
+        return new ReservedRange(cidr, name, address & mask, mask);
+    }
+
+    /**
+     * Blocos IPv4 do mais específico ao mais abrangente.
+     */
+    private static final ReservedRange[] IPV4 = {
+        newIPv4("255.255.255.255/32", "Limited Broadcast"),
+        newIPv4("192.0.0.0/24", "IETF Protocol Assignments"),
+        newIPv4("192.0.2.0/24", "Documentation (TEST-NET-1)"),
+        newIPv4("192.88.99.0/24", "6to4 Relay Anycast"),
+        newIPv4("198.51.100.0/24", "Documentation (TEST-NET-2)"),
+        newIPv4("203.0.113.0/24", "Documentation (TEST-NET-3)"),
+        newIPv4("169.254.0.0/16", "Link Local"),
+        newIPv4("192.168.0.0/16", "Private-Use"),
+        newIPv4("198.18.0.0/15", "Benchmarking"),
+        newIPv4("172.16.0.0/12", "Private-Use"),
+        newIPv4("100.64.0.0/10", "Shared Address Space"),
+        newIPv4("0.0.0.0/8", "This Network"),
+        newIPv4("10.0.0.0/8", "Private-Use"),
+        newIPv4("127.0.0.0/8", "Loopback"),
+        newIPv4("224.0.0.0/4", "Multicast"),
+        newIPv4("240.0.0.0/4", "Reserved"),
+    };
+
+    /**
+     * Blocos IPv6 do mais específico ao mais abrangente.
+     */
+    private static final ReservedRange[] IPV6 = {
+        newIPv6("2001::/32", "TEREDO"),
+        newIPv6("2001:db8::/32", "Documentation"),
+        newIPv6("2001:10::/28", "ORCHID"),
+        newIPv6("2001:20::/28", "ORCHIDv2"),
+        newIPv6("2002::/16", "6to4"),
+        newIPv6("fe80::/10", "Link-Local Unicast"),
+        newIPv6("fec0::/10", "Site-Local"),
+        newIPv6("fe00::/9", "Reserved by IETF"),
+        newIPv6("0000::/8", "Reserved by IETF"),
+        newIPv6("0100::/8", "Reserved by IETF"),
+        newIPv6("ff00::/8", "Multicast"),
+        newIPv6("0200::/7", "Reserved by IETF"),
+        newIPv6("fc00::/7", "Unique-Local"),
+        newIPv6("0400::/6", "Reserved by IETF"),
+        newIPv6("f800::/6", "Reserved by IETF"),
+        newIPv6("0800::/5", "Reserved by IETF"),
+        newIPv6("f000::/5", "Reserved by IETF"),
+        newIPv6("1000::/4", "Reserved by IETF"),
+        newIPv6("e000::/4", "Reserved by IETF"),
+        newIPv6("4000::/3", "Reserved by IETF"),
+        newIPv6("6000::/3", "Reserved by IETF"),
+        newIPv6("8000::/3", "Reserved by IETF"),
+        newIPv6("a000::/3", "Reserved by IETF"),
+        newIPv6("c000::/3", "Reserved by IETF"),
+    };
+
+    /**
+     * Retorna o bloco reservado mais específico que contém um IPv4.
+     * @param ip o IPv4 já validado.
+     * @return o bloco reservado ou nulo se o IP não for reservado.
+     */
+    public static ReservedRange getIPv4(String ip) {
+        long address = (long) SubnetIPv4.getAddressIP(ip) & 0xFFFFFFFFL;
+        for (ReservedRange range : IPV4) {
+            if (range.contains(address)) {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retorna o bloco reservado mais específico que contém um IPv6.
+     * @param ip o IPv6 já validado.
+     * @return o bloco reservado ou nulo se o IP não for reservado.
+     */
+    public static ReservedRange getIPv6(String ip) {
+        long address = SubnetIPv6.getAddressIP(ip);
+        for (ReservedRange range : IPV6) {
+            if (range.contains(address)) {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retorna o bloco reservado mais específico que contém um IP.
+     * @param ip o IP a ser classificado.
+     * @return o bloco reservado ou nulo se o IP não for reservado ou válido.
+     */
+    public static ReservedRange get(String ip) {
+        if (SubnetIPv4.isValidIPv4(ip)) {
+            return getIPv4(ip);
+        } else if (SubnetIPv6.isValidIPv6(ip)) {
+            return getIPv6(ip);
+        } else {
+            return null;
+        }
+    }
+}
@@ -16,9 +16,12 @@
  */
 package net.spfbl.whois;
 
+import net.spfbl.core.BinaryFile;
+import net.spfbl.core.RefreshQueue;
 import net.spfbl.core.Server;
 import net.spfbl.core.ProcessException;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.text.ParseException;
@@ -395,6 +398,7 @@ public abstract class Subnet implements Serializable, Comparable<Subnet> {
                 this.reduced = reducedNew;
                 this.lastRefresh = System.currentTimeMillis();
                 this.queries = 1;
+                QUEUE.remove(this);
                 return inetnumResult;
             }
         } catch (ProcessException ex) {
@@ -412,6 +416,58 @@ public abstract class Subnet implements Serializable, Comparable<Subnet> {
         this.server = server;
     }
     
+    /**
+     * Leitura de um registro do cache binário.
+     * @param reader o leitor posicionado no registro.
+     * @throws IOException se houver falha na leitura.
+     */
+    protected Subnet(BinaryFile.Reader reader) throws IOException {
+        this.inetnum = normalizeCIDR(reader.readString());
+        this.inetnum_up = reader.readString();
+        this.aut_num = reader.readString();
+        this.abuse_c = reader.readString();
+        this.owner = reader.readString();
+        this.ownerid = reader.readString();
+        this.responsible = reader.readString();
+        this.country = reader.readString();
+        this.owner_c = reader.readString();
+        this.tech_c = reader.readString();
+        this.inetrev = reader.readString();
+        this.created = reader.readDate();
+        this.changed = reader.readDate();
+        reader.readStrings(nameServerList);
+        this.server = reader.readString();
+        this.lastRefresh = reader.readLong();
+        this.reduced = reader.readBoolean();
+        this.queries = reader.readInt();
+    }
+    
+    /**
+     * Gravação do registro no cache binário.
+     * @param writer o gravador posicionado no registro.
+     * @throws IOException se houver falha na gravação.
+     */
+    protected void write(BinaryFile.Writer writer) throws IOException {
+        writer.writeString(inetnum);
+        writer.writeString(inetnum_up);
+        writer.writeString(aut_num);
+        writer.writeString(abuse_c);
+        writer.writeString(owner);
+        writer.writeString(ownerid);
+        writer.writeString(responsible);
+        writer.writeString(country);
+        writer.writeString(owner_c);
+        writer.writeString(tech_c);
+        writer.writeString(inetrev);
+        writer.writeDate(created);
+        writer.writeDate(changed);
+        writer.writeStrings(nameServerList);
+        writer.writeString(server);
+        writer.writeLong(lastRefresh);
+        writer.writeBoolean(reduced);
+        writer.writeInt(queries);
+    }
+    
     /**
      * Verifica se o registro atual expirou.
      * @return verdadeiro se o registro atual expirou.
@@ -603,13 +659,7 @@ public abstract class Subnet implements Serializable, Comparable<Subnet> {
     }
     
     public static boolean isReservedIP(String ip) {
-        if (SubnetIPv4.isValidIPv4(ip)) {
-            return SubnetIPv4.isReservedIPv4(ip);
-        } else if (SubnetIPv6.isValidIPv6(ip)) {
-            return SubnetIPv6.isReservedIPv6(ip);
-        } else {
-            return false;
-        }
+        return ReservedRange.get(ip) != null;
     }
     
 
@@ -653,42 +703,49 @@ public abstract class Subnet implements Serializable, Comparable<Subnet> {
     public static Subnet getSubnet(String ip) throws ProcessException {
         if (SubnetIPv4.isValidIPv4(ip)) {
             Subnet subnet = SubnetIPv4.getSubnet(ip);
-            subnet.queries++;
+            subnet.addQuery();
             return subnet;
         } else if (SubnetIPv6.isValidIPv6(ip)) {
             Subnet subnet = SubnetIPv6.getSubnet(ip);
-            subnet.queries++;
+            subnet.addQuery();
             return subnet;
         } else {
             throw new ProcessException("ERROR: INVALID IP");
         }
     }
     
-    private static TreeSet<Subnet> getSubnetSet() {
-        TreeSet<Subnet> subnetSet = new TreeSet<Subnet>();
-        subnetSet.addAll(SubnetIPv4.getSubnetSet());
-        subnetSet.addAll(SubnetIPv6.getSubnetSet());
-        return subnetSet;
+    /**
+     * Fila dos registros que devem ser atualizados.
+     */
+    private static final RefreshQueue<Subnet> QUEUE = new RefreshQueue<Subnet>();
+    
+    /**
+     * Retira da fila de atualização um registro removido do cache.
+     * @param subnet o registro removido.
+     */
+    static void dequeue(Subnet subnet) {
+        QUEUE.remove(subnet);
     }
     
     /**
-     * Atualiza em background todos os registros adicionados no conjunto.
+     * Registra uma consulta e, se o registro estiver reduzido ou expirado,
+     * o posiciona na fila de atualização.
      */
-    public static boolean backgroundRefresh() {
-        Subnet subnetMax = null;
-        for (Subnet subnet : getSubnetSet()) {
-            if (subnet.isReduced() || subnet.isRegistryExpired()) {
-                if (subnet.queries > 3) {
-                    if (subnetMax == null) {
-                        subnetMax = subnet;
-                    } else if (subnetMax.queries < subnet.queries) {
-                        subnetMax = subnet;
-                    } else if (subnetMax.lastRefresh > subnet.lastRefresh) {
-                        subnetMax = subnet;
-                    }
-                }
-            }
+    private void addQuery() {
+        queries++;
+        if (queries > 3 && (isReduced() || isRegistryExpired())) {
+            QUEUE.update(this, queries, lastRefresh);
         }
+    }
+    
+    /**
+     * Atualiza em background o registro mais consultado da fila.
+     */
+    public static boolean backgroundRefresh() {
+        Subnet subnetMax;
+        do {
+            subnetMax = QUEUE.poll();
+        } while (subnetMax != null && !subnetMax.isReduced() && !subnetMax.isRegistryExpired());
         if (subnetMax == null) {
             return false;
         } else {
@@ -16,11 +16,15 @@
  */
 package net.spfbl.whois;
 
+import net.spfbl.core.BinaryFile;
 import net.spfbl.core.Server;
+import net.spfbl.core.SingleFlight;
+import net.spfbl.core.StoreFile;
 import net.spfbl.core.ProcessException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -32,18 +36,12 @@ import org.apache.commons.lang3.SerializationUtils;
  * Representa uma Subnet de IPv4.
  * 
  * <h2>Mecanismo de busca</h2>
- * A busca de um bloco AS é realizada através de um mapa ordenado em árvore,
- * onde a chave é o primeiro endereço IP do bloco, 
- * convetido em inteiro de 32 bits, e o valor é o bloco propriamente dito.
- * O endereço IP da consulta é convertido em inteiro de 32 bits e localiza-se 
- * o endereço no mapa imediatamente inferior ou igual ao endereço do IP. 
- * Por conta do Java não trabalhar com unsigned int, 
- * a busca é feita de forma circular, ou seja, 
- * se não retornar na primeira busca, o último registro do mapa é retornado.
- * Se algum bloco for encontrado, 
- * é feito um teste se o endereço do IP está contido no bloco encontrado.
- * Se entiver dentro, o bloco encontrado é considerado.
- * A busca consome o tempo de O(log2(n)).
+ * A busca de um bloco AS é realizada através de um índice de intervalos,
+ * onde cada bloco é representado pelo primeiro e pelo último endereço IP,
+ * convertidos em inteiro de 32 bits sem sinal.
+ * O endereço IP da consulta é convertido da mesma forma e localiza-se
+ * o bloco mais específico que o contém, mesmo entre blocos aninhados.
+ * A busca é feita sem trava e consome o tempo de O(log2(n)).
  * 
  * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
  */
@@ -66,6 +64,19 @@ public final class SubnetIPv4 extends Subnet {
         this.address = getAddressNet(inetnum) & mask; // utiliza a máscara para garantir que o endereço passado seja o primeiro endereço do bloco.
     }
     
+    /**
+     * Leitura de um registro do cache binário.
+     * @param reader o leitor posicionado no registro.
+     * @throws IOException se houver falha na leitura.
+     */
+    private SubnetIPv4(BinaryFile.Reader reader) throws IOException {
+        super(reader);
+        // Endereçamento do bloco.
+        String inetnum = getInetnum();
+        this.mask = getMaskNet(inetnum);
+        this.address = getAddressNet(inetnum) & mask;
+    }
+    
     /**
      * Retorna o primeiro endereço do bloco em inteiro de 32 bits.
      * @return o primeiro endereço do bloco em inteiro de 32 bits.
@@ -276,6 +287,19 @@ public final class SubnetIPv4 extends Subnet {
         return address;
     }
     
+    /**
+     * Retorna a notação IPv4 de um endereço em inteiro de 32 bits.
+     * @param address o endereço IP em inteiro de 32 bits.
+     * @return a notação IPv4 do endereço.
+     */
+    public static String getIPv4(int address) {
+        int octet1 = (address >> 24 & 0xFF);
+        int octet2 = (address >> 16 & 0xFF);
+        int octet3 = (address >> 8 & 0xFF);
+        int octet4 = (address & 0xFF);
+        return octet1 + "." + octet2 + "." + octet3 + "." + octet4;
+    }
+    
     public static long getLongIP(String ip) {
         long address = 0;
         int i = 0;
@@ -357,42 +381,10 @@ public final class SubnetIPv4 extends Subnet {
     }
     
     public static boolean isReservedIPv4(String ip) {
-        if (ip == null) {
+        if (!isValidIPv4(ip)) {
             return false;
-        } else if (SubnetIPv4.containsIP("0.0.0.0/8", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("10.0.0.0/8", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("100.64.0.0/10", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("127.0.0.0/8", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("169.254.0.0/16", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("172.16.0.0/12", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("192.0.0.0/24", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("192.0.2.0/24", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("192.88.99.0/24", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("192.168.0.0/16", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("198.18.0.0/15", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("198.51.100.0/24", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("203.0.113.0/24", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("224.0.0.0/4", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("240.0.0.0/4", ip)) {
-            return true;
-        } else if (SubnetIPv4.containsIP("255.255.255.255/32", ip)) {
-            return true;
         } else {
-            return false;
+            return ReservedRange.getIPv4(ip) != null;
         }
     }
     
@@ -426,28 +418,59 @@ public final class SubnetIPv4 extends Subnet {
     }
     
     /**
-     * Mapa de blocos IP de ASs com busca em árvore binária log2(n).
+     * Índice de blocos IP de ASs com busca sem trava em O(log2(n)),
+     * que retorna o bloco mais específico entre blocos aninhados.
      */
-    private static final TreeMap<Long,SubnetIPv4> MAP = new TreeMap<Long,SubnetIPv4>();
+    private static final SubnetIndex<SubnetIPv4> MAP = new SubnetIndex<SubnetIPv4>() {
+        @Override
+        protected long getFirst(SubnetIPv4 value) {
+            return (long) value.address & 0xFFFFFFFFL;
+        }
+        @Override
+        protected long getLast(SubnetIPv4 value) {
+            return (long) (value.address | ~value.mask) & 0xFFFFFFFFL;
+        }
+    };
+    
+    /**
+     * Cargas em execução dos IPs ausentes do cache.
+     */
+    private static final SingleFlight<SubnetIPv4> FLIGHT = new SingleFlight<SubnetIPv4>();
+    
+    /**
+     * Busca o bloco em cache que contém um determinado IP.
+     * @param ip o IP cujo bloco deve ser retornado.
+     * @return o bloco em cache que contém o IP ou nulo se não houver.
+     */
+    private static SubnetIPv4 getExact(String ip) {
+        return MAP.get(getLongIP(ip));
+    }
+    
+    private static boolean dropExact(SubnetIPv4 subnet) {
+        if (MAP.remove(subnet)) {
+            dequeue(subnet);
+            // Atualiza flag de atualização.
+            CHANGED = true;
+            return true;
+        } else {
+            return false;
+        }
+    }
     
     /**
      * Remove registro de bloco de IP para AS do cache.
      * @param ip o IP cujo bloco deve ser removido.
      * @return o registro de bloco removido, se existir.
      */
-    public static synchronized SubnetIPv4 removeSubnet(String ip) {
-        // Busca eficiente O(log2(n)).
-        // Este método só funciona se o mapa não tiver intersecção de blocos.
-        Long key = getLongIP(ip);
-        key = MAP.floorKey(key);
-        if (key == null) {
-            return null;
-        } else {
-            SubnetIPv4 subnet = MAP.remove(key);
+    public static SubnetIPv4 removeSubnet(String ip) {
+        // Remove o bloco mais específico que contém o IP.
+        SubnetIPv4 subnet = MAP.remove(getLongIP(ip));
+        if (subnet != null) {
+            dequeue(subnet);
             // Atualiza flag de atualização.
             CHANGED = true;
-            return subnet;
         }
+        return subnet;
     }
     
     /**
@@ -455,7 +478,12 @@ public final class SubnetIPv4 extends Subnet {
      */
     private static boolean CHANGED = false;
     
-    protected static synchronized TreeSet<Subnet> getSubnetSet() {
+    /**
+     * Versão do esquema do cache binário.
+     */
+    private static final int VERSION = 1;
+    
+    protected static TreeSet<Subnet> getSubnetSet() {
         TreeSet<Subnet> subnetSet = new TreeSet<Subnet>();
         subnetSet.addAll(MAP.values());
         return subnetSet;
@@ -466,38 +494,19 @@ public final class SubnetIPv4 extends Subnet {
      * @param ip o IP cujo bloco deve ser retornado.
      * @throws ProcessException se houver falha no processamento.
      */
-    public static synchronized void refreshSubnet(String ip) throws ProcessException {
-        SubnetIPv4 subnet;
-        Long key = getLongIP(ip);
-        key = MAP.floorKey(key);
-        while (key != null) {
-            subnet = MAP.get(key);
-            if (subnet.contains(ip)) {
-                // Atualizando campos do registro.
-                if (!subnet.refresh()) {
-                    // Domínio real do resultado WHOIS não bate com o registro.
-                    // Pode haver mudança na distribuição dos blocos.
-                    // Apagando registro de bloco do cache.
-                    MAP.remove(key);
-                    CHANGED = true;
-                    // Segue para nova consulta.
-                    break;
-                }
-            } else {
-                key = MAP.lowerKey(key);
-            }
+    public static void refreshSubnet(String ip) throws ProcessException {
+        SubnetIPv4 subnet = getExact(ip);
+        if (subnet == null) {
+            // Não encontrou a sub-rede em cache.
+            newSubnet(ip);
+        } else if (!subnet.refresh()) {
+            // Domínio real do resultado WHOIS não bate com o registro.
+            // Pode haver mudança na distribuição dos blocos.
+            // Apagando registro de bloco do cache.
+            dropExact(subnet);
+            // Segue para nova consulta.
+            newSubnet(ip);
         }
-        // Não encontrou a sub-rede em cache.
-        // Selecionando servidor da pesquisa WHOIS.
-        String server = getWhoisServer(ip);
-        // Fazer a consulta no WHOIS.
-        String result = Server.whois(ip, server);
-        subnet = new SubnetIPv4(result);
-        subnet.server = server; // Temporário até final de transição.
-        ip = getFirstIPv4(subnet.getInetnum());
-        key = getLongIP(ip);
-        MAP.put(key, subnet);
-        CHANGED = true;
     }
     
     public static String getOwnerID(String ip) {
@@ -560,7 +569,7 @@ public final class SubnetIPv4 extends Subnet {
         }
     }
     
-    private static synchronized SubnetIPv4 newSubnet(String ip) throws ProcessException {
+    private static SubnetIPv4 newSubnet(String ip) throws ProcessException {
 //        Server.logTrace("quering new WHOIS IPv4");
         // Selecionando servidor da pesquisa WHOIS.
         String server = getWhoisServer(ip);
@@ -568,9 +577,7 @@ public final class SubnetIPv4 extends Subnet {
         String result = Server.whois(ip, server);
         SubnetIPv4 subnet = new SubnetIPv4(result);
         subnet.server = server; // Temporário até final de transição.
-        ip = getFirstIPv4(subnet.getInetnum());
-        Long key = getLongIP(ip);
-        MAP.put(key, subnet);
+        MAP.put(subnet);
         CHANGED = true;
         return subnet;
     }
@@ -581,42 +588,36 @@ public final class SubnetIPv4 extends Subnet {
      * @return o registro de bloco IPv4 de AS de um determinado IP.
      * @throws ProcessException se houver falha no processamento.
      */
-    public static SubnetIPv4 getSubnet(String ip) throws ProcessException {
-        SubnetIPv4 subnet;
-        Long key = getLongIP(ip);
-        key = MAP.floorKey(key);
-        while (key != null) {
-            subnet = MAP.get(key);
-            if (subnet.contains(ip)) {
-                if (subnet.isRegistryExpired()) {
-                    // Registro expirado.
-                    // Atualizando campos do registro.
-                    if (subnet.refresh()) {
-                        // Bloco do resultado WHOIS bate com o bloco do registro.
-                        return subnet;
-                    } else if (MAP.remove(key) != null) {
-                        // Domínio real do resultado WHOIS não bate com o registro.
-                        // Pode haver mudança na distribuição dos blocos.
-                        // Apagando registro de bloco do cache.
-                        CHANGED = true;
-                        // Segue para nova consulta.
-                        break;
-                    }
-                } else {
-                    return subnet;
-                }
+    public static SubnetIPv4 getSubnet(final String ip) throws ProcessException {
+        SubnetIPv4 subnet = getExact(ip);
+        if (subnet != null) {
+            if (!subnet.isRegistryExpired()) {
+                return subnet;
+            } else if (subnet.refresh()) {
+                // Registro expirado.
+                // Bloco do resultado WHOIS bate com o bloco do registro.
+                return subnet;
             } else {
-                key = MAP.lowerKey(key);
+                // Domínio real do resultado WHOIS não bate com o registro.
+                // Pode haver mudança na distribuição dos blocos.
+                // Apagando registro de bloco do cache.
+                dropExact(subnet);
+                // Segue para nova consulta.
             }
         }
         // Não encontrou a sub-rede em cache.
-        return newSubnet(ip);
-    }
-    
-    private static synchronized TreeMap<Long,SubnetIPv4> getMap() {
-        TreeMap<Long,SubnetIPv4> map = new TreeMap<Long,SubnetIPv4>();
-        map.putAll(MAP);
-        return map;
+        return FLIGHT.load(ip, new SingleFlight.Loader<SubnetIPv4>() {
+            @Override
+            public SubnetIPv4 load() throws ProcessException {
+                // Somente uma consulta WHOIS por IP ausente.
+                SubnetIPv4 subnet = getExact(ip);
+                if (subnet == null || subnet.isRegistryExpired()) {
+                    return newSubnet(ip);
+                } else {
+                    return subnet;
+                }
+            }
+        });
     }
     
     /**
@@ -625,18 +626,23 @@ public final class SubnetIPv4 extends Subnet {
     public static void store() {
         if (CHANGED) {
             try {
-//                Server.logTrace("storing subnet4.map");
+//                Server.logTrace("storing subnet4.bin");
                 long time = System.currentTimeMillis();
-                TreeMap<Long,SubnetIPv4> map = getMap();
-                File file = new File("./data/subnet4.map");
-                FileOutputStream outputStream = new FileOutputStream(file);
+                File file = new File("./data/subnet4.bin");
+                BinaryFile.Writer writer = new BinaryFile.Writer(file, "subnet4", VERSION);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    for (SubnetIPv4 subnet : MAP.values()) {
+                        writer.next();
+                        subnet.write(writer);
+                    }
+                    writer.finish();
                     // Atualiza flag de atualização.
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    writer.close();
                 }
+                // Conclui a migração do formato antigo.
+                new File("./data/subnet4.map").delete();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -644,36 +650,56 @@ public final class SubnetIPv4 extends Subnet {
         }
     }
     
-    private static synchronized SubnetIPv4 put(Long key, SubnetIPv4 subnet) {
-        return MAP.put(key, subnet);
-    }
-    
     /**
      * Carregamento de cache do disco.
      */
     public static void load() {
         long time = System.currentTimeMillis();
-        File file = new File("./data/subnet4.map");
-        if (file.exists()) {
+        File file = new File("./data/subnet4.bin");
+        File legacy = new File("./data/subnet4.map");
+        if (StoreFile.exists(file)) {
+            // Recorre à geração anterior se a atual estiver danificada.
+            for (File generation : StoreFile.getGenerations(file)) {
+                try {
+                    ArrayList<SubnetIPv4> list = new ArrayList<SubnetIPv4>();
+                    BinaryFile.Reader reader = new BinaryFile.Reader(generation, "subnet4", VERSION);
+                    try {
+                        while (reader.next()) {
+                            SubnetIPv4 sub4 = new SubnetIPv4(reader);
+                            list.add(sub4);
+                        }
+                        reader.verify();
+                    } finally {
+                        reader.close();
+                    }
+                    MAP.putAllAbsent(list);
+                    Server.logLoad(time, generation);
+                    break;
+                } catch (Exception ex) {
+                    Server.logError(ex);
+                }
+            }
+        } else if (legacy.exists()) {
             try {
                 TreeMap<Object,Object> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
+                FileInputStream fileInputStream = new FileInputStream(legacy);
                 try {
                     map = SerializationUtils.deserialize(fileInputStream);
                 } finally {
                     fileInputStream.close();
                 }
+                ArrayList<SubnetIPv4> list = new ArrayList<SubnetIPv4>(map.size());
                 for (Object value : map.values()) {
                     if (value instanceof SubnetIPv4) {
                         SubnetIPv4 sub4 = (SubnetIPv4) value;
                         sub4.normalize();
-                        String cidr = sub4.getInetnum();
-                        String ip = getFirstIPv4(cidr);
-                        Long key = getLongIP(ip);
-                        put(key, sub4);
+                        list.add(sub4);
                     }
                 }
-                Server.logLoad(time, file);
+                MAP.putAllAbsent(list);
+                // Força a gravação no formato binário.
+                CHANGED = true;
+                Server.logLoad(time, legacy);
             } catch (Exception ex) {
                 Server.logError(ex);
             }
@@ -16,14 +16,18 @@
  */
 package net.spfbl.whois;
 
+import net.spfbl.core.BinaryFile;
 import net.spfbl.core.Server;
+import net.spfbl.core.SingleFlight;
+import net.spfbl.core.StoreFile;
 import net.spfbl.core.ProcessException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -34,18 +38,12 @@ import org.apache.commons.lang3.SerializationUtils;
  * Representa uma Subnet de IPv6.
  * 
  * <h2>Mecanismo de busca</h2>
- * A busca de um bloco AS é realizada através de um mapa ordenado em árvore,
- * onde a chave é o primeiro endereço IP do bloco, 
- * convetido em inteiro de 64 bits, e o valor é o bloco propriamente dito.
- * O endereço IP da consulta é convertido em inteiro de 64 bits e localiza-se 
- * o endereço no mapa imediatamente inferior ou igual ao endereço do IP. 
- * Por conta do Java não trabalhar com unsigned int, 
- * a busca é feita de forma circular, ou seja, 
- * se não retornar na primeira busca, o último registro do mapa é retornado.
- * Se algum bloco for encontrado, 
- * é feito um teste se o endereço do IP está contido no bloco encontrado.
- * Se entiver dentro, o bloco encontrado é considerado.
- * A busca consome o tempo de O(log2(n)).
+ * A busca de um bloco AS é realizada através de um índice de intervalos,
+ * onde cada bloco é representado pelo primeiro e pelo último endereço IP,
+ * convertidos em inteiro de 64 bits sem sinal.
+ * O endereço IP da consulta é convertido da mesma forma e localiza-se
+ * o bloco mais específico que o contém, mesmo entre blocos aninhados.
+ * A busca é feita sem trava e consome o tempo de O(log2(n)).
  * 
  * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
  */
@@ -68,6 +66,19 @@ public final class SubnetIPv6 extends Subnet {
         this.address = getAddressNet(inetnum) & mask; // utiliza a máscara para garantir que o endereço passado seja o primeiro endereço do bloco.
     }
     
+    /**
+     * Leitura de um registro do cache binário.
+     * @param reader o leitor posicionado no registro.
+     * @throws IOException se houver falha na leitura.
+     */
+    private SubnetIPv6(BinaryFile.Reader reader) throws IOException {
+        super(reader);
+        // Endereçamento do bloco.
+        String inetnum = getInetnum();
+        this.mask = getMaskNet(inetnum);
+        this.address = getAddressNet(inetnum) & mask;
+    }
+    
     /**
      * Retorna o primeiro endereço do bloco em inteiro de 64 bits.
      * @return o primeiro endereço do bloco em inteiro de 64 bits.
@@ -365,58 +376,10 @@ public final class SubnetIPv6 extends Subnet {
     }
     
     public static boolean isReservedIPv6(String ip) {
-        if (ip == null) {
+        if (!isValidIPv6(ip)) {
             return false;
-        } else if (SubnetIPv6.containsIP("0000::/8", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("0100::/8", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("0200::/7", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("0400::/6", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("0800::/5", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("1000::/4", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("2001::/32", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("2001:10::/28", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("2001:20::/28", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("2001:db8::/32", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("2002::/16", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("4000::/3", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("6000::/3", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("8000::/3", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("a000::/3", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("c000::/3", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("e000::/4", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("f000::/5", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("f800::/6", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("fc00::/7", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("fe00::/9", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("fe80::/10", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("fec0::/10", ip)) {
-            return true;
-        } else if (SubnetIPv6.containsIP("ff00::/8", ip)) {
-            return true;
         } else {
-            return false;
+            return ReservedRange.getIPv6(ip) != null;
         }
     }
     
@@ -552,28 +515,59 @@ public final class SubnetIPv6 extends Subnet {
     }
     
     /**
-     * Mapa de blocos IP de ASs com busca em árvore binária log2(n).
+     * Índice de blocos IP de ASs com busca sem trava em O(log2(n)),
+     * que retorna o bloco mais específico entre blocos aninhados.
+     */
+    private static final SubnetIndex<SubnetIPv6> MAP = new SubnetIndex<SubnetIPv6>() {
+        @Override
+        protected long getFirst(SubnetIPv6 value) {
+            return value.address;
+        }
+        @Override
+        protected long getLast(SubnetIPv6 value) {
+            return value.address | ~value.mask;
+        }
+    };
+    
+    /**
+     * Cargas em execução dos IPs ausentes do cache.
      */
-    private static final TreeMap<String,SubnetIPv6> MAP = new TreeMap<String,SubnetIPv6>();
+    private static final SingleFlight<SubnetIPv6> FLIGHT = new SingleFlight<SubnetIPv6>();
+    
+    /**
+     * Busca o bloco em cache que contém um determinado IP.
+     * @param ip o IP cujo bloco deve ser retornado.
+     * @return o bloco em cache que contém o IP ou nulo se não houver.
+     */
+    private static SubnetIPv6 getExact(String ip) {
+        return MAP.get(getAddressIP(ip));
+    }
+    
+    private static boolean dropExact(SubnetIPv6 subnet) {
+        if (MAP.remove(subnet)) {
+            dequeue(subnet);
+            // Atualiza flag de atualização.
+            CHANGED = true;
+            return true;
+        } else {
+            return false;
+        }
+    }
     
     /**
      * Remove registro de bloco de IP para AS do cache.
      * @param ip o IP cujo bloco deve ser removido.
      * @return o registro de bloco removido, se existir.
      */
-    public static synchronized SubnetIPv6 removeSubnet(String ip) {
-        // Busca eficiente O(log2(n)).
-        // Este método só funciona se o mapa não tiver intersecção de blocos.
-        String key = expandIPv6(ip);
-        key = MAP.floorKey(key);
-        if (key == null) {
-            return null;
-        } else {
-            SubnetIPv6 subnet = MAP.remove(key);
+    public static SubnetIPv6 removeSubnet(String ip) {
+        // Remove o bloco mais específico que contém o IP.
+        SubnetIPv6 subnet = MAP.remove(getAddressIP(ip));
+        if (subnet != null) {
+            dequeue(subnet);
             // Atualiza flag de atualização.
             CHANGED = true;
-            return subnet;
         }
+        return subnet;
     }
     
     /**
@@ -581,7 +575,12 @@ public final class SubnetIPv6 extends Subnet {
      */
     private static boolean CHANGED = false;
     
-    protected static synchronized TreeSet<Subnet> getSubnetSet() {
+    /**
+     * Versão do esquema do cache binário.
+     */
+    private static final int VERSION = 1;
+    
+    protected static TreeSet<Subnet> getSubnetSet() {
         TreeSet<Subnet> subnetSet = new TreeSet<Subnet>();
         subnetSet.addAll(MAP.values());
         return subnetSet;
@@ -592,37 +591,19 @@ public final class SubnetIPv6 extends Subnet {
      * @param ip o IP cujo bloco deve ser retornado.
      * @throws ProcessException se houver falha no processamento.
      */
-    public static synchronized void refreshSubnet(String ip) throws ProcessException {
-        SubnetIPv6 subnet;
-        String key = MAP.floorKey(expandIPv6(ip));
-        while (key != null) {
-            subnet = MAP.get(key);
-            if (subnet.contains(ip)) {
-                // Atualizando campos do registro.
-                if (!subnet.refresh()) {
-                    // Domínio real do resultado WHOIS não bate com o registro.
-                    // Pode haver mudança na distribuição dos blocos.
-                    // Apagando registro de bloco do cache.
-                    MAP.remove(key);
-                    CHANGED = true;
-                    // Segue para nova consulta.
-                    break;
-                }
-            } else {
-                key = MAP.lowerKey(key);
-            }
+    public static void refreshSubnet(String ip) throws ProcessException {
+        SubnetIPv6 subnet = getExact(ip);
+        if (subnet == null) {
+            // Não encontrou a sub-rede em cache.
+            newSubnet(ip);
+        } else if (!subnet.refresh()) {
+            // Domínio real do resultado WHOIS não bate com o registro.
+            // Pode haver mudança na distribuição dos blocos.
+            // Apagando registro de bloco do cache.
+            dropExact(subnet);
+            // Segue para nova consulta.
+            newSubnet(ip);
         }
-        // Não encontrou a sub-rede em cache.
-        // Selecionando servidor da pesquisa WHOIS.
-        String server = getWhoisServer(ip);
-        // Fazer a consulta no WHOIS.
-        String result = Server.whois(ip, server);
-        subnet = new SubnetIPv6(result);
-        subnet.server = server; // Temporário até final de transição.
-        key = getFirstIPv6(subnet.getInetnum());
-        key = expandIPv6(key);
-        MAP.put(key, subnet);
-        CHANGED = true;
     }
     
     public static String getFirstIPv6(String inetnum) {
@@ -773,7 +754,7 @@ public final class SubnetIPv6 extends Subnet {
         }
     }
     
-    private static synchronized SubnetIPv6 newSubnet(String ip) throws ProcessException {
+    private static SubnetIPv6 newSubnet(String ip) throws ProcessException {
 //        Server.logTrace("quering new WHOIS IPv6");
         // Selecionando servidor da pesquisa WHOIS.
         String server = getWhoisServer(ip);
@@ -781,9 +762,7 @@ public final class SubnetIPv6 extends Subnet {
         String result = Server.whois(ip, server);
         SubnetIPv6 subnet = new SubnetIPv6(result);
         subnet.server = server; // Temporário até final de transição.
-        String key = getFirstIPv6(subnet.getInetnum());
-        key = expandIPv6(key);
-        MAP.put(key, subnet);
+        MAP.put(subnet);
         CHANGED = true;
         return subnet;
     }
@@ -794,41 +773,36 @@ public final class SubnetIPv6 extends Subnet {
      * @return o registro de bloco IPv6 de AS de um determinado IP.
      * @throws ProcessException se houver falha no processamento.
      */
-    public static SubnetIPv6 getSubnet(String ip) throws ProcessException {
-        SubnetIPv6 subnet;
-        String key = MAP.floorKey(expandIPv6(ip));
-        while (key != null) {
-            subnet = MAP.get(key);
-            if (subnet.contains(ip)) {
-                if (subnet.isRegistryExpired()) {
-                    // Registro expirado.
-                    // Atualizando campos do registro.
-                    if (subnet.refresh()) {
-                        // Bloco do resultado WHOIS bate com o bloco do registro.
-                        return subnet;
-                    } else if (MAP.remove(key) != null) {
-                        // Domínio real do resultado WHOIS não bate com o registro.
-                        // Pode haver mudança na distribuição dos blocos.
-                        // Apagando registro de bloco do cache.
-                        CHANGED = true;
-                        // Segue para nova consulta.
-                        break;
-                    }
-                } else {
-                    return subnet;
-                }
+    public static SubnetIPv6 getSubnet(final String ip) throws ProcessException {
+        SubnetIPv6 subnet = getExact(ip);
+        if (subnet != null) {
+            if (!subnet.isRegistryExpired()) {
+                return subnet;
+            } else if (subnet.refresh()) {
+                // Registro expirado.
+                // Bloco do resultado WHOIS bate com o bloco do registro.
+                return subnet;
             } else {
-                key = MAP.lowerKey(key);
+                // Domínio real do resultado WHOIS não bate com o registro.
+                // Pode haver mudança na distribuição dos blocos.
+                // Apagando registro de bloco do cache.
+                dropExact(subnet);
+                // Segue para nova consulta.
             }
         }
         // Não encontrou a sub-rede em cache.
-        return newSubnet(ip);
-    }
-    
-    private static synchronized TreeMap<String,SubnetIPv6> getMap() {
-        TreeMap<String,SubnetIPv6> map = new TreeMap<String,SubnetIPv6>();
-        map.putAll(MAP);
-        return map;
+        return FLIGHT.load(ip, new SingleFlight.Loader<SubnetIPv6>() {
+            @Override
+            public SubnetIPv6 load() throws ProcessException {
+                // Somente uma consulta WHOIS por IP ausente.
+                SubnetIPv6 subnet = getExact(ip);
+                if (subnet == null || subnet.isRegistryExpired()) {
+                    return newSubnet(ip);
+                } else {
+                    return subnet;
+                }
+            }
+        });
     }
     
     /**
@@ -837,18 +811,23 @@ public final class SubnetIPv6 extends Subnet {
     public static void store() {
         if (CHANGED) {
             try {
-//                Server.logTrace("storing subnet6.map");
+//                Server.logTrace("storing subnet6.bin");
                 long time = System.currentTimeMillis();
-                TreeMap<String,SubnetIPv6> map = getMap();
-                File file = new File("./data/subnet6.map");
-                FileOutputStream outputStream = new FileOutputStream(file);
+                File file = new File("./data/subnet6.bin");
+                BinaryFile.Writer writer = new BinaryFile.Writer(file, "subnet6", VERSION);
                 try {
-                    SerializationUtils.serialize(map, outputStream);
+                    for (SubnetIPv6 subnet : MAP.values()) {
+                        writer.next();
+                        subnet.write(writer);
+                    }
+                    writer.finish();
                     // Atualiza flag de atualização.
                     CHANGED = false;
                 } finally {
-                    outputStream.close();
+                    writer.close();
                 }
+                // Conclui a migração do formato antigo.
+                new File("./data/subnet6.map").delete();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -856,36 +835,56 @@ public final class SubnetIPv6 extends Subnet {
         }
     }
     
-    private static synchronized SubnetIPv6 put(String key, SubnetIPv6 subnet) {
-        return MAP.put(key, subnet);
-    }
-    
     /**
      * Carregamento de cache do disco.
      */
     public static void load() {
         long time = System.currentTimeMillis();
-        File file = new File("./data/subnet6.map");
-        if (file.exists()) {
+        File file = new File("./data/subnet6.bin");
+        File legacy = new File("./data/subnet6.map");
+        if (StoreFile.exists(file)) {
+            // Recorre à geração anterior se a atual estiver danificada.
+            for (File generation : StoreFile.getGenerations(file)) {
+                try {
+                    ArrayList<SubnetIPv6> list = new ArrayList<SubnetIPv6>();
+                    BinaryFile.Reader reader = new BinaryFile.Reader(generation, "subnet6", VERSION);
+                    try {
+                        while (reader.next()) {
+                            SubnetIPv6 sub6 = new SubnetIPv6(reader);
+                            list.add(sub6);
+                        }
+                        reader.verify();
+                    } finally {
+                        reader.close();
+                    }
+                    MAP.putAllAbsent(list);
+                    Server.logLoad(time, generation);
+                    break;
+                } catch (Exception ex) {
+                    Server.logError(ex);
+                }
+            }
+        } else if (legacy.exists()) {
             try {
                 TreeMap<Object,Object> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
+                FileInputStream fileInputStream = new FileInputStream(legacy);
                 try {
                     map = SerializationUtils.deserialize(fileInputStream);
                 } finally {
                     fileInputStream.close();
                 }
+                ArrayList<SubnetIPv6> list = new ArrayList<SubnetIPv6>(map.size());
                 for (Object value : map.values()) {
                     if (value instanceof SubnetIPv6) {
                         SubnetIPv6 sub6 = (SubnetIPv6) value;
                         sub6.normalize();
-                        String cidr = sub6.getInetnum();
-                        String ip = getFirstIPv6(cidr);
-                        String key = expandIPv6(ip);
-                        put(key, sub6);
+                        list.add(sub6);
                     }
                 }
-                Server.logLoad(time, file);
+                MAP.putAllAbsent(list);
+                // Força a gravação no formato binário.
+                CHANGED = true;
+                Server.logLoad(time, legacy);
             } catch (Exception ex) {
                 Server.logError(ex);
             }
@@ -0,0 +1,279 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.whois;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Índice de intervalos de endereços para busca de blocos IP.
+ *
+ * <h2>Mecanismo de busca</h2>
+ * Os blocos são mantidos em vetores de primeiro e último endereço,
+ * ordenados pelo primeiro endereço e, no empate, do maior para o menor
+ * bloco. Cada bloco aponta para o bloco anterior mais próximo que o contém,
+ * de modo que blocos aninhados são suportados: a busca localiza o último
+ * bloco que começa antes do endereço e sobe pelos blocos que o contêm
+ * até encontrar o primeiro que contém o endereço, que é o mais específico.
+ * Os endereços são comparados sem sinal.
+ *
+ * <h2>Concorrência</h2>
+ * A busca é feita sem trava sobre uma cópia imutável dos vetores.
+ * Cada alteração monta uma nova cópia e a publica atomicamente,
+ * o que é adequado para um cache muito mais consultado do que alterado.
+ * A inclusão em bloco monta uma única cópia para todos os registros.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+abstract class SubnetIndex<T> {
+
+    /**
+     * Cópia imutável do índice.
+     */
+    private static final class Table {
+
+        private final long[] first;
+        private final long[] last;
+        private final int[] parent;
+        private final Object[] values;
+
+        private Table(int size) {
+            this.first = new long[size];
+            this.last = new long[size];
+            this.parent = new int[size];
+            this.values = new Object[size];
+        }
+
+        private int size() {
+            return values.length;
+        }
+
+        /**
+         * Busca binária do último bloco que começa antes do endereço.
+         * @param address o endereço com o sinal invertido.
+         * @return a posição do bloco ou -1 se não houver.
+         */
+        private int floor(long address) {
+            int low = 0;
+            int high = first.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (first[middle] <= address) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return high;
+        }
+
+        /**
+         * @param address o endereço com o sinal invertido.
+         * @return a posição do bloco mais específico que contém o endereço ou -1.
+         */
+        private int search(long address) {
+            int index = floor(address);
+            while (index >= 0 && last[index] < address) {
+                index = parent[index];
+            }
+            return index;
+        }
+    }
+
+    private static final Table EMPTY = new Table(0);
+
+    private volatile Table table = EMPTY;
+
+    /**
+     * @param value o bloco.
+     * @return o primeiro endereço do bloco.
+     */
+    protected abstract long getFirst(T value);
+
+    /**
+     * @param value o bloco.
+     * @return o último endereço do bloco.
+     */
+    protected abstract long getLast(T value);
+
+    /**
+     * Inverte o sinal para que a comparação com sinal
+     * resulte na ordem dos endereços sem sinal.
+     */
+    private static long unsigned(long address) {
+        return address ^ Long.MIN_VALUE;
+    }
+
+    private final Comparator<T> COMPARATOR = new Comparator<T>() {
+        @Override
+        public int compare(T value1, T value2) {
+            long first1 = unsigned(getFirst(value1));
+            long first2 = unsigned(getFirst(value2));
+            if (first1 < first2) {
+                return -1;
+            } else if (first1 > first2) {
+                return 1;
+            } else {
+                long last1 = unsigned(getLast(value1));
+                long last2 = unsigned(getLast(value2));
+                if (last1 > last2) {
+                    return -1;
+                } else if (last1 < last2) {
+                    return 1;
+                } else {
+                    return 0;
+                }
+            }
+        }
+    };
+
+    /**
+     * Monta a cópia imutável a partir de uma lista ordenada e sem repetição.
+     */
+    private Table build(ArrayList<T> list) {
+        Table result = new Table(list.size());
+        int[] stack = new int[list.size()];
+        int top = -1;
+        for (int index = 0; index < list.size(); index++) {
+            T value = list.get(index);
+            long first = unsigned(getFirst(value));
+            long last = unsigned(getLast(value));
+            result.first[index] = first;
+            result.last[index] = last;
+            result.values[index] = value;
+            // Descarta os blocos anteriores que terminam antes deste.
+            while (top >= 0 && result.last[stack[top]] < first) {
+                top--;
+            }
+            result.parent[index] = top < 0 ? -1 : stack[top];
+            stack[++top] = index;
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ArrayList<T> list() {
+        Table current = table;
+        ArrayList<T> list = new ArrayList<T>(current.size() + 1);
+        for (Object value : current.values) {
+            list.add((T) value);
+        }
+        return list;
+    }
+
+    /**
+     * Busca sem trava do bloco mais específico que contém o endereço.
+     * @param address o endereço a ser buscado.
+     * @return o bloco mais específico que contém o endereço ou nulo se não houver.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(long address) {
+        Table current = table;
+        int index = current.search(unsigned(address));
+        if (index < 0) {
+            return null;
+        } else {
+            return (T) current.values[index];
+        }
+    }
+
+    /**
+     * Inclui o bloco, substituindo o bloco de mesmo intervalo.
+     * @param value o bloco a ser incluído.
+     * @return o bloco substituído ou nulo se não havia.
+     */
+    public synchronized T put(T value) {
+        ArrayList<T> list = list();
+        int index = Collections.binarySearch(list, value, COMPARATOR);
+        T previous;
+        if (index < 0) {
+            previous = null;
+            list.add(-index - 1, value);
+        } else {
+            previous = list.set(index, value);
+        }
+        table = build(list);
+        return previous;
+    }
+
+    /**
+     * Inclui em bloco os registros ausentes com uma única cópia do índice,
+     * sem substituir os blocos de mesmo intervalo já presentes.
+     * @param values os blocos a serem incluídos.
+     */
+    public synchronized void putAllAbsent(Collection<T> values) {
+        ArrayList<T> list = list();
+        list.addAll(values);
+        // A ordenação é estável e mantém os blocos presentes à frente.
+        Collections.sort(list, COMPARATOR);
+        ArrayList<T> distinct = new ArrayList<T>(list.size());
+        T previous = null;
+        for (T value : list) {
+            if (previous == null || COMPARATOR.compare(previous, value) != 0) {
+                distinct.add(value);
+                previous = value;
+            }
+        }
+        table = build(distinct);
+    }
+
+    /**
+     * Remove exatamente o bloco informado.
+     * @param value o bloco a ser removido.
+     * @return verdadeiro se o bloco estava no índice.
+     */
+    public synchronized boolean remove(T value) {
+        ArrayList<T> list = list();
+        int index = Collections.binarySearch(list, value, COMPARATOR);
+        if (index < 0 || list.get(index) != value) {
+            return false;
+        } else {
+            list.remove(index);
+            table = build(list);
+            return true;
+        }
+    }
+
+    /**
+     * Remove o bloco mais específico que contém o endereço.
+     * @param address o endereço do bloco.
+     * @return o bloco removido ou nulo se não havia.
+     */
+    public synchronized T remove(long address) {
+        T value = get(address);
+        if (value != null) {
+            remove(value);
+        }
+        return value;
+    }
+
+    /**
+     * @return os blocos na ordem do índice.
+     */
+    public ArrayList<T> values() {
+        return list();
+    }
+
+    /**
+     * @return a quantidade de blocos no índice.
+     */
+    public int size() {
+        return table.size();
+    }
+}